@@ -0,0 +1,72 @@
+import bdv.viewer.BasicViewerState;
+import bdv.viewer.SynchronizedViewerState;
+import bdv.viewer.ViewerState;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame camera fitting of {@link BvvRotateMovie}, starting from the
+ * rotated base transform of a turntable frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CameraBenchmark {
+
+    private static final int W = 1920, H = 1080;
+    private static final double D_CAM = 3000, CLIP_NEAR = 1, CLIP_FAR = 10000;
+    private static final int ORTHO = 1;
+
+    private final double[] globalMin = {0, 0, 0};
+    private final double[] globalMax = {2048, 2048, 512};
+    private final double[] pivot = {1024, 1024, 256};
+
+    private ViewerState state;
+    private AffineTransform3D base;
+    private int frame;
+
+    @Setup
+    public void setup() {
+        state = new SynchronizedViewerState(new BasicViewerState());
+        base = new AffineTransform3D();
+        base.translate(-pivot[0], -pivot[1], -pivot[2]);
+        base.rotate(2, Math.PI / 2);
+        base.rotate(0, 3 * Math.PI / 2);
+    }
+
+    private void nextFrame() {
+        final AffineTransform3D t = base.copy();
+        final AffineTransform3D r = new AffineTransform3D();
+        r.rotate(1, 2 * Math.PI * (frame++ % 360) / 360);
+        t.preConcatenate(r);
+        state.setViewerTransform(t);
+    }
+
+    @Benchmark
+    public Object fitByScalingAboutOrigin() {
+        nextFrame();
+        BvvRotateMovie.fitByScalingAboutOrigin(state, globalMin, globalMax, W, H, ORTHO, D_CAM, CLIP_NEAR, CLIP_FAR, 1);
+        return state.getViewerTransform();
+    }
+
+    @Benchmark
+    public Object centerPivotOnScreen() {
+        nextFrame();
+        BvvRotateMovie.centerPivotOnScreen(state, pivot, W, H, ORTHO, D_CAM, CLIP_NEAR, CLIP_FAR);
+        return state.getViewerTransform();
+    }
+}
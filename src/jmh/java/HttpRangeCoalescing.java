@@ -0,0 +1,136 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks {@link CoalescingRangeReader} against a local HTTP server that
+ * serves one "shard" object, honours {@code Range} headers and counts the
+ * requests it gets.
+ *
+ * The chunks of the shard are read in passes of {@code threads} neighbouring
+ * chunks, concurrently and in scattered order within a pass, once directly
+ * and once through the coalescing reader. Every chunk must come
+ * back intact, and the coalescing reader must need fewer requests.
+ *
+ * Usage: {@code HttpRangeCoalescing [numChunks=512] [chunkBytes=16384] [threads=64] [latencyMs=2]}
+ */
+public class HttpRangeCoalescing {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    public static void main(String... args) throws Exception {
+
+        final int numChunks = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        final int chunkBytes = args.length > 1 ? Integer.parseInt(args[1]) : 16384;
+        final int threads = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        final int latencyMs = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+        final byte[] shard = new byte[numChunks * chunkBytes];
+        new Random(42).nextBytes(shard);
+
+        final AtomicLong requests = new AtomicLong();
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/data/shard", exchange -> serve(exchange, shard, latencyMs, requests));
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+        server.start();
+        final URI base = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/data/");
+
+        // like a renderer pass: a neighbourhood of chunks is wanted at once,
+        // requested in scattered order
+        final List<List<Integer>> passes = new ArrayList<>();
+        final Random random = new Random(7);
+        for (int i = 0; i < numChunks; i += threads) {
+            final List<Integer> neighbours = new ArrayList<>();
+            for (int j = i; j < Math.min(i + threads, numChunks); j++)
+                neighbours.add(j);
+            Collections.shuffle(neighbours, random);
+            passes.add(neighbours);
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            final ByteRangeReader direct = ByteRangeReader.forUri(base);
+            requests.set(0);
+            final double directSeconds = readAll(direct, shard, passes, chunkBytes, pool);
+            final long directRequests = requests.get();
+
+            final CoalescingRangeReader coalescing = new CoalescingRangeReader(direct);
+            requests.set(0);
+            final double coalescedSeconds = readAll(coalescing, shard, passes, chunkBytes, pool);
+            final long coalescedRequests = requests.get();
+
+            System.out.println(String.format("direct:    %6d requests, %8.1f ms", directRequests, directSeconds * 1e3));
+            System.out.println(String.format("coalesced: %6d requests, %8.1f ms (%d ranges, %.1f MB read)",
+                    coalescedRequests, coalescedSeconds * 1e3, coalescing.getParts(), coalescing.getBytesRead() / 1e6));
+
+            if (directRequests != numChunks)
+                throw new AssertionError("expected one request per chunk, got " + directRequests);
+            if (coalescedRequests >= directRequests || coalescedRequests != coalescing.getRequests())
+                throw new AssertionError("coalescing did not reduce the number of requests");
+            System.out.println("OK");
+        } finally {
+            pool.shutdown();
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+        }
+    }
+
+    private static double readAll(ByteRangeReader reader, byte[] shard, List<List<Integer>> passes, int chunkBytes,
+                                  ExecutorService pool) throws Exception {
+        final long start = System.nanoTime();
+        for (List<Integer> pass : passes) {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int chunk : pass) {
+                futures.add(pool.submit(() -> {
+                    final long offset = (long) chunk * chunkBytes;
+                    final byte[] bytes = reader.read("shard", offset, chunkBytes);
+                    if (!Arrays.equals(bytes, Arrays.copyOfRange(shard, (int) offset, (int) offset + chunkBytes)))
+                        throw new AssertionError("wrong bytes for chunk " + chunk);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        }
+        return (System.nanoTime() - start) * 1e-9;
+    }
+
+    private static void serve(HttpExchange exchange, byte[] data, int latencyMs, AtomicLong requests) throws IOException {
+        requests.incrementAndGet();
+        try {
+            Thread.sleep(latencyMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        final Matcher m = range == null ? null : RANGE.matcher(range);
+        int from = 0;
+        int to = data.length - 1;
+        int status = 200;
+        if (m != null && m.matches()) {
+            from = Integer.parseInt(m.group(1));
+            to = Math.min(Integer.parseInt(m.group(2)), data.length - 1);
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + data.length);
+        }
+        exchange.sendResponseHeaders(status, to - from + 1);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(data, from, to - from + 1);
+        }
+    }
+}
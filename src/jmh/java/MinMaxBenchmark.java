@@ -0,0 +1,51 @@
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SourceToViewerSetupImgLoaderBvv#getMinMaxForRealType}, the sampling
+ * done once per float source when it is wrapped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MinMaxBenchmark {
+
+    @Param({"float32", "uint16"})
+    public String type;
+
+    @Param({"64", "256"})
+    public int size;
+
+    private RandomAccessibleInterval<? extends RealType<?>> image;
+
+    @Setup
+    public void setup() {
+        final long[] dims = {size, size, size};
+        image = type.equals("float32")
+                ? SyntheticSource.noise(new FloatType(), dims, 1, 1).getSource(0, 0)
+                : SyntheticSource.noise(new UnsignedShortType(), dims, 1, 1).getSource(0, 0);
+    }
+
+    @Benchmark
+    public Object getMinMaxForRealType() {
+        return SourceToViewerSetupImgLoaderBvv.getMinMaxForRealType(image);
+    }
+}
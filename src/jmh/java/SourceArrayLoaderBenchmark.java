@@ -0,0 +1,140 @@
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.ValuePair;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and converting blocks with
+ * {@link SourceToViewerSetupImgLoaderBvv.SourceArrayLoader} for each
+ * supported input type and a range of block sizes, reading from memory or
+ * from an N5 container in a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SourceArrayLoaderBenchmark {
+
+    @Param({"uint8", "uint16", "uint32", "float32"})
+    public String type;
+
+    @Param({"16", "32", "64"})
+    public int blockSize;
+
+    @Param({"memory", "n5"})
+    public String storage;
+
+    private static final long[] DIMENSIONS = {256, 256, 256};
+
+    private SourceToViewerSetupImgLoaderBvv.SourceArrayLoader loader;
+    private long[][] blockMins;
+    private int[] blockDims;
+    private int next;
+    private File tmpDir;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void setup() throws Exception {
+        SyntheticSource<?> source = createSource(type);
+        if (storage.equals("n5"))
+            source = toN5((SyntheticSource) source);
+
+        ValuePair<Double, Double> minMax = null;
+        if (source.getType() instanceof FloatType)
+            minMax = new ValuePair<>(0.0, 65535.0);
+        loader = new SourceToViewerSetupImgLoaderBvv.SourceArrayLoader(source, minMax);
+        loader.setMetrics(new RenderMetrics());
+
+        final CellGrid grid = new CellGrid(DIMENSIONS, new int[]{blockSize, blockSize, blockSize});
+        final int numBlocks = (int) grid.getNumCells();
+        blockMins = new long[numBlocks][3];
+        blockDims = new int[3];
+        final List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < numBlocks; i++) {
+            grid.getCellDimensions(i, blockMins[i], blockDims);
+            order.add(i);
+        }
+        // visit blocks in random order so neighbouring source cells are not always hot
+        Collections.shuffle(order, new Random(42));
+        final long[][] shuffled = new long[numBlocks][];
+        for (int i = 0; i < numBlocks; i++)
+            shuffled[i] = blockMins[order.get(i)];
+        blockMins = shuffled;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (tmpDir != null)
+            new N5FSWriter(tmpDir.getAbsolutePath()).remove();
+    }
+
+    /**
+     * Read and convert one block. Goes through {@code loadExclusive}:
+     * {@code loadArray} would serve repeated blocks from the
+     * {@link BlockLoadRegistry} after the first pass.
+     */
+    @Benchmark
+    public Object loadArray() {
+        final long[] min = blockMins[next];
+        next = (next + 1) % blockMins.length;
+        final short[] data = loader.loadExclusive(0, 0, blockDims, min);
+        ShortArrayPool.get().give(data);
+        return data;
+    }
+
+    static SyntheticSource<?> createSource(String type) {
+        switch (type) {
+            case "uint8":
+                return SyntheticSource.noise(new UnsignedByteType(), DIMENSIONS, 1, 1);
+            case "uint16":
+                return SyntheticSource.noise(new UnsignedShortType(), DIMENSIONS, 1, 1);
+            case "uint32":
+                return SyntheticSource.noise(new UnsignedIntType(), DIMENSIONS, 1, 1);
+            case "float32":
+                return SyntheticSource.noise(new FloatType(), DIMENSIONS, 1, 1);
+            default:
+                throw new IllegalArgumentException("Unknown type " + type);
+        }
+    }
+
+    /** write the source to a temporary N5 and return a source reading it back through the N5 cell cache */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private <T extends RealType<T> & NativeType<T>> SyntheticSource<T> toN5(SyntheticSource<T> source) throws Exception {
+        tmpDir = Files.createTempDirectory("bvv-bench-").toFile();
+        final N5FSWriter n5 = new N5FSWriter(tmpDir.getAbsolutePath());
+        N5Utils.save(source.getSource(0, 0), n5, "s0", new int[]{64, 64, 64}, new GzipCompression());
+        final RandomAccessibleInterval<T> img = (RandomAccessibleInterval) N5Utils.open(n5, "s0");
+        return new SyntheticSource<>(Collections.singletonList(img), source.getType(), 1);
+    }
+}
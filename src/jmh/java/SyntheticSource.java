@@ -0,0 +1,101 @@
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * In-memory (or N5-backed) multi-resolution {@link Source} for benchmarks.
+ * All timepoints share the same images, so many timepoints cost no memory.
+ */
+public class SyntheticSource<T extends NumericType<T> & NativeType<T>> implements Source<T> {
+
+    private final List<RandomAccessibleInterval<T>> levels;
+    private final T type;
+    private final int numTimepoints;
+
+    public SyntheticSource(List<RandomAccessibleInterval<T>> levels, T type, int numTimepoints) {
+        this.levels = levels;
+        this.type = type;
+        this.numTimepoints = numTimepoints;
+    }
+
+    /**
+     * Random noise with a fixed seed, {@code numLevels} levels each half the
+     * size of the previous one.
+     */
+    public static <T extends RealType<T> & NativeType<T>> SyntheticSource<T> noise(
+            T type, long[] dimensions, int numLevels, int numTimepoints) {
+        final List<RandomAccessibleInterval<T>> levels = new ArrayList<>();
+        final Random random = new Random(42);
+        final double range = Math.min(type.getMaxValue(), 65535);
+        long[] dims = dimensions.clone();
+        for (int l = 0; l < numLevels; l++) {
+            final Img<T> img = new ArrayImgFactory<>(type).create(dims);
+            for (T t : img)
+                t.setReal(random.nextDouble() * range);
+            levels.add(img);
+            dims = dims.clone();
+            for (int d = 0; d < dims.length; d++)
+                dims[d] = Math.max(1, dims[d] / 2);
+        }
+        return new SyntheticSource<>(levels, type, numTimepoints);
+    }
+
+    @Override
+    public boolean isPresent(int t) {
+        return t >= 0 && t < numTimepoints;
+    }
+
+    @Override
+    public RandomAccessibleInterval<T> getSource(int t, int level) {
+        return levels.get(level);
+    }
+
+    @Override
+    public RealRandomAccessible<T> getInterpolatedSource(int t, int level, Interpolation method) {
+        return Views.interpolate(Views.extendZero(levels.get(level)), new NearestNeighborInterpolatorFactory<>());
+    }
+
+    @Override
+    public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+        final double s = 1 << level;
+        transform.set(
+                s, 0, 0, 0.5 * (s - 1),
+                0, s, 0, 0.5 * (s - 1),
+                0, 0, s, 0.5 * (s - 1));
+    }
+
+    @Override
+    public T getType() {
+        return type;
+    }
+
+    @Override
+    public String getName() {
+        return "synthetic";
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions() {
+        return new FinalVoxelDimensions("px", 1, 1, 1);
+    }
+
+    @Override
+    public int getNumMipmapLevels() {
+        return levels.size();
+    }
+}
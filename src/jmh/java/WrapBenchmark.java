@@ -0,0 +1,49 @@
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SourceToSpimDataWrapper#wrap} on sources with many timepoints and
+ * mipmap levels. For float sources this includes the min/max sampling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WrapBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int numTimepoints;
+
+    @Param({"uint16", "float32"})
+    public String type;
+
+    private SyntheticSource<?> source;
+
+    @Setup
+    public void setup() {
+        final long[] dims = {128, 128, 128};
+        source = type.equals("float32")
+                ? SyntheticSource.noise(new FloatType(), dims, 4, numTimepoints)
+                : SyntheticSource.noise(new UnsignedShortType(), dims, 4, numTimepoints);
+    }
+
+    @Benchmark
+    public Object wrap() {
+        return SourceToSpimDataWrapper.wrap(source);
+    }
+}
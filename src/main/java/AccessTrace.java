@@ -0,0 +1,401 @@
+import net.imglib2.img.cell.CellGrid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The cells a render needed, (setup, timepoint, level, cell index) in the
+ * order they were first loaded, so that a later run of the same job can load
+ * them before its first frame instead of stalling on them frame by frame.
+ *
+ * With {@code -Dbvv.trace=true}, {@link Main#record} records a trace per job
+ * while rendering and saves it below {@code bvv.trace.dir} (default
+ * {@code ~/.url-viewer-bdv-bvv/traces}). A job is its dataset, size and
+ * frames, the cell dimensions of its loaders and the settings of the active
+ * {@link RenderProfile}, see {@link #file}. When a trace of the job exists,
+ * it is {@link #replay replayed} instead, within {@code bvv.trace.maxMillis}
+ * (default 10000) and {@code bvv.trace.maxMB} (default a quarter of the
+ * heap). Once it is older than {@code bvv.trace.maxAgeHours} (default 24) it
+ * is {@link #isStale stale}, e.g. because the data changed, and recorded
+ * again.
+ *
+ * A trace can also keep a timeline for {@link CachePolicySimulator}: every
+ * cell the renderer requested, once per frame, and every fetch with its
+ * latency, both with a timestamp, plus the cell grids of the loaders.
+ * {@code -Dbvv.trace.timeline=<file>} records one of the run (cold, without
+ * warm start) to {@code file}, at most {@code bvv.trace.maxEvents} (default
+ * 4M) events.
+ */
+public class AccessTrace {
+
+    private static final int MAGIC = 0x41545231; // "ATR1"
+    private static final int MAGIC_TIMELINE = 0x41545232; // "ATR2"
+
+    /** one cell of one loader; setup is the index of the loader */
+    static final class Entry {
+        final int setup;
+        final int timepoint;
+        final int level;
+        final long index;
+
+        Entry(int setup, int timepoint, int level, long index) {
+            this.setup = setup;
+            this.timepoint = timepoint;
+            this.level = level;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            final Entry other = (Entry) o;
+            return setup == other.setup && timepoint == other.timepoint && level == other.level && index == other.index;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(setup, timepoint, level, index);
+        }
+    }
+
+    /** a cell the renderer requested ({@code latency} -1) or a finished fetch, {@code latency} in ns */
+    static final class Event {
+        final long nanos;
+        final int frame;
+        final int setup;
+        final int timepoint;
+        final int level;
+        final long index;
+        final long latency;
+
+        Event(long nanos, int frame, int setup, int timepoint, int level, long index, long latency) {
+            this.nanos = nanos;
+            this.frame = frame;
+            this.setup = setup;
+            this.timepoint = timepoint;
+            this.level = level;
+            this.index = index;
+            this.latency = latency;
+        }
+
+        boolean isRequest() {
+            return latency < 0;
+        }
+    }
+
+    private final int maxEntries = Integer.getInteger("bvv.trace.maxEntries", 1 << 20);
+    private final Set<Entry> seen = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final boolean timeline;
+    private final int maxEvents = Integer.getInteger("bvv.trace.maxEvents", 1 << 22);
+    private final long start = System.nanoTime();
+    private final AtomicInteger frame = new AtomicInteger();
+    private final Set<Entry> requestedInFrame = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger numEvents = new AtomicInteger();
+    /** setup << 8 | level -> image dimensions, cell dimensions (x,y,z each) */
+    private final ConcurrentHashMap<Integer, long[]> grids = new ConcurrentHashMap<>();
+    private volatile int parallelism = 1;
+
+    public AccessTrace() {
+        this(false);
+    }
+
+    /** @param timeline whether to keep the timeline of requests and fetches as well */
+    public AccessTrace(boolean timeline) {
+        this.timeline = timeline;
+    }
+
+    public boolean hasTimeline() {
+        return timeline;
+    }
+
+    public void record(int setup, int timepoint, int level, long index) {
+        if (size.get() >= maxEntries)
+            return;
+        final Entry entry = new Entry(setup, timepoint, level, index);
+        if (seen.add(entry)) {
+            entries.add(entry);
+            size.incrementAndGet();
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /** the renderer requested a cell; recorded once per frame */
+    void request(int setup, int timepoint, int level, long index) {
+        if (timeline && requestedInFrame.add(new Entry(setup, timepoint, level, index)))
+            addEvent(setup, timepoint, level, index, -1);
+    }
+
+    /** a cell was fetched (read and converted, or computed) in {@code latency} ns */
+    void fetched(int setup, int timepoint, int level, long index, long latency) {
+        if (timeline)
+            addEvent(setup, timepoint, level, index, latency);
+    }
+
+    private void addEvent(int setup, int timepoint, int level, long index, long latency) {
+        if (numEvents.get() >= maxEvents)
+            return;
+        events.add(new Event(System.nanoTime() - start, frame.get(), setup, timepoint, level, index, latency));
+        numEvents.incrementAndGet();
+    }
+
+    /** the renderer moves on to the next frame */
+    void nextFrame() {
+        if (!timeline)
+            return;
+        frame.incrementAndGet();
+        requestedInFrame.clear();
+    }
+
+    /** start recording the loads of {@code loaders}, setup i being loader i */
+    public void attach(List<SourceToViewerSetupImgLoaderBvv> loaders) {
+        for (int i = 0; i < loaders.size(); i++)
+            attach(loaders.get(i), i);
+    }
+
+    /**
+     * Start recording the loads of {@code loader} as {@code setup}. For the
+     * timeline, attach before the renderer gets the images of the loader,
+     * and attach one loader as setup 0: it counts the frames.
+     */
+    public void attach(SourceToViewerSetupImgLoaderBvv loader, int setup) {
+        if (timeline) {
+            for (int level = 0; level < loader.numMipmapLevels(); level++) {
+                final CellGrid grid = loader.getCellGrid(0, level);
+                final long[] geometry = new long[6];
+                for (int d = 0; d < 3; d++) {
+                    geometry[d] = grid.imgDimension(d);
+                    geometry[3 + d] = grid.cellDimension(d);
+                }
+                grids.put(setup << 8 | level, geometry);
+            }
+            parallelism = Math.max(1, FetchScheduler.get().getMaxInFlight());
+        }
+        loader.setAccessTrace(this, setup);
+    }
+
+    public static void detach(List<SourceToViewerSetupImgLoaderBvv> loaders) {
+        for (SourceToViewerSetupImgLoaderBvv loader : loaders)
+            loader.setAccessTrace(null, 0);
+    }
+
+    /**
+     * Load the cells of the trace into the caches of {@code loaders} in
+     * parallel, in trace order, until all are loaded, {@code maxMillis} have
+     * passed or {@code maxBytes} have been loaded.
+     *
+     * @return number of cells loaded
+     */
+    public int replay(List<SourceToViewerSetupImgLoaderBvv> loaders, long maxMillis, long maxBytes, RenderMetrics metrics)
+            throws InterruptedException {
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        final Semaphore slots = new Semaphore(Math.max(1, FetchScheduler.get().getMaxInFlight()));
+        final AtomicInteger loaded = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        int submitted = 0;
+        for (Entry entry : entries) {
+            if (entry.setup >= loaders.size() || bytes.get() >= maxBytes)
+                continue;
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !slots.tryAcquire(remaining, TimeUnit.NANOSECONDS))
+                break;
+            final SourceToViewerSetupImgLoaderBvv loader = loaders.get(entry.setup);
+            submitted++;
+            FetchScheduler.get().ioExecutor().execute(() -> {
+                try {
+                    if (System.nanoTime() < deadline && bytes.get() < maxBytes
+                            && entry.level < loader.numMipmapLevels() && entry.index < loader.getCellGrid(entry.timepoint, entry.level).getNumCells()) {
+                        loader.loadCell(entry.timepoint, entry.level, entry.index);
+                        bytes.addAndGet(2L * cellSize(loader, entry.level));
+                        loaded.incrementAndGet();
+                    }
+                } catch (RuntimeException e) {
+                    metrics.count("trace.replay.failed");
+                } finally {
+                    slots.release();
+                }
+            });
+        }
+        // wait for the cells still loading, but not beyond the deadline
+        final int permits = Math.max(1, FetchScheduler.get().getMaxInFlight());
+        final long remaining = Math.max(0, deadline - System.nanoTime());
+        if (slots.tryAcquire(permits, remaining, TimeUnit.NANOSECONDS))
+            slots.release(permits);
+        metrics.count("trace.replay.cells", loaded.get());
+        metrics.count("trace.replay.bytes", bytes.get());
+        metrics.time("trace.replay", start);
+        System.out.println(String.format("replayed %d of %d traced cells (%d submitted, %.1f MB) in %.1f ms",
+                loaded.get(), size(), submitted, bytes.get() / 1e6, (System.nanoTime() - start) * 1e-6));
+        return loaded.get();
+    }
+
+    private static long cellSize(SourceToViewerSetupImgLoaderBvv loader, int level) {
+        final int[] dimensions = loader.cellDimensions(level);
+        return (long) dimensions[0] * dimensions[1] * dimensions[2];
+    }
+
+    public static AccessTrace load(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)))) {
+            final int magic = data.readInt();
+            if (magic != MAGIC && magic != MAGIC_TIMELINE)
+                throw new IOException(file + " is not an access trace");
+            final AccessTrace trace = new AccessTrace(magic == MAGIC_TIMELINE);
+            if (trace.timeline)
+                trace.readTimeline(data);
+            while (true) {
+                final int setup;
+                try {
+                    setup = data.readUnsignedShort();
+                } catch (EOFException e) {
+                    break;
+                }
+                trace.record(setup, data.readInt(), data.readUnsignedByte(), data.readLong());
+            }
+            return trace;
+        }
+    }
+
+    /** grids, parallelism and events, before the entries */
+    private void readTimeline(DataInputStream data) throws IOException {
+        parallelism = data.readInt();
+        final int numGrids = data.readInt();
+        for (int i = 0; i < numGrids; i++) {
+            final int key = data.readInt();
+            final long[] geometry = new long[6];
+            for (int d = 0; d < 6; d++)
+                geometry[d] = data.readLong();
+            grids.put(key, geometry);
+        }
+        final int n = data.readInt();
+        for (int i = 0; i < n; i++) {
+            events.add(new Event(data.readLong(), data.readInt(), data.readUnsignedShort(), data.readInt(),
+                    data.readUnsignedByte(), data.readLong(), data.readLong()));
+        }
+        numEvents.set(n);
+    }
+
+    private void writeTimeline(DataOutputStream data) throws IOException {
+        data.writeInt(parallelism);
+        final Map<Integer, long[]> grids = new HashMap<>(this.grids);
+        data.writeInt(grids.size());
+        for (Map.Entry<Integer, long[]> grid : grids.entrySet()) {
+            data.writeInt(grid.getKey());
+            for (long value : grid.getValue())
+                data.writeLong(value);
+        }
+        final List<Event> events = events();
+        data.writeInt(events.size());
+        for (Event event : events) {
+            data.writeLong(event.nanos);
+            data.writeInt(event.frame);
+            data.writeShort(event.setup);
+            data.writeInt(event.timepoint);
+            data.writeByte(event.level);
+            data.writeLong(event.index);
+            data.writeLong(event.latency);
+        }
+    }
+
+    public void save(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp);
+             DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out)))) {
+            data.writeInt(timeline ? MAGIC_TIMELINE : MAGIC);
+            if (timeline)
+                writeTimeline(data);
+            for (Entry entry : entries) {
+                data.writeShort(entry.setup);
+                data.writeInt(entry.timepoint);
+                data.writeByte(entry.level);
+                data.writeLong(entry.index);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * the trace file of {@code job} rendered from {@code loaders}: traces of
+     * other cell grids or render settings name other cells
+     */
+    public static Path file(RenderJob job, List<SourceToViewerSetupImgLoaderBvv> loaders) {
+        final String dir = System.getProperty("bvv.trace.dir",
+                Paths.get(System.getProperty("user.home"), ".url-viewer-bdv-bvv", "traces").toString());
+        final StringBuilder key = new StringBuilder()
+                .append(job.uri).append(' ').append(job.width).append('x').append(job.height)
+                .append(' ').append(job.frames).append(' ').append(job.degreesPerTimepoint);
+        for (SourceToViewerSetupImgLoaderBvv loader : loaders)
+            for (int[] cell : loader.getCellDimensions())
+                key.append(' ').append(cell[0]).append(',').append(cell[1]).append(',').append(cell[2]);
+        key.append(' ').append(RenderProfile.active().settings());
+        try {
+            final StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(key.toString().getBytes(StandardCharsets.UTF_8)))
+                hex.append(String.format("%02x", b));
+            return Paths.get(dir, hex + ".trace");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** whether the trace in {@code file} is older than {@code bvv.trace.maxAgeHours} and should be recorded again */
+    public static boolean isStale(Path file) throws IOException {
+        final long age = System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis();
+        return age > TimeUnit.HOURS.toMillis(Long.getLong("bvv.trace.maxAgeHours", 24));
+    }
+
+    List<Entry> entries() {
+        return new ArrayList<>(entries);
+    }
+
+    /** the timeline, in the order events were recorded (roughly by time, threads interleave) */
+    List<Event> events() {
+        return new ArrayList<>(events);
+    }
+
+    /** image and cell dimensions of {@code level} of {@code setup}, {@code null} if unknown */
+    long[] grid(int setup, int level) {
+        return grids.get(setup << 8 | level);
+    }
+
+    /** the number of fetches that could run at the same time while recording */
+    int parallelism() {
+        return parallelism;
+    }
+}
@@ -0,0 +1,179 @@
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.img.cell.CellGrid;
+import org.janelia.saalfeldlab.n5.N5URI;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Picks a {@link RenderProfile} for this host and a dataset from a short
+ * calibration, instead of the fixed parameters of {@link Main} and
+ * {@link BvvRotateMovie}.
+ *
+ * The calibration loads a few cells of one source, one at a time and then in
+ * parallel, and measures the fetch latency per block, the conversion
+ * throughput and the available heap. From these it picks
+ * <ul>
+ * <li>the cell size: larger cells where each request is expensive,</li>
+ * <li>the number of requests in flight: enough to cover the fetch latency
+ * with the cores converting,</li>
+ * <li>the GPU block size, following the cell size,</li>
+ * <li>the budget of the {@link CompressedBlockCache}, from the heap, and</li>
+ * <li>the number of timepoints to prefetch, from heap and timepoint size.</li>
+ * </ul>
+ * GPU memory cannot be queried before there is a GL context, so the GPU cache
+ * keeps the budget of the viewer or movie.
+ * The render time per pass can only be measured while rendering, so it is
+ * taken from the previous movie with the same profile ({@link #recordRender}).
+ *
+ * Profiles are saved per host and dataset class (local or remote, format,
+ * data type, multiscale or not) and reused; {@code -Dbvv.autotune.recalibrate=true}
+ * measures again.
+ */
+public class AutoTuner {
+
+    private static final int SAMPLE_CELLS = 16;
+
+    /**
+     * The saved profile for this host and the class of {@code uri}, or a new
+     * one calibrated on the first of {@code socs}.
+     */
+    public static RenderProfile profileFor(N5URI uri, List<SourceAndConverter<?>> socs) {
+        final Path file = RenderProfile.file(host(), datasetClass(uri, socs.get(0).getSpimSource()));
+        RenderProfile previous = null;
+        if (Files.exists(file)) {
+            try {
+                previous = RenderProfile.load(file);
+                if (!Boolean.getBoolean("bvv.autotune.recalibrate"))
+                    return previous;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Ignoring render profile " + file + ": " + e.getMessage());
+            }
+        }
+        final RenderProfile profile = calibrate(socs.get(0).getSpimSource(), previous);
+        profile.file = file;
+        save(profile);
+        System.out.println("render profile " + file + ": " + profile);
+        return profile;
+    }
+
+    /** measure loading from {@code source} and pick the parameters */
+    static RenderProfile calibrate(Source<?> source, RenderProfile previous) {
+        final RenderProfile profile = new RenderProfile();
+        final int cores = Runtime.getRuntime().availableProcessors();
+        profile.heapMB = Runtime.getRuntime().maxMemory() >> 20;
+
+        final RenderMetrics metrics = new RenderMetrics();
+        final SourceToViewerSetupImgLoaderBvv imgLoader = new SourceToViewerSetupImgLoaderBvv(source);
+        imgLoader.setMetrics(metrics);
+        final int level = sampleLevel(imgLoader);
+        final CellGrid grid = imgLoader.getCellGrid(0, level);
+        final long numCells = grid.getNumCells();
+        final int n = (int) Math.min(numCells, SAMPLE_CELLS);
+
+        // one at a time for the latency, then in parallel
+        final int sequential = Math.max(1, n / 4);
+        for (int i = 0; i < sequential; i++)
+            imgLoader.loadCell(0, level, i * numCells / n);
+        final RenderMetrics.Histogram fetch = metrics.timer("load.fetch.L" + level);
+        profile.fetchMillis = fetch == null ? 0 : fetch.mean() * 1e-6;
+        final List<CompletableFuture<Void>> parallel = new ArrayList<>();
+        for (int i = sequential; i < n; i++) {
+            final long index = i * numCells / n;
+            parallel.add(CompletableFuture.runAsync(() -> imgLoader.loadCell(0, level, index), FetchScheduler.get().ioExecutor()));
+        }
+        CompletableFuture.allOf(parallel.toArray(new CompletableFuture<?>[0])).join();
+        final RenderMetrics.Histogram convert = metrics.timer("load.convert.L" + level);
+        final long bytes = metrics.getCounters().getOrDefault("load.bytes.L" + level, 0L);
+        if (convert != null && convert.sum() > 0)
+            profile.convertMBPerSecond = bytes / (convert.sum() * 1e-9) / 1e6;
+        imgLoader.clearCache();
+
+        // a remote request costs latency, fewer larger cells amortize it
+        profile.cellSize = profile.fetchMillis > 20 ? 64 : 32;
+        profile.gpuBlockSize = Math.max(32, profile.cellSize);
+
+        // Little's law: cover the fetch latency of each block with the time it takes the cores to convert
+        final double bytesPerCell = 2.0 * profile.cellSize * profile.cellSize * profile.cellSize;
+        final double convertMillis = profile.convertMBPerSecond > 0 ? bytesPerCell / profile.convertMBPerSecond / 1e3 : 1;
+        final int maxInFlight = (int) Math.ceil(cores * (1 + profile.fetchMillis / Math.max(0.1, convertMillis)));
+        profile.maxInFlight = Math.max(cores, Math.min(FetchScheduler.get().usesVirtualThreads() ? 512 : 16 * cores, maxInFlight));
+
+        // compressed copies in an eighth of the heap, the soft cell caches get the rest
+        profile.compressedCacheMB = (int) Math.max(64, profile.heapMB / 8);
+
+        // keep the timepoints ahead within a quarter of the heap, assuming about a level 1 worth of each is needed
+        final long[] dimensions = imgLoader.getCellGrid(0, Math.min(1, imgLoader.numMipmapLevels() - 1)).getImgDimensions();
+        final double timepointMB = 2.0 * dimensions[0] * dimensions[1] * dimensions[2] / (1 << 20);
+        profile.prefetchTimepoints = (int) Math.max(1, Math.min(8, profile.heapMB / 4 / Math.max(1, timepointMB)));
+
+        if (previous != null && previous.passMillis > 0) {
+            profile.passMillis = previous.passMillis;
+            profile.maxRenderMillis = renderBudget(previous.passMillis);
+        }
+        return profile;
+    }
+
+    /**
+     * Update the active profile with the render pass times of a movie and
+     * save it: the pass budget should hold a pass, but not much more, so that
+     * refinement stays responsive.
+     */
+    public static void recordRender(RenderMetrics metrics) {
+        final RenderProfile profile = RenderProfile.active();
+        final RenderMetrics.Histogram draw = metrics.timer("frame.draw");
+        if (profile.file == null || draw == null || draw.count() == 0)
+            return;
+        profile.passMillis = draw.mean() * 1e-6;
+        profile.maxRenderMillis = renderBudget(profile.passMillis);
+        save(profile);
+    }
+
+    private static int renderBudget(double passMillis) {
+        return (int) Math.max(10, Math.min(100, Math.round(1.5 * passMillis)));
+    }
+
+    /** the finest level with at most a few hundred cells, so that samples spread over the volume */
+    private static int sampleLevel(SourceToViewerSetupImgLoaderBvv imgLoader) {
+        for (int level = 0; level < imgLoader.numMipmapLevels(); level++)
+            if (!imgLoader.isSynthesized(level) && imgLoader.getCellGrid(0, level).getNumCells() <= 512)
+                return level;
+        return imgLoader.numSourceLevels - 1;
+    }
+
+    static String datasetClass(N5URI uri, Source<?> source) {
+        final String scheme = uri.getURI().getScheme();
+        final String location = scheme == null || scheme.equals("file") ? "local" : "remote";
+        final String path = uri.getURI().getPath() == null ? "" : uri.getURI().getPath().toLowerCase(Locale.ROOT);
+        final String format = ShardedZarrSource.isShardedZarr(uri) ? "zarr3"
+                : path.contains(".zarr") ? "zarr"
+                : path.contains(".n5") ? "n5"
+                : "other";
+        final String type = source.getType().getClass().getSimpleName().replace("Type", "").toLowerCase(Locale.ROOT);
+        final String levels = source.getNumMipmapLevels() > 1 ? "multiscale" : "single";
+        return location + "-" + format + "-" + type + "-" + levels;
+    }
+
+    private static String host() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "localhost";
+        }
+    }
+
+    private static void save(RenderProfile profile) {
+        try {
+            profile.save();
+        } catch (IOException e) {
+            System.err.println("Cannot save render profile " + profile.file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import bdv.cache.SharedQueue;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5URI;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders the rotation movies of many datasets in one JVM.
+ *
+ * Usage: {@code BatchRender <jobList> [numLoading] [numRendering]}, see
+ * {@link RenderJob} for the job list format.
+ *
+ * Up to {@code numLoading} datasets are open at the same time (loading
+ * metadata and blocks in parallel), and at most {@code numRendering} of them
+ * are rendering. A dataset is closed, and its caches evicted, as soon as its
+ * movie is written, so memory use is bounded by the number of open datasets
+ * rather than by the length of the job list.
+ */
+public class BatchRender {
+
+    private final int numLoading;
+    private final Semaphore renderSlots;
+    private final SharedQueue sharedQueue;
+
+    public BatchRender(int numLoading, int numRendering) {
+        this.numLoading = numLoading;
+        this.renderSlots = new Semaphore(numRendering);
+        this.sharedQueue = FetchScheduler.get().sharedQueue();
+    }
+
+    /** @return number of jobs that failed */
+    public int run(List<RenderJob> jobs) throws InterruptedException {
+
+        final ExecutorService workers = Executors.newFixedThreadPool(numLoading);
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final long start = System.nanoTime();
+
+        final List<Future<?>> futures = new ArrayList<>(jobs.size());
+        for (RenderJob job : jobs) {
+            futures.add(workers.submit(() -> {
+                try {
+                    render(job);
+                } catch (Throwable e) {
+                    failed.incrementAndGet();
+                    System.err.println("Failed to render " + job + ": " + e);
+                    e.printStackTrace();
+                }
+                final int n = done.incrementAndGet();
+                final double seconds = (System.nanoTime() - start) * 1e-9;
+                System.out.println(String.format("[%d/%d] %s (%.2f datasets/min)",
+                        n, jobs.size(), job, 60 * n / seconds));
+            }));
+        }
+        workers.shutdown();
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // already reported by the job itself
+            }
+        }
+        return failed.get();
+    }
+
+    private void render(RenderJob job) throws Exception {
+
+        if (!job.outDir.isDirectory() && !job.outDir.mkdirs())
+            throw new IllegalArgumentException("Cannot create output directory " + job.outDir);
+
+        final N5URI uri = new N5URI(job.uri);
+        final N5Reader n5 = Main.openReader(uri);
+        try (RenderDataset dataset = RenderDataset.open(uri, n5, sharedQueue, job.displayMin, job.displayMax, job.gamma)) {
+            renderSlots.acquire();
+            try {
+                Main.record(dataset, job);
+            } finally {
+                renderSlots.release();
+            }
+        }
+    }
+
+    public static void main(String... args) throws Exception {
+
+        if (args.length == 0) {
+            System.err.println("Usage: BatchRender <jobList> [numLoading] [numRendering]");
+            System.exit(1);
+        }
+        final List<RenderJob> jobs = RenderJob.readJobList(Paths.get(args[0]));
+        final int numLoading = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        final int numRendering = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        final int failed = new BatchRender(numLoading, numRendering).run(jobs);
+        System.exit(failed == 0 ? 0 : 2);
+    }
+}
@@ -0,0 +1,319 @@
+import bdv.viewer.Source;
+import net.imglib2.util.ValuePair;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide table of block loads, shared by all wrapped loaders.
+ *
+ * The same {@link Source} is often wrapped more than once (by the viewer and
+ * by a batch render, or as intensity and as label source), and each
+ * {@link SourceToViewerSetupImgLoaderBvv} has its own cache. Loads of the same
+ * block (same source instance, conversion range, timepoint, level and
+ * interval, conversion) that overlap in time attach to one pending load, and finished
+ * blocks are kept softly so that other loaders can pick them up instead of
+ * reading and converting again. The loaded arrays are shared, they must not
+ * be modified. Blocks that were only ever handed to the loader that loaded
+ * them can be {@link #removeIfExclusive taken back} for recycling.
+ */
+public class BlockLoadRegistry
+{
+	private static final BlockLoadRegistry INSTANCE = new BlockLoadRegistry();
+
+	public static BlockLoadRegistry get()
+	{
+		return INSTANCE;
+	}
+
+	/** identifies a converted block of a source */
+	static final class BlockKey
+	{
+		final Source< ? > source;
+
+		final double convertMin;
+
+		final double convertMax;
+
+		final boolean labels;
+
+		final int timepoint;
+
+		final int level;
+
+		final long[] min;
+
+		final int[] dimensions;
+
+		private final int hash;
+
+		BlockKey( final Source< ? > source, final ValuePair< Double, Double > minMax, final boolean labels, final int timepoint,
+				final int level, final long[] min, final int[] dimensions )
+		{
+			this.source = source;
+			this.convertMin = minMax == null ? Double.NaN : minMax.getA();
+			this.convertMax = minMax == null ? Double.NaN : minMax.getB();
+			this.labels = labels;
+			this.timepoint = timepoint;
+			this.level = level;
+			this.min = min.clone();
+			this.dimensions = dimensions.clone();
+			int h = System.identityHashCode( source );
+			h = 31 * h + timepoint;
+			h = 31 * h + level;
+			h = 31 * h + Arrays.hashCode( this.min );
+			h = 31 * h + Arrays.hashCode( this.dimensions );
+			hash = h;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( this == o )
+				return true;
+			if ( !( o instanceof BlockKey ) )
+				return false;
+			final BlockKey other = ( BlockKey ) o;
+			return source == other.source
+					&& timepoint == other.timepoint
+					&& level == other.level
+					&& Double.compare( convertMin, other.convertMin ) == 0
+					&& Double.compare( convertMax, other.convertMax ) == 0
+					&& labels == other.labels
+					&& Arrays.equals( min, other.min )
+					&& Arrays.equals( dimensions, other.dimensions );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+	}
+
+	private static final class SoftBlock extends SoftReference< short[] >
+	{
+		final BlockKey key;
+
+		final long bytes;
+
+		SoftBlock( final BlockKey key, final short[] data, final ReferenceQueue< short[] > queue )
+		{
+			super( data, queue );
+			this.key = key;
+			this.bytes = 2L * data.length;
+		}
+	}
+
+	private final ConcurrentHashMap< BlockKey, CompletableFuture< short[] > > pending = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap< BlockKey, SoftBlock > finished = new ConcurrentHashMap<>();
+
+	private final ReferenceQueue< short[] > cleared = new ReferenceQueue<>();
+
+	/** bytes of the finished blocks, whether or not they were collected since */
+	private final AtomicLong finishedBytes = new AtomicLong();
+
+	/** blocks that were handed to more than one caller */
+	private final Set< BlockKey > shared = ConcurrentHashMap.newKeySet();
+
+	/** guard handing out finished blocks against {@link #removeIfExclusive} */
+	private final Object[] stripes = new Object[ 64 ];
+
+	private BlockLoadRegistry()
+	{
+		for ( int i = 0; i < stripes.length; i++ )
+			stripes[ i ] = new Object();
+	}
+
+	/**
+	 * The block for {@code key}: a finished one if it is still around, the
+	 * result of a load of the same block that is already running, or else the
+	 * result of {@code loader}.
+	 */
+	public short[] load( final BlockKey key, final RenderMetrics metrics, final Supplier< short[] > loader )
+	{
+		expunge();
+
+		short[] data = getShared( key );
+		if ( data != null )
+		{
+			metrics.count( "load.dedup.shared" );
+			return data;
+		}
+
+		final CompletableFuture< short[] > mine = new CompletableFuture<>();
+		final CompletableFuture< short[] > running = pending.putIfAbsent( key, mine );
+		if ( running != null )
+		{
+			metrics.count( "load.dedup.inflight" );
+			synchronized ( stripe( key ) )
+			{
+				shared.add( key );
+			}
+			return join( running );
+		}
+
+		try
+		{
+			// someone may have finished between the lookup and putIfAbsent
+			data = getShared( key );
+			if ( data == null )
+			{
+				data = loader.get();
+				synchronized ( stripe( key ) )
+				{
+					// not if the block was invalidated while it loaded
+					if ( pending.get( key ) == mine )
+					{
+						final SoftBlock block = new SoftBlock( key, data, cleared );
+						finishedBytes.addAndGet( block.bytes );
+						forget( finished.put( key, block ) );
+					}
+				}
+			}
+			mine.complete( data );
+			return data;
+		}
+		catch ( final RuntimeException | Error e )
+		{
+			mine.completeExceptionally( e );
+			throw e;
+		}
+		finally
+		{
+			pending.remove( key, mine );
+		}
+	}
+
+	/**
+	 * Forget the finished block {@code data} of {@code key} if no other caller
+	 * was handed it, so that it can be recycled once its loader has dropped
+	 * it too.
+	 *
+	 * @return whether the block was exclusive to its loader
+	 */
+	public boolean removeIfExclusive( final BlockKey key, final short[] data )
+	{
+		synchronized ( stripe( key ) )
+		{
+			final SoftBlock block = finished.get( key );
+			if ( shared.remove( key ) )
+			{
+				if ( block != null && block.get() == data && finished.remove( key, block ) )
+					forget( block );
+				return false;
+			}
+			if ( block == null || block.get() != data )
+				return false;
+			if ( finished.remove( key, block ) )
+				forget( block );
+			return true;
+		}
+	}
+
+	/**
+	 * Forget the finished block of {@code key}, e.g. because its data changed.
+	 * A load of the block that is running is detached: later callers load
+	 * again instead of waiting for it, and its result is not kept.
+	 */
+	public void invalidate( final BlockKey key )
+	{
+		synchronized ( stripe( key ) )
+		{
+			pending.remove( key );
+			forget( finished.remove( key ) );
+			shared.remove( key );
+		}
+	}
+
+	/** forget the finished blocks of {@code source}, e.g. when it is closed */
+	public void remove( final Source< ? > source )
+	{
+		for ( final SoftBlock block : finished.values() )
+			if ( block.key.source == source && finished.remove( block.key, block ) )
+				forget( block );
+		shared.removeIf( key -> key.source == source );
+	}
+
+	public void clear()
+	{
+		for ( final SoftBlock block : finished.values() )
+			if ( finished.remove( block.key, block ) )
+				forget( block );
+		shared.clear();
+	}
+
+	/**
+	 * Bytes of the finished blocks that are only held softly here and by the
+	 * cell caches, which the collector drops before it runs out of memory,
+	 * see {@link HeapWatchdog#pressure}.
+	 */
+	public long softBytes()
+	{
+		expunge();
+		return finishedBytes.get();
+	}
+
+	private void forget( final SoftBlock block )
+	{
+		if ( block != null )
+			finishedBytes.addAndGet( -block.bytes );
+	}
+
+	/** the finished block of {@code key}, marked as shared */
+	private short[] getShared( final BlockKey key )
+	{
+		synchronized ( stripe( key ) )
+		{
+			final SoftBlock block = finished.get( key );
+			final short[] data = block == null ? null : block.get();
+			if ( data != null )
+				shared.add( key );
+			return data;
+		}
+	}
+
+	private Object stripe( final BlockKey key )
+	{
+		return stripes[ key.hashCode() & ( stripes.length - 1 ) ];
+	}
+
+	/** drop the entries of blocks that were garbage collected */
+	private void expunge()
+	{
+		SoftBlock block;
+		while ( ( block = ( SoftBlock ) cleared.poll() ) != null )
+		{
+			if ( finished.remove( block.key, block ) )
+			{
+				forget( block );
+				shared.remove( block.key );
+			}
+		}
+	}
+
+	private static short[] join( final CompletableFuture< short[] > future )
+	{
+		try
+		{
+			return future.join();
+		}
+		catch ( final CompletionException e )
+		{
+			final Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			if ( cause instanceof Error )
+				throw ( Error ) cause;
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,269 @@
+import org.janelia.saalfeldlab.n5.N5URI;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Min and max of the converted (uint16) values of every cell a
+ * {@link SourceToViewerSetupImgLoaderBvv} has loaded, per timepoint and level.
+ * Cells are identified by the Morton code of their min, so the index is only
+ * valid for one cell grid.
+ *
+ * The index is filled as cells are loaded and can be saved to and read from a
+ * local sidecar file, {@link #sidecar} gives one per source below
+ * {@code bvv.blockStats.dir} (default {@code ~/.url-viewer-bdv-bvv/blockstats}).
+ * A sidecar records the {@link #dataVersion} of the data it was computed from
+ * and is ignored when that changed, so that cells rewritten since are not
+ * culled by their old statistics.
+ */
+public class BlockStatsIndex
+{
+	private static final int MAGIC = 0x42535832; // "BSX2"
+
+	/** sidecars without a data version */
+	private static final int MAGIC_UNVERSIONED = 0x42535831; // "BSX1"
+
+	/** (t << 32 | level) -> Morton code of cell min -> max << 16 | min */
+	private final ConcurrentHashMap< Long, ConcurrentHashMap< Long, Integer > > stats = new ConcurrentHashMap<>();
+
+	private volatile boolean modified;
+
+	/** data version of the entries, see {@link #load}; -1 until it is known */
+	private volatile long version = -1;
+
+	public void record( final int t, final int level, final long[] min, final short[] data )
+	{
+		int lo = 0xffff;
+		int hi = 0;
+		for ( final short value : data )
+		{
+			final int v = value & 0xffff;
+			lo = Math.min( lo, v );
+			hi = Math.max( hi, v );
+		}
+		level( t, level ).put( MortonOrder.encode( min ), ( hi << 16 ) | lo );
+		modified = true;
+	}
+
+	/** max of the cell at {@code min}, or -1 if it is not in the index */
+	public int max( final int t, final int level, final long[] min )
+	{
+		final Integer packed = level( t, level ).get( MortonOrder.encode( min ) );
+		return packed == null ? -1 : packed >>> 16;
+	}
+
+	/** min of the cell at {@code min}, or -1 if it is not in the index */
+	public int min( final int t, final int level, final long[] min )
+	{
+		final Integer packed = level( t, level ).get( MortonOrder.encode( min ) );
+		return packed == null ? -1 : packed & 0xffff;
+	}
+
+	/** forget the cell at {@code min}, e.g. because its data changed */
+	public void remove( final int t, final int level, final long[] min )
+	{
+		final ConcurrentHashMap< Long, Integer > entries = stats.get( ( ( long ) t << 32 ) | level );
+		if ( entries != null && entries.remove( MortonOrder.encode( min ) ) != null )
+			modified = true;
+	}
+
+	public long size()
+	{
+		long size = 0;
+		for ( final Map< Long, Integer > level : stats.values() )
+			size += level.size();
+		return size;
+	}
+
+	private ConcurrentHashMap< Long, Integer > level( final int t, final int level )
+	{
+		return stats.computeIfAbsent( ( ( long ) t << 32 ) | level, k -> new ConcurrentHashMap<>() );
+	}
+
+	/**
+	 * Add the entries of a sidecar written by {@link #save}, if it exists and
+	 * was computed from data of {@code version}. Entries added from now on are
+	 * of {@code version} as well. Entries recorded before are kept: they were
+	 * computed from the current data, and the sidecar's do not replace them.
+	 */
+	public void load( final Path file, final long version ) throws IOException
+	{
+		this.version = version;
+		if ( !Files.exists( file ) )
+			return;
+		try ( InputStream in = Files.newInputStream( file );
+				DataInputStream data = new DataInputStream( new BufferedInputStream( new GZIPInputStream( in ) ) ) )
+		{
+			final int magic = data.readInt();
+			if ( magic == MAGIC_UNVERSIONED )
+				return;
+			if ( magic != MAGIC )
+				throw new IOException( file + " is not a block statistics sidecar" );
+			if ( version < 0 || data.readLong() != version )
+			{
+				// the data changed since, save the new entries over it
+				modified = true;
+				return;
+			}
+			while ( true )
+			{
+				final long level;
+				try
+				{
+					level = data.readLong();
+				}
+				catch ( final EOFException e )
+				{
+					break;
+				}
+				final int n = data.readInt();
+				final ConcurrentHashMap< Long, Integer > entries = stats.computeIfAbsent( level, k -> new ConcurrentHashMap<>() );
+				for ( int i = 0; i < n; i++ )
+					entries.putIfAbsent( data.readLong(), data.readInt() );
+			}
+		}
+	}
+
+	/**
+	 * write the index to {@code file}, if anything was added since it was
+	 * loaded or saved and the version of the data is known
+	 */
+	public void save( final Path file ) throws IOException
+	{
+		if ( !modified || version < 0 )
+			return;
+		modified = false;
+		Files.createDirectories( file.toAbsolutePath().getParent() );
+		final Path tmp = file.resolveSibling( file.getFileName() + ".tmp" );
+		try ( OutputStream out = Files.newOutputStream( tmp );
+				DataOutputStream data = new DataOutputStream( new BufferedOutputStream( new GZIPOutputStream( out ) ) ) )
+		{
+			data.writeInt( MAGIC );
+			data.writeLong( version );
+			for ( final Map.Entry< Long, ConcurrentHashMap< Long, Integer > > level : stats.entrySet() )
+			{
+				final Map< Long, Integer > entries = level.getValue();
+				final long[] keys = new long[ entries.size() ];
+				final int[] values = new int[ keys.length ];
+				int n = 0;
+				for ( final Map.Entry< Long, Integer > entry : entries.entrySet() )
+				{
+					if ( n == keys.length )
+						break;
+					keys[ n ] = entry.getKey();
+					values[ n++ ] = entry.getValue();
+				}
+				data.writeLong( level.getKey() );
+				data.writeInt( n );
+				for ( int i = 0; i < n; i++ )
+				{
+					data.writeLong( keys[ i ] );
+					data.writeInt( values[ i ] );
+				}
+			}
+		}
+		Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING );
+	}
+
+	/**
+	 * Sidecar file for the source {@code id} (e.g. container URI and source
+	 * name) with the cell grid given by {@code cellDimensions} per level.
+	 */
+	public static Path sidecar( final String id, final int[][] cellDimensions )
+	{
+		final StringBuilder key = new StringBuilder( id );
+		for ( final int[] dimensions : cellDimensions )
+			for ( final int d : dimensions )
+				key.append( ',' ).append( d );
+		final String dir = System.getProperty( "bvv.blockStats.dir",
+				Paths.get( System.getProperty( "user.home" ), ".url-viewer-bdv-bvv", "blockstats" ).toString() );
+		return Paths.get( dir, sha1( key.toString() ) + ".stats" );
+	}
+
+	/**
+	 * The version of the data {@code uri} points to: for a local container a
+	 * fingerprint of the paths, sizes and modification times of its files,
+	 * which a rewritten, added or deleted chunk changes; 0 for remote
+	 * containers, which are taken to be immutable; -1 if it cannot be told.
+	 * Stats every file of the container, so it is meant to run off the
+	 * startup path, see {@link SourceToViewerSetupImgLoaderBvv#setBlockStatsSidecar}.
+	 */
+	public static long dataVersion( final N5URI uri )
+	{
+		try
+		{
+			final URI location = ShardedZarrSource.location( uri );
+			if ( location.getScheme() != null && !location.getScheme().equals( "file" ) )
+				return 0;
+			final Path root = location.getScheme() == null ? Paths.get( location.getPath() ) : Paths.get( location );
+			if ( !Files.exists( root ) )
+				return 0;
+			// order-independent, files are visited in directory order
+			final long[] fingerprint = { 0, 0 };
+			Files.walkFileTree( root, new SimpleFileVisitor< Path >()
+			{
+				@Override
+				public FileVisitResult visitFile( final Path file, final BasicFileAttributes attributes )
+				{
+					long h = root.relativize( file ).toString().hashCode();
+					h = mix( h * 31 + attributes.size() );
+					h = mix( h * 31 + attributes.lastModifiedTime().toMillis() );
+					fingerprint[ 0 ] += h;
+					fingerprint[ 1 ]++;
+					return FileVisitResult.CONTINUE;
+				}
+			} );
+			return mix( fingerprint[ 0 ] * 31 + fingerprint[ 1 ] ) & Long.MAX_VALUE;
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			// unknown, do not trust any sidecar
+			return -1;
+		}
+	}
+
+	/** SplitMix64 finalizer */
+	private static long mix( long z )
+	{
+		z = ( z ^ ( z >>> 30 ) ) * 0xbf58476d1ce4e5b9L;
+		z = ( z ^ ( z >>> 27 ) ) * 0x94d049bb133111ebL;
+		return z ^ ( z >>> 31 );
+	}
+
+	private static String sha1( final String s )
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( s.getBytes( StandardCharsets.UTF_8 ) );
+			final StringBuilder hex = new StringBuilder();
+			for ( final byte b : digest )
+				hex.append( String.format( "%02x", b ) );
+			return hex.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+}
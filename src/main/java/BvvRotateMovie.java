@@ -24,6 +24,8 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.Collectors;
 
 /**
@@ -35,14 +37,17 @@ public class BvvRotateMovie {
     private final ConverterSetupsPG setups;
     private final ViewerState state;
     private CacheControl cache = new CacheControl.Dummy();
+    private RenderMetrics metrics = RenderMetrics.global();
 
     // render opts
     private final int renderW, renderH;
     private final int ditherWidth = 0;          // use 0 for deterministic frames
     private final int numDitherSamples = 1;     // 1 = no stochastic sampling
-    private final int[] cacheBlockSize = new int[]{64, 64, 64};      // tune if you know your setup
-    private final int maxCacheMB = 1048;        // VRAM-side cache budget
-    private final int maxRenderMillis = 20;     // per pass budget (refinement)
+    // GPU cache block size, VRAM-side cache budget and initial per pass budget (refinement), see RenderProfile and IoBudgetController
+    private final int[] cacheBlockSize;
+    private final int maxCacheMB;
+    private static final int DEFAULT_CACHE_MB = 1048;
+    private final int maxRenderMillis;
     private final double maxAllowedStepInVoxels = 1.5; // ray step clamp
 
     // camera
@@ -59,6 +64,15 @@ public class BvvRotateMovie {
         this.cache = cache;
         this.renderW = renderWidth;
         this.renderH = renderHeight;
+        final RenderProfile profile = RenderProfile.active();
+        this.cacheBlockSize = new int[]{profile.gpuBlockSize, profile.gpuBlockSize, profile.gpuBlockSize};
+        this.maxCacheMB = profile.gpuCacheMB > 0 ? profile.gpuCacheMB : DEFAULT_CACHE_MB;
+        this.maxRenderMillis = profile.maxRenderMillis;
+    }
+
+    /** where frame timings are recorded; also written as a report next to the frames */
+    public void setMetrics(RenderMetrics metrics) {
+        this.metrics = metrics;
     }
 
     static void scaleAboutOrigin(ViewerState state, double s) {
@@ -181,6 +195,25 @@ public class BvvRotateMovie {
 
     /** Main entry: render a 360° spin (around global Y) to PNG frames. */
     public void recordRotateMovie(int frames, File outDir) throws Exception {
+        record(frames, i -> 0, i -> 2.0 * Math.PI * i / frames, null, outDir);
+    }
+
+    /**
+     * Render one frame per timepoint, rotating by {@code degreesPerTimepoint}
+     * (0 for a fixed view) around global Y from one frame to the next. The
+     * upcoming timepoints are loaded by {@code prefetcher} while the current
+     * one renders, and rendered ones are evicted.
+     */
+    public void recordTimeSeriesMovie(TimepointPrefetcher prefetcher, double degreesPerTimepoint, File outDir) throws Exception {
+        try {
+            record(prefetcher.getNumTimepoints(), i -> i, i -> Math.toRadians(degreesPerTimepoint * i), prefetcher, outDir);
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    private void record(int frames, IntUnaryOperator timepoint, IntToDoubleFunction angleOfFrame,
+                        TimepointPrefetcher prefetcher, File outDir) throws Exception {
         if (!outDir.isDirectory()) throw new IllegalArgumentException("outDir must exist: " + outDir);
 
         // 2) JOGL offscreen pbuffer (no window)
@@ -207,7 +240,8 @@ public class BvvRotateMovie {
         final AWTGLReadBufferUtil reader = new AWTGLReadBufferUtil(profile, true);
 
         // 5) Render loop
-        final RenderLoop loop = new RenderLoop(renderer, offscreen, reader, setups);
+        final RenderLoop loop = new RenderLoop(renderer, offscreen, reader, setups, metrics);
+        final IoBudgetController budget = new IoBudgetController(metrics, 100, maxRenderMillis);
 
         drawable.addGLEventListener(loop);
 //        drawable.display(); // triggers init()
@@ -221,17 +255,17 @@ public class BvvRotateMovie {
         final double[] globalMax = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
 
         final AffineTransform3D sourceToGlobal = new AffineTransform3D();
-        final int t = 0, level = 0;
+        final int level = 0;
 
         for (final SourceAndConverter<?> sac : sources) {
             if (!state.isSourceVisible(sac)) continue; // Skip invisible sources
 
-            final RandomAccessibleInterval<?> rai = sac.getSpimSource().getSource(t, level);
+            final RandomAccessibleInterval<?> rai = sac.getSpimSource().getSource(0, level);
             final long sx = rai.dimension(0);
             final long sy = rai.dimension(1);
             final long sz = rai.dimension(2);
 
-            sac.getSpimSource().getSourceTransform(t, level, sourceToGlobal);
+            sac.getSpimSource().getSourceTransform(0, level, sourceToGlobal);
 
             // Calculate the corners of this source's bounding box in world coordinates
             final double[] p0 = new double[3];
@@ -279,7 +313,12 @@ public class BvvRotateMovie {
 
 // 5. Loop through frames, using the same rendering logic as before.
         for (int i = 0; i < frames; i++) {
-            double angle = 2.0 * Math.PI * i / frames;
+            double angle = angleOfFrame.applyAsDouble(i);
+            final int t = timepoint.applyAsInt(i);
+            if (prefetcher != null) {
+                prefetcher.advance(t);
+                prefetcher.await(t);
+            }
 
             AffineTransform3D R = new AffineTransform3D();
             AffineTransform3D finalT = base.copy();
@@ -296,14 +335,26 @@ public class BvvRotateMovie {
             keepAABBInsideDepth(state, globalMin, globalMax, clipNear, clipFar);
 
             state.setCurrentTimepoint(t);
+            final long prepareStart = System.nanoTime();
             loop.prepareFrame(state, projectionType, dCam, clipNear, clipFar,
-                    renderW, renderH, maxRenderMillis, maxAllowedStepInVoxels, cache);
+                    renderW, renderH, budget, maxAllowedStepInVoxels, cache);
+            metrics.time("frame.prepare", prepareStart);
+            final long frameStart = System.nanoTime();
+            budget.startFrame();
             do { drawable.display(); } while (loop.lastRerender != RepaintType.NONE);
+            budget.endFrame(i);
+            metrics.time("frame.total", frameStart);
             if (loop.lastFrame != null) {
+                final long encodeStart = System.nanoTime();
                 ImageIO.write(loop.lastFrame, "png", new File(outDir, String.format("bvv_%04d.png", i)));
+                metrics.time("frame.encode", encodeStart);
             }
         }
         drawable.destroy();
+
+        metrics.writeJson(new File(outDir, "metrics.json").toPath());
+        metrics.writeCsv(new File(outDir, "metrics.csv").toPath());
+        budget.writeCsv(new File(outDir, "budgets.csv").toPath());
     }
 
 
@@ -316,17 +367,20 @@ public class BvvRotateMovie {
 
     /** The actual GL listener that renders one frame each display() call. */
     private static class RenderLoop implements GLEventListener {
+        /** wait for the GPU after each pass so draw and blit times include GPU time; stalls the pipeline */
+        private static final boolean GPU_TIMING = Boolean.getBoolean("bvv.metrics.gpuTiming");
+
         private final VolumeRenderer renderer;
         private final OffScreenFrameBufferWithDepth offscreen;
         private final AWTGLReadBufferUtil reader;
         private final ConverterSetupsPG setups;
+        private final RenderMetrics metrics;
 
         // per-frame prepared data
         private List<Stack3D<?>> stacks = Collections.emptyList();
         private List<bdv.tools.brightness.ConverterSetup> converters = Collections.emptyList();
         private Matrix4f pv = new Matrix4f();
-        private long[] ioBudget = new long[]{100L * 1000000L, 10L * 1000000L};
-        private int maxRenderMillis;
+        private IoBudgetController budget;
         private double maxAllowedStepInVoxels;
         private CacheControl cache;
 
@@ -336,20 +390,22 @@ public class BvvRotateMovie {
         RenderLoop(VolumeRenderer renderer,
                    OffScreenFrameBufferWithDepth offscreen,
                    AWTGLReadBufferUtil reader,
-                   ConverterSetupsPG setups) {
+                   ConverterSetupsPG setups,
+                   RenderMetrics metrics) {
             this.renderer = renderer;
             this.offscreen = offscreen;
             this.reader = reader;
             this.setups = setups;
+            this.metrics = metrics;
         }
 
         void prepareFrame(ViewerState st,
                           int projectionType,
                           double dCam, double clipNear, double clipFar,
                           double screenW, double screenH,
-                          int maxRenderMillis, double maxAllowedStepInVoxels,
+                          IoBudgetController budget, double maxAllowedStepInVoxels,
                           CacheControl cache) {
-            this.maxRenderMillis = maxRenderMillis;
+            this.budget = budget;
             this.maxAllowedStepInVoxels = maxAllowedStepInVoxels;
             this.cache = cache;
 
@@ -391,7 +447,7 @@ public class BvvRotateMovie {
             final GL3 gl = drawable.getGL().getGL3();
 
             // --- Prep ---
-            net.imglib2.cache.iotiming.CacheIoTiming.getIoTimeBudget().reset(ioBudget);
+            net.imglib2.cache.iotiming.CacheIoTiming.getIoTimeBudget().reset(budget.ioBudget());
             cache.prepareNextFrame();
 
             // --- 1. RENDER PASS (into the custom FBO) ---
@@ -400,7 +456,13 @@ public class BvvRotateMovie {
             gl.glDepthFunc(GL.GL_LESS);
             gl.glClearColor(0, 0, 0, 0);
             gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT); // This clears the FBO.
-            lastRerender = renderer.draw(gl, RepaintType.FULL, offscreen, stacks, converters, pv, maxRenderMillis, maxAllowedStepInVoxels);
+            final long drawStart = System.nanoTime();
+            lastRerender = renderer.draw(gl, RepaintType.FULL, offscreen, stacks, converters, pv, budget.renderMillis(), maxAllowedStepInVoxels);
+            if (GPU_TIMING)
+                gl.glFinish(); // attribute GPU time to the pass, not to the readback
+            metrics.time("frame.draw", drawStart);
+            metrics.count("frame.passes");
+            budget.afterPass(lastRerender != RepaintType.NONE);
 
             // --- 2. FINAL COPY (from FBO to the default buffer) ---
             offscreen.unbind(gl, false); // Pbuffer is now the active target.
@@ -409,12 +471,17 @@ public class BvvRotateMovie {
             gl.glClear(GL.GL_COLOR_BUFFER_BIT); // This clears the Pbuffer before drawing.
             // ================================================================
 
+            final long blitStart = System.nanoTime();
             offscreen.drawQuad(gl); // Draw the final image onto the clean Pbuffer.
+            if (GPU_TIMING)
+                gl.glFinish();
+            metrics.time("frame.blit", blitStart);
 
             // --- 3. READBACK (from the default buffer) ---
+            final long readbackStart = System.nanoTime();
             gl.glReadBuffer(GL.GL_FRONT);
-            gl.glFinish();
             lastFrame = reader.readPixelsToBufferedImage(gl, /*flipVertically*/ true);
+            metrics.time("frame.readback", readbackStart);
         }
 
         @Override public void reshape(GLAutoDrawable d, int x, int y, int w, int h) {}
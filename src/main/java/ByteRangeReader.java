@@ -0,0 +1,151 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads byte ranges of the objects (files, HTTP resources) below a base
+ * location. Keys are paths relative to the base, separated by '/'.
+ */
+public interface ByteRangeReader
+{
+	/**
+	 * @return {@code length} bytes starting at {@code offset}, or fewer at the
+	 *         end of the object
+	 * @throws FileNotFoundException
+	 *             if the object does not exist
+	 */
+	byte[] read( String key, long offset, int length ) throws IOException;
+
+	/** @return the last {@code length} bytes of the object */
+	byte[] readSuffix( String key, int length ) throws IOException;
+
+	/** @return the whole object, e.g. a metadata document */
+	default byte[] readAll( final String key ) throws IOException
+	{
+		return read( key, 0, Integer.MAX_VALUE );
+	}
+
+	/**
+	 * Reader for {@code file:} and {@code http(s):} locations, e.g. the root
+	 * of a Zarr container.
+	 */
+	static ByteRangeReader forUri( final URI base )
+	{
+		final String scheme = base.getScheme();
+		if ( scheme == null || scheme.equals( "file" ) )
+			return new FileReader( scheme == null ? Paths.get( base.getPath() ) : Paths.get( base ) );
+		if ( scheme.equals( "http" ) || scheme.equals( "https" ) )
+			return new HttpReader( base );
+		throw new IllegalArgumentException( "No byte range access for " + base );
+	}
+
+	class FileReader implements ByteRangeReader
+	{
+		private final Path base;
+
+		public FileReader( final Path base )
+		{
+			this.base = base;
+		}
+
+		@Override
+		public byte[] read( final String key, final long offset, final int length ) throws IOException
+		{
+			try ( FileChannel channel = FileChannel.open( base.resolve( key ), StandardOpenOption.READ ) )
+			{
+				final int n = ( int ) Math.max( 0, Math.min( length, channel.size() - offset ) );
+				final ByteBuffer buffer = ByteBuffer.allocate( n );
+				while ( buffer.hasRemaining() && channel.read( buffer, offset + buffer.position() ) >= 0 )
+					;
+				return buffer.array();
+			}
+			catch ( final NoSuchFileException e )
+			{
+				throw new FileNotFoundException( e.getFile() );
+			}
+		}
+
+		@Override
+		public byte[] readSuffix( final String key, final int length ) throws IOException
+		{
+			final long size;
+			try ( FileChannel channel = FileChannel.open( base.resolve( key ), StandardOpenOption.READ ) )
+			{
+				size = channel.size();
+			}
+			catch ( final NoSuchFileException e )
+			{
+				throw new FileNotFoundException( e.getFile() );
+			}
+			return read( key, Math.max( 0, size - length ), length );
+		}
+	}
+
+	class HttpReader implements ByteRangeReader
+	{
+		private final String base;
+
+		public HttpReader( final URI base )
+		{
+			final String s = base.toString();
+			this.base = s.endsWith( "/" ) ? s : s + "/";
+		}
+
+		@Override
+		public byte[] read( final String key, final long offset, final int length ) throws IOException
+		{
+			return get( key, "bytes=" + offset + "-" + ( offset + length - 1 ), offset, length );
+		}
+
+		@Override
+		public byte[] readSuffix( final String key, final int length ) throws IOException
+		{
+			return get( key, "bytes=-" + length, -1, length );
+		}
+
+		private byte[] get( final String key, final String range, final long offset, final int length ) throws IOException
+		{
+			final HttpURLConnection connection = ( HttpURLConnection ) new URL( base + key ).openConnection();
+			connection.setRequestProperty( "Range", range );
+			final int status = connection.getResponseCode();
+			if ( status == HttpURLConnection.HTTP_NOT_FOUND )
+				throw new FileNotFoundException( base + key );
+			if ( status != HttpURLConnection.HTTP_PARTIAL && status != HttpURLConnection.HTTP_OK )
+				throw new IOException( "HTTP " + status + " for " + base + key );
+			final byte[] body;
+			try ( InputStream in = connection.getInputStream() )
+			{
+				body = readAll( in );
+			}
+			if ( status == HttpURLConnection.HTTP_PARTIAL )
+				return body;
+
+			// the server ignored the range and sent the whole object
+			final long from = offset < 0 ? Math.max( 0, body.length - length ) : offset;
+			final int n = ( int ) Math.max( 0, Math.min( length, body.length - from ) );
+			final byte[] part = new byte[ n ];
+			System.arraycopy( body, ( int ) from, part, 0, n );
+			return part;
+		}
+
+		private static byte[] readAll( final InputStream in ) throws IOException
+		{
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[ 64 * 1024 ];
+			int n;
+			while ( ( n = in.read( buffer ) ) >= 0 )
+				out.write( buffer, 0, n );
+			return out.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,457 @@
+import net.imglib2.util.IntervalIndexer;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Offline replay of recorded access timelines against candidate cache
+ * configurations, to size caches (and render nodes) from data instead of
+ * by trial and error.
+ *
+ * Usage: {@code CachePolicySimulator <trace>... [sizes=256,1024,4096]
+ * [policies=lru,lfu] [cells=recorded,64] [prefetch=0,1] [parallelism=n]
+ * [csv=<file>]}. Traces are {@link AccessTrace} timelines, recorded with
+ * {@code -Dbvv.trace.timeline=<file>} by {@code Main.record} (cold run) or
+ * by the viewer. Every combination of size (MB), eviction policy (least
+ * recently or least frequently used), cubic cell size and prefetch depth
+ * (timepoints ahead) is simulated, each trace with an empty cache, and
+ * reported with hit rate, bytes fetched and estimated stall time.
+ *
+ * The model: the cells the renderer requested in a frame are looked up in
+ * the cache, in the recorded order and at the recorded times. A miss fetches
+ * the cell; it takes the latency recorded for that cell, or for other cell
+ * sizes and unrecorded cells, the request overhead of its level (the fastest
+ * recorded fetch) plus the level's recorded transfer time per byte. A frame
+ * waits for its misses, {@code parallelism} (default: what the recording ran
+ * with) at a time but at least for the slowest, and for prefetched cells that
+ * have not arrived yet. Cells of another size are the cells of the
+ * candidate grid that overlap a requested cell.
+ */
+public class CachePolicySimulator {
+
+    enum Policy {
+        LRU, LFU
+    }
+
+    /** a candidate configuration; {@code cellSize} 0 keeps the recorded cells */
+    static final class Config {
+        final long sizeBytes;
+        final Policy policy;
+        final int cellSize;
+        final int prefetch;
+
+        Config(long sizeBytes, Policy policy, int cellSize, int prefetch) {
+            this.sizeBytes = sizeBytes;
+            this.policy = policy;
+            this.cellSize = cellSize;
+            this.prefetch = prefetch;
+        }
+    }
+
+    static final class Result {
+        long requests;
+        long hits;
+        long fetchedBytes;
+        long prefetchedBytes;
+        long stallNanos;
+        int frames;
+
+        double hitRate() {
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        void add(Result other) {
+            requests += other.requests;
+            hits += other.hits;
+            fetchedBytes += other.fetchedBytes;
+            prefetchedBytes += other.prefetchedBytes;
+            stallNanos += other.stallNanos;
+            frames += other.frames;
+        }
+    }
+
+    /** a cell of the simulated grid */
+    private static final class CellKey {
+        final int setup;
+        final int timepoint;
+        final int level;
+        final long x, y, z;
+        private final int hash;
+
+        CellKey(int setup, int timepoint, int level, long x, long y, long z) {
+            this.setup = setup;
+            this.timepoint = timepoint;
+            this.level = level;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            hash = Arrays.hashCode(new long[]{setup, timepoint, level, x, y, z});
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CellKey))
+                return false;
+            final CellKey other = (CellKey) o;
+            return x == other.x && y == other.y && z == other.z
+                    && timepoint == other.timepoint && level == other.level && setup == other.setup;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Block {
+        final long bytes;
+        final long ready;
+
+        Block(long bytes, long ready) {
+            this.bytes = bytes;
+            this.ready = ready;
+        }
+    }
+
+    /** a cache of {@link Block}s with a byte budget */
+    private interface SimulatedCache {
+        /** the block of {@code key}, counted as a use */
+        Block get(CellKey key);
+
+        boolean contains(CellKey key);
+
+        void put(CellKey key, Block block);
+    }
+
+    private static final class LruCache implements SimulatedCache {
+        private final long capacity;
+        private final LinkedHashMap<CellKey, Block> blocks = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+
+        LruCache(long capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public Block get(CellKey key) {
+            return blocks.get(key);
+        }
+
+        @Override
+        public boolean contains(CellKey key) {
+            return blocks.containsKey(key);
+        }
+
+        @Override
+        public void put(CellKey key, Block block) {
+            final Block previous = blocks.put(key, block);
+            bytes += block.bytes - (previous == null ? 0 : previous.bytes);
+            final Iterator<Block> eldest = blocks.values().iterator();
+            while (bytes > capacity && eldest.hasNext()) {
+                bytes -= eldest.next().bytes;
+                eldest.remove();
+            }
+        }
+    }
+
+    /** least frequently used first, least recently used among equally frequent ones */
+    private static final class LfuCache implements SimulatedCache {
+        private static final class Node {
+            final CellKey key;
+            final Block block;
+            long uses;
+            long lastUse;
+
+            Node(CellKey key, Block block) {
+                this.key = key;
+                this.block = block;
+            }
+        }
+
+        private final long capacity;
+        private final HashMap<CellKey, Node> nodes = new HashMap<>();
+        private final TreeSet<Node> byUse = new TreeSet<>(Comparator.<Node>comparingLong(n -> n.uses).thenComparingLong(n -> n.lastUse));
+        private long bytes;
+        private long clock;
+
+        LfuCache(long capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public Block get(CellKey key) {
+            final Node node = nodes.get(key);
+            if (node == null)
+                return null;
+            use(node);
+            return node.block;
+        }
+
+        @Override
+        public boolean contains(CellKey key) {
+            return nodes.containsKey(key);
+        }
+
+        @Override
+        public void put(CellKey key, Block block) {
+            final Node previous = nodes.remove(key);
+            if (previous != null) {
+                byUse.remove(previous);
+                bytes -= previous.block.bytes;
+            }
+            final Node node = new Node(key, block);
+            nodes.put(key, node);
+            bytes += block.bytes;
+            use(node);
+            while (bytes > capacity && byUse.size() > 1) {
+                final Node victim = byUse.first() == node ? byUse.higher(node) : byUse.first();
+                byUse.remove(victim);
+                nodes.remove(victim.key);
+                bytes -= victim.block.bytes;
+            }
+        }
+
+        private void use(Node node) {
+            byUse.remove(node);
+            node.uses++;
+            node.lastUse = ++clock;
+            byUse.add(node);
+        }
+    }
+
+    /** a recorded timeline, prepared for simulation */
+    static final class Timeline {
+        final AccessTrace trace;
+        final List<AccessTrace.Event> requests = new ArrayList<>();
+        /** recorded latency of a cell of the recorded grid */
+        final Map<CellKey, Long> latencies = new HashMap<>();
+        /** setup << 8 | level -> fastest fetch, total fetch time, number of fetches */
+        final Map<Integer, long[]> levelFetches = new HashMap<>();
+        int maxTimepoint;
+
+        Timeline(AccessTrace trace) {
+            this.trace = trace;
+            for (AccessTrace.Event event : trace.events()) {
+                if (trace.grid(event.setup, event.level) == null)
+                    continue;
+                maxTimepoint = Math.max(maxTimepoint, event.timepoint);
+                if (event.isRequest()) {
+                    requests.add(event);
+                    continue;
+                }
+                final long[] position = recordedPosition(event.setup, event.level, event.index);
+                latencies.putIfAbsent(new CellKey(event.setup, event.timepoint, event.level, position[0], position[1], position[2]), event.latency);
+                final long[] fetches = levelFetches.computeIfAbsent(event.setup << 8 | event.level, k -> new long[]{Long.MAX_VALUE, 0, 0});
+                fetches[0] = Math.min(fetches[0], event.latency);
+                fetches[1] += event.latency;
+                fetches[2]++;
+            }
+            requests.sort(Comparator.comparingLong(e -> e.nanos));
+        }
+
+        long[] recordedPosition(int setup, int level, long index) {
+            final long[] grid = trace.grid(setup, level);
+            final long[] gridDimensions = new long[3];
+            for (int d = 0; d < 3; d++)
+                gridDimensions[d] = (grid[d] + grid[3 + d] - 1) / grid[3 + d];
+            final long[] position = new long[3];
+            IntervalIndexer.indexToPosition(index, gridDimensions, position);
+            return position;
+        }
+
+        /** bytes of the cell {@code x,y,z} of {@code cellDimensions} at {@code level} of {@code setup} */
+        long bytes(int setup, int level, long[] cellDimensions, long x, long y, long z) {
+            final long[] grid = trace.grid(setup, level);
+            final long[] position = {x, y, z};
+            long voxels = 1;
+            for (int d = 0; d < 3; d++)
+                voxels *= Math.max(0, Math.min(cellDimensions[d], grid[d] - position[d] * cellDimensions[d]));
+            return 2 * voxels;
+        }
+
+        /** estimated fetch time of a cell of {@code bytes} at {@code level} of {@code setup} */
+        long latency(int setup, int level, long bytes) {
+            long[] fetches = levelFetches.get(setup << 8 | level);
+            long recordedBytes = 2;
+            final long[] grid = trace.grid(setup, level);
+            for (int d = 0; d < 3; d++)
+                recordedBytes *= Math.min(grid[d], grid[3 + d]);
+            if (fetches == null) {
+                // nothing fetched at this level, use all levels
+                fetches = new long[]{Long.MAX_VALUE, 0, 0};
+                for (long[] level2 : levelFetches.values()) {
+                    fetches[0] = Math.min(fetches[0], level2[0]);
+                    fetches[1] += level2[1];
+                    fetches[2] += level2[2];
+                }
+                if (fetches[2] == 0)
+                    return 0;
+            }
+            final long overhead = fetches[0];
+            final double mean = (double) fetches[1] / fetches[2];
+            final double perByte = Math.max(0, mean - overhead) / recordedBytes;
+            return overhead + (long) (perByte * bytes);
+        }
+    }
+
+    static Result simulate(Timeline timeline, Config config, int parallelism) {
+        final SimulatedCache cache = config.policy == Policy.LRU ? new LruCache(config.sizeBytes) : new LfuCache(config.sizeBytes);
+        final Result result = new Result();
+        int frame = -1;
+        long frameWait = 0;
+        long frameMaxLatency = 0;
+        long frameLatencies = 0;
+        final List<CellKey> cells = new ArrayList<>();
+        for (AccessTrace.Event request : timeline.requests) {
+            if (request.frame != frame) {
+                result.stallNanos += Math.max(frameWait, Math.max(frameMaxLatency, frameLatencies / parallelism));
+                if (frame >= 0)
+                    result.frames++;
+                frame = request.frame;
+                frameWait = frameMaxLatency = frameLatencies = 0;
+            }
+            final long now = request.nanos;
+            final long[] cellDimensions = cellDimensions(timeline, request.setup, request.level, config.cellSize);
+            cells(timeline, request, config.cellSize, cellDimensions, cells);
+            for (CellKey key : cells) {
+                result.requests++;
+                final Block block = cache.get(key);
+                if (block != null) {
+                    result.hits++;
+                    frameWait = Math.max(frameWait, block.ready - now);
+                    continue;
+                }
+                final long bytes = timeline.bytes(key.setup, key.level, cellDimensions, key.x, key.y, key.z);
+                final Long recorded = config.cellSize == 0 ? timeline.latencies.get(key) : null;
+                final long latency = recorded != null ? recorded : timeline.latency(key.setup, key.level, bytes);
+                result.fetchedBytes += bytes;
+                frameMaxLatency = Math.max(frameMaxLatency, latency);
+                frameLatencies += latency;
+                cache.put(key, new Block(bytes, now + latency));
+
+                // the same cell of the next timepoints, in the background
+                for (int i = 1; i <= config.prefetch && key.timepoint + i <= timeline.maxTimepoint; i++) {
+                    final CellKey ahead = new CellKey(key.setup, key.timepoint + i, key.level, key.x, key.y, key.z);
+                    if (cache.contains(ahead))
+                        continue;
+                    final Long recordedAhead = config.cellSize == 0 ? timeline.latencies.get(ahead) : null;
+                    cache.put(ahead, new Block(bytes, now + (recordedAhead != null ? recordedAhead : latency)));
+                    result.fetchedBytes += bytes;
+                    result.prefetchedBytes += bytes;
+                }
+            }
+        }
+        if (frame >= 0) {
+            result.stallNanos += Math.max(frameWait, Math.max(frameMaxLatency, frameLatencies / parallelism));
+            result.frames++;
+        }
+        return result;
+    }
+
+    private static long[] cellDimensions(Timeline timeline, int setup, int level, int cellSize) {
+        final long[] grid = timeline.trace.grid(setup, level);
+        return cellSize == 0 ? Arrays.copyOfRange(grid, 3, 6) : new long[]{cellSize, cellSize, cellSize};
+    }
+
+    /** the cells of {@code cellDimensions} that overlap the requested (recorded) cell */
+    private static void cells(Timeline timeline, AccessTrace.Event request, int cellSize, long[] cellDimensions, List<CellKey> cells) {
+        cells.clear();
+        final long[] position = timeline.recordedPosition(request.setup, request.level, request.index);
+        if (cellSize == 0) {
+            cells.add(new CellKey(request.setup, request.timepoint, request.level, position[0], position[1], position[2]));
+            return;
+        }
+        final long[] grid = timeline.trace.grid(request.setup, request.level);
+        final long[] first = new long[3];
+        final long[] last = new long[3];
+        for (int d = 0; d < 3; d++) {
+            final long min = position[d] * grid[3 + d];
+            final long max = Math.min(min + grid[3 + d], grid[d]) - 1;
+            first[d] = min / cellDimensions[d];
+            last[d] = max / cellDimensions[d];
+        }
+        for (long z = first[2]; z <= last[2]; z++)
+            for (long y = first[1]; y <= last[1]; y++)
+                for (long x = first[0]; x <= last[0]; x++)
+                    cells.add(new CellKey(request.setup, request.timepoint, request.level, x, y, z));
+    }
+
+    public static void main(String... args) throws IOException {
+        final List<Path> traces = new ArrayList<>();
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (eq > 0)
+                options.put(arg.substring(0, eq), arg.substring(eq + 1));
+            else
+                traces.add(Paths.get(arg));
+        }
+        if (traces.isEmpty()) {
+            System.err.println("Usage: CachePolicySimulator <trace>... [sizes=256,1024,4096] [policies=lru,lfu] "
+                    + "[cells=recorded,64] [prefetch=0,1] [parallelism=n] [csv=<file>]");
+            System.exit(1);
+        }
+
+        final List<Timeline> timelines = new ArrayList<>();
+        for (Path file : traces) {
+            final AccessTrace trace = AccessTrace.load(file);
+            if (!trace.hasTimeline()) {
+                System.err.println(file + " has no timeline, record it with -Dbvv.trace.timeline=<file>");
+                continue;
+            }
+            final Timeline timeline = new Timeline(trace);
+            long fetches = 0;
+            for (long[] level : timeline.levelFetches.values())
+                fetches += level[2];
+            System.out.println(String.format("%s: %d requests, %d fetches, %d timepoints, parallelism %d",
+                    file, timeline.requests.size(), fetches, timeline.maxTimepoint + 1, trace.parallelism()));
+            timelines.add(timeline);
+        }
+        if (timelines.isEmpty())
+            System.exit(1);
+
+        final List<Config> configs = new ArrayList<>();
+        for (String size : options.getOrDefault("sizes", "256,1024,4096").split(","))
+            for (String policy : options.getOrDefault("policies", "lru,lfu").split(","))
+                for (String cell : options.getOrDefault("cells", "recorded").split(","))
+                    for (String prefetch : options.getOrDefault("prefetch", "0").split(","))
+                        configs.add(new Config(Long.parseLong(size.trim()) << 20, Policy.valueOf(policy.trim().toUpperCase()),
+                                cell.trim().equals("recorded") ? 0 : Integer.parseInt(cell.trim()), Integer.parseInt(prefetch.trim())));
+
+        final String csv = options.get("csv");
+        try (PrintWriter out = csv == null ? null : new PrintWriter(Files.newBufferedWriter(Paths.get(csv)))) {
+            if (out != null)
+                out.println("sizeMB,policy,cell,prefetch,requests,hitRate,fetchedMB,prefetchedMB,stallSeconds,frames");
+            System.out.println("size MB  policy  cell      prefetch  requests   hit rate  MB fetched  stall s  stall ms/frame");
+            for (Config config : configs) {
+                final Result total = new Result();
+                for (Timeline timeline : timelines) {
+                    final int parallelism = options.containsKey("parallelism")
+                            ? Integer.parseInt(options.get("parallelism")) : timeline.trace.parallelism();
+                    total.add(simulate(timeline, config, Math.max(1, parallelism)));
+                }
+                final String cell = config.cellSize == 0 ? "recorded" : Integer.toString(config.cellSize);
+                System.out.println(String.format("%7d  %-6s  %-8s  %8d  %8d  %8.1f%%  %10.1f  %7.2f  %14.1f",
+                        config.sizeBytes >> 20, config.policy.name().toLowerCase(), cell, config.prefetch, total.requests,
+                        100 * total.hitRate(), total.fetchedBytes / 1e6, total.stallNanos * 1e-9,
+                        total.frames == 0 ? 0 : total.stallNanos * 1e-6 / total.frames));
+                if (out != null)
+                    out.println(String.format("%d,%s,%s,%d,%d,%.4f,%.1f,%.1f,%.3f,%d",
+                            config.sizeBytes >> 20, config.policy.name().toLowerCase(), cell, config.prefetch, total.requests,
+                            total.hitRate(), total.fetchedBytes / 1e6, total.prefetchedBytes / 1e6, total.stallNanos * 1e-9, total.frames));
+            }
+        }
+    }
+}
@@ -0,0 +1,10 @@
+/**
+ * A source whose levels are stored in chunks. The wrapped loader
+ * ({@link SourceToViewerSetupImgLoaderBvv}) sizes its cells to the chunks,
+ * so that a cell costs exactly one chunk read.
+ */
+public interface ChunkedSource
+{
+	/** x,y,z chunk shape of {@code level} */
+	int[] getChunkDimensions( int level );
+}
@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges concurrent range reads of the same object into fewer, larger ones.
+ *
+ * Reads that arrive within a short window are collected, sorted by object and
+ * offset, and ranges that are at most {@code maxGap} bytes apart are merged
+ * into a single read of at most {@code maxMergedBytes}. The caller of the
+ * first range of a merged read performs it and hands out the slices; the
+ * merged reads are started one after the other, coarsest level first and in
+ * Z-order within a level, at most {@code maxReading} at once
+ * ({@code bvv.fetch.orderedReads}, default 16), like {@link ZOrderBatcher}.
+ *
+ * Useful for sharded and other consolidated layouts, where neighbouring
+ * chunks are stored next to each other in one object.
+ */
+public class CoalescingRangeReader implements ByteRangeReader
+{
+	private static final ScheduledExecutorService TIMER =
+			Executors.newSingleThreadScheduledExecutor( FetchScheduler.daemonThreads( "bvv-coalesce" ) );
+
+	private static final Comparator< Part > BY_OFFSET = Comparator
+			.comparing( ( Part p ) -> p.key )
+			.thenComparingLong( p -> p.offset );
+
+	private static final Comparator< List< Part > > BY_ZORDER = Comparator
+			.comparingInt( ( List< Part > g ) -> -g.stream().mapToInt( p -> p.level ).max().getAsInt() )
+			.thenComparingLong( g -> g.stream().mapToLong( p -> p.morton ).min().getAsLong() );
+
+	private static class Part
+	{
+		final String key;
+
+		final long offset;
+
+		final int length;
+
+		final int level;
+
+		final long morton;
+
+		final CompletableFuture< byte[] > data = new CompletableFuture<>();
+
+		/** counted down once the part has a group, or for the first part of a group, when its read may start */
+		final CountDownLatch assigned = new CountDownLatch( 1 );
+
+		/** set on the part whose caller performs the merged read */
+		List< Part > group;
+
+		Part( final String key, final long offset, final int length, final int level, final long morton )
+		{
+			this.key = key;
+			this.offset = offset;
+			this.length = length;
+			this.level = level;
+			this.morton = morton;
+		}
+	}
+
+	private final ByteRangeReader reader;
+
+	private final long windowNanos;
+
+	private final int maxGap;
+
+	private final int maxMergedBytes;
+
+	private final int maxReading;
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong parts = new AtomicLong();
+
+	private final AtomicLong bytesRead = new AtomicLong();
+
+	/** guarded by this */
+	private List< Part > pending = new ArrayList<>();
+
+	/** first parts of merged reads that wait for a reading slot, in order, guarded by this */
+	private final ArrayDeque< Part > ready = new ArrayDeque<>();
+
+	/** guarded by this */
+	private int reading;
+
+	public CoalescingRangeReader( final ByteRangeReader reader )
+	{
+		this( reader,
+				TimeUnit.MICROSECONDS.toNanos( Long.getLong( "bvv.fetch.batchWindowMicros", 2000 ) ),
+				Integer.getInteger( "bvv.fetch.maxRangeGap", 4096 ),
+				Integer.getInteger( "bvv.fetch.maxRangeBytes", 16 * 1024 * 1024 ) );
+	}
+
+	public CoalescingRangeReader( final ByteRangeReader reader, final long windowNanos, final int maxGap, final int maxMergedBytes )
+	{
+		this( reader, windowNanos, maxGap, maxMergedBytes, Integer.getInteger( "bvv.fetch.orderedReads", 16 ) );
+	}
+
+	public CoalescingRangeReader( final ByteRangeReader reader, final long windowNanos, final int maxGap, final int maxMergedBytes,
+			final int maxReading )
+	{
+		this.reader = reader;
+		this.windowNanos = windowNanos;
+		this.maxGap = maxGap;
+		this.maxMergedBytes = maxMergedBytes;
+		this.maxReading = Math.max( 1, maxReading );
+	}
+
+	@Override
+	public byte[] read( final String key, final long offset, final int length ) throws IOException
+	{
+		return read( key, offset, length, 0, 0 );
+	}
+
+	/**
+	 * @param level
+	 *            mip level of the block the range belongs to
+	 * @param morton
+	 *            {@link MortonOrder} code of the block within its level
+	 */
+	public byte[] read( final String key, final long offset, final int length, final int level, final long morton ) throws IOException
+	{
+		final Part part = new Part( key, offset, length, level, morton );
+		synchronized ( this )
+		{
+			pending.add( part );
+			if ( pending.size() == 1 )
+				TIMER.schedule( this::flush, windowNanos, TimeUnit.NANOSECONDS );
+		}
+		// the other parts of a merged read depend on this caller, so wait for
+		// the batch even if interrupted
+		awaitUninterruptibly( part.assigned );
+		if ( part.group != null )
+		{
+			try
+			{
+				fetch( part.group );
+			}
+			finally
+			{
+				done();
+			}
+		}
+		try
+		{
+			return part.data.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof IOException )
+				throw ( IOException ) e.getCause();
+			throw new IOException( e.getCause() );
+		}
+	}
+
+	@Override
+	public byte[] readSuffix( final String key, final int length ) throws IOException
+	{
+		requests.incrementAndGet();
+		final byte[] bytes = reader.readSuffix( key, length );
+		bytesRead.addAndGet( bytes.length );
+		return bytes;
+	}
+
+	/** number of reads issued to the underlying reader */
+	public long getRequests()
+	{
+		return requests.get();
+	}
+
+	/** number of ranges served, merged or not */
+	public long getParts()
+	{
+		return parts.get();
+	}
+
+	public long getBytesRead()
+	{
+		return bytesRead.get();
+	}
+
+	private static void awaitUninterruptibly( final CountDownLatch latch )
+	{
+		boolean interrupted = false;
+		while ( true )
+		{
+			try
+			{
+				latch.await();
+				break;
+			}
+			catch ( final InterruptedException e )
+			{
+				interrupted = true;
+			}
+		}
+		if ( interrupted )
+			Thread.currentThread().interrupt();
+	}
+
+	private void flush()
+	{
+		final List< Part > batch;
+		synchronized ( this )
+		{
+			batch = pending;
+			pending = new ArrayList<>();
+		}
+		batch.sort( BY_OFFSET );
+
+		final List< List< Part > > groups = new ArrayList<>();
+		List< Part > group = null;
+		long groupStart = 0;
+		long groupEnd = 0;
+		for ( final Part part : batch )
+		{
+			final long end = part.offset + part.length;
+			if ( group != null
+					&& part.key.equals( group.get( 0 ).key )
+					&& part.offset - groupEnd <= maxGap
+					&& Math.max( end, groupEnd ) - groupStart <= maxMergedBytes )
+			{
+				group.add( part );
+				groupEnd = Math.max( end, groupEnd );
+			}
+			else
+			{
+				group = new ArrayList<>();
+				group.add( part );
+				groups.add( group );
+				groupStart = part.offset;
+				groupEnd = end;
+			}
+		}
+
+		groups.sort( BY_ZORDER );
+		synchronized ( this )
+		{
+			for ( final List< Part > g : groups )
+			{
+				g.get( 0 ).group = g;
+				ready.add( g.get( 0 ) );
+				// the others only wait for their slice
+				for ( int i = 1; i < g.size(); i++ )
+					g.get( i ).assigned.countDown();
+			}
+			dispatch();
+		}
+	}
+
+	/** a merged read has finished: start the next one */
+	private synchronized void done()
+	{
+		reading--;
+		dispatch();
+	}
+
+	/** start the next merged reads in order, as far as there are slots; called with the lock held */
+	private void dispatch()
+	{
+		while ( reading < maxReading && !ready.isEmpty() )
+		{
+			reading++;
+			ready.poll().assigned.countDown();
+		}
+	}
+
+	private void fetch( final List< Part > group )
+	{
+		final Part first = group.get( 0 );
+		long end = 0;
+		for ( final Part part : group )
+			end = Math.max( end, part.offset + part.length );
+		try
+		{
+			requests.incrementAndGet();
+			final byte[] bytes = reader.read( first.key, first.offset, ( int ) ( end - first.offset ) );
+			bytesRead.addAndGet( bytes.length );
+			for ( final Part part : group )
+			{
+				final int from = ( int ) ( part.offset - first.offset );
+				part.data.complete( Arrays.copyOfRange( bytes, Math.min( from, bytes.length ), Math.min( from + part.length, bytes.length ) ) );
+				parts.incrementAndGet();
+			}
+		}
+		catch ( final IOException e )
+		{
+			for ( final Part part : group )
+				part.data.completeExceptionally( e );
+		}
+		catch ( final RuntimeException e )
+		{
+			for ( final Part part : group )
+				part.data.completeExceptionally( e );
+			throw e;
+		}
+	}
+}
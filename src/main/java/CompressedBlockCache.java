@@ -0,0 +1,318 @@
+import bdv.viewer.Source;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converted uint16 blocks kept compressed in the heap, behind the
+ * soft-reference caches: blocks go in when they are loaded, and when the
+ * uncompressed copy has been dropped ({@link BlockLoadRegistry} and the cell
+ * caches only hold them softly) a load decompresses the block instead of
+ * reading and converting it again. Enabled with
+ * {@code -Dbvv.compressed.sizeMB=<n>}, the budget for the compressed bytes,
+ * or by the {@link AutoTuner}; the least recently used blocks are dropped
+ * beyond it.
+ *
+ * The codec is lossless and cheap enough to run on the fetcher threads:
+ * every value is predicted by its x neighbour (its y neighbour at the start
+ * of a row), and the residuals, zigzag encoded, are bit-packed in groups of
+ * {@link #GROUP} at the width of the largest one in the group. Smooth 16-bit
+ * microscopy data typically packs to a third or a fifth; blocks that do not
+ * get smaller are not kept.
+ */
+public class CompressedBlockCache
+{
+	static final int GROUP = 128;
+
+	private static volatile CompressedBlockCache instance;
+
+	private static volatile long defaultSizeMB = 0;
+
+	/**
+	 * Budget used unless {@code -Dbvv.compressed.sizeMB} is given, 0 (off)
+	 * unless changed (e.g. by a {@link RenderProfile}). Resizes the cache if
+	 * it is in use already.
+	 */
+	public static void setDefaultSizeMB( final long sizeMB )
+	{
+		defaultSizeMB = sizeMB;
+		final CompressedBlockCache cache = instance;
+		if ( cache != null && System.getProperty( "bvv.compressed.sizeMB" ) == null )
+			cache.setMaxBytes( sizeMB << 20 );
+	}
+
+	/** the cache configured with {@code -Dbvv.compressed.sizeMB} or {@link #setDefaultSizeMB}, or {@code null} */
+	@Nullable
+	public static CompressedBlockCache get()
+	{
+		final long sizeMB = Long.getLong( "bvv.compressed.sizeMB", defaultSizeMB );
+		if ( sizeMB <= 0 )
+			return null;
+		if ( instance == null )
+		{
+			synchronized ( CompressedBlockCache.class )
+			{
+				if ( instance == null )
+					instance = new CompressedBlockCache( sizeMB << 20 );
+			}
+		}
+		return instance;
+	}
+
+	private long maxBytes; // guarded by blocks
+
+	private final LinkedHashMap< BlockLoadRegistry.BlockKey, byte[] > blocks = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private long bytes;
+
+	private long rawBytes;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	CompressedBlockCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/** the block of {@code key}, decompressed into a pooled array, or {@code null} */
+	@Nullable
+	public short[] get( final BlockLoadRegistry.BlockKey key, final RenderMetrics metrics )
+	{
+		final byte[] compressed;
+		synchronized ( blocks )
+		{
+			compressed = blocks.get( key );
+		}
+		if ( compressed == null )
+		{
+			misses.incrementAndGet();
+			metrics.count( "compressed.miss" );
+			return null;
+		}
+		final long start = System.nanoTime();
+		final short[] data = ShortArrayPool.get().take( key.dimensions[ 0 ] * key.dimensions[ 1 ] * key.dimensions[ 2 ] );
+		decode( compressed, data, key.dimensions[ 0 ] );
+		metrics.time( "compressed.decode", start );
+		hits.incrementAndGet();
+		metrics.count( "compressed.hit" );
+		return data;
+	}
+
+	/** keep {@code data} of {@code key} compressed, if that makes it smaller */
+	public void put( final BlockLoadRegistry.BlockKey key, final short[] data, final RenderMetrics metrics )
+	{
+		final long start = System.nanoTime();
+		final byte[] compressed = encode( data, key.dimensions[ 0 ] );
+		metrics.time( "compressed.encode", start );
+		metrics.count( "compressed.bytes.raw", 2L * data.length );
+		metrics.count( "compressed.bytes.stored", compressed.length );
+		if ( compressed.length >= 2L * data.length )
+			return;
+		synchronized ( blocks )
+		{
+			if ( compressed.length > maxBytes )
+				return;
+			final byte[] previous = blocks.put( key, compressed );
+			if ( previous != null )
+				forget( previous );
+			bytes += compressed.length;
+			rawBytes += 2L * data.length;
+			evict();
+		}
+	}
+
+	/** change the budget, dropping the least recently used blocks beyond it, see {@link HeapWatchdog} */
+	public void setMaxBytes( final long maxBytes )
+	{
+		synchronized ( blocks )
+		{
+			this.maxBytes = maxBytes;
+			evict();
+		}
+	}
+
+	public long getMaxBytes()
+	{
+		synchronized ( blocks )
+		{
+			return maxBytes;
+		}
+	}
+
+	/** forget the block of {@code key}, e.g. because its data changed */
+	public void invalidate( final BlockLoadRegistry.BlockKey key )
+	{
+		synchronized ( blocks )
+		{
+			final byte[] previous = blocks.remove( key );
+			if ( previous != null )
+				forget( previous );
+		}
+	}
+
+	/** forget the blocks of {@code source}, e.g. when it is closed */
+	public void remove( final Source< ? > source )
+	{
+		synchronized ( blocks )
+		{
+			final Iterator< Map.Entry< BlockLoadRegistry.BlockKey, byte[] > > entries = blocks.entrySet().iterator();
+			while ( entries.hasNext() )
+			{
+				final Map.Entry< BlockLoadRegistry.BlockKey, byte[] > entry = entries.next();
+				if ( entry.getKey().source == source )
+				{
+					forget( entry.getValue() );
+					entries.remove();
+				}
+			}
+		}
+	}
+
+	public void clear()
+	{
+		synchronized ( blocks )
+		{
+			blocks.clear();
+			bytes = 0;
+			rawBytes = 0;
+		}
+	}
+
+	/** uncompressed over compressed size of the blocks held now, 1 if there are none */
+	public double compressionRatio()
+	{
+		synchronized ( blocks )
+		{
+			return bytes == 0 ? 1 : ( double ) rawBytes / bytes;
+		}
+	}
+
+	public long compressedBytes()
+	{
+		synchronized ( blocks )
+		{
+			return bytes;
+		}
+	}
+
+	/** fraction of lookups that found the block */
+	public double hitRatio()
+	{
+		final long h = hits.get();
+		final long n = h + misses.get();
+		return n == 0 ? 0 : ( double ) h / n;
+	}
+
+	/** called with the lock held */
+	private void evict()
+	{
+		final Iterator< byte[] > eldest = blocks.values().iterator();
+		while ( bytes > maxBytes && eldest.hasNext() )
+		{
+			forget( eldest.next() );
+			eldest.remove();
+		}
+	}
+
+	/** called with the lock held */
+	private void forget( final byte[] compressed )
+	{
+		bytes -= compressed.length;
+		rawBytes -= 2L * length( compressed );
+	}
+
+	/**
+	 * Compress {@code data}, rows of {@code rowLength}: the number of values
+	 * (4 bytes), then per group of {@link #GROUP} values the bit width (1
+	 * byte) and the packed residuals, least significant bits first.
+	 */
+	static byte[] encode( final short[] data, final int rowLength )
+	{
+		final int n = data.length;
+		final byte[] out = new byte[ 4 + ( n + GROUP - 1 ) / GROUP + 2 * n ];
+		out[ 0 ] = ( byte ) ( n >>> 24 );
+		out[ 1 ] = ( byte ) ( n >>> 16 );
+		out[ 2 ] = ( byte ) ( n >>> 8 );
+		out[ 3 ] = ( byte ) n;
+		int pos = 4;
+		final int[] residuals = new int[ GROUP ];
+		int x = 0;
+		for ( int start = 0; start < n; start += GROUP )
+		{
+			final int count = Math.min( GROUP, n - start );
+			int bits = 0;
+			for ( int j = 0; j < count; j++ )
+			{
+				final int i = start + j;
+				final int prediction = x > 0 ? data[ i - 1 ] : i >= rowLength ? data[ i - rowLength ] : 0;
+				if ( ++x == rowLength )
+					x = 0;
+				final int delta = ( short ) ( data[ i ] - prediction );
+				final int zigzag = ( delta << 1 ) ^ ( delta >> 31 );
+				residuals[ j ] = zigzag;
+				bits |= zigzag;
+			}
+			final int width = 32 - Integer.numberOfLeadingZeros( bits );
+			out[ pos++ ] = ( byte ) width;
+			long buffer = 0;
+			int filled = 0;
+			for ( int j = 0; j < count; j++ )
+			{
+				buffer |= ( long ) residuals[ j ] << filled;
+				filled += width;
+				while ( filled >= 8 )
+				{
+					out[ pos++ ] = ( byte ) buffer;
+					buffer >>>= 8;
+					filled -= 8;
+				}
+			}
+			if ( filled > 0 )
+				out[ pos++ ] = ( byte ) buffer;
+		}
+		return Arrays.copyOf( out, pos );
+	}
+
+	/** decompress {@code in} from {@link #encode} into {@code data} */
+	static void decode( final byte[] in, final short[] data, final int rowLength )
+	{
+		final int n = length( in );
+		int pos = 4;
+		int x = 0;
+		for ( int start = 0; start < n; start += GROUP )
+		{
+			final int count = Math.min( GROUP, n - start );
+			final int width = in[ pos++ ];
+			final int mask = ( 1 << width ) - 1;
+			long buffer = 0;
+			int filled = 0;
+			for ( int j = 0; j < count; j++ )
+			{
+				while ( filled < width )
+				{
+					buffer |= ( long ) ( in[ pos++ ] & 0xff ) << filled;
+					filled += 8;
+				}
+				final int zigzag = ( int ) buffer & mask;
+				buffer >>>= width;
+				filled -= width;
+				final int i = start + j;
+				final int prediction = x > 0 ? data[ i - 1 ] : i >= rowLength ? data[ i - rowLength ] : 0;
+				if ( ++x == rowLength )
+					x = 0;
+				data[ i ] = ( short ) ( prediction + ( ( zigzag >>> 1 ) ^ -( zigzag & 1 ) ) );
+			}
+		}
+	}
+
+	private static int length( final byte[] compressed )
+	{
+		return ( compressed[ 0 ] & 0xff ) << 24 | ( compressed[ 1 ] & 0xff ) << 16 | ( compressed[ 2 ] & 0xff ) << 8 | ( compressed[ 3 ] & 0xff );
+	}
+}
@@ -0,0 +1,30 @@
+/**
+ * CRC-32C (Castagnoli), as used by the {@code crc32c} codec of Zarr v3 shard
+ * indices. {@code java.util.zip.CRC32C} only exists from Java 9 on.
+ */
+public class Crc32c
+{
+	private static final int[] TABLE = new int[ 256 ];
+
+	static
+	{
+		for ( int i = 0; i < 256; i++ )
+		{
+			int c = i;
+			for ( int k = 0; k < 8; k++ )
+				c = ( c & 1 ) != 0 ? ( c >>> 1 ) ^ 0x82f63b78 : c >>> 1;
+			TABLE[ i ] = c;
+		}
+	}
+
+	private Crc32c()
+	{}
+
+	public static int compute( final byte[] bytes, final int offset, final int length )
+	{
+		int crc = 0xffffffff;
+		for ( int i = offset; i < offset + length; i++ )
+			crc = TABLE[ ( crc ^ bytes[ i ] ) & 0xff ] ^ ( crc >>> 8 );
+		return ~crc;
+	}
+}
@@ -0,0 +1,122 @@
+import bdv.img.cache.CacheArrayLoader;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Caps the detail a {@link SourceToViewerSetupImgLoaderBvv} gives the viewer
+ * at a {@link #setFinestLevel finest level}: the levels finer than it are
+ * reported with the transform and resolution of the finest level, and their
+ * images are those of the finest level, so their cells are never requested,
+ * let alone allocated. Set by the {@link HeapWatchdog} while the heap is
+ * short.
+ *
+ * The viewer takes the images of a timepoint when it gets to it and keeps
+ * them, so the images are capped for timepoints and sources the viewer sets
+ * up after it changed; the transforms are updated in place for those. For
+ * the images the viewer already has, cells finer than the cap that are still
+ * queued are not loaded when they are dequeued, but served as not yet loaded,
+ * so that the viewer keeps showing the coarser levels; they are requested
+ * again once the cap is lifted. Only source levels are capped, at most to the
+ * coarsest one: synthesized levels are computed from the finer ones.
+ *
+ * As the loader of the cells, it tells the watchdog when loading a cell ran
+ * out of memory, and serves that cell as not yet loaded.
+ */
+class DetailLimiter implements CacheArrayLoader< VolatileShortArray >
+{
+	private final SourceToViewerSetupImgLoaderBvv imgLoader;
+
+	private final CacheArrayLoader< VolatileShortArray > delegate;
+
+	/** the transforms and resolutions of the levels as reported to the viewer, guarded by this */
+	private final AffineTransform3D[] transforms;
+
+	private final double[][] resolutions;
+
+	private volatile int finestLevel;
+
+	DetailLimiter( final SourceToViewerSetupImgLoaderBvv imgLoader, final CacheArrayLoader< VolatileShortArray > delegate )
+	{
+		this.imgLoader = imgLoader;
+		this.delegate = delegate;
+		transforms = new AffineTransform3D[ imgLoader.mipmapTransforms.length ];
+		resolutions = new double[ transforms.length ][];
+		for ( int level = 0; level < transforms.length; level++ )
+		{
+			transforms[ level ] = imgLoader.mipmapTransforms[ level ].copy();
+			resolutions[ level ] = imgLoader.mipmapResolutions[ level ].clone();
+		}
+	}
+
+	synchronized void setFinestLevel( final int level )
+	{
+		final int limited = Math.max( 0, Math.min( level, imgLoader.numSourceLevels - 1 ) );
+		if ( limited == finestLevel )
+			return;
+		finestLevel = limited;
+		for ( int l = 0; l < transforms.length; l++ )
+		{
+			final int shown = Math.max( l, limited );
+			transforms[ l ].set( imgLoader.mipmapTransforms[ shown ] );
+			System.arraycopy( imgLoader.mipmapResolutions[ shown ], 0, resolutions[ l ], 0, resolutions[ l ].length );
+		}
+		imgLoader.getMetrics().sample( "detail.finestLevel", limited );
+	}
+
+	int getFinestLevel()
+	{
+		return finestLevel;
+	}
+
+	/** the level whose image the viewer gets for {@code level} */
+	int limit( final int level )
+	{
+		return Math.max( level, finestLevel );
+	}
+
+	/** the mipmap transforms reported to the viewer */
+	AffineTransform3D[] getTransforms()
+	{
+		return transforms;
+	}
+
+	/** the mipmap resolutions reported to the viewer */
+	double[][] getResolutions()
+	{
+		return resolutions;
+	}
+
+	@Override
+	public int getBytesPerElement()
+	{
+		return 2;
+	}
+
+	@Override
+	public VolatileShortArray loadArray( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min )
+	{
+		if ( level < finestLevel )
+		{
+			imgLoader.getMetrics().count( "detail.dropped.L" + level );
+			return invalid( dimensions );
+		}
+		try
+		{
+			return delegate.loadArray( timepoint, setup, level, dimensions, min );
+		}
+		catch ( final OutOfMemoryError e )
+		{
+			final HeapWatchdog watchdog = HeapWatchdog.get();
+			if ( watchdog != null )
+				watchdog.outOfMemory( e );
+			imgLoader.getMetrics().count( "detail.outOfMemory.L" + level );
+			return invalid( dimensions );
+		}
+	}
+
+	/** a cell that is not loaded yet, without allocating */
+	private static VolatileShortArray invalid( final int[] dimensions )
+	{
+		return new VolatileShortArray( DisplayRangeCuller.filled( dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ], 0 ), false );
+	}
+}
@@ -0,0 +1,201 @@
+import bdv.img.cache.CacheArrayLoader;
+import bdv.tools.brightness.ConverterSetup;
+import bvvpg.source.converters.GammaConverterSetup;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+import net.imglib2.img.cell.CellGrid;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Skips cells that render fully transparent under the current display range.
+ *
+ * Every cell loaded through this loader is added to a {@link BlockStatsIndex}.
+ * A cell whose max (from the index, e.g. from an earlier run's sidecar) is at
+ * or below the cutoff of the attached {@link ConverterSetup} (the lower end of
+ * the display range, or of the alpha range if that is lower) is not fetched
+ * or converted at all: it is filled with its max, which the converter maps to
+ * the same color and alpha as its real values. When the cutoff drops below
+ * the max of a cell skipped so far, the cells of the loader are dropped from
+ * the cache so they are loaded for real.
+ *
+ * Synthesized pyramid levels computed from skipped cells are tracked as well:
+ * they are dropped together with those cells, and neither recorded in the
+ * index nor written to the pyramid store. {@code -Dbvv.cull=false} turns
+ * skipping off; statistics are still recorded.
+ */
+class DisplayRangeCuller implements CacheArrayLoader< VolatileShortArray >
+{
+	private static final boolean ENABLED = !"false".equals( System.getProperty( "bvv.cull" ) );
+
+	private final SourceToViewerSetupImgLoaderBvv imgLoader;
+
+	private final CacheArrayLoader< VolatileShortArray > delegate;
+
+	private final BlockStatsIndex index = new BlockStatsIndex();
+
+	/** (t << 32 | level) -> Morton code of cell min -> max, -1 for cells computed from skipped ones */
+	private final ConcurrentHashMap< Long, ConcurrentHashMap< Long, Integer > > culled = new ConcurrentHashMap<>();
+
+	/**
+	 * (length << 16 | value) -> a skipped cell. Cells are never written, so
+	 * all skipped cells of the same size and max share one array.
+	 */
+	private static final ConcurrentHashMap< Long, short[] > FILLED = new ConcurrentHashMap<>();
+
+	private static final int MAX_FILLED = 1024;
+
+	/** values at or below are invisible, guarded by this */
+	private int cutoff = -1;
+
+	/** incremented whenever the skipped cells are dropped, guarded by this */
+	private long generation;
+
+	DisplayRangeCuller( final SourceToViewerSetupImgLoaderBvv imgLoader, final CacheArrayLoader< VolatileShortArray > delegate )
+	{
+		this.imgLoader = imgLoader;
+		this.delegate = delegate;
+	}
+
+	BlockStatsIndex getIndex()
+	{
+		return index;
+	}
+
+	/** follow the display and alpha range of {@code setup} */
+	void attach( final ConverterSetup setup )
+	{
+		setup.setupChangeListeners().add( s -> setCutoff( cutoff( s ) ) );
+		setCutoff( cutoff( setup ) );
+	}
+
+	static int cutoff( final ConverterSetup setup )
+	{
+		double min = setup.getDisplayRangeMin();
+		if ( setup instanceof GammaConverterSetup )
+			min = Math.min( min, ( ( GammaConverterSetup ) setup ).getAlphaRangeMin() );
+		return min < 0 ? -1 : ( int ) Math.min( 0xffff, Math.floor( min ) );
+	}
+
+	synchronized void setCutoff( final int cutoff )
+	{
+		final int previous = this.cutoff;
+		this.cutoff = cutoff;
+		if ( cutoff >= previous )
+			return; // cells skipped so far are still invisible
+
+		for ( final Map< Long, Integer > level : culled.values() )
+			for ( final int max : level.values() )
+				if ( max > cutoff )
+				{
+					culled.clear();
+					generation++;
+					imgLoader.getMetrics().count( "cull.invalidations" );
+					imgLoader.invalidateCells();
+					return;
+				}
+	}
+
+	@Override
+	public int getBytesPerElement()
+	{
+		return 2;
+	}
+
+	@Override
+	public VolatileShortArray loadArray( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min )
+	{
+		imgLoader.recordLoad( timepoint, level, min );
+		final long key = MortonOrder.encode( min );
+		while ( true )
+		{
+			final long generation;
+			synchronized ( this )
+			{
+				generation = this.generation;
+				final int max = ENABLED ? index.max( timepoint, level, min ) : -1;
+				if ( max >= 0 && max <= cutoff )
+				{
+					culled( timepoint, level ).put( key, max );
+					imgLoader.getMetrics().count( "cull.skipped.L" + level );
+					return new VolatileShortArray( filled( dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ], max ), true );
+				}
+			}
+
+			final long start = System.nanoTime();
+			final VolatileShortArray array = delegate.loadArray( timepoint, setup, level, dimensions, min );
+			imgLoader.recordFetch( timepoint, level, min, System.nanoTime() - start );
+			if ( !imgLoader.isSynthesized( level ) || !coversCulled( timepoint, level, min, dimensions ) )
+			{
+				// synthesized cells computed from cells outside the region are incomplete
+				if ( !imgLoader.isSynthesized( level ) || !imgLoader.isRegionRestricted() )
+					index.record( timepoint, level, min, array.getCurrentStorageArray() );
+				imgLoader.recordIssued( timepoint, level, min, dimensions, array.getCurrentStorageArray() );
+				return array;
+			}
+			synchronized ( this )
+			{
+				if ( generation == this.generation )
+				{
+					culled( timepoint, level ).put( key, -1 );
+					return array;
+				}
+			}
+			// the cells this one was computed from have been dropped meanwhile
+		}
+	}
+
+	/** a cell of {@code length} voxels of {@code value}, shared; cells must not be written */
+	static short[] filled( final int length, final int value )
+	{
+		final long key = ( ( long ) length << 16 ) | value;
+		short[] data = FILLED.get( key );
+		if ( data == null )
+		{
+			data = new short[ length ];
+			Arrays.fill( data, ( short ) value );
+			if ( FILLED.size() < MAX_FILLED )
+				FILLED.putIfAbsent( key, data );
+		}
+		return data;
+	}
+
+	/**
+	 * Whether the synthesized cell of {@code level} at {@code min} covers
+	 * cells of the next finer level that were skipped or computed from
+	 * skipped cells.
+	 */
+	boolean coversCulled( final int timepoint, final int level, final long[] min, final int[] dimensions )
+	{
+		final Map< Long, Integer > finer = culled.get( ( ( long ) timepoint << 32 ) | ( level - 1 ) );
+		if ( finer == null || finer.isEmpty() )
+			return false;
+		final CellGrid grid = imgLoader.getCellGrid( timepoint, level - 1 );
+		final long[] cellMin = new long[ 3 ];
+		final long[] cellMax = new long[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			cellMin[ d ] = 2 * min[ d ] / grid.cellDimension( d );
+			cellMax[ d ] = ( Math.min( 2 * ( min[ d ] + dimensions[ d ] ), grid.imgDimension( d ) ) - 1 ) / grid.cellDimension( d );
+		}
+		for ( long z = cellMin[ 2 ]; z <= cellMax[ 2 ]; z++ )
+			for ( long y = cellMin[ 1 ]; y <= cellMax[ 1 ]; y++ )
+				for ( long x = cellMin[ 0 ]; x <= cellMax[ 0 ]; x++ )
+					if ( finer.containsKey( MortonOrder.encode(
+							x * grid.cellDimension( 0 ), y * grid.cellDimension( 1 ), z * grid.cellDimension( 2 ) ) ) )
+						return true;
+		return false;
+	}
+
+	/** forget the skipped cells of an evicted timepoint */
+	void evictTimepoint( final int timepoint )
+	{
+		culled.keySet().removeIf( key -> ( key >>> 32 ) == timepoint );
+	}
+
+	private ConcurrentHashMap< Long, Integer > culled( final int timepoint, final int level )
+	{
+		return culled.computeIfAbsent( ( ( long ) timepoint << 32 ) | level, k -> new ConcurrentHashMap<>() );
+	}
+}
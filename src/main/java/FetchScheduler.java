@@ -0,0 +1,248 @@
+import bdv.cache.SharedQueue;
+import net.imglib2.cache.queue.BlockingFetchQueues;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide scheduling of block fetches.
+ *
+ * All wrapped loaders ({@link SourceToViewerSetupImgLoaderBvv}) enqueue their
+ * requests in one prioritized {@link #queue()}, so priorities (coarse levels
+ * first) are shared across sources and datasets. A dispatcher hands the
+ * requests to an I/O executor, which uses virtual threads on Java 21+ and a
+ * cached thread pool otherwise, with at most {@code bvv.fetch.maxInFlight}
+ * requests running at once. Waiting for remote or disk reads therefore does
+ * not tie up platform threads. The CPU-bound conversion of loaded data runs
+ * on a separate pool sized to the number of cores, see {@link #decode}.
+ *
+ * The N5 sources themselves share one {@link #sharedQueue()} instead of
+ * creating a new one for every container that is opened.
+ */
+public class FetchScheduler
+{
+	private static final int MAX_PRIORITIES = 32;
+
+	private static FetchScheduler instance;
+
+	public static synchronized FetchScheduler get()
+	{
+		if ( instance == null )
+			instance = new FetchScheduler();
+		return instance;
+	}
+
+	private final SharedQueue sharedQueue;
+
+	private final BlockingFetchQueues< Callable< ? > > queue;
+
+	private final ExecutorService ioExecutor;
+
+	private final boolean virtualThreads;
+
+	private volatile int maxInFlight;
+
+	private final ResizableSemaphore inFlight;
+
+	private final ExecutorService decodePool;
+
+	private final ThreadLocal< Boolean > isDecodeThread = ThreadLocal.withInitial( () -> false );
+
+	private FetchScheduler()
+	{
+		final int cores = Runtime.getRuntime().availableProcessors();
+		sharedQueue = new SharedQueue( Math.max( 1, cores / 2 ), MAX_PRIORITIES );
+
+		final ExecutorService virtual = newVirtualThreadExecutor();
+		virtualThreads = virtual != null;
+		ioExecutor = virtualThreads ? virtual : Executors.newCachedThreadPool( daemonThreads( "bvv-fetch-io" ) );
+		maxInFlight = Integer.getInteger( "bvv.fetch.maxInFlight", virtualThreads ? 256 : 4 * cores );
+		inFlight = new ResizableSemaphore( maxInFlight );
+
+		queue = new BlockingFetchQueues<>( MAX_PRIORITIES, cores );
+		final Thread dispatcher = new Thread( this::dispatch, "bvv-fetch-dispatcher" );
+		dispatcher.setDaemon( true );
+		dispatcher.start();
+
+		final ThreadFactory decodeThreads = daemonThreads( "bvv-decode" );
+		decodePool = Executors.newFixedThreadPool( cores, r -> decodeThreads.newThread( () -> {
+			isDecodeThread.set( true );
+			r.run();
+		} ) );
+	}
+
+	/** queue for the N5 sources built by {@code Main.getSourcesAndConverters} */
+	public SharedQueue sharedQueue()
+	{
+		return sharedQueue;
+	}
+
+	/** queue for the block requests of wrapped loaders */
+	public BlockingFetchQueues< Callable< ? > > queue()
+	{
+		return queue;
+	}
+
+	/**
+	 * Executor for blocking work outside the fetch queue, e.g. loading the
+	 * finer blocks a coarse block is computed from. Not limited by
+	 * {@code bvv.fetch.maxInFlight}.
+	 */
+	public Executor ioExecutor()
+	{
+		return ioExecutor;
+	}
+
+	public boolean usesVirtualThreads()
+	{
+		return virtualThreads;
+	}
+
+	public int getMaxInFlight()
+	{
+		return maxInFlight;
+	}
+
+	/**
+	 * Change the number of requests fetched at once, e.g. to what
+	 * {@link AutoTuner} found for this host. Requests already running are not
+	 * interrupted.
+	 */
+	public synchronized void setMaxInFlight( final int maxInFlight )
+	{
+		final int delta = Math.max( 1, maxInFlight ) - this.maxInFlight;
+		if ( delta > 0 )
+			inFlight.release( delta );
+		else if ( delta < 0 )
+			inFlight.reducePermits( -delta );
+		this.maxInFlight += delta;
+	}
+
+	/** number of block requests currently being fetched */
+	public int getInFlight()
+	{
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	/**
+	 * Run CPU-bound work on the decode pool and wait for the result. Work
+	 * submitted from a decode thread runs directly.
+	 */
+	public < T > T decode( final Callable< T > task )
+	{
+		try
+		{
+			if ( isDecodeThread.get() )
+				return task.call();
+			final Future< T > future = decodePool.submit( task );
+			return future.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			final Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			if ( cause instanceof Error )
+				throw ( Error ) cause;
+			throw new RuntimeException( cause );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final RuntimeException e )
+		{
+			throw e;
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	private void dispatch()
+	{
+		while ( true )
+		{
+			try
+			{
+				// take a permit first, so that requests stay in the queue (and
+				// can be reprioritized or cleared) until they can actually run
+				inFlight.acquire();
+				final Callable< ? > task = queue.take();
+				RenderMetrics.global().sample( "fetch.inFlight", getInFlight() );
+				ioExecutor.execute( () -> {
+					try
+					{
+						task.call();
+					}
+					catch ( final Exception e )
+					{
+						e.printStackTrace();
+					}
+					finally
+					{
+						inFlight.release();
+					}
+				} );
+			}
+			catch ( final InterruptedException e )
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * {@code Executors.newVirtualThreadPerTaskExecutor()} if this JVM has it
+	 * (looked up reflectively, we compile for Java 8), {@code null} otherwise.
+	 */
+	private static ExecutorService newVirtualThreadExecutor()
+	{
+		if ( Boolean.getBoolean( "bvv.fetch.noVirtualThreads" ) )
+			return null;
+		try
+		{
+			final Method factory = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+			return ( ExecutorService ) factory.invoke( null );
+		}
+		catch ( final Exception e )
+		{
+			// Java < 21, or preview features not enabled
+			return null;
+		}
+	}
+
+	private static class ResizableSemaphore extends Semaphore
+	{
+		ResizableSemaphore( final int permits )
+		{
+			super( permits );
+		}
+
+		@Override
+		protected void reducePermits( final int reduction )
+		{
+			super.reducePermits( reduction );
+		}
+	}
+
+	static ThreadFactory daemonThreads( final String prefix )
+	{
+		final AtomicInteger count = new AtomicInteger();
+		return r -> {
+			final Thread thread = new Thread( r, prefix + "-" + count.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		};
+	}
+}
@@ -0,0 +1,228 @@
+import javax.annotation.Nullable;
+import javax.management.NotificationEmitter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trades detail for memory when the heap runs short, so that long renders
+ * finish at lower quality instead of dying of an {@link OutOfMemoryError} in
+ * a fetcher thread. Enabled with {@code -Dbvv.heap.watchdog=true}.
+ *
+ * The watchdog looks at the heap pools' usage after garbage collection
+ * ({@link MemoryPoolMXBean#getCollectionUsage}), on a threshold notification
+ * and every {@code bvv.heap.intervalMillis} (default 1000). Blocks that only
+ * the soft-reference caches hold ({@link BlockLoadRegistry#softBytes}) are not
+ * counted: the collector drops them before it runs out of memory, and they
+ * fill the heap in any long render. Above {@code bvv.heap.high} of the
+ * maximum (default 0.85) it degrades one step, at most once per collection:
+ * <ol>
+ * <li>empty the {@link ShortArrayPool} and halve the budget of the
+ * {@link CompressedBlockCache};</li>
+ * <li>and every further step: also give the viewer one source level less, up
+ * to {@code bvv.heap.maxDroppedLevels} (default 3), see {@link DetailLimiter}:
+ * for the timepoints and sources it sets up from then on, and by not loading
+ * the finer cells still queued for the current ones.</li>
+ * </ol>
+ * Below {@code bvv.heap.low} (default 0.6) for {@code bvv.heap.restoreMillis}
+ * (default 10000) it restores one step. An {@code OutOfMemoryError} while
+ * loading a cell degrades at once, and the cell is served as not loaded. Every step is logged and counted in the
+ * global {@link RenderMetrics}.
+ */
+public class HeapWatchdog
+{
+	private static volatile HeapWatchdog instance;
+
+	/** the watchdog, started on first use, or {@code null} unless {@code -Dbvv.heap.watchdog=true} */
+	@Nullable
+	public static HeapWatchdog get()
+	{
+		if ( !Boolean.getBoolean( "bvv.heap.watchdog" ) )
+			return null;
+		if ( instance == null )
+		{
+			synchronized ( HeapWatchdog.class )
+			{
+				if ( instance == null )
+					instance = new HeapWatchdog();
+			}
+		}
+		return instance;
+	}
+
+	private final double high = Double.parseDouble( System.getProperty( "bvv.heap.high", "0.85" ) );
+
+	private final double low = Double.parseDouble( System.getProperty( "bvv.heap.low", "0.6" ) );
+
+	private final long interval = Long.getLong( "bvv.heap.intervalMillis", 1000 );
+
+	private final long restoreNanos = TimeUnit.MILLISECONDS.toNanos( Long.getLong( "bvv.heap.restoreMillis", 10000 ) );
+
+	private final int maxSteps = 1 + Integer.getInteger( "bvv.heap.maxDroppedLevels", 3 );
+
+	private final List< MemoryPoolMXBean > pools = new ArrayList<>();
+
+	/** registered loaders, weakly, guarded by this */
+	private final Set< SourceToViewerSetupImgLoaderBvv > loaders = Collections.newSetFromMap( new WeakHashMap<>() );
+
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor( FetchScheduler.daemonThreads( "bvv-heap-watchdog" ) );
+
+	/** guarded by this */
+	private int step;
+
+	/** collection count and time of the last step, guarded by this */
+	private long collectionsAtStep = -1;
+
+	private long nanosAtStep = System.nanoTime();
+
+	/** budget of the compressed cache at step 0, guarded by this */
+	private long compressedBudget = -1;
+
+	private HeapWatchdog()
+	{
+		for ( final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+		{
+			final long max = pool.getUsage().getMax();
+			if ( pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported() || max <= 0 )
+				continue;
+			pool.setCollectionUsageThreshold( ( long ) ( high * max ) );
+			pools.add( pool );
+		}
+		( ( NotificationEmitter ) ManagementFactory.getMemoryMXBean() ).addNotificationListener( ( notification, handback ) -> {
+			if ( MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals( notification.getType() ) )
+				executor.execute( this::check );
+		}, null, null );
+		executor.scheduleWithFixedDelay( this::check, interval, interval, TimeUnit.MILLISECONDS );
+	}
+
+	/** limit {@code loader} like the others from now on */
+	public synchronized void register( final SourceToViewerSetupImgLoaderBvv loader )
+	{
+		loaders.add( loader );
+		loader.setFinestLevel( droppedLevels() );
+	}
+
+	/** the current step, 0 for full quality */
+	public synchronized int getStep()
+	{
+		return step;
+	}
+
+	/**
+	 * The highest usage after the last collection of the heap pools, less the
+	 * softly held blocks, as a fraction of their maximum.
+	 */
+	public double pressure()
+	{
+		final long soft = BlockLoadRegistry.get().softBytes();
+		double pressure = 0;
+		for ( final MemoryPoolMXBean pool : pools )
+		{
+			final MemoryUsage usage = pool.getCollectionUsage();
+			final long max = pool.getUsage().getMax();
+			if ( usage != null && max > 0 )
+				pressure = Math.max( pressure, ( double ) Math.max( 0, usage.getUsed() - soft ) / max );
+		}
+		return pressure;
+	}
+
+	/** loading a cell ran out of memory: degrade now, without waiting for a collection */
+	void outOfMemory( final OutOfMemoryError e )
+	{
+		ShortArrayPool.get().clear();
+		synchronized ( this )
+		{
+			if ( step < maxSteps )
+				degrade( "OutOfMemoryError in " + Thread.currentThread().getName() );
+		}
+	}
+
+	private synchronized void check()
+	{
+		try
+		{
+			final double pressure = pressure();
+			final long collections = collections();
+			final long now = System.nanoTime();
+			if ( pressure > high && step < maxSteps && collections != collectionsAtStep )
+				degrade( String.format( "heap %.0f%% used after GC", 100 * pressure ) );
+			else if ( pressure < low && step > 0 && now - nanosAtStep >= restoreNanos )
+				restore( String.format( "heap %.0f%% used after GC", 100 * pressure ) );
+		}
+		catch ( final RuntimeException e )
+		{
+			System.err.println( "Heap watchdog: " + e.getMessage() );
+		}
+	}
+
+	/** called with the lock held */
+	private void degrade( final String reason )
+	{
+		step++;
+		ShortArrayPool.get().clear();
+		final CompressedBlockCache compressed = CompressedBlockCache.get();
+		if ( compressed != null )
+		{
+			if ( compressedBudget < 0 )
+				compressedBudget = compressed.getMaxBytes();
+			compressed.setMaxBytes( compressed.getMaxBytes() / 2 );
+		}
+		setFinestLevel();
+		stepped();
+		RenderMetrics.global().count( "heap.degrade" );
+		System.err.println( String.format( "Heap watchdog: %s, degraded to step %d (%d levels dropped, compressed cache %s)",
+				reason, step, droppedLevels(), compressed == null ? "off" : ( compressed.getMaxBytes() >> 20 ) + " MB" ) );
+	}
+
+	/** called with the lock held */
+	private void restore( final String reason )
+	{
+		step--;
+		final CompressedBlockCache compressed = CompressedBlockCache.get();
+		if ( compressed != null && compressedBudget >= 0 )
+			compressed.setMaxBytes( compressedBudget >> step );
+		setFinestLevel();
+		stepped();
+		RenderMetrics.global().count( "heap.restore" );
+		System.err.println( String.format( "Heap watchdog: %s, restored to step %d (%d levels dropped)", reason, step, droppedLevels() ) );
+	}
+
+	/** called with the lock held */
+	private void setFinestLevel()
+	{
+		for ( final SourceToViewerSetupImgLoaderBvv loader : new ArrayList<>( loaders ) )
+			loader.setFinestLevel( droppedLevels() );
+	}
+
+	/** called with the lock held */
+	private void stepped()
+	{
+		collectionsAtStep = collections();
+		nanosAtStep = System.nanoTime();
+		RenderMetrics.global().sample( "heap.step", step );
+	}
+
+	private int droppedLevels()
+	{
+		return Math.max( 0, step - 1 );
+	}
+
+	private static long collections()
+	{
+		long n = 0;
+		for ( final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans() )
+			n += Math.max( 0, collector.getCollectionCount() );
+		return n;
+	}
+}
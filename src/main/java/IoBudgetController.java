@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Chooses the I/O time budget and the render time budget of each render pass
+ * from what the previous passes achieved, instead of the fixed
+ * {@code {100 ms, 10 ms}} and {@link RenderProfile#maxRenderMillis}.
+ *
+ * After every pass it looks at the blocks delivered during the pass and their
+ * mean fetch latency (from the {@code load.fetch.L<level>} timers):
+ * <ul>
+ * <li>a pass that needs a rerender but got no blocks was spinning, so the next
+ * one may wait up to about two fetch latencies for its blocks;</li>
+ * <li>a frame that needed more than {@link #TARGET_PASSES} passes gets a
+ * larger render budget for its next frame, one that converged in a single
+ * pass a smaller one, and the I/O budget follows the fetch latency.</li>
+ * </ul>
+ * Budgets stay within {@code bvv.budget.io.minMillis}..{@code maxMillis}
+ * (default 1..500) and {@code bvv.budget.render.minMillis}..{@code maxMillis}
+ * (default 10..200). The chosen values are sampled per frame as
+ * {@code frame.budget.io} and {@code frame.budget.render} and written per
+ * frame with {@link #writeCsv}. {@code -Dbvv.budget.adaptive=false} keeps the
+ * initial budgets.
+ */
+public class IoBudgetController {
+
+    /** passes per frame that are fine: one to load, one to show what was loaded */
+    static final int TARGET_PASSES = 2;
+
+    private static final int MAX_LEVELS = 32;
+
+    private final RenderMetrics metrics;
+    private final boolean adaptive = !"false".equals(System.getProperty("bvv.budget.adaptive"));
+    private final long minIoNanos = Long.getLong("bvv.budget.io.minMillis", 1) * 1_000_000L;
+    private final long maxIoNanos = Long.getLong("bvv.budget.io.maxMillis", 500) * 1_000_000L;
+    private final int minRenderMillis = Integer.getInteger("bvv.budget.render.minMillis", 10);
+    private final int maxRenderMillis = Integer.getInteger("bvv.budget.render.maxMillis", 200);
+
+    private long ioNanos;
+    private int renderMillis;
+    /** the budget of the next pass of the current frame, raised by spinning passes */
+    private long passIoNanos;
+
+    // per pass and per frame measurements
+    private long fetchCount;
+    private long fetchNanos;
+    private int framePasses;
+    private long frameBlocks;
+    private long frameFetchNanos;
+    private long frameStart;
+    private final List<String> rows = new ArrayList<>();
+
+    /**
+     * @param ioMillis initial I/O budget of the first priority level, later
+     *                 levels get a tenth of it as before
+     * @param renderMillis initial render budget per pass
+     */
+    public IoBudgetController(RenderMetrics metrics, long ioMillis, int renderMillis) {
+        this.metrics = metrics;
+        this.ioNanos = clamp(ioMillis * 1_000_000L, minIoNanos, maxIoNanos);
+        this.renderMillis = (int) clamp(renderMillis, minRenderMillis, maxRenderMillis);
+    }
+
+    public void startFrame() {
+        framePasses = 0;
+        frameBlocks = 0;
+        frameFetchNanos = 0;
+        passIoNanos = ioNanos;
+        frameStart = System.nanoTime();
+        snapshot();
+    }
+
+    /** the I/O budget per priority level for the next pass, see {@code CacheIoTiming.IoTimeBudget#reset} */
+    public long[] ioBudget() {
+        return new long[]{passIoNanos, passIoNanos / 10};
+    }
+
+    public int renderMillis() {
+        return renderMillis;
+    }
+
+    /** a pass has been drawn; {@code rerender}: the frame is not complete yet */
+    public void afterPass(boolean rerender) {
+        final long count = fetchCount;
+        final long nanos = fetchNanos;
+        snapshot();
+        final long blocks = fetchCount - count;
+        framePasses++;
+        frameBlocks += blocks;
+        frameFetchNanos += fetchNanos - nanos;
+        if (adaptive && rerender && blocks == 0)
+            passIoNanos = clamp(Math.max(2 * passIoNanos, 2 * latencyNanos()), minIoNanos, maxIoNanos);
+    }
+
+    /** the frame has converged; adapt the budgets of the next frame */
+    public void endFrame(int frame) {
+        if (adaptive) {
+            if (framePasses > TARGET_PASSES)
+                renderMillis = (int) clamp(Math.round(renderMillis * Math.min(2.0, (double) framePasses / TARGET_PASSES)),
+                        minRenderMillis, maxRenderMillis);
+            else if (framePasses <= 1)
+                renderMillis = (int) clamp(Math.round(renderMillis * 0.8), minRenderMillis, maxRenderMillis);
+            // nothing was loaded: nothing to wait for next time either
+            ioNanos = clamp(frameBlocks == 0 ? ioNanos / 2 : 2 * latencyNanos(), minIoNanos, maxIoNanos);
+        }
+        metrics.sample("frame.budget.io", ioNanos / 1_000_000);
+        metrics.sample("frame.budget.render", renderMillis);
+        rows.add(String.format(Locale.ROOT, "%d,%d,%d,%.3f,%d,%.3f,%.3f",
+                frame, framePasses, frameBlocks, latencyNanos() * 1e-6,
+                renderMillis, ioNanos * 1e-6, (System.nanoTime() - frameStart) * 1e-6));
+    }
+
+    /** frame, passes, blocks, mean fetch ms, and the budgets chosen for the next frame */
+    public void writeCsv(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            out.println("frame,passes,blocks,fetchMillis,nextRenderMillis,nextIoMillis,wallMillis");
+            rows.forEach(out::println);
+        }
+    }
+
+    private long latencyNanos() {
+        return frameBlocks == 0 ? 0 : frameFetchNanos / frameBlocks;
+    }
+
+    private void snapshot() {
+        long count = 0, nanos = 0;
+        for (int level = 0; level < MAX_LEVELS; level++) {
+            final RenderMetrics.Histogram fetch = metrics.timer("load.fetch.L" + level);
+            if (fetch != null) {
+                count += fetch.count();
+                nanos += fetch.sum();
+            }
+        }
+        fetchCount = count;
+        fetchNanos = nanos;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,165 @@
+import bdv.viewer.Source;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Maps the ids of a label source (uint32, uint64, ...) to compact 16-bit ids
+ * as blocks are loaded, so that label volumes can be cached and rendered as
+ * {@code UnsignedShortType} without a preprocessing pass.
+ *
+ * Labels get consecutive indices in the order they are first seen; label 0
+ * (background) stays 0. The compact id of index {@code i} is
+ * {@code i % 65535 + 1}, so it is never 0 and the same in every block and mip
+ * level. 16 bits cannot tell more than 65535 labels apart: past that, ids are
+ * reused for labels first seen 65535 apart, and those render alike. That is
+ * reported on {@code System.err} when it first happens, and
+ * {@link #reusesIds} tells it; {@link #getLabel} still gives the label of an
+ * index.
+ *
+ * Lookups of known labels are lock-free, new labels are added under a lock.
+ * There is one dictionary per source, shared by all loaders wrapping it.
+ */
+public class LabelDictionary
+{
+	private static final Map< Source< ? >, LabelDictionary > DICTIONARIES = Collections.synchronizedMap( new WeakHashMap<>() );
+
+	public static LabelDictionary forSource( final Source< ? > source )
+	{
+		return DICTIONARIES.computeIfAbsent( source, s -> new LabelDictionary( s.getName() ) );
+	}
+
+	private static final int MAX_ID = 0xffff;
+
+	/** open addressing, linear probing; key 0 marks an empty slot */
+	private static final class Table
+	{
+		final AtomicLongArray keys;
+
+		final int[] values;
+
+		final int mask;
+
+		Table( final int capacity )
+		{
+			keys = new AtomicLongArray( capacity );
+			values = new int[ capacity ];
+			mask = capacity - 1;
+		}
+	}
+
+	private volatile Table table = new Table( 1 << 12 );
+
+	/** labels by index, guarded by this */
+	private long[] labels = new long[ 1 << 11 ];
+
+	private volatile int size;
+
+	/** for the overflow warning */
+	private final String name;
+
+	public LabelDictionary()
+	{
+		this( "A label source" );
+	}
+
+	public LabelDictionary( final String name )
+	{
+		this.name = name;
+	}
+
+	/** the compact id of {@code label}, adding it if it is new */
+	public short compact( final long label )
+	{
+		if ( label == 0 )
+			return 0;
+		int index = indexOf( label );
+		if ( index < 0 )
+			index = add( label );
+		return ( short ) ( index % MAX_ID + 1 );
+	}
+
+	/** the index of {@code label}, or -1 if it has not been seen */
+	public int indexOf( final long label )
+	{
+		// 0 is never added, and marks the empty slots
+		if ( label == 0 )
+			return -1;
+		final Table t = table;
+		for ( int i = hash( label ) & t.mask;; i = ( i + 1 ) & t.mask )
+		{
+			final long key = t.keys.get( i );
+			if ( key == label )
+				return t.values[ i ];
+			if ( key == 0 )
+				return -1;
+		}
+	}
+
+	public synchronized long getLabel( final int index )
+	{
+		if ( index < 0 || index >= size )
+			throw new IndexOutOfBoundsException( "label index " + index + ", size " + size );
+		return labels[ index ];
+	}
+
+	/** number of labels seen so far, not counting 0 */
+	public int size()
+	{
+		return size;
+	}
+
+	/** whether there are more labels than compact ids, so that some share one */
+	public boolean reusesIds()
+	{
+		return size > MAX_ID;
+	}
+
+	private synchronized int add( final long label )
+	{
+		final int known = indexOf( label );
+		if ( known >= 0 )
+			return known;
+
+		final int index = size;
+		if ( index == MAX_ID )
+			System.err.println( "WARNING: " + name + " has more than " + MAX_ID + " labels. Compact ids are reused from now on:"
+					+ " labels first seen " + MAX_ID + " apart are rendered with the same id." );
+		if ( 2 * ( index + 1 ) > table.values.length )
+		{
+			final Table old = table;
+			final Table grown = new Table( 2 * old.values.length );
+			for ( int i = 0; i < old.values.length; i++ )
+				if ( old.keys.get( i ) != 0 )
+					put( grown, old.keys.get( i ), old.values[ i ] );
+			table = grown;
+		}
+		if ( index == labels.length )
+			labels = Arrays.copyOf( labels, 2 * index );
+		labels[ index ] = label;
+		put( table, label, index );
+		size = index + 1;
+		return index;
+	}
+
+	private static void put( final Table t, final long label, final int index )
+	{
+		int i = hash( label ) & t.mask;
+		while ( t.keys.get( i ) != 0 )
+			i = ( i + 1 ) & t.mask;
+		// value first: readers that see the key see the value
+		t.values[ i ] = index;
+		t.keys.set( i, label );
+	}
+
+	private static int hash( long h )
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return ( int ) h;
+	}
+}
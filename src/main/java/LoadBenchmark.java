@@ -0,0 +1,134 @@
+import bdv.cache.SharedQueue;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.img.cell.CellGrid;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5URI;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load benchmark: metadata discovery and source construction
+ * ({@code Main.getSourcesAndConverters}), wrapping
+ * ({@link SourceToSpimDataWrapper#wrap}) and loading every cell of every mip
+ * level through the wrapped loader's cache, coarsest level first.
+ *
+ * Usage: {@code LoadBenchmark <uri> [threads] [maxCellsPerLevel]}. Reports
+ * time-to-first-block and, per level, sustained blocks/s and MB/s of source
+ * data. Pair with {@link SyntheticDataset} for inputs that need no network;
+ * {@code compression=raw dtype=uint16} exercises the memory-mapped path
+ * ({@link MappedRawReader}), {@code -Dbvv.load.noMmap=true} turns it off.
+ *
+ * The allocation column is the heap allocated per block by all platform
+ * threads (virtual threads are not counted, run with
+ * {@code -Dbvv.fetch.noVirtualThreads=true} for the full figure); the cell
+ * arrays themselves are part of it, as the cache keeps them.
+ */
+public class LoadBenchmark {
+
+    public static void main(String... args) throws Exception {
+
+        if (args.length == 0) {
+            System.err.println("Usage: LoadBenchmark <uri> [threads] [maxCellsPerLevel]");
+            System.exit(1);
+        }
+        final String uriString = args[0];
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        final long maxCells = args.length > 2 ? Long.parseLong(args[2]) : Long.MAX_VALUE;
+
+        final long start = System.nanoTime();
+        final N5URI uri = new N5URI(uriString);
+        final N5Reader n5 = Main.openReader(uri);
+        final SharedQueue sharedQueue = FetchScheduler.get().sharedQueue();
+        final List<SourceAndConverter<?>> socs = Main.getSourcesAndConverters(uri, n5, sharedQueue);
+        final long discovered = System.nanoTime();
+
+        final RenderMetrics metrics = new RenderMetrics();
+        final SourceToViewerSetupImgLoaderBvv imgLoader =
+                new SourceToViewerSetupImgLoaderBvv(socs.get(0).getSpimSource());
+        imgLoader.setMetrics(metrics);
+        imgLoader.setFetchOrdering(ZOrderBatcher.forUri(uri));
+        imgLoader.setCompressedCache(CompressedBlockCache.get());
+        final MappedRawReader blockReader = socs.size() == 1 ? MappedRawReader.forContainer(uri) : null;
+        if (blockReader != null && blockReader.matches(imgLoader.src))
+            imgLoader.setBlockReader(blockReader);
+        SourceToSpimDataWrapper.wrap(imgLoader);
+        final long wrapped = System.nanoTime();
+
+        System.out.println(String.format("sources: %d, discovery: %.1f ms, wrap: %.1f ms",
+                socs.size(), (discovered - start) * 1e-6, (wrapped - discovered) * 1e-6));
+        System.out.println("level  cells     seconds  blocks/s     MB/s  fetch p50 ms  convert p50 ms  alloc KB/block");
+
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final AtomicLong firstBlock = new AtomicLong();
+        final int t = 0;
+        for (int level = imgLoader.numMipmapLevels() - 1; level >= 0; level--) {
+            final CellGrid grid = imgLoader.getCellGrid(t, level);
+            final long numCells = Math.min(grid.getNumCells(), maxCells);
+            final int l = level;
+
+            final long levelStart = System.nanoTime();
+            final long allocatedBefore = allocatedBytes();
+            final List<Future<?>> futures = new ArrayList<>();
+            for (long i = 0; i < numCells; i++) {
+                final long index = i;
+                futures.add(pool.submit(() -> {
+                    imgLoader.loadCell(t, l, index);
+                    firstBlock.compareAndSet(0, System.nanoTime());
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+            final double seconds = (System.nanoTime() - levelStart) * 1e-9;
+            final long allocated = allocatedBytes() - allocatedBefore;
+
+            final Map<String, Long> counters = metrics.getCounters();
+            final long bytes = counters.getOrDefault("load.bytes.L" + level, 0L);
+            final RenderMetrics.Histogram fetch = metrics.timer("load.fetch.L" + level);
+            final RenderMetrics.Histogram convert = metrics.timer("load.convert.L" + level);
+            System.out.println(String.format("%5d %6d %11.3f %9.1f %8.1f %13.3f %15.3f %15.1f",
+                    level, numCells, seconds, numCells / seconds, bytes / seconds / 1e6,
+                    fetch == null ? 0 : fetch.quantile(0.5) * 1e-6,
+                    convert == null ? 0 : convert.quantile(0.5) * 1e-6,
+                    allocatedBefore < 0 ? Double.NaN : allocated / 1024.0 / numCells));
+        }
+        pool.shutdown();
+
+        System.out.println(String.format("time to first block: %.1f ms (%.1f ms after wrap)",
+                (firstBlock.get() - start) * 1e-6, (firstBlock.get() - wrapped) * 1e-6));
+        System.out.println("blocks read memory-mapped: " + metrics.getCounters().getOrDefault("load.direct", 0L));
+        System.out.println(String.format("block arrays from the pool: %.1f%%", 100 * ShortArrayPool.get().reuseRatio()));
+        final CompressedBlockCache compressed = CompressedBlockCache.get();
+        if (compressed != null) {
+            final RenderMetrics.Histogram encode = metrics.timer("compressed.encode");
+            final RenderMetrics.Histogram decode = metrics.timer("compressed.decode");
+            System.out.println(String.format("compressed blocks: %.1f MB, ratio %.2f, encode p50 %.3f ms, decode p50 %.3f ms, hits %.1f%%",
+                    compressed.compressedBytes() / 1e6, compressed.compressionRatio(),
+                    encode == null ? 0 : encode.quantile(0.5) * 1e-6, decode == null ? 0 : decode.quantile(0.5) * 1e-6,
+                    100 * compressed.hitRatio()));
+        }
+        imgLoader.clearCache();
+        if (n5 != null)
+            n5.close();
+        System.exit(0);
+    }
+
+    /** heap allocated so far by all live platform threads, -1 if this JVM cannot tell */
+    static long allocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        long sum = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds()))
+            if (bytes > 0)
+                sum += bytes;
+        return sum;
+    }
+}
@@ -33,10 +33,14 @@ import org.janelia.saalfeldlab.n5.universe.metadata.N5Metadata;
 import java.awt.image.IndexColorModel;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import static net.imglib2.type.numeric.ARGBType.rgba;
@@ -58,7 +62,11 @@ public class Main {
 
     public static Bvv showInBvv(N5URI uri, N5Reader n5) throws IOException {
 
-        List sourcesAndConverters = getSourcesAndConverters(uri, n5);
+        final SharedQueue sharedQueue = createSharedQueue();
+        final StartupPipeline pipeline = new StartupPipeline(null, RenderMetrics.global());
+        final CompletableFuture<List<SourceAndConverter<?>>> sourcesAndConverters = pipeline.discover(uri, n5, sharedQueue);
+        if (Boolean.getBoolean("bvv.autotune"))
+            AutoTuner.profileFor(uri, sourcesAndConverters.join()).apply();
         Bvv bvv = BvvFunctions.show(Bvv.options().frameTitle("BigVolumeViewer").
                 dCam(dCam).
                 dClipNear(dClipNear).
@@ -72,12 +80,17 @@ public class Main {
         );
 //        SourceAndConverter spimData = (SourceAndConverter) sourcesAndConverters.get(0);
 //        List<BvvStackSource<?>> sources = List.of();
-        sourcesAndConverters.forEach(soc -> {
-            final AbstractSpimData< ? > spimData = SourceToSpimDataWrapper.wrap( ((SourceAndConverter) soc).getSpimSource() );
-            List<BvvStackSource<?>> bvvSource = BvvFunctions.show(spimData,
-                    Bvv.options().addTo(bvv));
-            prettify(bvvSource.get(0));
-        });
+        // each source shows up as soon as its coarsest level is loaded
+        final AccessTrace timeline = viewerTimeline();
+        final List<StartupPipeline.WrappedSource> shown = StartupPipeline.join(pipeline.wrapAll(uri, sourcesAndConverters.join()).stream()
+                .map(future -> future.thenApply(wrapped -> {
+                    addToBvv(bvv, wrapped, true, timeline);
+                    return wrapped;
+                }))
+                .collect(Collectors.toList()));
+
+        if (Boolean.getBoolean("bvv.watch"))
+            watch(bvv, uri, shown);
 
         return bvv;
 
@@ -85,8 +98,11 @@ public class Main {
 
     public static Bvv showInBvv(N5URI uri, N5URI uriLabels, N5Reader n5, N5Reader n5Labels) throws IOException {
 
-        List sourcesAndConverters = getSourcesAndConverters(uri, n5);
-        List sourcesAndConvertersLabels = getSourcesAndConverters(uriLabels, n5Labels);
+        final SharedQueue sharedQueue = createSharedQueue();
+        final StartupPipeline pipeline = new StartupPipeline(null, RenderMetrics.global());
+        // discover both containers at the same time
+        final CompletableFuture<List<SourceAndConverter<?>>> sourcesAndConverters = pipeline.discover(uri, n5, sharedQueue);
+        final CompletableFuture<List<SourceAndConverter<?>>> sourcesAndConvertersLabels = pipeline.discover(uriLabels, n5Labels, sharedQueue);
         Bvv bvv = BvvFunctions.show(Bvv.options().frameTitle("BigVolumeViewer").
                 dCam(dCam).
                 dClipNear(dClipNear).
@@ -100,23 +116,104 @@ public class Main {
         );
 //        SourceAndConverter spimData = (SourceAndConverter) sourcesAndConverters.get(0);
 //        List<BvvStackSource<?>> sources = List.of();
-        sourcesAndConverters.forEach(soc -> {
-            final AbstractSpimData< ? > spimData = SourceToSpimDataWrapper.wrap( ((SourceAndConverter) soc).getSpimSource() );
-            List<BvvStackSource<?>> bvvSource = BvvFunctions.show(spimData,
-                    Bvv.options().addTo(bvv));
-            prettify(bvvSource.get(0));
-        });
-        sourcesAndConvertersLabels.forEach(soc -> {
-            final AbstractSpimData< ? > spimData = SourceToSpimDataWrapper.wrap( ((SourceAndConverter) soc).getSpimSource() );
-            List<BvvStackSource<?>> bvvSource = BvvFunctions.show(spimData,
-                    Bvv.options().addTo(bvv));
-//            prettify(bvvSource.get(0));
-        });
+        final List<CompletableFuture<Void>> shown = new ArrayList<>();
+        for (CompletableFuture<StartupPipeline.WrappedSource> future : pipeline.wrapAll(uri, sourcesAndConverters.join()))
+            shown.add(future.thenAccept(wrapped -> addToBvv(bvv, wrapped, true)));
+        for (CompletableFuture<StartupPipeline.WrappedSource> future : pipeline.wrapAll(uriLabels, sourcesAndConvertersLabels.join(), true))
+            shown.add(future.thenAccept(wrapped -> addToBvv(bvv, wrapped, false)));
+        StartupPipeline.join(shown);
 
         return bvv;
 
     }
 
+    /**
+     * Follow changes of a local container while it is shown: changed chunks
+     * are reloaded and appended timepoints become visible, see {@link StoreWatcher}.
+     * Enabled with {@code -Dbvv.watch=true}. After a change the current
+     * timepoint is set up again, see {@link #reloadCurrentTimepoint}.
+     */
+    private static void watch(Bvv bvv, N5URI uri, List<StartupPipeline.WrappedSource> shown) {
+        final List<SourceToViewerSetupImgLoaderBvv> loaders = shown.stream().map(wrapped -> wrapped.imgLoader).collect(Collectors.toList());
+        final StoreWatcher watcher = StoreWatcher.watch(uri, loaders);
+        if (watcher == null) {
+            System.err.println("Cannot watch " + uri + ": not a local container of a supported layout");
+            return;
+        }
+        watcher.addListener(new StoreWatcher.Listener() {
+            @Override
+            public void changed(int numChunks) {
+                reloadCurrentTimepoint(bvv);
+            }
+
+            @Override
+            public void timepointsAdded(int numTimepoints) {
+                for (StartupPipeline.WrappedSource wrapped : shown)
+                    SourceToSpimDataWrapper.addTimepoints(wrapped.spimData, numTimepoints);
+                bvv.getBvvHandle().getViewerPanel().state().setNumTimepoints(numTimepoints);
+            }
+        });
+    }
+
+    /**
+     * Make BVV set the current timepoint up again, so that it takes new images
+     * and uploads their cells again instead of showing the tiles it already
+     * has on the GPU. It switches through a neighbouring timepoint; with a
+     * single timepoint there is none, and tiles on the GPU are only refreshed
+     * as they are evicted.
+     */
+    private static void reloadCurrentTimepoint(Bvv bvv) {
+        final ViewerState state = bvv.getBvvHandle().getViewerPanel().state();
+        synchronized (state) {
+            final int t = state.getCurrentTimepoint();
+            final int other = t + 1 < state.getNumTimepoints() ? t + 1 : t - 1;
+            if (other >= 0) {
+                state.setCurrentTimepoint(other);
+                state.setCurrentTimepoint(t);
+            }
+        }
+        bvv.getBvvHandle().getViewerPanel().requestRepaint();
+    }
+
+    /**
+     * With {@code -Dbvv.trace.timeline=<file>}, a timeline trace of the viewer
+     * session for {@link CachePolicySimulator}, saved to {@code file} when the
+     * JVM exits; otherwise {@code null}.
+     */
+    private static AccessTrace viewerTimeline() {
+        final String file = System.getProperty("bvv.trace.timeline");
+        if (file == null)
+            return null;
+        final AccessTrace trace = new AccessTrace(true);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                trace.save(Paths.get(file));
+            } catch (IOException e) {
+                System.err.println("Could not save access trace " + file + ": " + e);
+            }
+        }, "bvv-trace"));
+        return trace;
+    }
+
+    private static void addToBvv(Bvv bvv, StartupPipeline.WrappedSource wrapped, boolean prettify) {
+        addToBvv(bvv, wrapped, prettify, null);
+    }
+
+    private static void addToBvv(Bvv bvv, StartupPipeline.WrappedSource wrapped, boolean prettify, AccessTrace timeline) {
+        synchronized (bvv) {
+            // before BVV gets the images, so that their cell requests are recorded
+            if (timeline != null)
+                timeline.attach(wrapped.imgLoader, bvv.getBvvHandle().getViewerPanel().state().getSources().size());
+            List<BvvStackSource<?>> bvvSource = BvvFunctions.show(wrapped.spimData,
+                    Bvv.options().addTo(bvv));
+            if (prettify)
+                prettify(bvvSource.get(0));
+            // skip blocks that are invisible under the display range set above, or clipped away
+            wrapped.imgLoader.setDisplayRangeCulling(bvvSource.get(0).getConverterSetups().get(0));
+            wrapped.imgLoader.setClipCulling(bvvSource.get(0).getConverterSetups().get(0));
+        }
+    }
+
     public static Bvv showInBvvMasked(List<AbstractSpimData> sources) throws IOException {
 
         Bvv bvv = BvvFunctions.show(Bvv.options().frameTitle("BigVolumeViewer").
@@ -202,16 +299,20 @@ public class Main {
     }
 
     private static void prettify(RealARGBColorGammaConverterSetup source) {
+        prettify(source, 200, 500, 0.9);
+    }
+
+    static void prettify(RealARGBColorGammaConverterSetup source, double displayMin, double displayMax, double gamma) {
 
-        source.setDisplayGamma(0.9);
+        source.setDisplayGamma(gamma);
         //set volumetric rendering (1), instead of max intensity max intensity (0)
         source.setRenderType(1);
 
 
         //DisplayRange maps colors (or LUT values) to intensity values
-        source.setDisplayRange(200, 500);
+        source.setDisplayRange(displayMin, displayMax);
         //it is also possible to change gamma value
-        source.setAlphaGamma(0.9);
+        source.setAlphaGamma(gamma);
 
         //alpha channel to intensity mapping can be changed independently
 //        source.setAlphaRange(0, 1000);
@@ -233,76 +334,86 @@ public class Main {
         //turn on clipping
     }
 
-    public static void renderInBvv(N5URI uri, N5Reader n5) throws Exception {
-
-
-
-        final List<SourceAndConverter<?>> socs = getSourcesAndConverters(uri, n5);
-
-        final ViewerState state = new SynchronizedViewerState(new BasicViewerState());
-        state.setNumTimepoints(1);
-
-        final ConverterSetupsPG setups = new ConverterSetupsPG(state);
-        for (SourceAndConverter<?> source : socs) {
-
-            final AbstractSpimData< ? > spimData = SourceToSpimDataWrapper.wrap( ((SourceAndConverter) source).getSpimSource() );
+    public static void renderInBvv(N5URI uri, N5Reader n5, File outDir) throws Exception {
+        renderInBvv(uri, n5, new RenderJob(uri.toString(), outDir));
+    }
 
-            WrapBasicImgLoader.wrapImgLoaderIfNecessary( spimData );
-            final ArrayList< SourceAndConverter< ? > > sources = new ArrayList<>();
-            //BigDataViewer.initSetups( spimData, new ArrayList<>(), sources );
-            ArrayList<ConverterSetup> converterSetups = new ArrayList<>();
-            BvvGamma.initSetups(spimData, converterSetups, sources);
+    public static void renderInBvv(N5URI uri, N5Reader n5, RenderJob job) throws Exception {
 
-            for (int i = 0; i < converterSetups.size(); i++) {
-                RealARGBColorGammaConverterSetup converterSetup = (RealARGBColorGammaConverterSetup) converterSetups.get(i);
-                SourceAndConverter soc = sources.get(i);
-                prettify(converterSetup);
-                                // Add ONLY the non-volatile to the ViewerState
-                state.addSource(soc);
-                state.setSourceActive(soc, true);
+        final SharedQueue sharedQueue = createSharedQueue();
+        try (RenderDataset dataset = RenderDataset.open(uri, n5, sharedQueue, job.displayMin, job.displayMax, job.gamma)) {
+            record(dataset, job);
+        }
+    }
 
-                // Register converter setups for BOTH identities → lookups always succeed
-                setups.put(soc, converterSetup);
-                if (soc.asVolatile() != null) {
-                    setups.put(soc.asVolatile(), converterSetup);
-                }
+    /** render the rotation or time-series movie of {@code job}, warm-started from its {@link AccessTrace} */
+    static void record(RenderDataset dataset, RenderJob job) throws Exception {
+        BvvRotateMovie movieGenerator = new BvvRotateMovie(dataset.state, dataset.setups, dataset.cache, job.width, job.height);
+        movieGenerator.setMetrics(dataset.metrics);
+
+        // with -Dbvv.trace=true, warm start from the cells the previous run of this job needed, or record them for the next run
+        final String timeline = System.getProperty("bvv.trace.timeline");
+        final boolean traced = Boolean.getBoolean("bvv.trace");
+        final Path traceFile = timeline != null ? Paths.get(timeline) : AccessTrace.file(job, dataset.loaders);
+        AccessTrace trace = null;
+        if (timeline != null) {
+            // a cold run, for CachePolicySimulator
+            trace = new AccessTrace(true);
+            trace.attach(dataset.loaders);
+        } else if (traced && Files.exists(traceFile) && !AccessTrace.isStale(traceFile)) {
+            try {
+                AccessTrace.load(traceFile).replay(dataset.loaders,
+                        Long.getLong("bvv.trace.maxMillis", 10000),
+                        Long.getLong("bvv.trace.maxMB", Runtime.getRuntime().maxMemory() / 4 / 1_000_000) * 1_000_000,
+                        dataset.metrics);
+            } catch (IOException e) {
+                System.err.println("Could not replay access trace " + traceFile + ": " + e);
             }
+        } else if (traced) {
+            trace = new AccessTrace();
+            trace.attach(dataset.loaders);
+        }
 
-//            for ( final SourceAndConverter< ? > source2 : sources ) {
-//
-//
-//
-//                final RealARGBColorGammaConverterSetup gcs = (RealARGBColorGammaConverterSetup) BvvGamma.createConverterSetupBT(source2, setupId);
-//
-//                // Add ONLY the non-volatile to the ViewerState
-//                state.addSource(source2);
-//                state.setSourceActive(source2, true);
-//
-//                // Register converter setups for BOTH identities → lookups always succeed
-//                setups.put(source2, gcs);
-//                if (source2.asVolatile() != null) {
-//                    setups.put(source2.asVolatile(), gcs);
-//                }
-//
-//                // Configure display
-//                prettify(gcs);
-////                gcs.setColor(new ARGBType(rgba(255,255,255,255)));
-//                setupId++;
-//
-//            }
-
-            WrapBasicImgLoader.removeWrapperIfPresent( spimData );
-
+        if (job.isTimeSeries())
+            movieGenerator.recordTimeSeriesMovie(dataset.timepointPrefetcher(), job.degreesPerTimepoint, job.outDir);
+        else
+            movieGenerator.recordRotateMovie(job.frames, job.outDir);
+
+        if (trace != null) {
+            AccessTrace.detach(dataset.loaders);
+            try {
+                trace.save(traceFile);
+            } catch (IOException e) {
+                System.err.println("Could not save access trace " + traceFile + ": " + e);
+            }
         }
+        if (Boolean.getBoolean("bvv.autotune"))
+            AutoTuner.recordRender(dataset.metrics);
+    }
 
-        final CacheControl cache = new CacheControl.CacheControls();
+    private static List getSourcesAndConverters(N5URI uri, N5Reader n5) throws IOException {
+        return getSourcesAndConverters(uri, n5, createSharedQueue());
+    }
 
-        BvvRotateMovie movieGenerator = new BvvRotateMovie(state, setups, cache, 1920, 1080);
-        movieGenerator.recordRotateMovie(20, new File("/home/random/Development/hi/collabs/treier/bvv/frames"));
+    /**
+     * Reader for {@code uri}, or {@code null} for sharded Zarr v3 stores,
+     * which {@link #getSourcesAndConverters} reads without N5.
+     */
+    static N5Reader openReader(N5URI uri) {
+        if (ShardedZarrSource.isShardedZarr(uri))
+            return null;
+        return new N5Factory().openReader(uri.toString());
     }
 
-    private static List getSourcesAndConverters(N5URI uri, N5Reader n5) throws IOException {
+    static SharedQueue createSharedQueue() {
+        return FetchScheduler.get().sharedQueue();
+    }
+
+    static List getSourcesAndConverters(N5URI uri, N5Reader n5, SharedQueue sharedQueue) throws IOException {
 
+        // sharded Zarr v3 is read directly, n5 is null then (see openReader)
+        if (n5 == null)
+            return ShardedZarrSource.sourcesAndConverters(uri);
 
         String rootGroup = uri.getGroupPath() != null ? uri.getGroupPath() : "/";
         List<N5Metadata> metadataList = new ArrayList();
@@ -314,7 +425,6 @@ public class Main {
         metadataList.add(rootMetadata);
 
         final DataSelection selection = new DataSelection(n5, metadataList);
-        final SharedQueue sharedQueue = new SharedQueue(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
         final List<ConverterSetup> converterSetups = new ArrayList<>();
         final List sourcesAndConverters = new ArrayList<>();
 
@@ -360,16 +470,19 @@ public class Main {
         } else {
             uri = args[0];
         }
+        File outDir = new File(args.length > 1 ? args[1] : "frames");
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Cannot create output directory " + outDir);
+        }
         N5URI n5URI = new N5URI(uri);
 
         //        showInBdv(n5URI);
 
-        N5Factory n5Factory = new N5Factory();
-        N5Reader n5 = n5Factory.openReader(uri);
+        N5Reader n5 = openReader(n5URI);
 
 //        showInBdv(n5URI, n5);
 
-        renderInBvv(n5URI, n5);
+        renderInBvv(n5URI, n5, outDir);
 
 
 	}
@@ -0,0 +1,337 @@
+import bdv.viewer.Source;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.janelia.saalfeldlab.n5.N5URI;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Zero-copy reads of raw (uncompressed) uint16 N5 and Zarr v2 blocks on a
+ * local file system.
+ *
+ * Block files are memory-mapped and copied into the cell's {@code short[]}
+ * with one bulk copy (a row-wise copy for Zarr edge blocks, which are stored
+ * padded), byte swapping included. There is no intermediate
+ * {@code DataBlock} and no type conversion: uint16 is what the cache stores.
+ * Blocks are read under a shared file lock, like {@code N5FSReader} does, so
+ * N5 writers cannot truncate them while they are mapped; a block truncated
+ * by a writer that does not lock is read the regular way instead.
+ *
+ * Only unambiguous layouts are supported: a single dataset, an N5 Viewer
+ * multiscale group ({@code s0}, {@code s1}, ...) or an OME-Zarr multiscale,
+ * with a single timepoint and channel. {@link #forContainer} returns
+ * {@code null} for anything else.
+ */
+public class MappedRawReader implements ShortBlockReader
+{
+	private static final class Level
+	{
+		final Path dir;
+
+		final boolean zarr;
+
+		/** x,y,z */
+		final long[] dimensions;
+
+		final int[] blockSize;
+
+		/** number of array dimensions, leading ones all of size 1 */
+		final int numDimensions;
+
+		final ByteOrder order;
+
+		final String separator;
+
+		final short fillValue;
+
+		Level( final Path dir, final boolean zarr, final long[] dimensions, final int[] blockSize, final int numDimensions,
+				final ByteOrder order, final String separator, final short fillValue )
+		{
+			this.dir = dir;
+			this.zarr = zarr;
+			this.dimensions = dimensions;
+			this.blockSize = blockSize;
+			this.numDimensions = numDimensions;
+			this.order = order;
+			this.separator = separator;
+			this.fillValue = fillValue;
+		}
+	}
+
+	private final Level[] levels;
+
+	private MappedRawReader( final Level[] levels )
+	{
+		this.levels = levels;
+	}
+
+	/**
+	 * Reader for the node {@code uri} points to, or {@code null} if it is not
+	 * local, not raw uint16, or not an unambiguous single multiscale.
+	 */
+	@Nullable
+	public static MappedRawReader forContainer( final N5URI uri )
+	{
+		if ( Boolean.getBoolean( "bvv.load.noMmap" ) )
+			return null;
+		try
+		{
+			final URI location = ShardedZarrSource.location( uri );
+			if ( location.getScheme() != null && !location.getScheme().equals( "file" ) )
+				return null;
+			final Path root = location.getScheme() == null ? Paths.get( location.getPath() ) : Paths.get( location );
+
+			final List< Path > paths = new ArrayList<>();
+			final JsonObject zattrs = readJson( root.resolve( ".zattrs" ) );
+			if ( Files.exists( root.resolve( "attributes.json" ) ) && readJson( root.resolve( "attributes.json" ) ).has( "dataType" ) )
+				paths.add( root );
+			else if ( Files.exists( root.resolve( ".zarray" ) ) )
+				paths.add( root );
+			else if ( zattrs != null && zattrs.has( "multiscales" ) )
+			{
+				final JsonArray multiscales = zattrs.getAsJsonArray( "multiscales" );
+				if ( multiscales.size() != 1 )
+					return null;
+				for ( final JsonElement dataset : multiscales.get( 0 ).getAsJsonObject().getAsJsonArray( "datasets" ) )
+					paths.add( root.resolve( dataset.getAsJsonObject().get( "path" ).getAsString() ) );
+			}
+			else
+			{
+				for ( int l = 0; Files.exists( root.resolve( "s" + l ).resolve( "attributes.json" ) ); l++ )
+					paths.add( root.resolve( "s" + l ) );
+			}
+			if ( paths.isEmpty() )
+				return null;
+
+			final Level[] levels = new Level[ paths.size() ];
+			for ( int l = 0; l < levels.length; l++ )
+			{
+				levels[ l ] = readLevel( paths.get( l ) );
+				if ( levels[ l ] == null )
+					return null;
+			}
+			return new MappedRawReader( levels );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			return null;
+		}
+	}
+
+	/** whether the levels of this reader are the levels of {@code source} */
+	public boolean matches( final Source< ? > source )
+	{
+		if ( source.getNumMipmapLevels() != levels.length )
+			return false;
+		for ( int l = 0; l < levels.length; l++ )
+			if ( !Arrays.equals( source.getSource( 0, l ).dimensionsAsLongArray(), levels[ l ].dimensions ) )
+				return false;
+		return true;
+	}
+
+	@Override
+	public int[] getBlockDimensions( final int level )
+	{
+		return levels[ level ].blockSize;
+	}
+
+	@Override
+	public boolean readBlock( final int timepoint, final int level, final long[] min, final int[] dimensions, final short[] data ) throws IOException
+	{
+		final Level l = levels[ level ];
+		if ( timepoint != 0 )
+			return false;
+		final long[] gridPosition = new long[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			if ( min[ d ] % l.blockSize[ d ] != 0 )
+				return false;
+			gridPosition[ d ] = min[ d ] / l.blockSize[ d ];
+		}
+
+		try ( FileChannel channel = FileChannel.open( blockPath( l, gridPosition ), StandardOpenOption.READ );
+				// as N5FSReader: writers that lock cannot truncate the block while it is copied
+				FileLock lock = channel.lock( 0, Long.MAX_VALUE, true ) )
+		{
+			return copyBlock( l, channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ), dimensions, data );
+		}
+		catch ( final NoSuchFileException e )
+		{
+			// blocks that were never written (data may be a recycled array, fill it even with 0)
+			Arrays.fill( data, l.fillValue );
+			return true;
+		}
+		catch ( final InternalError | IndexOutOfBoundsException | BufferUnderflowException e )
+		{
+			// truncated under the mapping by a writer that does not lock (SIGBUS), or short: read it the regular way
+			return false;
+		}
+	}
+
+	private static boolean copyBlock( final Level l, final ByteBuffer mapped, final int[] dimensions, final short[] data )
+	{
+		mapped.order( l.order );
+
+		final int[] stored;
+		if ( l.zarr )
+			stored = l.blockSize;
+		else
+		{
+			// N5 block header: mode, number of dimensions, dimensions, all big endian
+			final int mode = mapped.getShort( 0 );
+			final int n = mapped.getShort( 2 );
+			if ( mode != 0 || n != 3 )
+				return false;
+			stored = new int[ 3 ];
+			for ( int d = 0; d < 3; d++ )
+				stored[ d ] = mapped.getInt( 4 + 4 * d );
+			( ( Buffer ) mapped ).position( 16 );
+		}
+
+		final ShortBuffer shorts = mapped.slice().order( l.order ).asShortBuffer();
+		if ( Arrays.equals( stored, dimensions ) )
+		{
+			shorts.get( data );
+			return true;
+		}
+		if ( stored[ 0 ] < dimensions[ 0 ] || stored[ 1 ] < dimensions[ 1 ] || stored[ 2 ] < dimensions[ 2 ] )
+			return false;
+		// padded edge block
+		for ( int z = 0; z < dimensions[ 2 ]; z++ )
+		{
+			for ( int y = 0; y < dimensions[ 1 ]; y++ )
+			{
+				( ( Buffer ) shorts ).position( ( z * stored[ 1 ] + y ) * stored[ 0 ] );
+				shorts.get( data, ( z * dimensions[ 1 ] + y ) * dimensions[ 0 ], dimensions[ 0 ] );
+			}
+		}
+		return true;
+	}
+
+	private static Path blockPath( final Level level, final long[] gridPosition )
+	{
+		if ( !level.zarr )
+			return level.dir.resolve( gridPosition[ 0 ] + "/" + gridPosition[ 1 ] + "/" + gridPosition[ 2 ] );
+		// zarr keys are in C order: leading (size 1) dimensions, then z, y, x
+		final StringBuilder key = new StringBuilder();
+		for ( int d = level.numDimensions - 1; d >= 0; d-- )
+		{
+			key.append( d < 3 ? gridPosition[ d ] : 0 );
+			if ( d > 0 )
+				key.append( level.separator );
+		}
+		return level.dir.resolve( key.toString() );
+	}
+
+	private static Level readLevel( final Path dir ) throws IOException
+	{
+		final JsonObject n5 = readJson( dir.resolve( "attributes.json" ) );
+		if ( n5 != null && n5.has( "dataType" ) )
+		{
+			if ( !n5.get( "dataType" ).getAsString().equals( "uint16" ) || !isRawN5( n5 ) )
+				return null;
+			final long[] dimensions = toLongs( n5.getAsJsonArray( "dimensions" ) );
+			final int[] blockSize = toInts( n5.getAsJsonArray( "blockSize" ) );
+			if ( dimensions.length != 3 )
+				return null;
+			return new Level( dir, false, dimensions, blockSize, 3, ByteOrder.BIG_ENDIAN, "/", ( short ) 0 );
+		}
+
+		final JsonObject zarray = readJson( dir.resolve( ".zarray" ) );
+		if ( zarray == null )
+			return null;
+		final String dtype = zarray.get( "dtype" ).getAsString();
+		if ( !dtype.equals( "<u2" ) && !dtype.equals( ">u2" ) )
+			return null;
+		if ( zarray.has( "compressor" ) && !zarray.get( "compressor" ).isJsonNull() )
+			return null;
+		if ( zarray.has( "filters" ) && !zarray.get( "filters" ).isJsonNull() )
+			return null;
+		if ( zarray.has( "order" ) && !zarray.get( "order" ).getAsString().equals( "C" ) )
+			return null;
+
+		// reverse to x,y,z,...; everything beyond z must have size 1
+		final long[] shape = reverse( toLongs( zarray.getAsJsonArray( "shape" ) ) );
+		final int[] chunks = reverseInts( toInts( zarray.getAsJsonArray( "chunks" ) ) );
+		if ( shape.length < 3 )
+			return null;
+		for ( int d = 3; d < shape.length; d++ )
+			if ( shape[ d ] != 1 )
+				return null;
+		final String separator = zarray.has( "dimension_separator" ) ? zarray.get( "dimension_separator" ).getAsString() : ".";
+		final JsonElement fill = zarray.get( "fill_value" );
+		final short fillValue = fill == null || fill.isJsonNull() ? 0 : ( short ) fill.getAsInt();
+		return new Level( dir, true, Arrays.copyOf( shape, 3 ), Arrays.copyOf( chunks, 3 ), shape.length,
+				dtype.startsWith( "<" ) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN, separator, fillValue );
+	}
+
+	private static boolean isRawN5( final JsonObject attributes )
+	{
+		if ( attributes.has( "compression" ) )
+		{
+			final JsonElement compression = attributes.get( "compression" );
+			return compression.isJsonObject() && compression.getAsJsonObject().get( "type" ).getAsString().equals( "raw" );
+		}
+		// version 1 attributes
+		return attributes.has( "compressionType" ) && attributes.get( "compressionType" ).getAsString().equals( "raw" );
+	}
+
+	private static JsonObject readJson( final Path path ) throws IOException
+	{
+		if ( !Files.exists( path ) )
+			return null;
+		return JsonParser.parseString( new String( Files.readAllBytes( path ), StandardCharsets.UTF_8 ) ).getAsJsonObject();
+	}
+
+	private static long[] toLongs( final JsonArray array )
+	{
+		final long[] values = new long[ array.size() ];
+		for ( int i = 0; i < values.length; i++ )
+			values[ i ] = array.get( i ).getAsLong();
+		return values;
+	}
+
+	private static int[] toInts( final JsonArray array )
+	{
+		final int[] values = new int[ array.size() ];
+		for ( int i = 0; i < values.length; i++ )
+			values[ i ] = array.get( i ).getAsInt();
+		return values;
+	}
+
+	private static long[] reverse( final long[] values )
+	{
+		final long[] reversed = new long[ values.length ];
+		for ( int i = 0; i < values.length; i++ )
+			reversed[ i ] = values[ values.length - 1 - i ];
+		return reversed;
+	}
+
+	private static int[] reverseInts( final int[] values )
+	{
+		final int[] reversed = new int[ values.length ];
+		for ( int i = 0; i < values.length; i++ )
+			reversed[ i ] = values[ values.length - 1 - i ];
+		return reversed;
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * Z-order (Morton) codes of 3D grid positions. Sorting blocks by their code
+ * keeps blocks that are close in space close in the sequence of requests,
+ * which is what stores with spatially chunked (or sharded) layouts reward.
+ */
+public class MortonOrder
+{
+	private MortonOrder()
+	{}
+
+	/** interleave the lower 21 bits of x, y and z, x in the lowest bit */
+	public static long encode( final long x, final long y, final long z )
+	{
+		return spread( x ) | ( spread( y ) << 1 ) | ( spread( z ) << 2 );
+	}
+
+	public static long encode( final long[] position )
+	{
+		return encode( position[ 0 ], position[ 1 ], position[ 2 ] );
+	}
+
+	/** insert two zero bits between each of the lower 21 bits of {@code v} */
+	static long spread( long v )
+	{
+		v &= 0x1fffffL;
+		v = ( v | ( v << 32 ) ) & 0x1f00000000ffffL;
+		v = ( v | ( v << 16 ) ) & 0x1f0000ff0000ffL;
+		v = ( v | ( v << 8 ) ) & 0x100f00f00f00f00fL;
+		v = ( v | ( v << 4 ) ) & 0x10c30c30c30c30c3L;
+		v = ( v | ( v << 2 ) ) & 0x1249249249249249L;
+		return v;
+	}
+}
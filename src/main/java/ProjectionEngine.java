@@ -0,0 +1,313 @@
+import bdv.cache.SharedQueue;
+import bdv.viewer.SourceAndConverter;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5URI;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Axis-aligned XY, XZ and YZ projections (maximum or mean intensity) of one
+ * mip level, computed in a single streaming pass over the cells of the
+ * level. Cells are read through {@link SourceToViewerSetupImgLoaderBvv#readCell}
+ * (bypassing the cache) and reduced by a fork-join pool, each worker holding
+ * one cell at a time, so at most {@code parallelism} cells are in memory.
+ * Cell arrays and partial projections are recycled from cell to cell.
+ * Only the three projections are kept, the largest of which must fit in one
+ * array.
+ *
+ * Usage: {@code ProjectionEngine <uri> <outDir> [level [max|mean [displayMin [displayMax [gamma]]]]]}.
+ * Writes {@code xy}, {@code xz} and {@code yz} (z horizontal) as 16-bit TIFF
+ * and as display-mapped 8-bit PNG. {@code -Dbvv.projection.parallelism}
+ * overrides the number of cells processed at once (default: the fetch
+ * concurrency of {@link FetchScheduler}).
+ */
+public class ProjectionEngine {
+
+    public enum Mode { MAX, MEAN }
+
+    /** one projection, {@code width} x {@code height}, row-major */
+    public static class Projection {
+        final String name;
+        final int width;
+        final int height;
+        /** number of voxels along the projection axis, for the mean */
+        final long depth;
+        final short[] max;
+        /** exact sums for the mean, a float would drop voxels once a sum exceeds 2^24 */
+        final long[] sum;
+
+        Projection(String name, long width, long height, long depth, Mode mode) {
+            if (width * height > Integer.MAX_VALUE - 8)
+                throw new IllegalArgumentException(name + " projection of " + width + "x" + height + " is too large, use a coarser level");
+            this.name = name;
+            this.width = (int) width;
+            this.height = (int) height;
+            this.depth = depth;
+            this.max = mode == Mode.MAX ? new short[this.width * this.height] : null;
+            this.sum = mode == Mode.MEAN ? new long[this.width * this.height] : null;
+        }
+
+        /** the projected values, rounded to unsigned 16 bit for the mean */
+        public short[] pixels() {
+            if (max != null)
+                return max;
+            final short[] pixels = new short[sum.length];
+            for (int i = 0; i < sum.length; i++)
+                pixels[i] = (short) Math.min(0xffff, Math.round((double) sum[i] / depth));
+            return pixels;
+        }
+    }
+
+    private final SourceToViewerSetupImgLoaderBvv imgLoader;
+    private final RenderMetrics metrics;
+    private final int parallelism;
+
+    public ProjectionEngine(SourceToViewerSetupImgLoaderBvv imgLoader, RenderMetrics metrics) {
+        this.imgLoader = imgLoader;
+        this.metrics = metrics;
+        this.parallelism = Integer.getInteger("bvv.projection.parallelism",
+                Math.min(FetchScheduler.get().getMaxInFlight(), 8 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    /** XY, XZ and YZ projections of timepoint {@code t} at {@code level} */
+    public Projection[] project(int t, int level, Mode mode) {
+        final CellGrid grid = imgLoader.getCellGrid(t, level);
+        final long[] dims = grid.getImgDimensions();
+        final Projection[] projections = {
+                new Projection("xy", dims[0], dims[1], dims[2], mode),
+                new Projection("xz", dims[0], dims[2], dims[1], mode),
+                new Projection("yz", dims[2], dims[1], dims[0], mode) };
+
+        final long start = System.nanoTime();
+        final AtomicLong done = new AtomicLong();
+        final ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try {
+            pool.invoke(new CellRange(t, level, grid, projections, mode, 0, grid.getNumCells(), done));
+        } finally {
+            pool.shutdown();
+        }
+        metrics.time("projection.total", start);
+        System.out.println(String.format(Locale.ROOT, "projected %d cells of level %d in %.1f s",
+                done.get(), level, (System.nanoTime() - start) * 1e-9));
+        return projections;
+    }
+
+    /** splits the cells in halves until one is left, which is read and reduced */
+    private class CellRange extends RecursiveAction {
+        private final int t;
+        private final int level;
+        private final CellGrid grid;
+        private final Projection[] projections;
+        private final Mode mode;
+        private final long from;
+        private final long to;
+        private final AtomicLong done;
+
+        CellRange(int t, int level, CellGrid grid, Projection[] projections, Mode mode, long from, long to, AtomicLong done) {
+            this.t = t;
+            this.level = level;
+            this.grid = grid;
+            this.projections = projections;
+            this.mode = mode;
+            this.from = from;
+            this.to = to;
+            this.done = done;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                final long mid = (from + to) >>> 1;
+                invokeAll(new CellRange(t, level, grid, projections, mode, from, mid, done),
+                        new CellRange(t, level, grid, projections, mode, mid, to, done));
+                return;
+            }
+            final long[] position = new long[3];
+            IntervalIndexer.indexToPosition(from, grid.getGridDimensions(), position);
+            final long[] min = new long[3];
+            final int[] size = new int[3];
+            grid.getCellDimensions(position, min, size);
+
+            final long readStart = System.nanoTime();
+            final short[] data = imgLoader.readCell(t, level, position);
+            metrics.time("projection.read", readStart);
+            final long reduceStart = System.nanoTime();
+            reduce(data, min, size, projections, mode);
+            metrics.time("projection.reduce", reduceStart);
+            imgLoader.recycleCell(level, data);
+            done.incrementAndGet();
+        }
+    }
+
+    /**
+     * Project one cell into cell-sized partial projections first and merge
+     * those, so the shared projections are only locked once per cell.
+     */
+    static void reduce(short[] data, long[] min, int[] size, Projection[] projections, Mode mode) {
+        final int sx = size[0], sy = size[1], sz = size[2];
+        final long[] xy = partial(0, sx * sy);
+        final long[] xz = partial(1, sx * sz);
+        final long[] yz = partial(2, sz * sy);
+        final boolean max = mode == Mode.MAX;
+        int i = 0;
+        for (int z = 0; z < sz; z++) {
+            for (int y = 0; y < sy; y++) {
+                for (int x = 0; x < sx; x++, i++) {
+                    final int v = data[i] & 0xffff;
+                    final int ixy = y * sx + x, ixz = z * sx + x, iyz = y * sz + z;
+                    if (max) {
+                        if (v > xy[ixy]) xy[ixy] = v;
+                        if (v > xz[ixz]) xz[ixz] = v;
+                        if (v > yz[iyz]) yz[iyz] = v;
+                    } else {
+                        xy[ixy] += v;
+                        xz[ixz] += v;
+                        yz[iyz] += v;
+                    }
+                }
+            }
+        }
+        merge(projections[0], xy, (int) min[0], (int) min[1], sx, sy, max);
+        merge(projections[1], xz, (int) min[0], (int) min[2], sx, sz, max);
+        merge(projections[2], yz, (int) min[2], (int) min[1], sz, sy, max);
+    }
+
+    /** per worker partial projections, reused from cell to cell */
+    private static final ThreadLocal<long[][]> PARTIALS = ThreadLocal.withInitial(() -> new long[3][0]);
+
+    private static long[] partial(int axis, int n) {
+        final long[][] partials = PARTIALS.get();
+        if (partials[axis].length < n)
+            partials[axis] = new long[n];
+        else
+            Arrays.fill(partials[axis], 0, n, 0);
+        return partials[axis];
+    }
+
+    private static void merge(Projection p, long[] partial, int x0, int y0, int w, int h, boolean max) {
+        synchronized (p) {
+            for (int y = 0; y < h; y++) {
+                final int row = (y0 + y) * p.width + x0;
+                for (int x = 0; x < w; x++) {
+                    final long v = partial[y * w + x];
+                    if (max) {
+                        if (v > (p.max[row + x] & 0xffff))
+                            p.max[row + x] = (short) v;
+                    } else {
+                        p.sum[row + x] += v;
+                    }
+                }
+            }
+        }
+    }
+
+    /** uncompressed single-strip 16-bit grayscale baseline TIFF */
+    static void writeTiff(Projection p, File file) throws IOException {
+        final short[] pixels = p.pixels();
+        final int numEntries = 9;
+        final long imageBytes = 2L * pixels.length;
+        if (imageBytes > 0xffffffffL - 1024)
+            throw new IOException(file + " would exceed 4 GB, use a coarser level");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            // big endian header, first IFD right after the pixels
+            out.writeShort(0x4d4d);
+            out.writeShort(42);
+            out.writeInt((int) (8 + imageBytes));
+            for (short v : pixels)
+                out.writeShort(v);
+            out.writeShort(numEntries);
+            tiffEntry(out, 256, 4, p.width);             // ImageWidth
+            tiffEntry(out, 257, 4, p.height);            // ImageLength
+            tiffEntry(out, 258, 3, 16);                  // BitsPerSample
+            tiffEntry(out, 259, 3, 1);                   // Compression: none
+            tiffEntry(out, 262, 3, 1);                   // PhotometricInterpretation: BlackIsZero
+            tiffEntry(out, 273, 4, 8);                   // StripOffsets
+            tiffEntry(out, 277, 3, 1);                   // SamplesPerPixel
+            tiffEntry(out, 278, 4, p.height);            // RowsPerStrip
+            tiffEntry(out, 279, 4, (int) imageBytes);    // StripByteCounts
+            out.writeInt(0);
+        }
+    }
+
+    private static void tiffEntry(DataOutputStream out, int tag, int type, int value) throws IOException {
+        out.writeShort(tag);
+        out.writeShort(type);
+        out.writeInt(1);
+        if (type == 3) {
+            // SHORT values are left-aligned in the 4 byte value field
+            out.writeShort(value);
+            out.writeShort(0);
+        } else {
+            out.writeInt(value);
+        }
+    }
+
+    /** 8-bit PNG with the display range and gamma of the BVV converter setups */
+    static void writePng(Projection p, File file, double displayMin, double displayMax, double gamma) throws IOException {
+        final short[] pixels = p.pixels();
+        final byte[] lut = new byte[0x10000];
+        for (int v = 0; v < lut.length; v++) {
+            final double n = Math.max(0, Math.min(1, (v - displayMin) / (displayMax - displayMin)));
+            lut[v] = (byte) Math.round(255 * Math.pow(n, gamma));
+        }
+        final BufferedImage image = new BufferedImage(p.width, p.height, BufferedImage.TYPE_BYTE_GRAY);
+        final byte[] row = new byte[p.width];
+        for (int y = 0; y < p.height; y++) {
+            for (int x = 0; x < p.width; x++)
+                row[x] = lut[pixels[y * p.width + x] & 0xffff];
+            image.getRaster().setDataElements(0, y, p.width, 1, row);
+        }
+        ImageIO.write(image, "png", file);
+    }
+
+    public static void main(String... args) throws Exception {
+
+        if (args.length < 2) {
+            System.err.println("Usage: ProjectionEngine <uri> <outDir> [level [max|mean [displayMin [displayMax [gamma]]]]]");
+            System.exit(1);
+        }
+        final N5URI uri = new N5URI(args[0]);
+        final File outDir = new File(args[1]);
+        final int level = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        final Mode mode = args.length > 3 ? Mode.valueOf(args[3].toUpperCase(Locale.ROOT)) : Mode.MAX;
+        final double displayMin = args.length > 4 ? Double.parseDouble(args[4]) : 200;
+        final double displayMax = args.length > 5 ? Double.parseDouble(args[5]) : 500;
+        final double gamma = args.length > 6 ? Double.parseDouble(args[6]) : 0.9;
+
+        final N5Reader n5 = Main.openReader(uri);
+        final SharedQueue sharedQueue = FetchScheduler.get().sharedQueue();
+        final List<SourceAndConverter<?>> socs = Main.getSourcesAndConverters(uri, n5, sharedQueue);
+        final RenderMetrics metrics = new RenderMetrics();
+        final SourceToViewerSetupImgLoaderBvv imgLoader =
+                new SourceToViewerSetupImgLoaderBvv(socs.get(0).getSpimSource());
+        imgLoader.setMetrics(metrics);
+        SourceToSpimDataWrapper.wrap(imgLoader);
+
+        outDir.mkdirs();
+        for (Projection p : new ProjectionEngine(imgLoader, metrics).project(0, level, mode)) {
+            final String name = String.format("%s_L%d_%s", mode.name().toLowerCase(Locale.ROOT), level, p.name);
+            writeTiff(p, new File(outDir, name + ".tif"));
+            writePng(p, new File(outDir, name + ".png"), displayMin, displayMax, gamma);
+        }
+        metrics.writeJson(new File(outDir, "metrics.json").toPath());
+
+        imgLoader.clearCache();
+        if (n5 != null)
+            n5.close();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,301 @@
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.VolatileCachedCellImg;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Loads the levels of a {@link SourceToViewerSetupImgLoaderBvv} that its
+ * source does not have: each cell of such a level is the 2x2x2 mean of the
+ * cells of the next finer level it covers (for label sources, the label at
+ * its even corner, see {@link SourceToViewerSetupImgLoaderBvv#setLabelMode}). Those are loaded in parallel
+ * through the blocking images of the same cache, so they are shared with
+ * rendering and computed at most once; the averaging runs on the
+ * {@link FetchScheduler#decode decode} pool. Cells of the source's own levels
+ * are loaded by {@code sourceLoader}.
+ *
+ * With a {@link PyramidStore}, computed cells are written to it and read from
+ * it the next time. Without one, cells more than one level above the source
+ * are not computed from the level below them, which would wait for every cell
+ * of the levels in between: they are the mean of the box of the coarsest
+ * source level each voxel covers, which is what the 2x2x2 means of the levels
+ * in between would give, centred as in
+ * {@link SourceToViewerSetupImgLoaderBvv#getMipmapTransforms}. The source
+ * cells under a coarse cell are read a batch at a time, so a cell far above
+ * the source does not hold the whole region it covers in memory.
+ */
+class PyramidArrayLoader implements CacheArrayLoader< VolatileShortArray >
+{
+	private final SourceToViewerSetupImgLoaderBvv imgLoader;
+
+	private final SourceToViewerSetupImgLoaderBvv.SourceArrayLoader sourceLoader;
+
+	private final int numSourceLevels;
+
+	private volatile PyramidStore store;
+
+	private volatile DisplayRangeCuller culler;
+
+	/** source cells loaded and accumulated at once when computing a cell from a coarser box */
+	private static final int BATCH = 64;
+
+	/**
+	 * Sums and counts of the voxels of a cell being downsampled, reused
+	 * across cells. A computation takes one for its whole duration, which
+	 * may span several decode tasks.
+	 */
+	static final class Scratch
+	{
+		private static final ConcurrentLinkedQueue< Scratch > FREE = new ConcurrentLinkedQueue<>();
+
+		long[] sum = new long[ 0 ];
+
+		int[] count = new int[ 0 ];
+
+		/** a scratch with {@code n} zeroed sums and counts */
+		static Scratch take( final int n )
+		{
+			Scratch scratch = FREE.poll();
+			if ( scratch == null )
+				scratch = new Scratch();
+			if ( scratch.sum.length < n )
+			{
+				scratch.sum = new long[ n ];
+				scratch.count = new int[ n ];
+			}
+			else
+			{
+				Arrays.fill( scratch.sum, 0, n, 0 );
+				Arrays.fill( scratch.count, 0, n, 0 );
+			}
+			return scratch;
+		}
+
+		void give()
+		{
+			FREE.add( this );
+		}
+
+		/** the rounded means, 0 where nothing was added */
+		short[] means( final int n )
+		{
+			final short[] data = ShortArrayPool.get().take( n );
+			for ( int i = 0; i < n; i++ )
+				data[ i ] = count[ i ] == 0 ? 0 : ( short ) ( ( sum[ i ] + count[ i ] / 2 ) / count[ i ] );
+			return data;
+		}
+	}
+
+	PyramidArrayLoader( final SourceToViewerSetupImgLoaderBvv imgLoader,
+			final SourceToViewerSetupImgLoaderBvv.SourceArrayLoader sourceLoader,
+			final int numSourceLevels )
+	{
+		this.imgLoader = imgLoader;
+		this.sourceLoader = sourceLoader;
+		this.numSourceLevels = numSourceLevels;
+	}
+
+	void setStore( @Nullable final PyramidStore store )
+	{
+		this.store = store;
+	}
+
+	/** forget the stored cell at {@code gridPosition}, its source data changed */
+	void invalidate( final int timepoint, final int level, final long[] gridPosition )
+	{
+		final PyramidStore store = this.store;
+		if ( store != null )
+			store.remove( timepoint, level, gridPosition );
+	}
+
+	/** cells computed from cells {@code culler} skipped are not stored */
+	void setCuller( @Nullable final DisplayRangeCuller culler )
+	{
+		this.culler = culler;
+	}
+
+	@Override
+	public int getBytesPerElement()
+	{
+		return 2;
+	}
+
+	@Override
+	public VolatileShortArray loadArray( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min )
+	{
+		if ( level < numSourceLevels )
+			return sourceLoader.loadArray( timepoint, setup, level, dimensions, min );
+
+		final RenderMetrics metrics = sourceLoader.getMetrics();
+		metrics.count( "cache.miss" );
+		final CellGrid grid = imgLoader.getCellGrid( timepoint, level );
+		final long[] gridPosition = new long[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+			gridPosition[ d ] = min[ d ] / grid.cellDimension( d );
+
+		final PyramidStore store = this.store;
+		if ( store != null )
+		{
+			final long start = System.nanoTime();
+			final short[] stored = store.read( timepoint, level, gridPosition, cellDimensions( grid ), grid.getImgDimensions() );
+			if ( stored != null && stored.length == numElements( dimensions ) )
+			{
+				metrics.time( "load.fetch.L" + level, start );
+				metrics.count( "pyramid.stored.L" + level );
+				return new VolatileShortArray( stored, true );
+			}
+		}
+
+		final int from = store == null ? numSourceLevels - 1 : level - 1;
+		final short[] data = downsample( metrics, timepoint, level, from, dimensions, min );
+		final DisplayRangeCuller culler = this.culler;
+		if ( store != null && !imgLoader.isRegionRestricted() && ( culler == null || !culler.coversCulled( timepoint, level, min, dimensions ) ) )
+			CompletableFuture.runAsync( () -> store.write( timepoint, level, gridPosition, dimensions,
+					cellDimensions( grid ), grid.getImgDimensions(), data ), FetchScheduler.get().ioExecutor() );
+		return new VolatileShortArray( data, true );
+	}
+
+	/** the means of the boxes of level {@code from} that the voxels of this cell cover */
+	private short[] downsample( final RenderMetrics metrics, final int timepoint, final int level, final int from,
+			final int[] dimensions, final long[] min )
+	{
+		final long fetchStart = System.nanoTime();
+		final int shift = level - from;
+		final VolatileCachedCellImg< UnsignedShortType, VolatileShortArray > finer = imgLoader.blockingImage( timepoint, from );
+		final CellGrid finerGrid = finer.getCellGrid();
+
+		// the finer region covered by this cell, and the finer cells overlapping it
+		final long[] regionMin = new long[ 3 ];
+		final long[] regionMax = new long[ 3 ];
+		final long[] cellMin = new long[ 3 ];
+		final long[] cellMax = new long[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			regionMin[ d ] = min[ d ] << shift;
+			regionMax[ d ] = Math.min( ( min[ d ] + dimensions[ d ] ) << shift, finerGrid.imgDimension( d ) ) - 1;
+			cellMin[ d ] = regionMin[ d ] / finerGrid.cellDimension( d );
+			cellMax[ d ] = regionMax[ d ] / finerGrid.cellDimension( d );
+		}
+
+		final int n = numElements( dimensions );
+		final boolean labels = imgLoader.isLabelMode();
+		final Executor io = FetchScheduler.get().ioExecutor();
+		final List< CompletableFuture< Cell< VolatileShortArray > > > cells = new ArrayList<>();
+		final Scratch scratch = Scratch.take( n );
+		try
+		{
+			long convertNanos = 0;
+			for ( long z = cellMin[ 2 ]; z <= cellMax[ 2 ]; z++ )
+				for ( long y = cellMin[ 1 ]; y <= cellMax[ 1 ]; y++ )
+					for ( long x = cellMin[ 0 ]; x <= cellMax[ 0 ]; x++ )
+					{
+						final long[] position = { x, y, z };
+						cells.add( CompletableFuture.supplyAsync( () -> {
+							final RandomAccess< Cell< VolatileShortArray > > access = finer.getCells().randomAccess();
+							access.setPosition( position );
+							return access.get();
+						}, io ) );
+						if ( cells.size() == BATCH || ( x == cellMax[ 0 ] && y == cellMax[ 1 ] && z == cellMax[ 2 ] ) )
+						{
+							final List< Cell< VolatileShortArray > > loaded = join( cells );
+							cells.clear();
+							convertNanos += FetchScheduler.get().decode( () -> {
+								final long convertStart = System.nanoTime();
+								for ( final Cell< VolatileShortArray > cell : loaded )
+									accumulate( cell, regionMin, regionMax, min, dimensions, shift, labels, scratch.sum, scratch.count );
+								return System.nanoTime() - convertStart;
+							} );
+						}
+					}
+			metrics.record( "load.fetch.L" + level, System.nanoTime() - fetchStart - convertNanos );
+			metrics.count( "load.blocks.L" + level );
+
+			final long convertStart = System.nanoTime();
+			final short[] data = scratch.means( n );
+			metrics.record( "load.convert.L" + level, System.nanoTime() - convertStart + convertNanos );
+			return data;
+		}
+		finally
+		{
+			scratch.give();
+		}
+	}
+
+	private static List< Cell< VolatileShortArray > > join( final List< CompletableFuture< Cell< VolatileShortArray > > > cells )
+	{
+		final List< Cell< VolatileShortArray > > loaded = new ArrayList<>( cells.size() );
+		try
+		{
+			for ( final CompletableFuture< Cell< VolatileShortArray > > cell : cells )
+				loaded.add( cell.join() );
+		}
+		catch ( final CompletionException e )
+		{
+			if ( e.getCause() instanceof RuntimeException )
+				throw ( RuntimeException ) e.getCause();
+			throw e;
+		}
+		return loaded;
+	}
+
+	/**
+	 * Add the voxels of a finer {@code cell} within the region to the coarse
+	 * voxels whose boxes of {@code 2^shift} they are in, or with
+	 * {@code corners} only those at the boxes' min corners.
+	 */
+	private static void accumulate( final Cell< VolatileShortArray > cell, final long[] regionMin, final long[] regionMax,
+			final long[] min, final int[] dimensions, final int shift, final boolean corners, final long[] sum, final int[] count )
+	{
+		final short[] values = cell.getData().getCurrentStorageArray();
+		final long[] cMin = new long[ 3 ];
+		final int[] cDims = new int[ 3 ];
+		cell.min( cMin );
+		cell.dimensions( cDims );
+		final long corner = ( 1L << shift ) - 1;
+
+		final long x0 = Math.max( cMin[ 0 ], regionMin[ 0 ] ), x1 = Math.min( cMin[ 0 ] + cDims[ 0 ] - 1, regionMax[ 0 ] );
+		final long y0 = Math.max( cMin[ 1 ], regionMin[ 1 ] ), y1 = Math.min( cMin[ 1 ] + cDims[ 1 ] - 1, regionMax[ 1 ] );
+		final long z0 = Math.max( cMin[ 2 ], regionMin[ 2 ] ), z1 = Math.min( cMin[ 2 ] + cDims[ 2 ] - 1, regionMax[ 2 ] );
+		for ( long z = z0; z <= z1; z++ )
+		{
+			final int cz = ( int ) ( ( z >> shift ) - min[ 2 ] );
+			for ( long y = y0; y <= y1; y++ )
+			{
+				final int cy = ( int ) ( ( y >> shift ) - min[ 1 ] );
+				final int row = ( cz * dimensions[ 1 ] + cy ) * dimensions[ 0 ];
+				final int fineRow = ( int ) ( ( ( z - cMin[ 2 ] ) * cDims[ 1 ] + ( y - cMin[ 1 ] ) ) * cDims[ 0 ] - cMin[ 0 ] );
+				for ( long x = x0; x <= x1; x++ )
+				{
+					if ( corners && ( ( x | y | z ) & corner ) != 0 )
+						continue;
+					final int i = row + ( int ) ( ( x >> shift ) - min[ 0 ] );
+					sum[ i ] += values[ fineRow + ( int ) x ] & 0xffff;
+					count[ i ]++;
+				}
+			}
+		}
+	}
+
+	private static int[] cellDimensions( final CellGrid grid )
+	{
+		final int[] cellDimensions = new int[ grid.numDimensions() ];
+		grid.cellDimensions( cellDimensions );
+		return cellDimensions;
+	}
+
+	private static int numElements( final int[] dimensions )
+	{
+		return dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+	}
+}
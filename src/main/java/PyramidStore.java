@@ -0,0 +1,101 @@
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local N5 store for the pyramid levels {@link PyramidArrayLoader} computes,
+ * so that later runs read them instead of computing them again.
+ *
+ * Level {@code l} of timepoint {@code t} is the uint16 dataset
+ * {@code t<t>/s<l>}, with the cells of the wrapped loader as blocks. The
+ * dimensions of the full resolution source are stored in the root attributes;
+ * a store written for a different source is not used.
+ */
+public class PyramidStore
+{
+	private final N5Writer n5;
+
+	private final ConcurrentHashMap< String, DatasetAttributes > datasets = new ConcurrentHashMap<>();
+
+	private PyramidStore( final N5Writer n5 )
+	{
+		this.n5 = n5;
+	}
+
+	/**
+	 * Open or create the store at {@code dir} for a source with full
+	 * resolution {@code dimensions}, or {@code null} if the store belongs to
+	 * another source.
+	 */
+	public static PyramidStore open( final Path dir, final long[] dimensions )
+	{
+		final N5Writer n5 = new N5FSWriter( dir.toAbsolutePath().toString() );
+		final long[] stored = n5.getAttribute( "/", "sourceDimensions", long[].class );
+		if ( stored == null )
+			n5.setAttribute( "/", "sourceDimensions", dimensions );
+		else if ( !Arrays.equals( stored, dimensions ) )
+		{
+			System.err.println( "Pyramid store " + dir + " was written for another source, not using it" );
+			n5.close();
+			return null;
+		}
+		return new PyramidStore( n5 );
+	}
+
+	/** the stored block, or {@code null} if it has not been written yet */
+	public short[] read( final int t, final int level, final long[] gridPosition, final int[] blockDimensions, final long[] levelDimensions )
+	{
+		final DatasetAttributes attributes = dataset( t, level, blockDimensions, levelDimensions );
+		final DataBlock< ? > block = n5.readBlock( path( t, level ), attributes, gridPosition );
+		if ( block == null || !( block.getData() instanceof short[] ) )
+			return null;
+		return ( short[] ) block.getData();
+	}
+
+	public void write( final int t, final int level, final long[] gridPosition, final int[] size, final int[] blockDimensions,
+			final long[] levelDimensions, final short[] data )
+	{
+		final DatasetAttributes attributes = dataset( t, level, blockDimensions, levelDimensions );
+		n5.writeBlock( path( t, level ), attributes, new ShortArrayDataBlock( size, gridPosition, data ) );
+	}
+
+	/** forget the stored block, e.g. because the source data under it changed */
+	public void remove( final int t, final int level, final long[] gridPosition )
+	{
+		if ( n5.datasetExists( path( t, level ) ) )
+			n5.deleteBlock( path( t, level ), gridPosition );
+	}
+
+	private DatasetAttributes dataset( final int t, final int level, final int[] blockDimensions, final long[] levelDimensions )
+	{
+		return datasets.computeIfAbsent( path( t, level ), path -> {
+			if ( n5.datasetExists( path ) )
+			{
+				final DatasetAttributes existing = n5.getDatasetAttributes( path );
+				if ( Arrays.equals( existing.getDimensions(), levelDimensions )
+						&& Arrays.equals( existing.getBlockSize(), blockDimensions ) )
+					return existing;
+				// written with another cell size
+				n5.remove( path );
+			}
+			final DatasetAttributes attributes = new DatasetAttributes( levelDimensions, blockDimensions, DataType.UINT16, new GzipCompression() );
+			n5.createDataset( path, attributes );
+			final int f = 1 << level;
+			n5.setAttribute( path, "downsamplingFactors", new int[] { f, f, f } );
+			return attributes;
+		} );
+	}
+
+	private static String path( final int t, final int level )
+	{
+		return "t" + t + "/s" + level;
+	}
+}
@@ -0,0 +1,148 @@
+import bdv.img.cache.CacheArrayLoader;
+import bdv.tools.brightness.ConverterSetup;
+import bvvpg.source.converters.GammaConverterSetup;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Intervals;
+
+import javax.annotation.Nullable;
+
+/**
+ * Skips cells that lie entirely outside the rendered region: the clip
+ * interval of the attached {@link ConverterSetup} (what
+ * {@code BvvStackSource.setClipInterval} sets, the shader discards
+ * everything outside it) intersected with a region of interest set through
+ * {@link SourceToViewerSetupImgLoaderBvv#setRegionOfInterest}. Both are in
+ * global coordinates. Skipped cells are not read or converted; they are one
+ * shared array of zeros, so what is uploaded for them is never looked at.
+ *
+ * When the region grows, the cells of the loader are dropped from the cache
+ * so that the ones skipped so far are loaded for real. While the region
+ * restricts anything, synthesized pyramid levels (computed partly from
+ * skipped cells) are neither recorded in the block statistics nor written to
+ * the pyramid store.
+ */
+class RegionCuller implements CacheArrayLoader< VolatileShortArray >
+{
+	private final SourceToViewerSetupImgLoaderBvv imgLoader;
+
+	private final CacheArrayLoader< VolatileShortArray > delegate;
+
+	/** clip interval of the converter setup, guarded by this */
+	private RealInterval clip;
+
+	/** region of interest, guarded by this */
+	private RealInterval roi;
+
+	/** both intersected, {@code null} if unrestricted, guarded by this */
+	private RealInterval region;
+
+	/** whether cells have been skipped since the cache was last dropped, guarded by this */
+	private boolean skipped;
+
+	RegionCuller( final SourceToViewerSetupImgLoaderBvv imgLoader, final CacheArrayLoader< VolatileShortArray > delegate )
+	{
+		this.imgLoader = imgLoader;
+		this.delegate = delegate;
+	}
+
+	/** follow the clip interval of {@code setup} */
+	void attach( final ConverterSetup setup )
+	{
+		if ( !( setup instanceof GammaConverterSetup ) )
+			return;
+		final GammaConverterSetup gamma = ( GammaConverterSetup ) setup;
+		setup.setupChangeListeners().add( s -> setClip( gamma.getClipInterval() ) );
+		setClip( gamma.getClipInterval() );
+	}
+
+	synchronized void setClip( @Nullable final RealInterval clip )
+	{
+		this.clip = clip == null ? null : copy( clip );
+		regionChanged();
+	}
+
+	synchronized void setRegionOfInterest( @Nullable final RealInterval roi )
+	{
+		this.roi = roi == null ? null : copy( roi );
+		regionChanged();
+	}
+
+	/** whether any cell may be skipped */
+	synchronized boolean isRestricted()
+	{
+		return region != null;
+	}
+
+	private void regionChanged()
+	{
+		final RealInterval previous = region;
+		region = clip == null ? roi : roi == null ? clip : Intervals.intersect( clip, roi );
+		if ( !skipped || ( previous != null && region != null && contains( previous, region ) ) )
+			return; // cells skipped so far are still out
+		skipped = false;
+		imgLoader.getMetrics().count( "region.invalidations" );
+		imgLoader.invalidateCells();
+	}
+
+	@Override
+	public int getBytesPerElement()
+	{
+		return 2;
+	}
+
+	@Override
+	public VolatileShortArray loadArray( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min )
+	{
+		synchronized ( this )
+		{
+			if ( region != null && !intersects( region, imgLoader.mipmapTransforms[ level ], min, dimensions ) )
+			{
+				skipped = true;
+				imgLoader.getMetrics().count( "region.skipped.L" + level );
+				return new VolatileShortArray( DisplayRangeCuller.filled( dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ], 0 ), true );
+			}
+		}
+		return delegate.loadArray( timepoint, setup, level, dimensions, min );
+	}
+
+	/** whether the global bounding box of the cell overlaps {@code region} */
+	static boolean intersects( final RealInterval region, final AffineTransform3D sourceToGlobal, final long[] min, final int[] dimensions )
+	{
+		final double[] lo = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		final double[] hi = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		final double[] corner = new double[ 3 ];
+		final double[] global = new double[ 3 ];
+		for ( int c = 0; c < 8; c++ )
+		{
+			// voxels extend half a voxel around their centers
+			for ( int d = 0; d < 3; d++ )
+				corner[ d ] = ( c & ( 1 << d ) ) == 0 ? min[ d ] - 0.5 : min[ d ] + dimensions[ d ] - 0.5;
+			sourceToGlobal.apply( corner, global );
+			for ( int d = 0; d < 3; d++ )
+			{
+				lo[ d ] = Math.min( lo[ d ], global[ d ] );
+				hi[ d ] = Math.max( hi[ d ], global[ d ] );
+			}
+		}
+		for ( int d = 0; d < 3; d++ )
+			if ( hi[ d ] < region.realMin( d ) || lo[ d ] > region.realMax( d ) )
+				return false;
+		return true;
+	}
+
+	private static boolean contains( final RealInterval outer, final RealInterval inner )
+	{
+		for ( int d = 0; d < outer.numDimensions(); d++ )
+			if ( inner.realMin( d ) < outer.realMin( d ) || inner.realMax( d ) > outer.realMax( d ) )
+				return false;
+		return true;
+	}
+
+	private static RealInterval copy( final RealInterval interval )
+	{
+		return new FinalRealInterval( interval );
+	}
+}
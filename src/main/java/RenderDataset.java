@@ -0,0 +1,162 @@
+import bdv.cache.CacheControl;
+import bdv.cache.SharedQueue;
+import bdv.spimdata.WrapBasicImgLoader;
+import bdv.tools.brightness.ConverterSetup;
+import bdv.viewer.BasicViewerState;
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.SynchronizedViewerState;
+import bdv.viewer.ViewerState;
+import bvvpg.source.converters.ConverterSetupsPG;
+import bvvpg.source.converters.RealARGBColorGammaConverterSetup;
+import bvvpg.vistools.BvvGamma;
+import mpicbg.spim.data.generic.AbstractSpimData;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5URI;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A dataset opened for offscreen rendering: the wrapped sources in a
+ * {@link ViewerState}, their converter setups, and the caches backing them.
+ * Closing it evicts the caches and closes the reader, so that datasets can be
+ * rendered one after the other in the same JVM without accumulating memory.
+ *
+ * Load and render timings of the dataset are collected in {@link #metrics};
+ * with {@code -Dbvv.metrics.jmx=true} they are also published as an MBean
+ * while the dataset is open.
+ */
+public class RenderDataset implements AutoCloseable {
+
+    final N5Reader n5;
+    final ViewerState state;
+    final ConverterSetupsPG setups;
+    final CacheControl.CacheControls cache = new CacheControl.CacheControls();
+    final List<SourceToViewerSetupImgLoaderBvv> loaders = new ArrayList<>();
+    final RenderMetrics metrics = new RenderMetrics();
+    private final List<RealARGBColorGammaConverterSetup> converterSetups = new ArrayList<>();
+    private final String name;
+    int numTimepoints = 1;
+
+    private RenderDataset(String name, N5Reader n5) {
+        this.name = name;
+        this.n5 = n5;
+        this.state = new SynchronizedViewerState(new BasicViewerState());
+        this.setups = new ConverterSetupsPG(state);
+        state.setNumTimepoints(1);
+        if (Boolean.getBoolean("bvv.metrics.jmx"))
+            metrics.registerMBean(name);
+    }
+
+    /**
+     * Build the sources of {@code uri} and wrap them for BVV. The N5 sources
+     * use {@code sharedQueue}, the wrapped loaders the global
+     * {@link FetchScheduler}. Returns once the
+     * coarsest level of every source is warmed up, see
+     * {@link StartupPipeline#warmUpCoarsestLevel}. With
+     * {@code -Dbvv.autotune=true} the {@link AutoTuner} profile for the
+     * dataset is applied first. The dataset owns {@code n5}: if opening
+     * fails, the reader is closed as well.
+     */
+    public static RenderDataset open(N5URI uri, N5Reader n5, SharedQueue sharedQueue,
+                                     double displayMin, double displayMax, double gamma) throws IOException {
+
+        final RenderDataset dataset = new RenderDataset(uri.toString(), n5);
+        try {
+            final StartupPipeline pipeline = new StartupPipeline(null, dataset.metrics);
+            final List<SourceAndConverter<?>> socs = pipeline.discover(uri, n5, sharedQueue).join();
+            if (Boolean.getBoolean("bvv.autotune"))
+                AutoTuner.profileFor(uri, socs).apply();
+
+            // wrap and warm up all sources concurrently, then register them in order
+            for (StartupPipeline.WrappedSource wrapped : StartupPipeline.join(pipeline.wrapAll(uri, socs))) {
+
+                final SourceToViewerSetupImgLoaderBvv imgLoader = wrapped.imgLoader;
+                final AbstractSpimData<?> spimData = wrapped.spimData;
+                dataset.loaders.add(imgLoader);
+                dataset.cache.add(imgLoader.getCacheControl());
+
+                WrapBasicImgLoader.wrapImgLoaderIfNecessary(spimData);
+                final ArrayList<SourceAndConverter<?>> sources = new ArrayList<>();
+                final ArrayList<ConverterSetup> converterSetups = new ArrayList<>();
+                BvvGamma.initSetups(spimData, converterSetups, sources);
+
+                for (int i = 0; i < converterSetups.size(); i++) {
+                    final RealARGBColorGammaConverterSetup converterSetup = (RealARGBColorGammaConverterSetup) converterSetups.get(i);
+                    final SourceAndConverter<?> soc = sources.get(i);
+                    Main.prettify(converterSetup, displayMin, displayMax, gamma);
+                    imgLoader.setDisplayRangeCulling(converterSetup);
+                    imgLoader.setClipCulling(converterSetup);
+                    dataset.converterSetups.add(converterSetup);
+                    // Add ONLY the non-volatile to the ViewerState
+                    dataset.state.addSource(soc);
+                    dataset.state.setSourceActive(soc, true);
+
+                    // Register converter setups for BOTH identities → lookups always succeed
+                    dataset.setups.put(soc, converterSetup);
+                    if (soc.asVolatile() != null) {
+                        dataset.setups.put(soc.asVolatile(), converterSetup);
+                    }
+                }
+
+                WrapBasicImgLoader.removeWrapperIfPresent(spimData);
+                dataset.numTimepoints = Math.max(dataset.numTimepoints, imgLoader.numTimepoints());
+            }
+            dataset.state.setNumTimepoints(dataset.numTimepoints);
+            final String roi = System.getProperty("bvv.roi");
+            if (roi != null)
+                dataset.setRegionOfInterest(parseInterval(roi));
+            return dataset;
+        } catch (Throwable e) {
+            // also closes the reader and unregisters the metrics
+            dataset.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Render only {@code roi} (global coordinates): clip all sources to it and
+     * load only the cells that overlap it, see {@link RegionCuller}.
+     * {@code null} renders everything again. {@code -Dbvv.roi=minX,minY,minZ,maxX,maxY,maxZ}
+     * sets it when the dataset is opened.
+     */
+    public void setRegionOfInterest(RealInterval roi) {
+        for (SourceToViewerSetupImgLoaderBvv loader : loaders)
+            loader.setRegionOfInterest(roi);
+        for (RealARGBColorGammaConverterSetup setup : converterSetups)
+            setup.setClipInterval(roi);
+    }
+
+    static RealInterval parseInterval(String minMax) {
+        final String[] values = minMax.split(",");
+        if (values.length != 6)
+            throw new IllegalArgumentException("Expected minX,minY,minZ,maxX,maxY,maxZ: " + minMax);
+        final double[] min = new double[3];
+        final double[] max = new double[3];
+        for (int d = 0; d < 3; d++) {
+            min[d] = Double.parseDouble(values[d].trim());
+            max[d] = Double.parseDouble(values[d + 3].trim());
+        }
+        return new FinalRealInterval(min, max);
+    }
+
+    /** prefetches the timepoints of all sources of this dataset, see {@link TimepointPrefetcher} */
+    TimepointPrefetcher timepointPrefetcher() {
+        return new TimepointPrefetcher(loaders, numTimepoints, metrics);
+    }
+
+    /** Drop all cached blocks of this dataset and close its reader, if any. */
+    @Override
+    public void close() {
+        for (SourceToViewerSetupImgLoaderBvv loader : loaders)
+            loader.clearCache();
+        loaders.clear();
+        state.clearSources();
+        metrics.unregisterMBean(name);
+        if (n5 != null)
+            n5.close();
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One entry of a batch job list: which dataset to render, where to put the
+ * frames and how to display it.
+ *
+ * Job lists have one job per line with whitespace separated columns
+ * <pre>
+ * uri  outDir  [frames  [width  [height  [displayMin  [displayMax  [gamma  [degreesPerTimepoint]]]]]]]
+ * </pre>
+ * With {@code degreesPerTimepoint} the job is a time-series movie with one
+ * frame per timepoint (and {@code frames} is ignored), rotating by that angle
+ * from frame to frame; without it, a 360° rotation of timepoint 0 in
+ * {@code frames} frames. Empty lines and lines starting with '#' are ignored.
+ */
+public class RenderJob {
+
+    final String uri;
+    final File outDir;
+    final int frames;
+    final int width;
+    final int height;
+    final double displayMin;
+    final double displayMax;
+    final double gamma;
+    /** rotation per timepoint of a time-series movie, NaN for a rotation movie */
+    final double degreesPerTimepoint;
+
+    public RenderJob(String uri, File outDir, int frames, int width, int height,
+                     double displayMin, double displayMax, double gamma) {
+        this(uri, outDir, frames, width, height, displayMin, displayMax, gamma, Double.NaN);
+    }
+
+    public RenderJob(String uri, File outDir, int frames, int width, int height,
+                     double displayMin, double displayMax, double gamma, double degreesPerTimepoint) {
+        this.uri = uri;
+        this.outDir = outDir;
+        this.frames = frames;
+        this.width = width;
+        this.height = height;
+        this.displayMin = displayMin;
+        this.displayMax = displayMax;
+        this.gamma = gamma;
+        this.degreesPerTimepoint = degreesPerTimepoint;
+    }
+
+    public RenderJob(String uri, File outDir) {
+        this(uri, outDir, 20, 1920, 1080, 200, 500, 0.9);
+    }
+
+    boolean isTimeSeries() {
+        return !Double.isNaN(degreesPerTimepoint);
+    }
+
+    static RenderJob parse(String line) {
+        final String[] cols = line.trim().split("\\s+");
+        if (cols.length < 2)
+            throw new IllegalArgumentException("Expected at least <uri> <outDir>: " + line);
+        final RenderJob defaults = new RenderJob(cols[0], new File(cols[1]));
+        return new RenderJob(
+                defaults.uri,
+                defaults.outDir,
+                cols.length > 2 ? Integer.parseInt(cols[2]) : defaults.frames,
+                cols.length > 3 ? Integer.parseInt(cols[3]) : defaults.width,
+                cols.length > 4 ? Integer.parseInt(cols[4]) : defaults.height,
+                cols.length > 5 ? Double.parseDouble(cols[5]) : defaults.displayMin,
+                cols.length > 6 ? Double.parseDouble(cols[6]) : defaults.displayMax,
+                cols.length > 7 ? Double.parseDouble(cols[7]) : defaults.gamma,
+                cols.length > 8 ? Double.parseDouble(cols[8]) : defaults.degreesPerTimepoint);
+    }
+
+    public static List<RenderJob> readJobList(Path file) throws IOException {
+        final List<RenderJob> jobs = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                jobs.add(parse(line));
+            }
+        }
+        return jobs;
+    }
+
+    @Override
+    public String toString() {
+        return uri + " -> " + outDir;
+    }
+}
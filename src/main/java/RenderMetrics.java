@@ -0,0 +1,228 @@
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for one render run (or for the whole
+ * process, see {@link #global()}).
+ *
+ * Recording is a couple of {@link LongAdder} increments and a map lookup, so
+ * it stays on in production. Timers are recorded in nanoseconds into
+ * power-of-two buckets; quantiles are therefore accurate to a factor of two,
+ * which is enough to tell I/O from conversion from GL from encoding.
+ *
+ * Names used by the loader and the renderer:
+ * <ul>
+ * <li>{@code frame.prepare}, {@code frame.draw}, {@code frame.blit},
+ * {@code frame.readback}, {@code frame.encode}, {@code frame.passes}</li>
+ * <li>{@code load.fetch.L<level>}, {@code load.convert.L<level>},
+ * {@code load.bytes.L<level>}, {@code load.blocks.L<level>}</li>
+ * <li>{@code cache.miss} (cells the cell cache had to load), the hits of
+ * the tiers behind it: {@code load.dedup.shared}, {@code load.dedup.inflight},
+ * {@code compressed.hit}, {@code load.shm.hit}, and the sampled
+ * {@code load.queueDepth}</li>
+ * </ul>
+ * Cell cache hits are served by bdv without calling the loader and are not
+ * counted. Draw and blit times include GPU time only with
+ * {@code -Dbvv.metrics.gpuTiming=true}, which waits for the GPU after every
+ * pass; otherwise they measure command submission.
+ */
+public class RenderMetrics implements RenderMetricsMXBean {
+
+    private static final RenderMetrics GLOBAL = new RenderMetrics();
+
+    /** process-wide metrics, used by loaders that were not given their own */
+    public static RenderMetrics global() {
+        return GLOBAL;
+    }
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> timers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> samples = new ConcurrentHashMap<>();
+
+    public void count(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    public void count(String name) {
+        count(name, 1);
+    }
+
+    /** record a duration that started at {@code startNanos} ({@link System#nanoTime()}) */
+    public void time(String name, long startNanos) {
+        record(name, System.nanoTime() - startNanos);
+    }
+
+    public void record(String name, long nanos) {
+        timers.computeIfAbsent(name, k -> new Histogram()).record(nanos);
+    }
+
+    /** record a sampled value, e.g. a queue depth, into a histogram */
+    public void sample(String name, long value) {
+        samples.computeIfAbsent(name, k -> new Histogram()).record(value);
+    }
+
+    /** the histogram of timer {@code name}, or {@code null} if nothing was recorded */
+    Histogram timer(String name) {
+        return timers.get(name);
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        final Map<String, Long> out = new TreeMap<>();
+        counters.forEach((k, v) -> out.put(k, v.sum()));
+        return out;
+    }
+
+    @Override
+    public Map<String, Double> getMeanMillis() {
+        final Map<String, Double> out = new TreeMap<>();
+        timers.forEach((k, v) -> out.put(k, v.mean() * 1e-6));
+        return out;
+    }
+
+    @Override
+    public Map<String, Double> getP99Millis() {
+        final Map<String, Double> out = new TreeMap<>();
+        timers.forEach((k, v) -> out.put(k, v.quantile(0.99) * 1e-6));
+        return out;
+    }
+
+    @Override
+    public void reset() {
+        counters.clear();
+        timers.clear();
+        samples.clear();
+    }
+
+    /** register as an MBean under {@code bvv:type=RenderMetrics,name=<name>} */
+    public void registerMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("bvv:type=RenderMetrics,name=" + ObjectName.quote(name)));
+        } catch (Exception e) {
+            System.err.println("Could not register metrics MBean " + name + ": " + e);
+        }
+    }
+
+    public void unregisterMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    new ObjectName("bvv:type=RenderMetrics,name=" + ObjectName.quote(name)));
+        } catch (Exception e) {
+            // not registered
+        }
+    }
+
+    public void writeJson(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.println("  \"counters\": {");
+            final Map<String, Long> c = getCounters();
+            int i = 0;
+            for (Map.Entry<String, Long> e : c.entrySet())
+                out.println(String.format("    \"%s\": %d%s", e.getKey(), e.getValue(), ++i < c.size() ? "," : ""));
+            out.println("  },");
+            out.println("  \"timers\": {");
+            final Map<String, Histogram> t = new TreeMap<>(timers);
+            i = 0;
+            for (Map.Entry<String, Histogram> e : t.entrySet()) {
+                final Histogram h = e.getValue();
+                out.println(String.format(Locale.ROOT,
+                        "    \"%s\": {\"count\": %d, \"totalMs\": %.3f, \"meanMs\": %.3f, \"p50Ms\": %.3f, \"p99Ms\": %.3f, \"maxMs\": %.3f}%s",
+                        e.getKey(), h.count(), h.sum() * 1e-6, h.mean() * 1e-6,
+                        h.quantile(0.5) * 1e-6, h.quantile(0.99) * 1e-6, h.max() * 1e-6,
+                        ++i < t.size() ? "," : ""));
+            }
+            out.println("  },");
+            out.println("  \"samples\": {");
+            final Map<String, Histogram> v = new TreeMap<>(samples);
+            i = 0;
+            for (Map.Entry<String, Histogram> e : v.entrySet()) {
+                final Histogram h = e.getValue();
+                out.println(String.format(Locale.ROOT,
+                        "    \"%s\": {\"count\": %d, \"mean\": %.3f, \"p50\": %.0f, \"p99\": %.0f, \"max\": %d}%s",
+                        e.getKey(), h.count(), h.mean(), h.quantile(0.5), h.quantile(0.99), h.max(),
+                        ++i < v.size() ? "," : ""));
+            }
+            out.println("  }");
+            out.println("}");
+        }
+    }
+
+    public void writeCsv(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            out.println("name,kind,count,total_ms,mean_ms,p50_ms,p99_ms,max_ms");
+            getCounters().forEach((k, v) -> out.println(k + ",counter," + v + ",,,,,"));
+            new TreeMap<>(timers).forEach((k, h) -> out.println(String.format(Locale.ROOT,
+                    "%s,timer,%d,%.3f,%.3f,%.3f,%.3f,%.3f", k, h.count(), h.sum() * 1e-6, h.mean() * 1e-6,
+                    h.quantile(0.5) * 1e-6, h.quantile(0.99) * 1e-6, h.max() * 1e-6)));
+            new TreeMap<>(samples).forEach((k, h) -> out.println(String.format(Locale.ROOT,
+                    "%s,sample,%d,,%.3f,%.0f,%.0f,%d", k, h.count(), h.mean(),
+                    h.quantile(0.5), h.quantile(0.99), h.max())));
+        }
+    }
+
+    /**
+     * Lock-free histogram with one bucket per power of two. Bucket {@code i}
+     * holds values in {@code [2^(i-1), 2^i)}.
+     */
+    static class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) ;
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        double mean() {
+            final long n = count();
+            return n == 0 ? 0 : (double) sum() / n;
+        }
+
+        /** upper bound of the bucket containing quantile {@code q} */
+        double quantile(double q) {
+            final long n = count();
+            if (n == 0) return 0;
+            final long rank = (long) Math.ceil(q * n);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank)
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, max());
+            }
+            return max();
+        }
+    }
+}
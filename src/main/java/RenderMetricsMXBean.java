@@ -0,0 +1,12 @@
+import java.util.Map;
+
+/** the JMX view of {@link RenderMetrics} */
+public interface RenderMetricsMXBean {
+    Map<String, Long> getCounters();
+
+    Map<String, Double> getMeanMillis();
+
+    Map<String, Double> getP99Millis();
+
+    void reset();
+}
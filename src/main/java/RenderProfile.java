@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Render and cache parameters for a host and a class of datasets, as picked
+ * by {@link AutoTuner}, together with the measurements they were picked from.
+ *
+ * Profiles are stored as properties files in
+ * {@code ~/.url-viewer-bdv-bvv/profiles} ({@code bvv.profile.dir}), named
+ * after host and dataset class. Without a profile, {@link #active()} has the
+ * values {@link BvvRotateMovie} has always used.
+ */
+public class RenderProfile {
+
+    /** edge length of the loader cells of sources without chunks of their own */
+    int cellSize = 32;
+    /** edge length of the blocks of the GPU texture cache */
+    int gpuBlockSize = 64;
+    /** size of the GPU texture cache, 0 to keep that of the viewer ({@link Main}) and movie ({@link BvvRotateMovie}) */
+    int gpuCacheMB = 0;
+    /** budget of the {@link CompressedBlockCache}, 0 to keep it as configured */
+    int compressedCacheMB = 0;
+    /** time budget of one render pass */
+    int maxRenderMillis = 20;
+    /** block requests fetched at once, 0 for the {@link FetchScheduler} default */
+    int maxInFlight = 0;
+    /** timepoints loaded ahead in time-series movies */
+    int prefetchTimepoints = 3;
+
+    // measurements, 0 if not measured
+    double fetchMillis;
+    double convertMBPerSecond;
+    long heapMB;
+    double passMillis;
+
+    /** where the profile was loaded from or is saved to */
+    Path file;
+
+    private static volatile RenderProfile active = new RenderProfile();
+
+    /** the profile last {@link #apply applied}, or the defaults */
+    public static RenderProfile active() {
+        return active;
+    }
+
+    /**
+     * Make this the active profile: loaders created afterwards use its cell
+     * size, the fetch scheduler its number of requests in flight, the
+     * compressed cache its budget, and the viewers and movies its GPU block
+     * size, GPU cache and render time budget. Budgets that are 0 are left
+     * alone.
+     */
+    public void apply() {
+        SourceToViewerSetupImgLoaderBvv.setDefaultCellSize(cellSize);
+        if (maxInFlight > 0)
+            FetchScheduler.get().setMaxInFlight(maxInFlight);
+        if (compressedCacheMB > 0)
+            CompressedBlockCache.setDefaultSizeMB(compressedCacheMB);
+        Main.cacheBlockSize = gpuBlockSize;
+        if (gpuCacheMB > 0)
+            Main.maxCacheSizeInMB = gpuCacheMB;
+        active = this;
+    }
+
+    public static Path file(String host, String datasetClass) {
+        final String dir = System.getProperty("bvv.profile.dir",
+                Paths.get(System.getProperty("user.home"), ".url-viewer-bdv-bvv", "profiles").toString());
+        return Paths.get(dir, (host + "-" + datasetClass).replaceAll("[^A-Za-z0-9._-]", "_") + ".properties");
+    }
+
+    public static RenderProfile load(Path file) throws IOException {
+        final Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        final RenderProfile profile = new RenderProfile();
+        profile.cellSize = Integer.parseInt(properties.getProperty("cellSize", "" + profile.cellSize));
+        profile.gpuBlockSize = Integer.parseInt(properties.getProperty("gpuBlockSize", "" + profile.gpuBlockSize));
+        // profiles written before the budgets were measured hold the movie's default GPU cache, not a measurement
+        if (properties.containsKey("compressedCacheMB"))
+            profile.gpuCacheMB = Integer.parseInt(properties.getProperty("gpuCacheMB", "" + profile.gpuCacheMB));
+        profile.compressedCacheMB = Integer.parseInt(properties.getProperty("compressedCacheMB", "" + profile.compressedCacheMB));
+        profile.maxRenderMillis = Integer.parseInt(properties.getProperty("maxRenderMillis", "" + profile.maxRenderMillis));
+        profile.maxInFlight = Integer.parseInt(properties.getProperty("maxInFlight", "" + profile.maxInFlight));
+        profile.prefetchTimepoints = Integer.parseInt(properties.getProperty("prefetchTimepoints", "" + profile.prefetchTimepoints));
+        profile.fetchMillis = Double.parseDouble(properties.getProperty("measured.fetchMillis", "0"));
+        profile.convertMBPerSecond = Double.parseDouble(properties.getProperty("measured.convertMBPerSecond", "0"));
+        profile.heapMB = Long.parseLong(properties.getProperty("measured.heapMB", "0"));
+        profile.passMillis = Double.parseDouble(properties.getProperty("measured.passMillis", "0"));
+        profile.file = file;
+        return profile;
+    }
+
+    public void save() throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("cellSize", "" + cellSize);
+        properties.setProperty("gpuBlockSize", "" + gpuBlockSize);
+        properties.setProperty("gpuCacheMB", "" + gpuCacheMB);
+        properties.setProperty("compressedCacheMB", "" + compressedCacheMB);
+        properties.setProperty("maxRenderMillis", "" + maxRenderMillis);
+        properties.setProperty("maxInFlight", "" + maxInFlight);
+        properties.setProperty("prefetchTimepoints", "" + prefetchTimepoints);
+        properties.setProperty("measured.fetchMillis", String.format(Locale.ROOT, "%.3f", fetchMillis));
+        properties.setProperty("measured.convertMBPerSecond", String.format(Locale.ROOT, "%.1f", convertMBPerSecond));
+        properties.setProperty("measured.heapMB", "" + heapMB);
+        properties.setProperty("measured.passMillis", String.format(Locale.ROOT, "%.3f", passMillis));
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        try (OutputStream out = Files.newOutputStream(file)) {
+            properties.store(out, "render profile, see AutoTuner");
+        }
+    }
+
+    /** the parameters, without the measurements, e.g. to tell whether a recorded render still applies */
+    public String settings() {
+        return String.format(Locale.ROOT, "cells %d, GPU blocks %d, GPU cache %d MB, compressed cache %d MB, pass budget %d ms, in flight %d, prefetch %d",
+                cellSize, gpuBlockSize, gpuCacheMB, compressedCacheMB, maxRenderMillis, maxInFlight, prefetchTimepoints);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cells %d³, GPU blocks %d³, GPU cache %d MB, compressed cache %d MB, pass budget %d ms, in flight %d,"
+                        + " prefetch %d timepoints (fetch %.1f ms, convert %.0f MB/s, heap %d MB, pass %.1f ms)",
+                cellSize, gpuBlockSize, gpuCacheMB, compressedCacheMB, maxRenderMillis, maxInFlight, prefetchTimepoints,
+                fetchMillis, convertMBPerSecond, heapMB, passMillis);
+    }
+}
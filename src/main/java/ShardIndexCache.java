@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of decoded shard indices, shared by all sharded arrays.
+ *
+ * Without it every inner chunk read costs an extra read of its shard's index.
+ * Concurrent requests for the index of the same shard wait for a single read.
+ * The bound is the total size of the cached indices,
+ * {@code bvv.zarr.shardIndexCacheMB} (default 64).
+ */
+public class ShardIndexCache
+{
+	/** loads the index of one shard, {@code null} if the shard does not exist */
+	public interface IndexLoader
+	{
+		long[] load() throws IOException;
+	}
+
+	private static final ShardIndexCache GLOBAL = new ShardIndexCache(
+			Long.getLong( "bvv.zarr.shardIndexCacheMB", 64 ) * 1024 * 1024 );
+
+	public static ShardIndexCache global()
+	{
+		return GLOBAL;
+	}
+
+	private static final long[] MISSING = new long[ 0 ];
+
+	private static class Entry
+	{
+		final CompletableFuture< long[] > index = new CompletableFuture<>();
+
+		final long bytes;
+
+		Entry( final long bytes )
+		{
+			this.bytes = bytes;
+		}
+	}
+
+	private final long maxBytes;
+
+	private long bytes;
+
+	private final LinkedHashMap< String, Entry > entries = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	public ShardIndexCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param key
+	 *            identifies the shard, e.g. its URI
+	 * @param indexBytes
+	 *            size of the decoded index, for the bound
+	 * @return the index, or {@code null} if the shard does not exist
+	 */
+	public long[] get( final String key, final long indexBytes, final IndexLoader loader ) throws IOException
+	{
+		final Entry entry;
+		final boolean load;
+		synchronized ( this )
+		{
+			final Entry cached = entries.get( key );
+			load = cached == null;
+			if ( load )
+			{
+				entry = new Entry( indexBytes );
+				entries.put( key, entry );
+				bytes += indexBytes;
+				evict();
+			}
+			else
+				entry = cached;
+		}
+
+		if ( load )
+		{
+			misses.incrementAndGet();
+			try
+			{
+				final long[] index = loader.load();
+				entry.index.complete( index == null ? MISSING : index );
+			}
+			catch ( final IOException | RuntimeException e )
+			{
+				// do not cache failures, the next request tries again
+				remove( key, entry );
+				entry.index.completeExceptionally( e );
+				throw e;
+			}
+		}
+		else
+			hits.incrementAndGet();
+
+		try
+		{
+			final long[] index = entry.index.get();
+			return index == MISSING ? null : index;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof IOException )
+				throw ( IOException ) e.getCause();
+			throw new IOException( e.getCause() );
+		}
+	}
+
+	/** forget the index of a shard, e.g. because the shard was rewritten */
+	public synchronized void invalidate( final String key )
+	{
+		final Entry entry = entries.remove( key );
+		if ( entry != null )
+			bytes -= entry.bytes;
+	}
+
+	/** forget the indices of all shards whose key starts with {@code prefix}, e.g. of one store */
+	public synchronized void invalidatePrefix( final String prefix )
+	{
+		entries.entrySet().removeIf( entry -> {
+			if ( !entry.getKey().startsWith( prefix ) )
+				return false;
+			bytes -= entry.getValue().bytes;
+			return true;
+		} );
+	}
+
+	public synchronized void clear()
+	{
+		entries.clear();
+		bytes = 0;
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	private synchronized void remove( final String key, final Entry entry )
+	{
+		if ( entries.remove( key, entry ) )
+			bytes -= entry.bytes;
+	}
+
+	private void evict()
+	{
+		final Iterator< Map.Entry< String, Entry > > it = entries.entrySet().iterator();
+		while ( bytes > maxBytes && it.hasNext() )
+		{
+			final Entry eldest = it.next().getValue();
+			// keep at least the entry just added
+			if ( entries.size() == 1 )
+				break;
+			it.remove();
+			bytes -= eldest.bytes;
+		}
+	}
+}
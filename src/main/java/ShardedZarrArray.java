@@ -0,0 +1,456 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads inner chunks of a Zarr v3 array with the {@code sharding_indexed}
+ * codec.
+ *
+ * Shard indices go through the {@link ShardIndexCache}, so an inner chunk
+ * costs one ranged read once its shard has been seen. The chunk reads go
+ * through a {@link CoalescingRangeReader}: inner chunks of the same shard
+ * that are requested at about the same time, as the cells of one render pass
+ * are, are fetched with a single ranged read.
+ *
+ * Dimensions are in imglib2 order (x first), i.e. reversed with respect to
+ * the {@code zarr.json}. Inner codecs {@code bytes}, {@code gzip},
+ * {@code crc32c} and, with zstd-jni on the classpath, {@code zstd} are
+ * supported.
+ */
+public class ShardedZarrArray
+{
+	private static final long EMPTY = -1L; // 2^64 - 1
+
+	final String path;
+
+	final long[] shape;
+
+	final int[] shardShape;
+
+	final int[] chunkShape;
+
+	final String dataType;
+
+	final double fillValue;
+
+	private final ByteRangeReader reader;
+
+	private final CoalescingRangeReader chunkReader;
+
+	private final String indexKeyPrefix;
+
+	private final int[] chunksPerShard;
+
+	private final int numChunksPerShard;
+
+	private final ByteOrder order;
+
+	/** bytes-to-bytes codecs of the inner chunks, in encoding order */
+	private final List< String > chunkCodecs = new ArrayList<>();
+
+	private final ByteOrder indexOrder;
+
+	private final boolean indexCrc;
+
+	private final boolean indexAtEnd;
+
+	private final boolean defaultKeyEncoding;
+
+	private final String separator;
+
+	private ShardedZarrArray( final ByteRangeReader reader, final CoalescingRangeReader chunkReader, final String id,
+			final String path, final JsonObject meta )
+	{
+		this.reader = reader;
+		this.chunkReader = chunkReader;
+		this.path = path;
+		this.indexKeyPrefix = id + "/";
+
+		shape = reversedLongs( meta.getAsJsonArray( "shape" ) );
+		final int n = shape.length;
+		shardShape = reversedInts( meta.getAsJsonObject( "chunk_grid" ).getAsJsonObject( "configuration" ).getAsJsonArray( "chunk_shape" ) );
+		dataType = meta.get( "data_type" ).getAsString();
+		fillValue = parseFillValue( meta.get( "fill_value" ) );
+
+		final JsonObject keyEncoding = meta.has( "chunk_key_encoding" ) ? meta.getAsJsonObject( "chunk_key_encoding" ) : null;
+		defaultKeyEncoding = keyEncoding == null || keyEncoding.get( "name" ).getAsString().equals( "default" );
+		final JsonObject keyConfig = keyEncoding != null && keyEncoding.has( "configuration" ) ? keyEncoding.getAsJsonObject( "configuration" ) : null;
+		separator = keyConfig != null && keyConfig.has( "separator" )
+				? keyConfig.get( "separator" ).getAsString()
+				: defaultKeyEncoding ? "/" : ".";
+
+		final JsonObject sharding = shardingConfiguration( meta );
+		chunkShape = reversedInts( sharding.getAsJsonArray( "chunk_shape" ) );
+		chunksPerShard = new int[ n ];
+		int numChunks = 1;
+		for ( int d = 0; d < n; d++ )
+		{
+			chunksPerShard[ d ] = shardShape[ d ] / chunkShape[ d ];
+			numChunks *= chunksPerShard[ d ];
+		}
+		numChunksPerShard = numChunks;
+
+		ByteOrder chunkOrder = ByteOrder.LITTLE_ENDIAN;
+		for ( final JsonElement e : sharding.getAsJsonArray( "codecs" ) )
+		{
+			final JsonObject codec = e.getAsJsonObject();
+			final String name = codec.get( "name" ).getAsString();
+			switch ( name )
+			{
+			case "bytes":
+				chunkOrder = endian( codec );
+				break;
+			case "gzip":
+			case "zstd":
+			case "crc32c":
+				chunkCodecs.add( name );
+				break;
+			default:
+				throw new UnsupportedOperationException( "Unsupported inner codec " + name + " in " + path );
+			}
+		}
+		order = chunkOrder;
+
+		ByteOrder indexByteOrder = ByteOrder.LITTLE_ENDIAN;
+		boolean crc = false;
+		if ( sharding.has( "index_codecs" ) )
+		{
+			for ( final JsonElement e : sharding.getAsJsonArray( "index_codecs" ) )
+			{
+				final JsonObject codec = e.getAsJsonObject();
+				final String name = codec.get( "name" ).getAsString();
+				if ( name.equals( "bytes" ) )
+					indexByteOrder = endian( codec );
+				else if ( name.equals( "crc32c" ) )
+					crc = true;
+				else
+					throw new UnsupportedOperationException( "Unsupported index codec " + name + " in " + path );
+			}
+		}
+		indexOrder = indexByteOrder;
+		indexCrc = crc;
+		indexAtEnd = !sharding.has( "index_location" ) || sharding.get( "index_location" ).getAsString().equals( "end" );
+	}
+
+	/**
+	 * @param id
+	 *            identifies the store in the {@link ShardIndexCache}, e.g. its URI
+	 * @param path
+	 *            of the array below the root of {@code reader}, "" for the root
+	 */
+	public static ShardedZarrArray open( final ByteRangeReader reader, final CoalescingRangeReader chunkReader,
+			final String id, final String path ) throws IOException
+	{
+		final JsonObject meta = readMetadata( reader, path );
+		if ( meta == null || shardingConfiguration( meta ) == null )
+			throw new IOException( "Not a sharded Zarr v3 array: " + id + "/" + path );
+		return new ShardedZarrArray( reader, chunkReader, id + ( path.isEmpty() ? "" : "/" + path ), path, meta );
+	}
+
+	/** {@code zarr.json} of the node at {@code path}, or {@code null} if there is none */
+	static JsonObject readMetadata( final ByteRangeReader reader, final String path ) throws IOException
+	{
+		try
+		{
+			final byte[] json = reader.readAll( key( path, "zarr.json" ) );
+			return JsonParser.parseString( new String( json, StandardCharsets.UTF_8 ) ).getAsJsonObject();
+		}
+		catch ( final FileNotFoundException e )
+		{
+			return null;
+		}
+	}
+
+	/** the configuration of the {@code sharding_indexed} codec, {@code null} if the array is not sharded */
+	static JsonObject shardingConfiguration( final JsonObject meta )
+	{
+		if ( !meta.has( "codecs" ) )
+			return null;
+		final JsonArray codecs = meta.getAsJsonArray( "codecs" );
+		if ( codecs.size() != 1 )
+			return null;
+		final JsonObject codec = codecs.get( 0 ).getAsJsonObject();
+		return codec.get( "name" ).getAsString().equals( "sharding_indexed" ) ? codec.getAsJsonObject( "configuration" ) : null;
+	}
+
+	public int numDimensions()
+	{
+		return shape.length;
+	}
+
+	/**
+	 * Copy the inner chunk containing {@code min} into {@code dst}.
+	 *
+	 * @param min
+	 *            position of the block, a multiple of the inner chunk shape in
+	 *            the first three dimensions; any position in the others
+	 * @param size
+	 *            size of the block in the first three dimensions, at most the
+	 *            inner chunk shape
+	 * @param dst
+	 *            primitive array of the data type, in flat x-first order
+	 * @param level
+	 *            mip level, only used to order reads
+	 * @return {@code false} if the chunk is empty, {@code dst} is untouched then
+	 */
+	public boolean readBlock( final long[] min, final int[] size, final Object dst, final int level ) throws IOException
+	{
+		final int n = shape.length;
+		final long[] chunk = new long[ n ];
+		final long[] shard = new long[ n ];
+		int inner = 0;
+		int stride = 1;
+		long offsetInChunk = 0;
+		long chunkStride = 1;
+		for ( int d = 0; d < n; d++ )
+		{
+			chunk[ d ] = min[ d ] / chunkShape[ d ];
+			shard[ d ] = chunk[ d ] / chunksPerShard[ d ];
+			inner += ( int ) ( chunk[ d ] % chunksPerShard[ d ] ) * stride;
+			stride *= chunksPerShard[ d ];
+			offsetInChunk += ( min[ d ] % chunkShape[ d ] ) * chunkStride;
+			chunkStride *= chunkShape[ d ];
+		}
+
+		final String shardKey = shardKey( shard );
+		final long[] index = ShardIndexCache.global().get( indexKeyPrefix + shardKey, 16L * numChunksPerShard, () -> readIndex( shardKey ) );
+		if ( index == null )
+			return false;
+		final long offset = index[ 2 * inner ];
+		final long nbytes = index[ 2 * inner + 1 ];
+		if ( offset == EMPTY && nbytes == EMPTY )
+			return false;
+
+		final byte[] encoded = chunkReader.read( shardKey, offset, ( int ) nbytes, level, MortonOrder.encode( chunk ) );
+		final ByteBuffer decoded = ByteBuffer.wrap( decode( encoded ) ).order( order );
+		copyRows( decoded, ( int ) offsetInChunk, size, dst );
+		return true;
+	}
+
+	/** fill {@code dst} with the fill value of the array, for empty chunks */
+	public void fill( final Object dst )
+	{
+		if ( fillValue == 0 )
+			return;
+		if ( dst instanceof byte[] )
+			Arrays.fill( ( byte[] ) dst, ( byte ) fillValue );
+		else if ( dst instanceof short[] )
+			Arrays.fill( ( short[] ) dst, ( short ) fillValue );
+		else if ( dst instanceof int[] )
+			Arrays.fill( ( int[] ) dst, ( int ) fillValue );
+		else if ( dst instanceof long[] )
+			Arrays.fill( ( long[] ) dst, ( long ) fillValue );
+		else if ( dst instanceof float[] )
+			Arrays.fill( ( float[] ) dst, ( float ) fillValue );
+		else if ( dst instanceof double[] )
+			Arrays.fill( ( double[] ) dst, fillValue );
+	}
+
+	/** copy {@code size} (x,y,z) rows of a decoded chunk into {@code dst} */
+	private void copyRows( final ByteBuffer chunk, final int start, final int[] size, final Object dst )
+	{
+		// positions are set through Buffer, the covariant overrides are Java 9+
+		final Buffer src;
+		if ( dst instanceof byte[] )
+			src = chunk.duplicate();
+		else if ( dst instanceof short[] )
+			src = chunk.asShortBuffer();
+		else if ( dst instanceof int[] )
+			src = chunk.asIntBuffer();
+		else if ( dst instanceof long[] )
+			src = chunk.asLongBuffer();
+		else if ( dst instanceof float[] )
+			src = chunk.asFloatBuffer();
+		else if ( dst instanceof double[] )
+			src = chunk.asDoubleBuffer();
+		else
+			throw new IllegalArgumentException( "Unsupported array " + dst.getClass() );
+
+		final int sx = chunkShape[ 0 ];
+		final int sxy = sx * chunkShape[ 1 ];
+		for ( int z = 0; z < size[ 2 ]; z++ )
+		{
+			for ( int y = 0; y < size[ 1 ]; y++ )
+			{
+				src.position( start + z * sxy + y * sx );
+				final int to = ( z * size[ 1 ] + y ) * size[ 0 ];
+				if ( src instanceof ByteBuffer )
+					( ( ByteBuffer ) src ).get( ( byte[] ) dst, to, size[ 0 ] );
+				else if ( src instanceof ShortBuffer )
+					( ( ShortBuffer ) src ).get( ( short[] ) dst, to, size[ 0 ] );
+				else if ( src instanceof IntBuffer )
+					( ( IntBuffer ) src ).get( ( int[] ) dst, to, size[ 0 ] );
+				else if ( src instanceof LongBuffer )
+					( ( LongBuffer ) src ).get( ( long[] ) dst, to, size[ 0 ] );
+				else if ( src instanceof FloatBuffer )
+					( ( FloatBuffer ) src ).get( ( float[] ) dst, to, size[ 0 ] );
+				else
+					( ( DoubleBuffer ) src ).get( ( double[] ) dst, to, size[ 0 ] );
+			}
+		}
+	}
+
+	private long[] readIndex( final String shardKey ) throws IOException
+	{
+		final int indexBytes = 16 * numChunksPerShard + ( indexCrc ? 4 : 0 );
+		final byte[] bytes;
+		try
+		{
+			bytes = indexAtEnd ? reader.readSuffix( shardKey, indexBytes ) : reader.read( shardKey, 0, indexBytes );
+		}
+		catch ( final FileNotFoundException e )
+		{
+			return null;
+		}
+		if ( bytes.length != indexBytes )
+			throw new IOException( "Truncated shard index in " + shardKey );
+		if ( indexCrc )
+		{
+			final int expected = ByteBuffer.wrap( bytes, indexBytes - 4, 4 ).order( ByteOrder.LITTLE_ENDIAN ).getInt();
+			if ( Crc32c.compute( bytes, 0, indexBytes - 4 ) != expected )
+				throw new IOException( "Shard index checksum mismatch in " + shardKey );
+		}
+		final long[] index = new long[ 2 * numChunksPerShard ];
+		ByteBuffer.wrap( bytes, 0, 16 * numChunksPerShard ).order( indexOrder ).asLongBuffer().get( index );
+		return index;
+	}
+
+	private byte[] decode( byte[] bytes ) throws IOException
+	{
+		for ( int i = chunkCodecs.size() - 1; i >= 0; i-- )
+		{
+			switch ( chunkCodecs.get( i ) )
+			{
+			case "gzip":
+				try ( InputStream in = new GZIPInputStream( new ByteArrayInputStream( bytes ) ) )
+				{
+					bytes = readAll( in );
+				}
+				break;
+			case "zstd":
+				try ( InputStream in = zstdInputStream( new ByteArrayInputStream( bytes ) ) )
+				{
+					bytes = readAll( in );
+				}
+				break;
+			case "crc32c":
+				bytes = Arrays.copyOf( bytes, bytes.length - 4 );
+				break;
+			}
+		}
+		return bytes;
+	}
+
+	/** zstd-jni is not a dependency of ours, use it if someone else brought it */
+	private static InputStream zstdInputStream( final InputStream in ) throws IOException
+	{
+		try
+		{
+			return ( InputStream ) Class.forName( "com.github.luben.zstd.ZstdInputStream" )
+					.getConstructor( InputStream.class )
+					.newInstance( in );
+		}
+		catch ( final ReflectiveOperationException e )
+		{
+			throw new IOException( "zstd compressed chunks need zstd-jni on the classpath", e );
+		}
+	}
+
+	private String shardKey( final long[] shard )
+	{
+		final StringBuilder key = new StringBuilder();
+		if ( defaultKeyEncoding )
+			key.append( 'c' ).append( separator );
+		for ( int d = shard.length - 1; d >= 0; d-- )
+		{
+			key.append( shard[ d ] );
+			if ( d > 0 )
+				key.append( separator );
+		}
+		return key( path, key.toString() );
+	}
+
+	private static String key( final String path, final String name )
+	{
+		return path.isEmpty() ? name : path + "/" + name;
+	}
+
+	private static ByteOrder endian( final JsonObject codec )
+	{
+		final JsonObject config = codec.has( "configuration" ) ? codec.getAsJsonObject( "configuration" ) : null;
+		return config != null && config.has( "endian" ) && config.get( "endian" ).getAsString().equals( "big" )
+				? ByteOrder.BIG_ENDIAN
+				: ByteOrder.LITTLE_ENDIAN;
+	}
+
+	private static double parseFillValue( final JsonElement value )
+	{
+		if ( value == null || value.isJsonNull() )
+			return 0;
+		if ( value.getAsJsonPrimitive().isBoolean() )
+			return value.getAsBoolean() ? 1 : 0;
+		if ( value.getAsJsonPrimitive().isString() )
+		{
+			switch ( value.getAsString() )
+			{
+			case "NaN":
+				return Double.NaN;
+			case "Infinity":
+				return Double.POSITIVE_INFINITY;
+			case "-Infinity":
+				return Double.NEGATIVE_INFINITY;
+			default:
+				return 0;
+			}
+		}
+		return value.getAsDouble();
+	}
+
+	private static long[] reversedLongs( final JsonArray array )
+	{
+		final int n = array.size();
+		final long[] values = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+			values[ d ] = array.get( n - 1 - d ).getAsLong();
+		return values;
+	}
+
+	private static int[] reversedInts( final JsonArray array )
+	{
+		final int n = array.size();
+		final int[] values = new int[ n ];
+		for ( int d = 0; d < n; d++ )
+			values[ d ] = array.get( n - 1 - d ).getAsInt();
+		return values;
+	}
+
+	private static byte[] readAll( final InputStream in ) throws IOException
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[ 64 * 1024 ];
+		int n;
+		while ( ( n = in.read( buffer ) ) >= 0 )
+			out.write( buffer, 0, n );
+		return out.toByteArray();
+	}
+}
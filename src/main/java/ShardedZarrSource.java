@@ -0,0 +1,414 @@
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.converter.RealARGBConverter;
+import net.imglib2.interpolation.randomaccess.ClampingNLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.N5URI;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A channel of a Zarr v3 array, or of an OME-Zarr multiscale of such arrays,
+ * whose arrays use the {@code sharding_indexed} codec.
+ *
+ * The images of each level are cached cell images with one cell per inner
+ * chunk, read through {@link ShardedZarrArray}. As a {@link ChunkedSource},
+ * the wrapped BVV loader uses the same cells.
+ *
+ * The last three array dimensions are z, y, x. Leading dimensions are taken
+ * as time and channel from the axis names ({@code t}, {@code c}), if any.
+ */
+public class ShardedZarrSource< T extends RealType< T > & NativeType< T > > implements Source< T >, ChunkedSource
+{
+	private final String name;
+
+	private final ShardedZarrArray[] levels;
+
+	private final AffineTransform3D[] transforms;
+
+	private final T type;
+
+	/** imglib2 dimension of the time / channel axis, -1 if there is none */
+	private final int timeDim;
+
+	private final int channelDim;
+
+	private final int channel;
+
+	private final int numTimepoints;
+
+	private final String unit;
+
+	private final ConcurrentHashMap< Long, RandomAccessibleInterval< T > > images = new ConcurrentHashMap<>();
+
+	private ShardedZarrSource( final String name, final ShardedZarrArray[] levels, final AffineTransform3D[] transforms,
+			final T type, final int timeDim, final int channelDim, final int channel, final String unit )
+	{
+		this.name = name;
+		this.levels = levels;
+		this.transforms = transforms;
+		this.type = type;
+		this.timeDim = timeDim;
+		this.channelDim = channelDim;
+		this.channel = channel;
+		this.numTimepoints = timeDim < 0 ? 1 : ( int ) levels[ 0 ].shape[ timeDim ];
+		this.unit = unit;
+	}
+
+	/** the location of the node {@code uri} points to */
+	static URI location( final N5URI uri )
+	{
+		final URI container = uri.getURI();
+		String path = container.getPath();
+		final String group = uri.getGroupPath();
+		if ( group != null && !group.isEmpty() && !group.equals( "/" ) )
+			path = ( path.endsWith( "/" ) ? path : path + "/" ) + ( group.startsWith( "/" ) ? group.substring( 1 ) : group );
+		return URI.create( container.getScheme() == null
+				? path
+				: container.getScheme() + "://" + ( container.getRawAuthority() == null ? "" : container.getRawAuthority() ) + path );
+	}
+
+	/**
+	 * Whether {@code uri} points to a sharded Zarr v3 array or to an OME-Zarr
+	 * multiscale of them. Only {@code file} and {@code http(s)} locations are
+	 * checked, anything else is left to N5.
+	 */
+	public static boolean isShardedZarr( final N5URI uri )
+	{
+		try
+		{
+			final URI location = location( uri );
+			final ByteRangeReader reader = ByteRangeReader.forUri( location );
+			final JsonObject meta = ShardedZarrArray.readMetadata( reader, "" );
+			if ( meta == null || !meta.has( "zarr_format" ) || meta.get( "zarr_format" ).getAsInt() != 3 )
+				return false;
+			if ( meta.get( "node_type" ).getAsString().equals( "array" ) )
+				return ShardedZarrArray.shardingConfiguration( meta ) != null;
+			final JsonObject multiscale = multiscale( meta );
+			if ( multiscale == null )
+				return false;
+			final String path = multiscale.getAsJsonArray( "datasets" ).get( 0 ).getAsJsonObject().get( "path" ).getAsString();
+			final JsonObject array = ShardedZarrArray.readMetadata( reader, path );
+			return array != null && ShardedZarrArray.shardingConfiguration( array ) != null;
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			return false;
+		}
+	}
+
+	/** one source per channel */
+	public static List< ShardedZarrSource< ? > > open( final N5URI uri ) throws IOException
+	{
+		final URI location = location( uri );
+		final ByteRangeReader reader = ByteRangeReader.forUri( location );
+		final String scheme = location.getScheme();
+		final boolean remote = "http".equals( scheme ) || "https".equals( scheme );
+		// local reads are cheap, do not hold them back as long
+		final CoalescingRangeReader chunkReader = remote
+				? new CoalescingRangeReader( reader )
+				: new CoalescingRangeReader( reader, TimeUnit.MICROSECONDS.toNanos( 200 ), 4096, 16 * 1024 * 1024 );
+		final String id = location.toString();
+
+		final JsonObject meta = ShardedZarrArray.readMetadata( reader, "" );
+		if ( meta == null )
+			throw new IOException( "No zarr.json at " + location );
+
+		final List< String > paths = new ArrayList<>();
+		final List< double[][] > scaleTranslations = new ArrayList<>();
+		final List< String > axisNames = new ArrayList<>();
+		String unit = "px";
+		String name = location.getPath().replaceAll( "/+$", "" );
+		name = name.substring( name.lastIndexOf( '/' ) + 1 );
+
+		if ( meta.get( "node_type" ).getAsString().equals( "array" ) )
+		{
+			paths.add( "" );
+			scaleTranslations.add( null );
+			if ( meta.has( "dimension_names" ) )
+				for ( final JsonElement e : meta.getAsJsonArray( "dimension_names" ) )
+					axisNames.add( e.isJsonNull() ? "" : e.getAsString() );
+		}
+		else
+		{
+			final JsonObject multiscale = multiscale( meta );
+			if ( multiscale == null )
+				throw new IOException( "No multiscales in " + location );
+			if ( multiscale.has( "name" ) )
+				name = multiscale.get( "name" ).getAsString();
+			if ( multiscale.has( "axes" ) )
+			{
+				for ( final JsonElement e : multiscale.getAsJsonArray( "axes" ) )
+				{
+					final JsonObject axis = e.getAsJsonObject();
+					axisNames.add( axis.get( "name" ).getAsString() );
+					if ( axis.has( "unit" ) && axis.has( "type" ) && axis.get( "type" ).getAsString().equals( "space" ) )
+						unit = axis.get( "unit" ).getAsString();
+				}
+			}
+			for ( final JsonElement e : multiscale.getAsJsonArray( "datasets" ) )
+			{
+				final JsonObject dataset = e.getAsJsonObject();
+				paths.add( dataset.get( "path" ).getAsString() );
+				scaleTranslations.add( scaleTranslation( dataset ) );
+			}
+		}
+
+		final ShardedZarrArray[] levels = new ShardedZarrArray[ paths.size() ];
+		final AffineTransform3D[] transforms = new AffineTransform3D[ paths.size() ];
+		for ( int l = 0; l < levels.length; l++ )
+		{
+			levels[ l ] = ShardedZarrArray.open( reader, chunkReader, id, paths.get( l ) );
+			transforms[ l ] = transform( scaleTranslations.get( l ), levels[ l ].numDimensions() );
+		}
+
+		final int n = levels[ 0 ].numDimensions();
+		if ( n < 3 )
+			throw new IOException( "Need at least three dimensions: " + location );
+		if ( axisNames.size() != n )
+		{
+			axisNames.clear();
+			final String[] defaults = { "t", "c", "z", "y", "x" };
+			for ( int d = 0; d < n; d++ )
+				axisNames.add( n - d <= 5 ? defaults[ 5 - n + d ] : "" );
+		}
+		// axis names are in zarr order, dimensions in imglib2 order
+		final int timeDim = n - 1 - axisNames.indexOf( "t" );
+		final int channelDim = n - 1 - axisNames.indexOf( "c" );
+		final boolean hasTime = axisNames.contains( "t" ) && timeDim >= 3;
+		final boolean hasChannel = axisNames.contains( "c" ) && channelDim >= 3;
+		final int numChannels = hasChannel ? ( int ) levels[ 0 ].shape[ channelDim ] : 1;
+
+		final List< ShardedZarrSource< ? > > sources = new ArrayList<>();
+		for ( int c = 0; c < numChannels; c++ )
+			sources.add( create( numChannels > 1 ? name + " c" + c : name, levels, transforms,
+					hasTime ? timeDim : -1, hasChannel ? channelDim : -1, c, unit ) );
+		return sources;
+	}
+
+	/** the sources of {@link #open} with a default converter, as {@code Main.getSourcesAndConverters} returns them */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static List< SourceAndConverter< ? > > sourcesAndConverters( final N5URI uri ) throws IOException
+	{
+		final List< SourceAndConverter< ? > > socs = new ArrayList<>();
+		for ( final ShardedZarrSource< ? > source : open( uri ) )
+		{
+			final double max = Math.min( source.getType().getMaxValue(), 65535 );
+			socs.add( new SourceAndConverter( source, new RealARGBConverter( 0, max ) ) );
+		}
+		return socs;
+	}
+
+	@Override
+	public int[] getChunkDimensions( final int level )
+	{
+		return Arrays.copyOf( levels[ level ].chunkShape, 3 );
+	}
+
+	@Override
+	public boolean isPresent( final int t )
+	{
+		return t >= 0 && t < numTimepoints;
+	}
+
+	@Override
+	public RandomAccessibleInterval< T > getSource( final int t, final int level )
+	{
+		return images.computeIfAbsent( ( ( long ) t << 32 ) | level, k -> createImage( t, level ) );
+	}
+
+	private RandomAccessibleInterval< T > createImage( final int t, final int level )
+	{
+		final ShardedZarrArray array = levels[ level ];
+		final int[] cellDimensions = getChunkDimensions( level );
+		final CellLoader< T > loader = cell -> load( array, t, level, cell );
+		return new ReadOnlyCachedCellImgFactory( ReadOnlyCachedCellImgOptions.options().cellDimensions( cellDimensions ) )
+				.create( Arrays.copyOf( array.shape, 3 ), type, loader );
+	}
+
+	private void load( final ShardedZarrArray array, final int t, final int level, final SingleCellArrayImg< T, ? > cell ) throws IOException
+	{
+		final long[] min = new long[ array.numDimensions() ];
+		final int[] size = new int[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			min[ d ] = cell.min( d );
+			size[ d ] = ( int ) cell.dimension( d );
+		}
+		if ( timeDim >= 0 )
+			min[ timeDim ] = t;
+		if ( channelDim >= 0 )
+			min[ channelDim ] = channel;
+
+		final Object data = cell.getStorageArray();
+		if ( !array.readBlock( min, size, data, level ) )
+			array.fill( data );
+	}
+
+	@Override
+	public RealRandomAccessible< T > getInterpolatedSource( final int t, final int level, final Interpolation method )
+	{
+		return method == Interpolation.NLINEAR
+				? Views.interpolate( Views.extendZero( getSource( t, level ) ), new ClampingNLinearInterpolatorFactory<>() )
+				: Views.interpolate( Views.extendZero( getSource( t, level ) ), new NearestNeighborInterpolatorFactory<>() );
+	}
+
+	@Override
+	public void getSourceTransform( final int t, final int level, final AffineTransform3D transform )
+	{
+		transform.set( transforms[ level ] );
+	}
+
+	@Override
+	public T getType()
+	{
+		return type;
+	}
+
+	@Override
+	public String getName()
+	{
+		return name;
+	}
+
+	@Override
+	public VoxelDimensions getVoxelDimensions()
+	{
+		final AffineTransform3D t = transforms[ 0 ];
+		return new FinalVoxelDimensions( unit, t.get( 0, 0 ), t.get( 1, 1 ), t.get( 2, 2 ) );
+	}
+
+	@Override
+	public int getNumMipmapLevels()
+	{
+		return levels.length;
+	}
+
+	/** OME-Zarr 0.5 keeps the multiscales under "ome", earlier layouts at the top */
+	private static JsonObject multiscale( final JsonObject groupMeta )
+	{
+		if ( !groupMeta.has( "attributes" ) )
+			return null;
+		JsonObject attributes = groupMeta.getAsJsonObject( "attributes" );
+		if ( attributes.has( "ome" ) )
+			attributes = attributes.getAsJsonObject( "ome" );
+		if ( !attributes.has( "multiscales" ) )
+			return null;
+		final JsonArray multiscales = attributes.getAsJsonArray( "multiscales" );
+		return multiscales.size() == 0 ? null : multiscales.get( 0 ).getAsJsonObject();
+	}
+
+	/** scale and translation of a multiscales dataset, in zarr axis order */
+	private static double[][] scaleTranslation( final JsonObject dataset )
+	{
+		double[] scale = null;
+		double[] translation = null;
+		if ( dataset.has( "coordinateTransformations" ) )
+		{
+			for ( final JsonElement e : dataset.getAsJsonArray( "coordinateTransformations" ) )
+			{
+				final JsonObject transform = e.getAsJsonObject();
+				final String kind = transform.get( "type" ).getAsString();
+				if ( kind.equals( "scale" ) && transform.has( "scale" ) )
+					scale = toDoubles( transform.getAsJsonArray( "scale" ) );
+				else if ( kind.equals( "translation" ) && transform.has( "translation" ) )
+					translation = toDoubles( transform.getAsJsonArray( "translation" ) );
+			}
+		}
+		return new double[][] { scale, translation };
+	}
+
+	private static AffineTransform3D transform( final double[][] scaleTranslation, final int n )
+	{
+		final AffineTransform3D transform = new AffineTransform3D();
+		if ( scaleTranslation == null )
+			return transform;
+		final double[] scale = scaleTranslation[ 0 ];
+		final double[] translation = scaleTranslation[ 1 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			// x is the last zarr axis
+			if ( scale != null && scale.length == n )
+				transform.set( scale[ n - 1 - d ], d, d );
+			if ( translation != null && translation.length == n )
+				transform.set( translation[ n - 1 - d ], d, 3 );
+		}
+		return transform;
+	}
+
+	private static double[] toDoubles( final JsonArray array )
+	{
+		final double[] values = new double[ array.size() ];
+		for ( int i = 0; i < values.length; i++ )
+			values[ i ] = array.get( i ).getAsDouble();
+		return values;
+	}
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static ShardedZarrSource< ? > create( final String name, final ShardedZarrArray[] levels, final AffineTransform3D[] transforms,
+			final int timeDim, final int channelDim, final int channel, final String unit )
+	{
+		return new ShardedZarrSource( name, levels, transforms, createType( levels[ 0 ].dataType ), timeDim, channelDim, channel, unit );
+	}
+
+	private static NativeType< ? > createType( final String dataType )
+	{
+		switch ( dataType )
+		{
+		case "uint8":
+			return new UnsignedByteType();
+		case "int8":
+			return new ByteType();
+		case "uint16":
+			return new UnsignedShortType();
+		case "int16":
+			return new ShortType();
+		case "uint32":
+			return new UnsignedIntType();
+		case "int32":
+			return new IntType();
+		case "uint64":
+			return new UnsignedLongType();
+		case "int64":
+			return new LongType();
+		case "float32":
+			return new FloatType();
+		case "float64":
+			return new DoubleType();
+		default:
+			throw new UnsupportedOperationException( "Unsupported data type " + dataType );
+		}
+	}
+}
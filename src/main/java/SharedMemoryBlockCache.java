@@ -0,0 +1,352 @@
+import net.imglib2.util.ValuePair;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Converted uint16 blocks in a memory-mapped file that all JVMs on a host
+ * share, so that processes rendering the same data read and convert each
+ * block once and the blocks are held once, in the page cache, however many
+ * processes there are. Enabled with {@code -Dbvv.shm=<file>} (put it on a
+ * tmpfs like {@code /dev/shm}), sized with {@code bvv.shm.sizeMB} (default
+ * 2048) and {@code bvv.shm.slotKB} (default 512, the largest block that is
+ * shared, a 64x64x64 uint16 block; slots hold a header on top). The first
+ * process creates the file, later ones use its geometry.
+ *
+ * The file is a set-associative cache: a block's key, a 128 bit hash of
+ * dataset id, conversion, timepoint, level and interval, selects a set of
+ * {@link #WAYS} slots, and a CLOCK hand per set picks the slot to replace.
+ * Writers of a set are serialized by a striped lock in the JVM and a file
+ * lock on one byte per set across JVMs. Readers take no locks: a slot has a
+ * sequence number that is odd while it is written and a checksum of its key
+ * and data, and a read that saw the sequence number change or the checksum
+ * not match is a miss, so a torn block is never returned.
+ */
+public class SharedMemoryBlockCache
+{
+	static final int WAYS = 8;
+
+	private static final int MAGIC = 0x53484d31; // "SHM1"
+
+	private static final int FILE_HEADER = 64;
+
+	// slot header: seq, key0, key1, checksum (longs), length, referenced (ints)
+	private static final int SLOT_SEQ = 0;
+
+	private static final int SLOT_KEY0 = 8;
+
+	private static final int SLOT_KEY1 = 16;
+
+	private static final int SLOT_CHECKSUM = 24;
+
+	private static final int SLOT_LENGTH = 32;
+
+	private static final int SLOT_REFERENCED = 36;
+
+	private static final int SLOT_HEADER = 64;
+
+	private static final int STRIPES = 64;
+
+	private static volatile SharedMemoryBlockCache instance;
+
+	/** the cache configured with {@code -Dbvv.shm}, or {@code null} */
+	@Nullable
+	public static SharedMemoryBlockCache get()
+	{
+		final String file = System.getProperty( "bvv.shm" );
+		if ( file == null )
+			return null;
+		if ( instance == null )
+		{
+			synchronized ( SharedMemoryBlockCache.class )
+			{
+				if ( instance == null )
+				{
+					try
+					{
+						instance = open( Paths.get( file ),
+								Long.getLong( "bvv.shm.sizeMB", 2048 ) << 20,
+								Integer.getInteger( "bvv.shm.slotKB", 512 ) << 10 );
+					}
+					catch ( final IOException e )
+					{
+						throw new UncheckedIOException( e );
+					}
+				}
+			}
+		}
+		return instance;
+	}
+
+	private final FileChannel channel;
+
+	private final int slotBytes;
+
+	private final int numSets;
+
+	private final long dataOffset;
+
+	/** whole sets per mapped segment, segments are below 2 GB */
+	private final int setsPerSegment;
+
+	private final MappedByteBuffer header;
+
+	private final MappedByteBuffer[] segments;
+
+	private final ReentrantLock[] stripes = new ReentrantLock[ STRIPES ];
+
+	private SharedMemoryBlockCache( final FileChannel channel, final int slotBytes, final int numSets ) throws IOException
+	{
+		this.channel = channel;
+		this.slotBytes = slotBytes;
+		this.numSets = numSets;
+		final long setHeaders = FILE_HEADER + 4L * numSets;
+		this.dataOffset = ( setHeaders + 4095 ) / 4096 * 4096;
+		final long setBytes = ( long ) WAYS * slotBytes;
+		this.setsPerSegment = ( int ) Math.max( 1, ( 1L << 30 ) / setBytes );
+		this.header = map( 0, setHeaders );
+		this.segments = new MappedByteBuffer[ ( numSets + setsPerSegment - 1 ) / setsPerSegment ];
+		for ( int i = 0; i < segments.length; i++ )
+		{
+			final int sets = Math.min( setsPerSegment, numSets - i * setsPerSegment );
+			segments[ i ] = map( dataOffset + i * setsPerSegment * setBytes, sets * setBytes );
+		}
+		for ( int i = 0; i < STRIPES; i++ )
+			stripes[ i ] = new ReentrantLock();
+	}
+
+	private MappedByteBuffer map( final long position, final long size ) throws IOException
+	{
+		final MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_WRITE, position, size );
+		buffer.order( ByteOrder.nativeOrder() );
+		return buffer;
+	}
+
+	/**
+	 * Open {@code file}, creating it with {@code sizeBytes} in slots for
+	 * blocks of up to {@code blockBytes} if it does not exist yet.
+	 */
+	public static SharedMemoryBlockCache open( final Path file, final long sizeBytes, final int blockBytes ) throws IOException
+	{
+		final FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+		try ( FileLock lock = channel.lock( 0, FILE_HEADER, false ) )
+		{
+			final ByteBuffer fileHeader = ByteBuffer.allocate( 12 ).order( ByteOrder.nativeOrder() );
+			if ( channel.size() >= FILE_HEADER && channel.read( fileHeader, 0 ) == 12 && fileHeader.getInt( 0 ) == MAGIC )
+				return new SharedMemoryBlockCache( channel, fileHeader.getInt( 4 ), fileHeader.getInt( 8 ) );
+
+			// header and block, in whole cache lines
+			final int slot = ( SLOT_HEADER + Math.max( blockBytes, 4096 ) + 63 ) / 64 * 64;
+			final int numSets = ( int ) Math.max( 1, Math.min( Integer.MAX_VALUE, sizeBytes / ( ( long ) WAYS * slot ) ) );
+			final SharedMemoryBlockCache cache = new SharedMemoryBlockCache( channel, slot, numSets );
+			cache.header.putInt( 4, slot );
+			cache.header.putInt( 8, numSets );
+			cache.header.putInt( 0, MAGIC );
+			cache.header.force();
+			return cache;
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	/** largest block, in voxels, that fits into a slot */
+	public int maxBlockSize()
+	{
+		return ( slotBytes - SLOT_HEADER ) / 2;
+	}
+
+	/**
+	 * Key of a converted block. {@code datasetId} identifies the source across
+	 * processes, e.g. its URI and name.
+	 */
+	public static long[] key( final String datasetId, @Nullable final ValuePair< Double, Double > minMax, final boolean labels,
+			final int timepoint, final int level, final long[] min, final int[] dimensions )
+	{
+		final StringBuilder key = new StringBuilder( datasetId );
+		key.append( '|' ).append( minMax == null ? "" : minMax.getA() + ".." + minMax.getB() );
+		key.append( '|' ).append( labels ).append( '|' ).append( timepoint ).append( '|' ).append( level );
+		for ( int d = 0; d < min.length; d++ )
+			key.append( '|' ).append( min[ d ] ).append( ':' ).append( dimensions[ d ] );
+		final byte[] bytes = key.toString().getBytes( StandardCharsets.UTF_8 );
+		long h0 = 0xcbf29ce484222325L; // FNV-1a
+		long h1 = 0x9e3779b97f4a7c15L;
+		for ( final byte b : bytes )
+		{
+			h0 = ( h0 ^ b ) * 0x100000001b3L;
+			h1 = mix( h1 + b );
+		}
+		// 0,0 marks an empty slot
+		return new long[] { h0 == 0 ? 1 : h0, h1 };
+	}
+
+	/** the block of {@code key} with {@code size} voxels, or {@code null} */
+	@Nullable
+	public short[] get( final long[] key, final int size )
+	{
+		if ( size > maxBlockSize() )
+			return null;
+		final int set = set( key );
+		final ByteBuffer segment = segments[ set / setsPerSegment ].duplicate().order( ByteOrder.nativeOrder() );
+		for ( int way = 0; way < WAYS; way++ )
+		{
+			final int slot = slotOffset( set, way );
+			final long seq = segment.getLong( slot + SLOT_SEQ );
+			if ( ( seq & 1 ) != 0
+					|| segment.getLong( slot + SLOT_KEY0 ) != key[ 0 ]
+					|| segment.getLong( slot + SLOT_KEY1 ) != key[ 1 ]
+					|| segment.getInt( slot + SLOT_LENGTH ) != size )
+				continue;
+			final long checksum = segment.getLong( slot + SLOT_CHECKSUM );
+			final short[] data = ShortArrayPool.get().take( size );
+			( ( Buffer ) segment ).position( slot + SLOT_HEADER );
+			segment.asShortBuffer().get( data );
+			if ( segment.getLong( slot + SLOT_SEQ ) != seq || checksum( key, data ) != checksum )
+			{
+				ShortArrayPool.get().give( data );
+				return null; // being replaced
+			}
+			segment.putInt( slot + SLOT_REFERENCED, 1 );
+			return data;
+		}
+		return null;
+	}
+
+	/** store {@code data} as the block of {@code key}, replacing the least recently used block of its set */
+	public void put( final long[] key, final short[] data )
+	{
+		if ( data.length > maxBlockSize() )
+			return;
+		final int set = set( key );
+		final ByteBuffer segment = segments[ set / setsPerSegment ].duplicate().order( ByteOrder.nativeOrder() );
+		final ReentrantLock stripe = stripes[ set % STRIPES ];
+		stripe.lock();
+		// across processes, lock the first byte of the CLOCK hand of the set
+		try ( FileLock lock = channel.lock( FILE_HEADER + 4L * set, 1, false ) )
+		{
+			int way = find( segment, set, key );
+			if ( way < 0 )
+				way = victim( segment, set );
+			final int slot = slotOffset( set, way );
+			final long seq = segment.getLong( slot + SLOT_SEQ );
+			segment.putLong( slot + SLOT_SEQ, seq + 1 );
+			segment.putLong( slot + SLOT_KEY0, 0 );
+			segment.putLong( slot + SLOT_KEY1, 0 );
+			( ( Buffer ) segment ).position( slot + SLOT_HEADER );
+			segment.asShortBuffer().put( data );
+			segment.putInt( slot + SLOT_LENGTH, data.length );
+			segment.putLong( slot + SLOT_CHECKSUM, checksum( key, data ) );
+			segment.putInt( slot + SLOT_REFERENCED, 1 );
+			segment.putLong( slot + SLOT_KEY0, key[ 0 ] );
+			segment.putLong( slot + SLOT_KEY1, key[ 1 ] );
+			segment.putLong( slot + SLOT_SEQ, seq + 2 );
+		}
+		catch ( final IOException e )
+		{
+			// not shared then, the caller has its block anyway
+		}
+		finally
+		{
+			stripe.unlock();
+		}
+	}
+
+	/** drop the block of {@code key} if it is there, e.g. because its data changed */
+	public void remove( final long[] key )
+	{
+		final int set = set( key );
+		final ByteBuffer segment = segments[ set / setsPerSegment ].duplicate().order( ByteOrder.nativeOrder() );
+		final ReentrantLock stripe = stripes[ set % STRIPES ];
+		stripe.lock();
+		try ( FileLock lock = channel.lock( FILE_HEADER + 4L * set, 1, false ) )
+		{
+			final int way = find( segment, set, key );
+			if ( way < 0 )
+				return;
+			final int slot = slotOffset( set, way );
+			final long seq = segment.getLong( slot + SLOT_SEQ );
+			segment.putLong( slot + SLOT_SEQ, seq + 1 );
+			segment.putLong( slot + SLOT_KEY0, 0 );
+			segment.putLong( slot + SLOT_KEY1, 0 );
+			segment.putInt( slot + SLOT_REFERENCED, 0 );
+			segment.putLong( slot + SLOT_SEQ, seq + 2 );
+		}
+		catch ( final IOException e )
+		{
+			// cannot lock the set, the block stays
+		}
+		finally
+		{
+			stripe.unlock();
+		}
+	}
+
+	private int find( final ByteBuffer segment, final int set, final long[] key )
+	{
+		for ( int way = 0; way < WAYS; way++ )
+		{
+			final int slot = slotOffset( set, way );
+			if ( segment.getLong( slot + SLOT_KEY0 ) == key[ 0 ] && segment.getLong( slot + SLOT_KEY1 ) == key[ 1 ] )
+				return way;
+		}
+		return -1;
+	}
+
+	/** CLOCK: advance the hand of the set past referenced slots, clearing their bit */
+	private int victim( final ByteBuffer segment, final int set )
+	{
+		final int hand = FILE_HEADER + 4 * set;
+		int way = Math.floorMod( header.getInt( hand ), WAYS );
+		for ( int i = 0; i < 2 * WAYS; i++ )
+		{
+			final int slot = slotOffset( set, way );
+			if ( segment.getInt( slot + SLOT_REFERENCED ) == 0 )
+				break;
+			segment.putInt( slot + SLOT_REFERENCED, 0 );
+			way = ( way + 1 ) % WAYS;
+		}
+		header.putInt( hand, ( way + 1 ) % WAYS );
+		return way;
+	}
+
+	private int set( final long[] key )
+	{
+		return ( int ) Math.floorMod( key[ 0 ] ^ ( key[ 0 ] >>> 29 ), ( long ) numSets );
+	}
+
+	/** offset of a slot in the segment of its set */
+	private int slotOffset( final int set, final int way )
+	{
+		return ( ( set % setsPerSegment ) * WAYS + way ) * slotBytes;
+	}
+
+	/** checksum of the data of a block, seeded with its key so that another block's data never matches */
+	static long checksum( final long[] key, final short[] data )
+	{
+		long h = key[ 0 ] ^ key[ 1 ] ^ data.length;
+		for ( final short v : data )
+			h = ( h ^ v ) * 0x100000001b3L;
+		return mix( h );
+	}
+
+	private static long mix( long h )
+	{
+		h = ( h ^ ( h >>> 33 ) ) * 0xff51afd7ed558ccdL;
+		h = ( h ^ ( h >>> 33 ) ) * 0xc4ceb9fe1a85ec53L;
+		return h ^ ( h >>> 33 );
+	}
+}
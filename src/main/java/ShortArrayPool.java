@@ -0,0 +1,97 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycled {@code short[]} block arrays, pooled by length (blocks of a
+ * dataset come in a handful of sizes: full cells and edge cells).
+ *
+ * Arrays go back into the pool only where it is certain nobody else holds
+ * them: when a timepoint is {@link SourceToViewerSetupImgLoaderBvv#evictTimepoint
+ * evicted} (for blocks no other loader was handed, see
+ * {@link BlockLoadRegistry#removeIfExclusive}), after a projection has
+ * reduced a cell, or when a shared memory read turned out to be torn. Cells
+ * dropped by the soft-reference caches are simply collected. Eviction is
+ * driven by {@link TimepointPrefetcher} only, so the pool pays off for time
+ * series; when a single timepoint is viewed it stays mostly empty and takes
+ * fall back to allocating (see {@link #reuseRatio}). The pool holds
+ * at most {@code bvv.pool.maxMB} (default 256) and can be switched off with
+ * {@code -Dbvv.pool=false}. Taken arrays have undefined content.
+ */
+public class ShortArrayPool
+{
+	private static final ShortArrayPool INSTANCE = new ShortArrayPool(
+			!"false".equals( System.getProperty( "bvv.pool" ) ),
+			Long.getLong( "bvv.pool.maxMB", 256 ) << 20 );
+
+	public static ShortArrayPool get()
+	{
+		return INSTANCE;
+	}
+
+	private final boolean enabled;
+
+	private final long maxBytes;
+
+	private final AtomicLong bytes = new AtomicLong();
+
+	private final ConcurrentHashMap< Integer, ConcurrentLinkedQueue< short[] > > free = new ConcurrentHashMap<>();
+
+	private final AtomicLong taken = new AtomicLong();
+
+	private final AtomicLong reused = new AtomicLong();
+
+	ShortArrayPool( final boolean enabled, final long maxBytes )
+	{
+		this.enabled = enabled;
+		this.maxBytes = maxBytes;
+	}
+
+	/** an array of {@code length}, recycled if there is one */
+	public short[] take( final int length )
+	{
+		taken.incrementAndGet();
+		if ( enabled )
+		{
+			final ConcurrentLinkedQueue< short[] > arrays = free.get( length );
+			final short[] array = arrays == null ? null : arrays.poll();
+			if ( array != null )
+			{
+				bytes.addAndGet( -2L * length );
+				reused.incrementAndGet();
+				return array;
+			}
+		}
+		return new short[ length ];
+	}
+
+	/** return an array nobody else references any more */
+	public void give( final short[] array )
+	{
+		if ( !enabled || bytes.addAndGet( 2L * array.length ) > maxBytes )
+		{
+			if ( enabled )
+				bytes.addAndGet( -2L * array.length );
+			return;
+		}
+		free.computeIfAbsent( array.length, k -> new ConcurrentLinkedQueue<>() ).add( array );
+	}
+
+	/** fraction of {@link #take}s served from the pool */
+	public double reuseRatio()
+	{
+		final long n = taken.get();
+		return n == 0 ? 0 : ( double ) reused.get() / n;
+	}
+
+	public long pooledBytes()
+	{
+		return bytes.get();
+	}
+
+	public void clear()
+	{
+		free.clear();
+		bytes.set( 0 );
+	}
+}
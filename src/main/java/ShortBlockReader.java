@@ -0,0 +1,22 @@
+import java.io.IOException;
+
+/**
+ * Fast path that fills a loader cell directly with unsigned 16-bit values,
+ * bypassing the source and its conversion. The wrapped loader
+ * ({@link SourceToViewerSetupImgLoaderBvv#setBlockReader}) sizes its cells to
+ * {@link #getBlockDimensions} so that each cell maps to one stored block.
+ */
+public interface ShortBlockReader
+{
+	/** x,y,z dimensions of the stored blocks of {@code level} */
+	int[] getBlockDimensions( int level );
+
+	/**
+	 * Fill {@code data} (flat, x fastest) with the block at {@code min} of
+	 * size {@code dimensions}.
+	 *
+	 * @return {@code false} if this block cannot be read on the fast path, the
+	 *         loader falls back to the source then
+	 */
+	boolean readBlock( int timepoint, int level, long[] min, int[] dimensions, short[] data ) throws IOException;
+}
@@ -1,6 +1,10 @@
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import net.imglib2.FinalDimensions;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -16,15 +20,23 @@ import mpicbg.spim.data.registration.ViewRegistration;
 import mpicbg.spim.data.registration.ViewRegistrations;
 import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.TimePoints;
+import mpicbg.spim.data.sequence.ViewId;
 
 public class SourceToSpimDataWrapper
 {
 	/** wraps UnsignedByte, UnsignedShort, UnsignedLong or Float type source to a cached spimdata 
 	 * (of UnsignedShort type) to display in BVV, otherwise returns null **/
-	@SuppressWarnings( { "unchecked", "rawtypes" } )
 	public static AbstractSpimData< ? > wrap( final Source< ? > source )
 	{
-		final SourceToViewerSetupImgLoaderBvv imgLoader = new SourceToViewerSetupImgLoaderBvv( source );
+		return wrap( new SourceToViewerSetupImgLoaderBvv( source ) );
+	}
+
+	/** wraps the source of an already configured loader, e.g. one that shares
+	 * its fetch queue with other loaders **/
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static AbstractSpimData< ? > wrap( final SourceToViewerSetupImgLoaderBvv imgLoader )
+	{
+		final Source< ? > source = imgLoader.src;
 		
 		final FinalDimensions size = new FinalDimensions( source.getSource( 0, 0 ) );
 
@@ -32,15 +44,14 @@ public class SourceToSpimDataWrapper
 		int numTimepoints = 0;
 		while( source.isPresent( numTimepoints ) )
 			numTimepoints++;
-		final ArrayList< TimePoint > timepoints = new ArrayList<>( numTimepoints );
-		for ( int t = 0; t < numTimepoints; ++t )
-			timepoints.add( new TimePoint( t ) );
+		final GrowableTimePoints timepoints = new GrowableTimePoints();
+		timepoints.grow( numTimepoints );
 
 		final HashMap< Integer, BasicViewSetup > setups = new HashMap<>( 1 );
 		
 		final BasicViewSetup setup = new BasicViewSetup( 0, source.getName(), size, source.getVoxelDimensions() );
 		setups.put( 0, setup );
-		final SequenceDescriptionMinimal seq = new SequenceDescriptionMinimal( new TimePoints( timepoints ), setups, imgLoader, null );
+		final SequenceDescriptionMinimal seq = new SequenceDescriptionMinimal( timepoints, setups, imgLoader, null );
 		final ArrayList< ViewRegistration > registrations = new ArrayList<>();
 		for ( int t = 0; t < numTimepoints; ++t )
 		{
@@ -55,4 +66,61 @@ public class SourceToSpimDataWrapper
 
 		return new AbstractSpimData( (File) null, seq, new ViewRegistrations( registrations) );
 	}
+
+	/** 
+	 * extends spimdata returned by {@link #wrap} to {@code numTimepoints}, e.g. when
+	 * timepoints were appended to the source while it is shown (see {@link StoreWatcher}).
+	 * The sources BVV built from the spimdata see the new timepoints, 
+	 * the viewer needs to be told the new number of timepoints.
+	 * @return whether timepoints were added
+	 **/
+	public static boolean addTimepoints( final AbstractSpimData< ? > spimData, final int numTimepoints )
+	{
+		final TimePoints timepoints = spimData.getSequenceDescription().getTimePoints();
+		if ( !( timepoints instanceof GrowableTimePoints ) )
+			return false;
+		final Map< ViewId, ViewRegistration > registrations = spimData.getViewRegistrations().getViewRegistrations();
+		// registrations first: a timepoint is looked up once it is listed
+		for ( int t = timepoints.getTimePointsOrdered().size(); t < numTimepoints; ++t )
+			registrations.put( new ViewId( t, 0 ), new ViewRegistration( t, 0, new AffineTransform3D() ) );
+		return ( ( GrowableTimePoints ) timepoints ).grow( numTimepoints );
+	}
+
+	/** time points that can be appended to after the sources were built from them;
+	 * these keep the ordered list, so it has to be the same list that grows **/
+	static class GrowableTimePoints extends TimePoints
+	{
+		private final Map< Integer, TimePoint > byId = new ConcurrentHashMap<>();
+
+		private final List< TimePoint > ordered = new CopyOnWriteArrayList<>();
+
+		GrowableTimePoints()
+		{
+			super( new ArrayList< TimePoint >() );
+		}
+
+		synchronized boolean grow( final int numTimepoints )
+		{
+			final int n = ordered.size();
+			for ( int t = n; t < numTimepoints; ++t )
+			{
+				final TimePoint timepoint = new TimePoint( t );
+				byId.put( t, timepoint );
+				ordered.add( timepoint );
+			}
+			return numTimepoints > n;
+		}
+
+		@Override
+		public Map< Integer, TimePoint > getTimePoints()
+		{
+			return byId;
+		}
+
+		@Override
+		public List< TimePoint > getTimePointsOrdered()
+		{
+			return ordered;
+		}
+	}
 }
@@ -2,46 +2,99 @@ import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
 import bdv.ViewerSetupImgLoader;
 import bdv.cache.CacheControl;
+import bdv.tools.brightness.ConverterSetup;
 import bdv.img.cache.CacheArrayLoader;
 import bdv.img.cache.VolatileCachedCellImg;
 import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.util.Affine3DHelpers;
 import bdv.viewer.Source;
 import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import net.imglib2.AbstractInterval;
 import net.imglib2.Cursor;
-import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.cache.queue.BlockingFetchQueues;
 import net.imglib2.cache.volatiles.CacheHints;
 import net.imglib2.cache.volatiles.LoadingStrategy;
 import net.imglib2.converter.Converters;
 import net.imglib2.converter.RealUnsignedShortConverter;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.GenericByteType;
+import net.imglib2.type.numeric.integer.GenericIntType;
+import net.imglib2.type.numeric.integer.GenericLongType;
+import net.imglib2.type.numeric.integer.GenericShortType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.type.volatiles.VolatileUnsignedShortType;
 import net.imglib2.util.Cast;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.ValuePair;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
 import net.imglib2.view.Views;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
 import java.util.Random;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 public class SourceToViewerSetupImgLoaderBvv extends AbstractViewerSetupImgLoader< UnsignedShortType, VolatileUnsignedShortType > implements ViewerImgLoader
 {
 	final Source<?> src;
+	final int numSourceLevels;
 	final int numScales;
 	final AffineTransform3D [] mipmapTransforms;
 	final double [][] mipmapResolutions;
 	private ValuePair< Double, Double > minMax;
-	private VolatileGlobalCellCache cache;
-	private CacheArrayLoader< VolatileShortArray > loader;
+	private final BlockingFetchQueues< Callable< ? > > queue;
+	private final ConcurrentHashMap< Integer, VolatileGlobalCellCache > caches = new ConcurrentHashMap<>(); // by timepoint
+	private volatile VolatileGlobalCellCache sharedCache; // for all timepoints, if set
+	private volatile ConcurrentHashMap< Integer, Queue< long[] > > loadLog; // by timepoint, if tracked
+	private SourceArrayLoader loader;
+	private final PyramidArrayLoader pyramidLoader; // null if the source has all levels
+	private final DisplayRangeCuller culler;
+	private final DetailLimiter detailLimiter;
+	private final RegionCuller regionCuller;
+	private volatile Path blockStatsSidecar;
+	private volatile boolean labelMode;
+	private volatile AccessTrace accessTrace;
+	private volatile int traceSetup;
+	private volatile ConcurrentHashMap< Integer, Queue< IssuedBlock > > issued; // by timepoint, if recycled
+	private final Set< Integer > evicted = ConcurrentHashMap.newKeySet();
+	private final long[][] levelDimensions;
+	private static volatile int defaultCellSize = 32;
+	private final int[] cellDimensions;
+	private final ConcurrentHashMap< Long, VolatileCachedCellImg< UnsignedShortType, VolatileShortArray > > blockingImages = new ConcurrentHashMap<>();
 
     public static double[] getScale( AffineTransform3D affineTransform3D ) {
 
@@ -53,20 +106,34 @@ public class SourceToViewerSetupImgLoaderBvv extends AbstractViewerSetupImgLoade
     }
 	
 	public SourceToViewerSetupImgLoaderBvv( final Source<?> source )
+	{
+		this( source, null );
+	}
+
+	/**
+	 * @param queue
+	 *            fetch queue served by someone else's fetcher threads, or
+	 *            {@code null} for the global {@link FetchScheduler#queue()}
+	 */
+	public SourceToViewerSetupImgLoaderBvv( final Source<?> source, @Nullable final BlockingFetchQueues< Callable< ? > > queue )
 	{
 		super( new UnsignedShortType(), new VolatileUnsignedShortType() );
 		src = source;
-		numScales = src.getNumMipmapLevels();
-		cache = new VolatileGlobalCellCache( numScales + 1, 1 );
+		numSourceLevels = src.getNumMipmapLevels();
+		numScales = numSourceLevels + numSynthesizedLevels( src );
+		this.queue = queue == null ? FetchScheduler.get().queue() : queue;
+		final int cellSize = defaultCellSize;
+		cellDimensions = new int[] { cellSize, cellSize, cellSize };
 
 		mipmapTransforms = new AffineTransform3D[ numScales ];
 		mipmapResolutions = new double[ numScales ][];
+		levelDimensions = new long[ numScales ][];
 		AffineTransform3D transformSource = new AffineTransform3D();
 		src.getSourceTransform( 0, 0, transformSource );
 		
 		final double [] zeroScale = getScale( transformSource);
 		//double [] currMipMapRes = new double [3];
-		for(int i = 0; i < numScales; i++)
+		for(int i = 0; i < numSourceLevels; i++)
 		{
 			AffineTransform3D transform = new AffineTransform3D();
 			src.getSourceTransform( 0, i, transform );			
@@ -79,6 +146,23 @@ public class SourceToViewerSetupImgLoaderBvv extends AbstractViewerSetupImgLoade
 			{
 				mipmapResolutions[ i ][ d ] = currScale[ d ] / zeroScale[ d ];
 			}		
+			levelDimensions[ i ] = src.getSource( 0, i ).dimensionsAsLongArray();
+		}
+
+		// synthesized levels: voxel c of level i covers voxels 2c, 2c+1 of level i-1
+		for ( int i = numSourceLevels; i < numScales; i++ )
+		{
+			final double f = 1 << i;
+			final AffineTransform3D downsampling = new AffineTransform3D();
+			downsampling.set(
+					f, 0, 0, ( f - 1 ) / 2,
+					0, f, 0, ( f - 1 ) / 2,
+					0, 0, f, ( f - 1 ) / 2 );
+			mipmapTransforms[ i ] = transformSource.copy().concatenate( downsampling );
+			mipmapResolutions[ i ] = new double[] { f, f, f };
+			levelDimensions[ i ] = new long[ 3 ];
+			for ( int d = 0; d < 3; d++ )
+				levelDimensions[ i ][ d ] = ( levelDimensions[ i - 1 ][ d ] + 1 ) / 2;
 		}
 
 		if ( src.getType() instanceof RealType
@@ -88,6 +172,45 @@ public class SourceToViewerSetupImgLoaderBvv extends AbstractViewerSetupImgLoade
 		}
 
 		loader = new SourceArrayLoader( src, minMax );
+		pyramidLoader = numScales > numSourceLevels ? new PyramidArrayLoader( this, loader, numSourceLevels ) : null;
+		culler = new DisplayRangeCuller( this, pyramidLoader != null ? pyramidLoader : loader );
+		detailLimiter = new DetailLimiter( this, culler );
+		regionCuller = new RegionCuller( this, detailLimiter );
+		if ( pyramidLoader != null )
+			pyramidLoader.setCuller( culler );
+
+		final String store = System.getProperty( "bvv.pyramid.store" );
+		if ( pyramidLoader != null && store != null )
+			setPyramidStore( Paths.get( store, storeName( src ) ) );
+	}
+
+	/**
+	 * A source with a single level gets coarser levels computed on the fly,
+	 * halving its size until it fits into {@link #MIN_PYRAMID_SIZE} voxels
+	 * along every axis. {@code -Dbvv.pyramid=false} turns this off.
+	 */
+	private static int numSynthesizedLevels( final Source< ? > src )
+	{
+		if ( src.getNumMipmapLevels() != 1 || "false".equals( System.getProperty( "bvv.pyramid" ) ) )
+			return 0;
+		long size = 0;
+		for ( final long dimension : src.getSource( 0, 0 ).dimensionsAsLongArray() )
+			size = Math.max( size, dimension );
+		int levels = 0;
+		while ( size > MIN_PYRAMID_SIZE )
+		{
+			size = ( size + 1 ) / 2;
+			levels++;
+		}
+		return levels;
+	}
+
+	private static final int MIN_PYRAMID_SIZE = 64;
+
+	private static String storeName( final Source< ? > src )
+	{
+		final String name = src.getName();
+		return name == null || name.isEmpty() ? "source" : name.replaceAll( "[^A-Za-z0-9._-]", "_" );
 	}
 
 	@Override
@@ -96,25 +219,63 @@ public class SourceToViewerSetupImgLoaderBvv extends AbstractViewerSetupImgLoade
 		return numScales;
 	}
 	
+	/** as the viewer sees them, levels finer than the {@link #setFinestLevel finest level} have its resolution */
 	@Override
 	public double[][] getMipmapResolutions()
 	{
-		return mipmapResolutions;
+		return detailLimiter.getResolutions();
 	}
 
+	/** as the viewer sees them, levels finer than the {@link #setFinestLevel finest level} have its transform */
 	@Override
 	public AffineTransform3D[] getMipmapTransforms()
 	{
-		return mipmapTransforms;
+		return detailLimiter.getTransforms();
+	}
+
+	/**
+	 * Edge length of the cells of sources without chunks or blocks of their
+	 * own, 32 unless changed (e.g. by a {@link RenderProfile}). Applies to
+	 * loaders created afterwards.
+	 */
+	public static void setDefaultCellSize( final int cellSize )
+	{
+		defaultCellSize = cellSize;
+	}
+
+	/** whether {@code level} is computed from the next finer level rather than read from the source */
+	public boolean isSynthesized( final int level )
+	{
+		return level >= numSourceLevels;
+	}
+
+	/**
+	 * Persist the synthesized levels in a local N5 at {@code dir} and read
+	 * them from there when it has them, see {@link PyramidStore}. Set by
+	 * {@code -Dbvv.pyramid.store=<dir>}, with one subdirectory per source.
+	 */
+	public void setPyramidStore( final Path dir )
+	{
+		if ( pyramidLoader != null )
+			pyramidLoader.setStore( PyramidStore.open( dir, levelDimensions[ 0 ] ) );
 	}
 
 	@SuppressWarnings( "unchecked" )
 	@Override
 	public RandomAccessibleInterval< UnsignedShortType > getImage( int t, int level, ImgLoaderHint... hints )
 	{
+		level = detailLimiter.limit( level );
+		if ( isSynthesized( level ) )
+			return blockingImage( t, level );
+
 		final RandomAccessibleInterval< ? > raiXYZ = src.getSource( t, level );
 
-		if( src.getType() instanceof IntegerType )
+		final LabelDictionary labels = loader.labels;
+		if ( labels != null )
+		{
+			return convertLabelRAIToShort( raiXYZ, labels );
+		}
+		else if( src.getType() instanceof IntegerType )
 		{
 			return convertIntegerRAIToShort( raiXYZ );
 		}
@@ -132,28 +293,351 @@ public class SourceToViewerSetupImgLoaderBvv extends AbstractViewerSetupImgLoade
 	prepareCachedImage(final int t, final int level, final int setupId,
 					   final LoadingStrategy loadingStrategy, final T typeCache)
 	{
-		final long[] dimensions = src.getSource( t, level ).dimensionsAsLongArray();
+		final long[] dimensions = levelDimensions( t, level );
 		final int priority = numScales - 1 - level;
 		
 		final CacheHints cacheHints = new CacheHints( loadingStrategy, priority, false );
 		
 		//final int[] cellDimensions = new int [] {(int)imageDimensions[level][0],(int)imageDimensions[level][1],1};
-		final int[] cellDimensions = new int [] {32,32,32};
 		
-		final CellGrid grid = new CellGrid(dimensions, cellDimensions);
-		return cache.createImg( grid, t, setupId, level, cacheHints, loader, typeCache );
+		final CellGrid grid = new CellGrid(dimensions, cellDimensions( level ));
+		final VolatileCachedCellImg< T, VolatileShortArray > img = cache( t ).createImg( grid, t, setupId, level, cacheHints, regionCuller, typeCache );
+		final AccessTrace trace = accessTrace;
+		if ( trace == null || !trace.hasTimeline() || loadingStrategy != LoadingStrategy.VOLATILE )
+			return img;
+
+		// record the cells the renderer asks for, hits included
+		final int setup = traceSetup;
+		final long[] gridDimensions = grid.getGridDimensions();
+		return new VolatileCachedCellImg<>( grid, typeCache, cacheHints, ( index, hints ) -> {
+			trace.request( setup, t, level, index );
+			final RandomAccess< Cell< VolatileShortArray > > cells = img.getCells().randomAccess();
+			final long[] position = new long[ gridDimensions.length ];
+			IntervalIndexer.indexToPosition( index, gridDimensions, position );
+			cells.setPosition( position );
+			return cells.get();
+		} );
+	}
+
+	/** the cell grid of the cached images of timepoint {@code t} and {@code level} **/
+	public CellGrid getCellGrid( final int t, final int level )
+	{
+		return new CellGrid( levelDimensions( t, level ), cellDimensions( level ) );
+	}
+
+	private long[] levelDimensions( final int t, final int level )
+	{
+		return isSynthesized( level ) || t == 0 ? levelDimensions[ level ] : src.getSource( t, level ).dimensionsAsLongArray();
+	}
+
+	/**
+	 * Cells line up with the blocks of the {@link #setBlockReader block reader}
+	 * or the chunks of a {@link ChunkedSource}, so that loading a cell reads
+	 * exactly one block. Other sources get cubic cells of the
+	 * {@link #setDefaultCellSize default size}. Synthesized levels have
+	 * the cells of the finest level.
+	 */
+	int[] cellDimensions( int level )
+	{
+		if ( isSynthesized( level ) )
+			level = 0;
+		final ShortBlockReader blockReader = loader.blockReader;
+		if ( blockReader != null )
+			return blockReader.getBlockDimensions( level );
+		return src instanceof ChunkedSource ? ( ( ChunkedSource ) src ).getChunkDimensions( level ) : cellDimensions;
+	}
+
+	/**
+	 * Loads cell {@code index} (flattened position in {@link #getCellGrid})
+	 * into the cache and blocks until it is there. Used to warm up the cache
+	 * before rendering.
+	 */
+	public void loadCell( final int t, final int level, final long index )
+	{
+		final VolatileCachedCellImg< UnsignedShortType, VolatileShortArray > img = blockingImage( t, level );
+		final long[] position = new long[ 3 ];
+		IntervalIndexer.indexToPosition( index, img.getCellGrid().getGridDimensions(), position );
+		final RandomAccess< ? > cells = img.getCells().randomAccess();
+		cells.setPosition( position );
+		cells.get();
+	}
+
+	/**
+	 * Reads cell {@code gridPosition} of timepoint {@code t} and {@code level}
+	 * without putting it in the cache, for single passes over all the data
+	 * like {@link ProjectionEngine}. Cells of synthesized levels are
+	 * {@link #downsampleExclusive downsampled} from uncached source cells.
+	 * Hand the cell to {@link #recycleCell} when done with it.
+	 */
+	short[] readCell( final int t, final int level, final long[] gridPosition )
+	{
+		final CellGrid grid = getCellGrid( t, level );
+		final long[] min = new long[ 3 ];
+		final int[] dimensions = new int[ 3 ];
+		grid.getCellDimensions( gridPosition, min, dimensions );
+		if ( !isSynthesized( level ) )
+			return loader.loadExclusive( t, level, dimensions, min );
+		return downsampleExclusive( t, level, dimensions, min );
+	}
+
+	/** a cell from {@link #readCell} is no longer used */
+	void recycleCell( final int level, final short[] data )
+	{
+		ShortArrayPool.get().give( data );
+	}
+
+	/**
+	 * A cell of a synthesized level as the mean of the box of the coarsest
+	 * source level it covers (for label sources, the label at the box's
+	 * corner). The source cells are read one at a time with
+	 * {@link SourceArrayLoader#loadExclusive} and recycled at once, so the
+	 * cache does not fill with the finer levels. Sums and counts are pooled
+	 * scratch, see {@link PyramidArrayLoader.Scratch}.
+	 */
+	private short[] downsampleExclusive( final int t, final int level, final int[] dimensions, final long[] min )
+	{
+		final int sourceLevel = numSourceLevels - 1;
+		final int shift = level - sourceLevel;
+		final long corner = ( 1L << shift ) - 1;
+		final CellGrid sourceGrid = getCellGrid( t, sourceLevel );
+		final long[] cellMin = new long[ 3 ];
+		final long[] cellMax = new long[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			cellMin[ d ] = ( min[ d ] << shift ) / sourceGrid.cellDimension( d );
+			cellMax[ d ] = ( Math.min( ( min[ d ] + dimensions[ d ] ) << shift, sourceGrid.imgDimension( d ) ) - 1 ) / sourceGrid.cellDimension( d );
+		}
+
+		final int n = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+		final PyramidArrayLoader.Scratch scratch = PyramidArrayLoader.Scratch.take( n );
+		final long[] sum = scratch.sum;
+		final int[] count = scratch.count;
+		final boolean labels = labelMode;
+		final long[] position = new long[ 3 ];
+		final long[] sMin = new long[ 3 ];
+		final int[] sDims = new int[ 3 ];
+		try
+		{
+			for ( position[ 2 ] = cellMin[ 2 ]; position[ 2 ] <= cellMax[ 2 ]; position[ 2 ]++ )
+				for ( position[ 1 ] = cellMin[ 1 ]; position[ 1 ] <= cellMax[ 1 ]; position[ 1 ]++ )
+					for ( position[ 0 ] = cellMin[ 0 ]; position[ 0 ] <= cellMax[ 0 ]; position[ 0 ]++ )
+					{
+						sourceGrid.getCellDimensions( position, sMin, sDims );
+						final short[] values = loader.loadExclusive( t, sourceLevel, sDims, sMin );
+						int i = 0;
+						for ( int z = 0; z < sDims[ 2 ]; z++ )
+						{
+							final long gz = sMin[ 2 ] + z;
+							final long cz = ( gz >> shift ) - min[ 2 ];
+							for ( int y = 0; y < sDims[ 1 ]; y++ )
+							{
+								final long gy = sMin[ 1 ] + y;
+								final long cy = ( gy >> shift ) - min[ 1 ];
+								final boolean rowInside = cz >= 0 && cz < dimensions[ 2 ] && cy >= 0 && cy < dimensions[ 1 ];
+								for ( int x = 0; x < sDims[ 0 ]; x++, i++ )
+								{
+									final long gx = sMin[ 0 ] + x;
+									final long cx = ( gx >> shift ) - min[ 0 ];
+									if ( !rowInside || cx < 0 || cx >= dimensions[ 0 ] )
+										continue;
+									if ( labels && ( ( gx | gy | gz ) & corner ) != 0 )
+										continue;
+									final int j = ( int ) ( ( cz * dimensions[ 1 ] + cy ) * dimensions[ 0 ] + cx );
+									sum[ j ] += values[ i ] & 0xffff;
+									count[ j ]++;
+								}
+							}
+						}
+						ShortArrayPool.get().give( values );
+					}
+			return scratch.means( n );
+		}
+		finally
+		{
+			scratch.give();
+		}
+	}
+
+	/** image of timepoint {@code t} and {@code level} that loads missing cells when they are accessed */
+	VolatileCachedCellImg< UnsignedShortType, VolatileShortArray > blockingImage( final int t, final int level )
+	{
+		return blockingImages.computeIfAbsent(
+				( ( long ) t << 32 ) | level,
+				k -> prepareCachedImage( t, level, 0, LoadingStrategy.BLOCKING, type ) );
 	}
 	
 	@Override
 	public RandomAccessibleInterval< VolatileUnsignedShortType > getVolatileImage( int t, int level, ImgLoaderHint... hints )
 	{		
-		return prepareCachedImage(t, level, 0, LoadingStrategy.VOLATILE, volatileType );
+		return prepareCachedImage(t, detailLimiter.limit( level ), 0, LoadingStrategy.VOLATILE, volatileType );
 	}
 
 	@Override
 	public CacheControl getCacheControl()
 	{		
-		return cache;
+		return () -> {
+			final AccessTrace trace = accessTrace;
+			if ( trace != null && traceSetup == 0 )
+				trace.nextFrame();
+			final VolatileGlobalCellCache shared = sharedCache;
+			if ( shared != null )
+				shared.prepareNextFrame();
+			else
+				caches.values().forEach( VolatileGlobalCellCache::prepareNextFrame );
+		};
+	}
+
+	/**
+	 * Each timepoint has its own cache (all on the same fetch queue), so that
+	 * the cells of a timepoint can be {@link #evictTimepoint evicted} when a
+	 * movie has moved past it.
+	 */
+	private VolatileGlobalCellCache cache( final int t )
+	{
+		final VolatileGlobalCellCache shared = sharedCache;
+		if ( shared != null )
+			return shared;
+		return caches.computeIfAbsent( t, k -> new VolatileGlobalCellCache( queue ) );
+	}
+
+	/** drop the cells of timepoint {@code t}, e.g. once it has been rendered */
+	public void evictTimepoint( final int t )
+	{
+		for ( int level = 0; level < numScales; level++ )
+			blockingImages.remove( ( ( long ) t << 32 ) | level );
+		final ConcurrentHashMap< Integer, Queue< long[] > > log = loadLog;
+		if ( log != null )
+			log.remove( t );
+		culler.evictTimepoint( t );
+		loader.evictTimepoint( t );
+		final VolatileGlobalCellCache cache = caches.remove( t );
+		if ( cache != null )
+			cache.clearCache();
+		final ConcurrentHashMap< Integer, Queue< IssuedBlock > > recycled = issued;
+		if ( recycled != null )
+		{
+			evicted.add( t );
+			final Queue< IssuedBlock > blocks = recycled.remove( t );
+			if ( blocks != null )
+				recycle( blocks );
+		}
+	}
+
+	/**
+	 * Put the blocks of {@link #evictTimepoint evicted} timepoints back into
+	 * the {@link ShortArrayPool}, those that no other loader was handed. Only
+	 * for sequences that are rendered once, timepoint by timepoint, like
+	 * {@link TimepointPrefetcher} does: cells loaded after their timepoint was
+	 * evicted are not recycled. Off by default.
+	 */
+	public void setRecycleEvicted( final boolean recycle )
+	{
+		issued = recycle ? new ConcurrentHashMap<>() : null;
+		evicted.clear();
+	}
+
+	/** a source block that went into the cache of its timepoint */
+	void recordIssued( final int t, final int level, final long[] min, final int[] dimensions, final short[] data )
+	{
+		final ConcurrentHashMap< Integer, Queue< IssuedBlock > > recycled = issued;
+		if ( recycled == null || isSynthesized( level ) || sharedCache != null || evicted.contains( t ) )
+			return;
+		recycled.computeIfAbsent( t, k -> new ConcurrentLinkedQueue<>() ).add( new IssuedBlock( loader.blockKey( t, level, min, dimensions ), data ) );
+	}
+
+	private void recycle( final Queue< IssuedBlock > blocks )
+	{
+		final ShortArrayPool pool = ShortArrayPool.get();
+		int n = 0;
+		for ( final IssuedBlock block : blocks )
+		{
+			final short[] data = block.get();
+			if ( data != null && BlockLoadRegistry.get().removeIfExclusive( block.key, data ) )
+			{
+				pool.give( data );
+				n++;
+			}
+		}
+		getMetrics().count( "pool.recycled", n );
+	}
+
+	/** weakly, so that tracking does not keep blocks the cache has dropped */
+	private static final class IssuedBlock extends WeakReference< short[] >
+	{
+		final BlockLoadRegistry.BlockKey key;
+
+		IssuedBlock( final BlockLoadRegistry.BlockKey key, final short[] data )
+		{
+			super( data );
+			this.key = key;
+		}
+	}
+
+	/** number of timepoints the source is present at, counting from 0 */
+	public int numTimepoints()
+	{
+		int n = 0;
+		while ( src.isPresent( n ) )
+			n++;
+		return Math.max( 1, n );
+	}
+
+	/**
+	 * Record which cells are loaded, so that {@link #getLoadedCells} can tell
+	 * them. Off by default.
+	 */
+	public void setTrackLoads( final boolean track )
+	{
+		loadLog = track ? new ConcurrentHashMap<>() : null;
+	}
+
+	void recordLoad( final int t, final int level, final long[] min )
+	{
+		final ConcurrentHashMap< Integer, Queue< long[] > > log = loadLog;
+		final AccessTrace trace = accessTrace;
+		if ( log == null && trace == null )
+			return;
+		final long[] position = cellPosition( level, min );
+		if ( log != null )
+			log.computeIfAbsent( t, k -> new ConcurrentLinkedQueue<>() ).add( new long[] {
+					level, position[ 0 ], position[ 1 ], position[ 2 ] } );
+		if ( trace != null )
+			trace.record( traceSetup, t, level, IntervalIndexer.positionToIndex( position, getCellGrid( t, level ).getGridDimensions() ) );
+	}
+
+	/** the cell at {@code min} was fetched (or computed) in {@code nanos}, for the timeline of the access trace */
+	void recordFetch( final int t, final int level, final long[] min, final long nanos )
+	{
+		final AccessTrace trace = accessTrace;
+		if ( trace != null && trace.hasTimeline() )
+			trace.fetched( traceSetup, t, level, IntervalIndexer.positionToIndex( cellPosition( level, min ), getCellGrid( t, level ).getGridDimensions() ), nanos );
+	}
+
+	private long[] cellPosition( final int level, final long[] min )
+	{
+		final int[] cellDimensions = cellDimensions( level );
+		return new long[] { min[ 0 ] / cellDimensions[ 0 ], min[ 1 ] / cellDimensions[ 1 ], min[ 2 ] / cellDimensions[ 2 ] };
+	}
+
+	/**
+	 * Record the cells this loader loads, in the order they are first needed,
+	 * as {@code setup} of {@code trace}; {@code null} to stop.
+	 */
+	public void setAccessTrace( @Nullable final AccessTrace trace, final int setup )
+	{
+		this.traceSetup = setup;
+		this.accessTrace = trace;
+	}
+
+	/**
+	 * The cells of timepoint {@code t} loaded so far while
+	 * {@link #setTrackLoads tracking}, as {level, grid position}.
+	 */
+	public List< long[] > getLoadedCells( final int t )
+	{
+		final ConcurrentHashMap< Integer, Queue< long[] > > log = loadLog;
+		final Queue< long[] > cells = log == null ? null : log.get( t );
+		return cells == null ? Collections.emptyList() : new ArrayList<>( cells );
 	}
 	
 	@Override
@@ -162,23 +646,386 @@ public class SourceToViewerSetupImgLoaderBvv extends AbstractViewerSetupImgLoade
 		return this;
 	}
 	
+	/** use {@code cache} for all timepoints; {@link #evictTimepoint} then only drops images */
 	public void setCache( final VolatileGlobalCellCache cache )
 	{
-		this.cache = cache;
+		this.sharedCache = cache;
+	}
+
+	/** where loading times and volumes of this loader are recorded **/
+	public void setMetrics( final RenderMetrics metrics )
+	{
+		loader.setMetrics( metrics );
+	}
+
+	RenderMetrics getMetrics()
+	{
+		return loader.getMetrics();
+	}
+
+	/**
+	 * Skip loading cells that are invisible under the display range of
+	 * {@code setup}, see {@link DisplayRangeCuller}.
+	 */
+	public void setDisplayRangeCulling( final ConverterSetup setup )
+	{
+		culler.attach( setup );
+	}
+
+	/**
+	 * Do not load cells outside the clip interval of {@code setup}, see
+	 * {@link RegionCuller}.
+	 */
+	public void setClipCulling( final ConverterSetup setup )
+	{
+		regionCuller.attach( setup );
+	}
+
+	/**
+	 * Load only cells that overlap {@code roi} (global coordinates), or all
+	 * cells for {@code null}. Cells outside it are blank, so the rendering
+	 * should be clipped to it as well.
+	 */
+	public void setRegionOfInterest( @Nullable final RealInterval roi )
+	{
+		regionCuller.setRegionOfInterest( roi );
+	}
+
+	/**
+	 * Give the viewer the images of {@code level} for the source levels finer
+	 * than it, 0 for all levels, see {@link DetailLimiter}. Set by the
+	 * {@link HeapWatchdog}.
+	 */
+	public void setFinestLevel( final int level )
+	{
+		detailLimiter.setFinestLevel( level );
+	}
+
+	/** whether a clip interval or region of interest restricts the cells that are loaded */
+	boolean isRegionRestricted()
+	{
+		return regionCuller.isRestricted();
+	}
+
+	/** min/max of the cells loaded so far, by timepoint and level */
+	public BlockStatsIndex getBlockStats()
+	{
+		return culler.getIndex();
+	}
+
+	/** loaders with a block statistics sidecar, weakly, saved by one shutdown hook; guarded by itself */
+	private static final Set< SourceToViewerSetupImgLoaderBvv > withSidecar = Collections.newSetFromMap( new WeakHashMap<>() );
+
+	static
+	{
+		Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+			final List< SourceToViewerSetupImgLoaderBvv > loaders;
+			synchronized ( withSidecar )
+			{
+				loaders = new ArrayList<>( withSidecar );
+			}
+			loaders.forEach( SourceToViewerSetupImgLoaderBvv::saveBlockStats );
+		}, "bvv-blockstats" ) );
+	}
+
+	/**
+	 * Read the block statistics from {@code sidecar} once {@code dataVersion}
+	 * is known, unless they were computed from another
+	 * {@link BlockStatsIndex#dataVersion}, and save them there when the cache
+	 * is cleared and when the JVM exits. Until then only the statistics of
+	 * the cells loaded since are used for culling. Depends on the cell grid,
+	 * so it must be set after {@link #setBlockReader}.
+	 */
+	public void setBlockStatsSidecar( final Path sidecar, final CompletableFuture< Long > dataVersion )
+	{
+		blockStatsSidecar = sidecar;
+		synchronized ( withSidecar )
+		{
+			withSidecar.add( this );
+		}
+		dataVersion.thenAccept( version -> {
+			try
+			{
+				culler.getIndex().load( sidecar, version );
+			}
+			catch ( final IOException e )
+			{
+				System.err.println( "Ignoring block statistics " + sidecar + ": " + e.getMessage() );
+			}
+		} );
+	}
+
+	private void saveBlockStats()
+	{
+		final Path sidecar = blockStatsSidecar;
+		if ( sidecar == null )
+			return;
+		try
+		{
+			culler.getIndex().save( sidecar );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Cannot save block statistics " + sidecar + ": " + e.getMessage() );
+		}
+	}
+
+	/** the cell dimensions of every level, which the block statistics depend on */
+	int[][] getCellDimensions()
+	{
+		final int[][] dimensions = new int[ numScales ][];
+		for ( int level = 0; level < numScales; level++ )
+			dimensions[ level ] = cellDimensions( level );
+		return dimensions;
+	}
+
+	/**
+	 * Treat the source as a label volume: integer ids wider than 16 bits are
+	 * mapped to compact ids by the {@link LabelDictionary} of the source
+	 * instead of being truncated, and synthesized levels pick a label instead
+	 * of averaging. Must be set before any image of this loader is used.
+	 */
+	public void setLabelMode( final boolean labelMode )
+	{
+		this.labelMode = labelMode;
+		loader.labels = labelMode && src.getType() instanceof IntegerType && SourceArrayLoader.bytesPerElement( src.getType() ) > 2
+				? LabelDictionary.forSource( src )
+				: null;
+	}
+
+	public boolean isLabelMode()
+	{
+		return labelMode;
+	}
+
+	/** the dictionary of compact label ids, or {@code null} if ids are not compacted */
+	public LabelDictionary getLabelDictionary()
+	{
+		return loader.labels;
+	}
+
+	/** drop the cells of this loader from its cache, they are loaded again when needed */
+	void invalidateCells()
+	{
+		clearCaches();
+	}
+
+	/**
+	 * The data of {@code interval} of source level {@code level} changed at
+	 * timepoint {@code t}, or at all timepoints if {@code t} is negative, e.g.
+	 * because chunks were rewritten on disk (see {@link StoreWatcher}). Drops
+	 * everything derived from it: the cells of the source's own cache, the
+	 * converted blocks shared between loaders and processes, their block
+	 * statistics, and the synthesized cells above them in the pyramid store.
+	 *
+	 * The cache of an affected timepoint is cleared as a whole (bdv caches
+	 * cannot drop single cells), but the unchanged cells come back from the
+	 * {@link BlockLoadRegistry} without reading or converting, as long as
+	 * memory has not run short.
+	 */
+	public void invalidate( final int t, final int level, final Interval interval )
+	{
+		if ( t >= 0 && !src.isPresent( t ) )
+			return;
+		final int numTimepoints = t >= 0 ? t + 1 : numTimepoints();
+		for ( int tp = Math.max( 0, t ); tp < numTimepoints; tp++ )
+		{
+			loader.invalidateSource( tp, level, interval );
+			final int timepoint = tp;
+			forEachCell( getCellGrid( tp, level ), Intervals.minAsLongArray( interval ), Intervals.maxAsLongArray( interval ), ( min, dimensions ) -> {
+				loader.invalidate( timepoint, level, min, dimensions );
+				culler.getIndex().remove( timepoint, level, min );
+			} );
+			// synthesized levels are computed from the coarsest source level
+			if ( level == numSourceLevels - 1 )
+			{
+				for ( int l = numSourceLevels; l < numScales; l++ )
+				{
+					final long[] min = new long[ 3 ];
+					final long[] max = new long[ 3 ];
+					for ( int d = 0; d < 3; d++ )
+					{
+						min[ d ] = interval.min( d ) >> ( l - level );
+						max[ d ] = interval.max( d ) >> ( l - level );
+					}
+					final int synthesized = l;
+					final CellGrid grid = getCellGrid( tp, l );
+					forEachCell( grid, min, max, ( cellMin, dimensions ) -> {
+						culler.getIndex().remove( timepoint, synthesized, cellMin );
+						final long[] gridPosition = new long[ 3 ];
+						for ( int d = 0; d < 3; d++ )
+							gridPosition[ d ] = cellMin[ d ] / grid.cellDimension( d );
+						pyramidLoader.invalidate( timepoint, synthesized, gridPosition );
+					} );
+				}
+			}
+			final VolatileGlobalCellCache cache = caches.get( tp );
+			if ( cache != null )
+				cache.clearCache();
+		}
+		final VolatileGlobalCellCache shared = sharedCache;
+		if ( shared != null )
+			shared.clearCache();
+		getMetrics().count( "invalidate.L" + level );
+	}
+
+	/** the min and dimensions of every cell of {@code grid} that overlaps {@code min..max} */
+	private static void forEachCell( final CellGrid grid, final long[] min, final long[] max, final BiConsumer< long[], int[] > action )
+	{
+		final long[] first = new long[ 3 ];
+		final long[] last = new long[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			first[ d ] = Math.max( 0, min[ d ] ) / grid.cellDimension( d );
+			last[ d ] = Math.min( max[ d ], grid.imgDimension( d ) - 1 ) / grid.cellDimension( d );
+			if ( first[ d ] > last[ d ] )
+				return;
+		}
+		final long[] position = new long[ 3 ];
+		for ( position[ 2 ] = first[ 2 ]; position[ 2 ] <= last[ 2 ]; position[ 2 ]++ )
+			for ( position[ 1 ] = first[ 1 ]; position[ 1 ] <= last[ 1 ]; position[ 1 ]++ )
+				for ( position[ 0 ] = first[ 0 ]; position[ 0 ] <= last[ 0 ]; position[ 0 ]++ )
+				{
+					final long[] cellMin = new long[ 3 ];
+					final int[] dimensions = new int[ 3 ];
+					grid.getCellDimensions( position, cellMin, dimensions );
+					action.accept( cellMin, dimensions );
+				}
+	}
+
+	private void clearCaches()
+	{
+		final VolatileGlobalCellCache shared = sharedCache;
+		if ( shared != null )
+			shared.clearCache();
+		caches.values().forEach( VolatileGlobalCellCache::clearCache );
+	}
+
+	/**
+	 * Share the converted blocks of this loader with other processes on this
+	 * host through {@code cache}; {@code datasetId} must identify the source
+	 * and the version of its data in all of them, e.g. its URI, name and
+	 * {@link BlockStatsIndex#dataVersion}, so that blocks of data rewritten
+	 * since are not served. Not used in label mode.
+	 */
+	public void setSharedMemoryCache( @Nullable final SharedMemoryBlockCache cache, final String datasetId )
+	{
+		loader.setSharedMemoryCache( cache, datasetId );
+	}
+
+	/**
+	 * Keep the converted blocks of this loader compressed in {@code cache}
+	 * too, so that blocks the soft-reference caches dropped are decompressed
+	 * instead of loaded again, or {@code null} to not.
+	 */
+	public void setCompressedCache( @Nullable final CompressedBlockCache cache )
+	{
+		loader.compressed = cache;
+	}
+
+	/**
+	 * Release the fetches of this loader in Z-order batches, or {@code null}
+	 * to fetch in request order (the default).
+	 */
+	public void setFetchOrdering( @Nullable final ZOrderBatcher batcher )
+	{
+		loader.setFetchOrdering( batcher );
+	}
+
+	/**
+	 * Read blocks through {@code blockReader} where it can, instead of through
+	 * the source. Changes the cell grid, so it must be set before any image of
+	 * this loader is used.
+	 */
+	public void setBlockReader( @Nullable final ShortBlockReader blockReader )
+	{
+		loader.blockReader = blockReader;
+	}
+
+	/** drops all blocks loaded so far, e.g. before moving on to the next dataset **/
+	public void clearCache()
+	{
+		saveBlockStats();
+		blockingImages.clear();
+		clearCaches();
+		BlockLoadRegistry.get().remove( src );
+		final CompressedBlockCache compressed = loader.compressed;
+		if ( compressed != null )
+			compressed.remove( src );
 	}
 		
 	
 	static class SourceArrayLoader implements CacheArrayLoader<VolatileShortArray> 
 	{
 		
+		/** number of loadArray calls currently running, over all loaders **/
+		private static final AtomicInteger inFlight = new AtomicInteger();
+
+		/**
+		 * Block intervals, reused from block to block. Pooled rather than per
+		 * thread: loads run on (possibly virtual) I/O threads and convert on
+		 * the decode pool.
+		 */
+		private static final ConcurrentLinkedQueue< BlockInterval > INTERVALS = new ConcurrentLinkedQueue<>();
+
+		/** the x,y,z interval of a block, set in place */
+		private static final class BlockInterval extends AbstractInterval
+		{
+			BlockInterval()
+			{
+				super( 3 );
+			}
+
+			BlockInterval set( final long[] blockMin, final int[] dimensions )
+			{
+				for ( int d = 0; d < 3; d++ )
+				{
+					min[ d ] = blockMin[ d ];
+					max[ d ] = blockMin[ d ] + dimensions[ d ] - 1;
+				}
+				return this;
+			}
+		}
+
 		final Source<?> src;
 		private final ValuePair< Double, Double > minMax; // only needed for FloatType
+		private final int sourceBytesPerElement;
+		private volatile RenderMetrics metrics = RenderMetrics.global();
+		private volatile ZOrderBatcher batcher;
+		volatile ShortBlockReader blockReader;
+		volatile LabelDictionary labels;
+		private volatile SharedMemoryBlockCache sharedMemory;
+		volatile CompressedBlockCache compressed;
+		private volatile String sharedMemoryId;
+		private final ConcurrentHashMap< Long, RandomAccessibleInterval< UnsignedShortType > > converted = new ConcurrentHashMap<>(); // by timepoint and level
 
 		public SourceArrayLoader( final Source<?> src,
 								  @Nullable final ValuePair< Double, Double > minMax )
 		{
 			this.src = src;
 			this.minMax = minMax;
+			this.sourceBytesPerElement = bytesPerElement( src.getType() );
+		}
+
+		void setMetrics( final RenderMetrics metrics )
+		{
+			this.metrics = metrics;
+		}
+
+		RenderMetrics getMetrics()
+		{
+			return metrics;
+		}
+
+		void setFetchOrdering( @Nullable final ZOrderBatcher batcher )
+		{
+			this.batcher = batcher;
+		}
+
+		void setSharedMemoryCache( @Nullable final SharedMemoryBlockCache cache, final String datasetId )
+		{
+			this.sharedMemoryId = datasetId;
+			this.sharedMemory = cache;
 		}
 		
 		@Override
@@ -188,38 +1035,165 @@ public class SourceToViewerSetupImgLoaderBvv extends AbstractViewerSetupImgLoade
 
 		@Override
 		public VolatileShortArray loadArray( int timepoint, int setup, int level, int[] dimensions, long[] min )
+		{
+			final RenderMetrics metrics = this.metrics;
+			metrics.count( "cache.miss" );
+			metrics.sample( "load.queueDepth", inFlight.incrementAndGet() );
+			try
+			{
+				// other loaders wrapping the same source may be loading this block already
+				final BlockLoadRegistry.BlockKey key = blockKey( timepoint, level, min, dimensions );
+				final short[] data = BlockLoadRegistry.get().load( key, metrics, () -> loadCompressed( metrics, key, timepoint, level, dimensions, min ) );
+				return new VolatileShortArray( data, true );
+			}
+			finally
+			{
+				inFlight.decrementAndGet();
+			}
+		}
+
+		/** the block from the compressed cache if it is there, otherwise {@link #loadShared} it and compress it */
+		private short[] loadCompressed( final RenderMetrics metrics, final BlockLoadRegistry.BlockKey key,
+				int timepoint, int level, int[] dimensions, long[] min )
+		{
+			final CompressedBlockCache compressed = this.compressed;
+			if ( compressed == null )
+				return loadShared( metrics, timepoint, level, dimensions, min );
+			short[] data = compressed.get( key, metrics );
+			if ( data != null )
+				return data;
+			data = loadShared( metrics, timepoint, level, dimensions, min );
+			compressed.put( key, data, metrics );
+			return data;
+		}
+
+		/** the block from the shared memory cache of this host if it is there, otherwise {@link #load} it and put it there */
+		private short[] loadShared( final RenderMetrics metrics, int timepoint, int level, int[] dimensions, long[] min )
+		{
+			final SharedMemoryBlockCache shared = sharedMemory;
+			// compacted label ids depend on the order this process saw the labels in
+			if ( shared == null || labels != null )
+				return load( metrics, timepoint, level, dimensions, min );
+			final long[] key = SharedMemoryBlockCache.key( sharedMemoryId, minMax, labels != null, timepoint, level, min, dimensions );
+			short[] data = shared.get( key, dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] );
+			if ( data != null )
+			{
+				metrics.count( "load.shm.hit" );
+				return data;
+			}
+			data = load( metrics, timepoint, level, dimensions, min );
+			shared.put( key, data );
+			metrics.count( "load.shm.miss" );
+			return data;
+		}
+
+		BlockLoadRegistry.BlockKey blockKey( final int timepoint, final int level, final long[] min, final int[] dimensions )
+		{
+			return new BlockLoadRegistry.BlockKey( src, minMax, labels != null, timepoint, level, min, dimensions );
+		}
+
+		/** load a block for the caller only: no cache, no sharing, the caller may recycle it */
+		short[] loadExclusive( final int timepoint, final int level, final int[] dimensions, final long[] min )
+		{
+			return load( metrics, timepoint, level, dimensions, min );
+		}
+
+		private short[] load( final RenderMetrics metrics, int timepoint, int level, int[] dimensions, long[] min )
 		{
 			RandomAccessibleInterval< ? > raiXYZ = src.getSource( timepoint, level );
 
-			final short[] data = new short[dimensions[0]*dimensions[1]*dimensions[2]];
+			// pooled arrays are not zeroed, every path below writes all of it
+			final short[] data = ShortArrayPool.get().take( dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] );
 
-			final long[][] interval = new long [2][3];
-			for(int d=0;d<3;d++)
+			final ShortBlockReader blockReader = this.blockReader;
+			if ( blockReader != null && readDirect( blockReader, metrics, timepoint, level, dimensions, min, data ) )
+				return data;
+
+			BlockInterval pooled = INTERVALS.poll();
+			if ( pooled == null )
+				pooled = new BlockInterval();
+			final BlockInterval interval = pooled.set( min, dimensions );
+
+			// load the underlying cells first, so that I/O and conversion can be timed separately
+			final long fetchStart = System.nanoTime();
+			final ZOrderBatcher batcher = this.batcher;
+			if ( batcher != null )
+				awaitTurn( batcher, level, min );
+			try
+			{
+				touchCells( raiXYZ, interval );
+			}
+			finally
 			{
-				interval[0][d] = min[d];
-				interval[1][d] = min[d] + dimensions[d] - 1;
+				if ( batcher != null )
+					batcher.done();
 			}
-			FinalInterval finalInterval = new FinalInterval( interval[ 0 ], interval[ 1 ] );
+			metrics.time( "load.fetch.L" + level, fetchStart );
+			metrics.count( "load.bytes.L" + level, ( long ) data.length * sourceBytesPerElement );
+			metrics.count( "load.blocks.L" + level );
 
-			IterableInterval< UnsignedShortType > rai;
+			// conversion is CPU bound: keep it off the I/O threads
+			final short[] result = FetchScheduler.get().decode( () -> {
+				final long convertStart = System.nanoTime();
+				convert( timepoint, level, raiXYZ, interval, data );
+				metrics.time( "load.convert.L" + level, convertStart );
+				return data;
+			} );
+			// only once the conversion is done with it; after a failure it may still run
+			INTERVALS.add( interval );
+			return result;
+		}
 
-			if ( src.getType() instanceof IntegerType )
+		/** the fast path: no source, no conversion */
+		private static boolean readDirect( final ShortBlockReader blockReader, final RenderMetrics metrics,
+				final int timepoint, final int level, final int[] dimensions, final long[] min, final short[] data )
+		{
+			final long fetchStart = System.nanoTime();
+			try
 			{
-				rai = Views.flatIterable( convertIntegerRAIToShort( Views.interval( raiXYZ, finalInterval ) ) );
+				if ( !blockReader.readBlock( timepoint, level, min, dimensions, data ) )
+					return false;
 			}
-			else if ( src.getType() instanceof RealType )
+			catch ( final IOException e )
 			{
-				rai = Views.flatIterable( convertRealRAIToShort( Views.interval( raiXYZ, finalInterval ), minMax ));
+				throw new UncheckedIOException( e );
 			}
-			else if ( src.getType() instanceof AnnotationType )
+			metrics.time( "load.fetch.L" + level, fetchStart );
+			metrics.count( "load.bytes.L" + level, ( long ) data.length * 2 );
+			metrics.count( "load.blocks.L" + level );
+			metrics.count( "load.direct" );
+			return true;
+		}
+
+		private static void awaitTurn( final ZOrderBatcher batcher, final int level, final long[] min )
+		{
+			try
 			{
-				rai = Views.flatIterable( convertAnnotationRAIToShort( Views.interval( raiXYZ, finalInterval ) ) );
+				batcher.awaitTurn( level, min );
 			}
-			else
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( e );
+			}
+		}
+
+		private void convert( final int timepoint, final int level, final RandomAccessibleInterval< ? > raiXYZ,
+				final Interval interval, final short[] data )
+		{
+			final LabelDictionary labels = this.labels;
+			if ( labels != null )
 			{
-				rai = null; // FIXME: should not happen, but throw error
+				convertLabels( raiXYZ, interval, data, labels );
+				return;
 			}
 
+			// the converted view of a level is built once, not per block
+			final RandomAccessibleInterval< UnsignedShortType > shorts = converted.computeIfAbsent(
+					( ( long ) timepoint << 32 ) | level, k -> convertToShort( raiXYZ ) );
+			// FIXME: null should not happen, but throw error
+			final IterableInterval< UnsignedShortType > rai = Views.flatIterable( Views.interval( shorts, interval ) );
+
 			int pixelIndex = 0;
 
 			Cursor< UnsignedShortType > cur = rai.cursor();
@@ -229,7 +1203,190 @@ public class SourceToViewerSetupImgLoaderBvv extends AbstractViewerSetupImgLoade
 				data[pixelIndex] = cur.get().getShort();
 				pixelIndex++;
 			}
-			return new VolatileShortArray(data,true);
+		}
+
+		private RandomAccessibleInterval< UnsignedShortType > convertToShort( final RandomAccessibleInterval< ? > raiXYZ )
+		{
+			if ( src.getType() instanceof IntegerType )
+				return convertIntegerRAIToShort( raiXYZ );
+			else if ( src.getType() instanceof RealType )
+				return convertRealRAIToShort( raiXYZ, minMax );
+			else if ( src.getType() instanceof AnnotationType )
+				return convertAnnotationRAIToShort( raiXYZ );
+			return null;
+		}
+
+		/** forget the converted block, shared between loaders and processes, e.g. because its data changed */
+		void invalidate( final int timepoint, final int level, final long[] min, final int[] dimensions )
+		{
+			final BlockLoadRegistry.BlockKey key = blockKey( timepoint, level, min, dimensions );
+			BlockLoadRegistry.get().invalidate( key );
+			final CompressedBlockCache compressed = this.compressed;
+			if ( compressed != null )
+				compressed.invalidate( key );
+			final SharedMemoryBlockCache shared = sharedMemory;
+			if ( shared != null && labels == null )
+				shared.remove( SharedMemoryBlockCache.key( sharedMemoryId, minMax, false, timepoint, level, min, dimensions ) );
+		}
+
+		/**
+		 * Drop the cells of the source's own cache that overlap
+		 * {@code interval}, if the source image is a {@link CachedCellImg},
+		 * possibly behind interval and slicing views (which N5 sources of
+		 * several channels or timepoints are). Cells are matched in x,y,z
+		 * only, at all positions along further dimensions.
+		 */
+		void invalidateSource( final int timepoint, final int level, final Interval interval )
+		{
+			final long[] offset = new long[ 3 ];
+			final AbstractCellImg< ?, ?, ?, ? > img = unwrapCellImg( src.getSource( timepoint, level ), offset );
+			if ( !( img instanceof CachedCellImg ) )
+				return;
+			final CachedCellImg< ?, ? > cells = ( CachedCellImg< ?, ? > ) img;
+			final CellGrid grid = cells.getCellGrid();
+			final long[] gridDimensions = grid.getGridDimensions();
+			final long[] min = new long[ 3 ];
+			final long[] max = new long[ 3 ];
+			for ( int d = 0; d < 3; d++ )
+			{
+				min[ d ] = ( interval.min( d ) + offset[ d ] ) / grid.cellDimension( d );
+				max[ d ] = ( interval.max( d ) + offset[ d ] ) / grid.cellDimension( d );
+			}
+			cells.getCache().invalidateIf( index -> {
+				final long[] position = new long[ gridDimensions.length ];
+				IntervalIndexer.indexToPosition( index, gridDimensions, position );
+				for ( int d = 0; d < 3; d++ )
+					if ( position[ d ] < min[ d ] || position[ d ] > max[ d ] )
+						return false;
+				return true;
+			} );
+		}
+
+		/**
+		 * The cell image under the interval and slicing views of {@code img},
+		 * or {@code null} if there is none or the views do more than shift
+		 * x,y,z; adds the shift from view to cell image to {@code offset}.
+		 */
+		@Nullable
+		static AbstractCellImg< ?, ?, ?, ? > unwrapCellImg( Object img, final long[] offset )
+		{
+			while ( !( img instanceof AbstractCellImg ) )
+			{
+				if ( img instanceof IntervalView )
+					img = ( ( IntervalView< ? > ) img ).getSource();
+				else if ( img instanceof MixedTransformView && translatesXYZ( ( ( MixedTransformView< ? > ) img ).getTransformToSource(), offset ) )
+					img = ( ( MixedTransformView< ? > ) img ).getSource();
+				else
+					return null;
+			}
+			return ( AbstractCellImg< ?, ?, ?, ? > ) img;
+		}
+
+		/** whether x,y,z of the view are x,y,z of its source, shifted; adds the shift to {@code offset} */
+		private static boolean translatesXYZ( final MixedTransform transform, final long[] offset )
+		{
+			final int n = transform.numSourceDimensions();
+			if ( n < 3 )
+				return false;
+			final boolean[] zero = new boolean[ n ];
+			final boolean[] inverted = new boolean[ n ];
+			final int[] mapping = new int[ n ];
+			final long[] translation = new long[ n ];
+			transform.getComponentZero( zero );
+			transform.getComponentInversion( inverted );
+			transform.getComponentMapping( mapping );
+			transform.getTranslation( translation );
+			for ( int d = 0; d < 3; d++ )
+			{
+				if ( zero[ d ] || inverted[ d ] || mapping[ d ] != d )
+					return false;
+				offset[ d ] += translation[ d ];
+			}
+			return true;
+		}
+
+		/** forget the converted views of timepoint {@code t} */
+		void evictTimepoint( final int t )
+		{
+			converted.keySet().removeIf( key -> ( int ) ( key >>> 32 ) == t );
+		}
+
+		@SuppressWarnings( "unchecked" )
+		private static void convertLabels( final RandomAccessibleInterval< ? > raiXYZ, final Interval interval,
+				final short[] data, final LabelDictionary labels )
+		{
+			final Cursor< ? extends IntegerType< ? > > cur = Views.flatIterable(
+					Views.interval( ( RandomAccessibleInterval< ? extends IntegerType< ? > > ) raiXYZ, interval ) ).cursor();
+			// labels come in runs, look each run up once
+			long last = 0;
+			short lastId = 0;
+			int pixelIndex = 0;
+			while ( cur.hasNext() )
+			{
+				final long label = cur.next().getIntegerLong();
+				if ( label != last )
+				{
+					last = label;
+					lastId = labels.compact( label );
+				}
+				data[ pixelIndex++ ] = lastId;
+			}
+		}
+
+		/**
+		 * Load the cells of the cell image under {@code rai} that overlap
+		 * {@code interval}, one access per cell through {@code rai}. Sources of
+		 * several channels or timepoints are interval and slicing views of
+		 * their cell image, see {@link #unwrapCellImg}.
+		 */
+		static void touchCells( final RandomAccessibleInterval< ? > rai, final Interval interval )
+		{
+			final int n = interval.numDimensions();
+			final long[] offset = new long[ n ];
+			final AbstractCellImg< ?, ?, ?, ? > img = unwrapCellImg( rai, offset );
+			if ( img == null )
+				return;
+
+			final CellGrid grid = img.getCellGrid();
+			final long[] cellMin = new long[ n ];
+			final long[] cellMax = new long[ n ];
+			for ( int d = 0; d < n; d++ )
+			{
+				cellMin[ d ] = ( interval.min( d ) + offset[ d ] ) / grid.cellDimension( d );
+				cellMax[ d ] = ( interval.max( d ) + offset[ d ] ) / grid.cellDimension( d );
+			}
+
+			final RandomAccess< ? > ra = rai.randomAccess();
+			final long[] cell = cellMin.clone();
+			while ( true )
+			{
+				for ( int d = 0; d < n; d++ )
+					ra.setPosition( Math.max( interval.min( d ), cell[ d ] * grid.cellDimension( d ) - offset[ d ] ), d );
+				ra.get();
+
+				int d = 0;
+				for ( ; d < n; d++ )
+				{
+					if ( ++cell[ d ] <= cellMax[ d ] )
+						break;
+					cell[ d ] = cellMin[ d ];
+				}
+				if ( d == n )
+					return;
+			}
+		}
+
+		static int bytesPerElement( final Object type )
+		{
+			if ( type instanceof GenericByteType )
+				return 1;
+			if ( type instanceof GenericShortType )
+				return 2;
+			if ( type instanceof GenericIntType || type instanceof FloatType )
+				return 4;
+			if ( type instanceof GenericLongType || type instanceof DoubleType )
+				return 8;
+			return 2;
 		}
 	}
 
@@ -260,6 +1417,17 @@ public class SourceToViewerSetupImgLoaderBvv extends AbstractViewerSetupImgLoade
 
 	}
 	
+	@SuppressWarnings( "unchecked" )
+	private static RandomAccessibleInterval< UnsignedShortType > convertLabelRAIToShort(
+			RandomAccessibleInterval< ? > raiXYZ,
+			LabelDictionary labels )
+	{
+		return Converters.convert(
+				( RandomAccessibleInterval< ? extends IntegerType< ? > > ) raiXYZ,
+				( i, o ) -> o.setShort( labels.compact( i.getIntegerLong() ) ),
+				new UnsignedShortType() );
+	}
+
 	@SuppressWarnings( "unchecked" )
 	private static  <R extends RealType< R > > RandomAccessibleInterval< UnsignedShortType > convertRealRAIToShort(
 			RandomAccessibleInterval< ? > raiXYZ,
@@ -300,7 +1468,7 @@ public class SourceToViewerSetupImgLoaderBvv extends AbstractViewerSetupImgLoade
 		return new ValuePair<>(0.0, 255.0);
 	}
 	
-	private static ValuePair<Double, Double> getMinMaxForRealType(
+	static ValuePair<Double, Double> getMinMaxForRealType(
 			RandomAccessibleInterval<? extends RealType<?>> source)
 		{
 			Cursor<? extends RealType<?>> cursor = Views.iterable(source).cursor();
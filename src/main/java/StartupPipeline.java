@@ -0,0 +1,180 @@
+import bdv.cache.SharedQueue;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import mpicbg.spim.data.generic.AbstractSpimData;
+import net.imglib2.cache.queue.BlockingFetchQueues;
+import net.imglib2.img.cell.CellGrid;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5URI;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the I/O bound startup steps concurrently instead of one after the
+ * other: metadata discovery of several containers, wrapping of every source
+ * (including the min/max sampling of float sources) and loading the coarsest
+ * mip level of each source into its cache.
+ *
+ * Every source gets its own future, so a viewer can show the first source as
+ * soon as its coarsest level is available, while the others are still being
+ * set up.
+ */
+public class StartupPipeline {
+
+    /** A wrapped source whose coarsest level is in the cache, as far as {@link #warmUpCoarsestLevel} loads it. */
+    public static class WrappedSource {
+        final SourceAndConverter<?> sourceAndConverter;
+        final SourceToViewerSetupImgLoaderBvv imgLoader;
+        final AbstractSpimData<?> spimData;
+
+        WrappedSource(SourceAndConverter<?> sourceAndConverter, SourceToViewerSetupImgLoaderBvv imgLoader, AbstractSpimData<?> spimData) {
+            this.sourceAndConverter = sourceAndConverter;
+            this.imgLoader = imgLoader;
+            this.spimData = spimData;
+        }
+    }
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()),
+            FetchScheduler.daemonThreads("startup"));
+
+    private final BlockingFetchQueues<Callable<?>> queue;
+    private final RenderMetrics metrics;
+
+    /**
+     * @param queue   fetch queue for the wrapped loaders, or {@code null} for the global {@link FetchScheduler#queue()}
+     * @param metrics where the wrapped loaders record their timings
+     */
+    public StartupPipeline(BlockingFetchQueues<Callable<?>> queue, RenderMetrics metrics) {
+        this.queue = queue;
+        this.metrics = metrics;
+    }
+
+    /** discover the sources of a container in the background */
+    public CompletableFuture<List<SourceAndConverter<?>>> discover(N5URI uri, N5Reader n5, SharedQueue sharedQueue) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                final long start = System.nanoTime();
+                final List<SourceAndConverter<?>> socs = Main.getSourcesAndConverters(uri, n5, sharedQueue);
+                metrics.time("startup.discover", start);
+                return socs;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, EXECUTOR);
+    }
+
+    /**
+     * Wrap each source and warm up its coarsest level, all sources in
+     * parallel. The futures are in the order of {@code socs}.
+     */
+    public List<CompletableFuture<WrappedSource>> wrapAll(List<SourceAndConverter<?>> socs) {
+        return wrapAll(socs, null, null, null, false);
+    }
+
+    /**
+     * As {@link #wrapAll(List)}, for the sources discovered in {@code uri}:
+     * fetches from remote containers are ordered ({@link ZOrderBatcher#forUri}),
+     * and a single source in a local raw uint16 container is read with
+     * {@link MappedRawReader}. Block statistics of the sources are kept in
+     * {@link BlockStatsIndex#sidecar sidecar} files.
+     */
+    public List<CompletableFuture<WrappedSource>> wrapAll(N5URI uri, List<SourceAndConverter<?>> socs) {
+        return wrapAll(uri, socs, Boolean.getBoolean("bvv.labels"));
+    }
+
+    /**
+     * As {@link #wrapAll(N5URI, List)}, with the sources in
+     * {@link SourceToViewerSetupImgLoaderBvv#setLabelMode label mode} if
+     * {@code labels} is set.
+     */
+    public List<CompletableFuture<WrappedSource>> wrapAll(N5URI uri, List<SourceAndConverter<?>> socs, boolean labels) {
+        final MappedRawReader blockReader = socs.size() == 1 ? MappedRawReader.forContainer(uri) : null;
+        return wrapAll(socs, uri, ZOrderBatcher.forUri(uri), blockReader, labels);
+    }
+
+    private List<CompletableFuture<WrappedSource>> wrapAll(List<SourceAndConverter<?>> socs,
+                                                           @Nullable N5URI uri,
+                                                           @Nullable ZOrderBatcher fetchOrdering,
+                                                           @Nullable MappedRawReader blockReader,
+                                                           boolean labels) {
+        // walks a local container once for all of its sources, while they are wrapped and warmed up
+        final CompletableFuture<Long> dataVersion = uri == null
+                ? CompletableFuture.completedFuture(0L)
+                : CompletableFuture.supplyAsync(() -> BlockStatsIndex.dataVersion(uri), EXECUTOR);
+        final List<CompletableFuture<WrappedSource>> futures = new ArrayList<>(socs.size());
+        for (SourceAndConverter<?> soc : socs)
+            futures.add(CompletableFuture.supplyAsync(() -> wrap(soc, uri, dataVersion, fetchOrdering, blockReader, labels), EXECUTOR)
+                    .thenCompose(wrapped -> warmUpCoarsestLevel(wrapped.imgLoader).thenApply(v -> wrapped)));
+        return futures;
+    }
+
+    private WrappedSource wrap(SourceAndConverter<?> soc, N5URI uri, CompletableFuture<Long> dataVersion,
+                               ZOrderBatcher fetchOrdering, MappedRawReader blockReader, boolean labels) {
+        final long start = System.nanoTime();
+        final Source<?> source = soc.getSpimSource();
+        final SourceToViewerSetupImgLoaderBvv imgLoader = new SourceToViewerSetupImgLoaderBvv(source, queue);
+        imgLoader.setMetrics(metrics);
+        imgLoader.setFetchOrdering(fetchOrdering);
+        imgLoader.setLabelMode(labels);
+        imgLoader.setCompressedCache(CompressedBlockCache.get());
+        final HeapWatchdog watchdog = HeapWatchdog.get();
+        if (watchdog != null)
+            watchdog.register(imgLoader);
+        if (blockReader != null && blockReader.matches(source))
+            imgLoader.setBlockReader(blockReader);
+        if (uri != null) {
+            final String id = uri + "#" + source.getName();
+            imgLoader.setBlockStatsSidecar(BlockStatsIndex.sidecar(id, imgLoader.getCellDimensions()), dataVersion);
+            // blocks of rewritten data get other keys; data of unknown version is not shared
+            final SharedMemoryBlockCache shared = SharedMemoryBlockCache.get();
+            if (shared != null)
+                dataVersion.thenAccept(version -> {
+                    if (version >= 0)
+                        imgLoader.setSharedMemoryCache(shared, id + "@" + version);
+                });
+        }
+        final AbstractSpimData<?> spimData = SourceToSpimDataWrapper.wrap(imgLoader);
+        metrics.time("startup.wrap", start);
+        return new WrappedSource(soc, imgLoader, spimData);
+    }
+
+    /**
+     * Load the cells of the coarsest level of timepoint 0, in parallel, up to
+     * {@code bvv.startup.warmUpMB} (default 256) of them. A synthesized coarsest
+     * level is not warmed up: computing it reads the whole source level below,
+     * so it is left to load progressively while the source is shown.
+     */
+    static CompletableFuture<Void> warmUpCoarsestLevel(SourceToViewerSetupImgLoaderBvv imgLoader) {
+        final int level = imgLoader.numMipmapLevels() - 1;
+        if (imgLoader.isSynthesized(level))
+            return CompletableFuture.completedFuture(null);
+        final CellGrid grid = imgLoader.getCellGrid(0, level);
+        long cellBytes = 2;
+        for (int d = 0; d < grid.numDimensions(); d++)
+            cellBytes *= grid.cellDimension(d);
+        final long maxCells = (Long.getLong("bvv.startup.warmUpMB", 256) << 20) / cellBytes;
+        final CompletableFuture<?>[] cells = new CompletableFuture<?>[(int) Math.min(Math.min(grid.getNumCells(), maxCells), Integer.MAX_VALUE)];
+        for (int i = 0; i < cells.length; i++) {
+            final long index = i;
+            cells[i] = CompletableFuture.runAsync(() -> imgLoader.loadCell(0, level, index), EXECUTOR);
+        }
+        return CompletableFuture.allOf(cells);
+    }
+
+    /** wait for all futures, rethrowing the first failure */
+    static <T> List<T> join(List<CompletableFuture<T>> futures) {
+        final List<T> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<T> future : futures)
+            results.add(future.join());
+        return results;
+    }
+}
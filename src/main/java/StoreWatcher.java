@@ -0,0 +1,422 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.imglib2.FinalInterval;
+import org.janelia.saalfeldlab.n5.N5URI;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a local N5 or Zarr container that is written while it is viewed
+ * (live acquisition, proofreading) and invalidates exactly what the wrapped
+ * loaders derived from the chunks that changed, see
+ * {@link SourceToViewerSetupImgLoaderBvv#invalidate}. The rest of the cache
+ * stays warm.
+ *
+ * Chunk files are polled for modification time every
+ * {@code bvv.watch.intervalMillis} (default 1000); the first scan only
+ * records them. A chunk that appeared, was rewritten or was deleted
+ * invalidates the voxels it covers at its level, at the timepoints it covers
+ * if the metadata names a {@code t} axis, otherwise at all timepoints.
+ * Channels are not told apart, every loader of the container is invalidated.
+ * Sharded Zarr v3 shards are chunks as well; their indices are dropped from
+ * the {@link ShardIndexCache}.
+ *
+ * Supported layouts are those of {@link MappedRawReader} (a single dataset,
+ * an N5 Viewer multiscale group or an OME-Zarr multiscale) in any data type
+ * and compression, and Zarr v3 arrays and multiscales. Loaders whose source
+ * has a different number of levels than the container are left alone.
+ *
+ * After every scan the loaders are asked for their number of timepoints, and
+ * {@link Listener#timepointsAdded} is called when it grew.
+ */
+public class StoreWatcher implements AutoCloseable
+{
+	public interface Listener
+	{
+		/** cells of the loaders were invalidated because {@code numChunks} chunks changed */
+		default void changed( final int numChunks )
+		{}
+
+		/** the sources are present at {@code numTimepoints} timepoints now */
+		default void timepointsAdded( final int numTimepoints )
+		{}
+	}
+
+	private enum Format
+	{
+		N5, ZARR2, ZARR3
+	}
+
+	static final class Level
+	{
+		final Path dir;
+
+		final Format format;
+
+		/** chunk (or shard) shape, imglib2 order */
+		final long[] chunkShape;
+
+		final String separator;
+
+		/** whether keys start with "c" (Zarr v3 default encoding) */
+		final boolean prefixed;
+
+		/** imglib2 dimension of the time axis, -1 if unknown */
+		final int timeDim;
+
+		/** chunk key -> last modified */
+		final Map< String, Long > modified = new HashMap<>();
+
+		Level( final Path dir, final Format format, final long[] chunkShape, final String separator, final boolean prefixed, final int timeDim )
+		{
+			this.dir = dir;
+			this.format = format;
+			this.chunkShape = chunkShape;
+			this.separator = separator;
+			this.prefixed = prefixed;
+			this.timeDim = timeDim;
+		}
+	}
+
+	private final Level[] levels;
+
+	private final String shardIndexPrefix;
+
+	private final List< SourceToViewerSetupImgLoaderBvv > loaders;
+
+	private final List< Listener > listeners = new CopyOnWriteArrayList<>();
+
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor( FetchScheduler.daemonThreads( "bvv-store-watcher" ) );
+
+	private int numTimepoints;
+
+	private boolean scanned;
+
+	private StoreWatcher( final Level[] levels, final String shardIndexPrefix, final List< SourceToViewerSetupImgLoaderBvv > loaders )
+	{
+		this.levels = levels;
+		this.shardIndexPrefix = shardIndexPrefix;
+		this.loaders = new ArrayList<>();
+		for ( final SourceToViewerSetupImgLoaderBvv loader : loaders )
+		{
+			if ( loader.numSourceLevels == levels.length )
+				this.loaders.add( loader );
+			else
+				System.err.println( "Not watching " + loader.src.getName() + ": " + loader.numSourceLevels + " levels, the store has " + levels.length );
+		}
+		for ( final SourceToViewerSetupImgLoaderBvv loader : this.loaders )
+			numTimepoints = Math.max( numTimepoints, loader.numTimepoints() );
+	}
+
+	/**
+	 * Start watching the node {@code uri} points to for the sources of
+	 * {@code loaders}, or return {@code null} if it is not local or its layout
+	 * is not supported.
+	 */
+	@Nullable
+	public static StoreWatcher watch( final N5URI uri, final List< SourceToViewerSetupImgLoaderBvv > loaders )
+	{
+		final StoreWatcher watcher = forContainer( uri, loaders );
+		if ( watcher != null )
+			watcher.start( Long.getLong( "bvv.watch.intervalMillis", 1000 ) );
+		return watcher;
+	}
+
+	@Nullable
+	static StoreWatcher forContainer( final N5URI uri, final List< SourceToViewerSetupImgLoaderBvv > loaders )
+	{
+		try
+		{
+			final URI location = ShardedZarrSource.location( uri );
+			if ( location.getScheme() != null && !location.getScheme().equals( "file" ) )
+				return null;
+			final Path root = location.getScheme() == null ? Paths.get( location.getPath() ) : Paths.get( location );
+
+			final List< Path > paths = new ArrayList<>();
+			final List< String > axes = new ArrayList<>();
+			final JsonObject zattrs = readJson( root.resolve( ".zattrs" ) );
+			final JsonObject zarrJson = readJson( root.resolve( "zarr.json" ) );
+			final JsonObject n5 = readJson( root.resolve( "attributes.json" ) );
+			if ( n5 != null && n5.has( "dataType" ) || Files.exists( root.resolve( ".zarray" ) ) )
+				paths.add( root );
+			else if ( zarrJson != null && zarrJson.get( "node_type" ).getAsString().equals( "array" ) )
+				paths.add( root );
+			else if ( zattrs != null && zattrs.has( "multiscales" ) )
+				addDatasets( root, zattrs, paths, axes );
+			else if ( zarrJson != null && zarrJson.has( "attributes" ) )
+			{
+				final JsonObject attributes = zarrJson.getAsJsonObject( "attributes" );
+				// OME-Zarr 0.5 keeps the multiscales under "ome"
+				addDatasets( root, attributes.has( "ome" ) ? attributes.getAsJsonObject( "ome" ) : attributes, paths, axes );
+			}
+			else
+			{
+				for ( int l = 0; Files.exists( root.resolve( "s" + l ).resolve( "attributes.json" ) ); l++ )
+					paths.add( root.resolve( "s" + l ) );
+			}
+			if ( paths.isEmpty() )
+				return null;
+
+			final Level[] levels = new Level[ paths.size() ];
+			for ( int l = 0; l < levels.length; l++ )
+			{
+				levels[ l ] = readLevel( paths.get( l ), axes );
+				if ( levels[ l ] == null )
+					return null;
+			}
+			return new StoreWatcher( levels, location.toString(), loaders );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			return null;
+		}
+	}
+
+	public void addListener( final Listener listener )
+	{
+		listeners.add( listener );
+	}
+
+	void start( final long intervalMillis )
+	{
+		executor.scheduleWithFixedDelay( this::poll, 0, intervalMillis, TimeUnit.MILLISECONDS );
+	}
+
+	/** scan the store once and invalidate what changed since the last scan */
+	synchronized void poll()
+	{
+		try
+		{
+			final long start = System.nanoTime();
+			int changed = 0;
+			for ( int l = 0; l < levels.length; l++ )
+				changed += scan( l );
+			scanned = true;
+			for ( final SourceToViewerSetupImgLoaderBvv loader : loaders )
+				loader.getMetrics().time( "watch.scan", start );
+			if ( changed > 0 )
+				for ( final Listener listener : listeners )
+					listener.changed( changed );
+
+			int n = 0;
+			for ( final SourceToViewerSetupImgLoaderBvv loader : loaders )
+				n = Math.max( n, loader.numTimepoints() );
+			if ( n > numTimepoints )
+			{
+				numTimepoints = n;
+				for ( final Listener listener : listeners )
+					listener.timepointsAdded( n );
+			}
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			// the store is being written, try again next time
+			System.err.println( "Store watcher: " + e.getMessage() );
+		}
+	}
+
+	/** @return the number of chunks of {@code level} that changed */
+	private int scan( final int level ) throws IOException
+	{
+		final Level l = levels[ level ];
+		final Map< String, Long > seen = new HashMap<>();
+		Files.walkFileTree( l.dir, new SimpleFileVisitor< Path >()
+		{
+			@Override
+			public FileVisitResult visitFile( final Path file, final BasicFileAttributes attributes )
+			{
+				if ( attributes.isRegularFile() )
+				{
+					final String key = l.dir.relativize( file ).toString().replace( file.getFileSystem().getSeparator(), "/" );
+					if ( gridPosition( l, key ) != null )
+						seen.put( key, attributes.lastModifiedTime().toMillis() );
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		} );
+
+		final List< String > changed = new ArrayList<>();
+		if ( scanned )
+		{
+			for ( final Map.Entry< String, Long > entry : seen.entrySet() )
+				if ( !entry.getValue().equals( l.modified.get( entry.getKey() ) ) )
+					changed.add( entry.getKey() );
+			for ( final String key : l.modified.keySet() )
+				if ( !seen.containsKey( key ) )
+					changed.add( key );
+		}
+		l.modified.clear();
+		l.modified.putAll( seen );
+
+		if ( !changed.isEmpty() && l.format == Format.ZARR3 )
+			ShardIndexCache.global().invalidatePrefix( shardIndexPrefix );
+		for ( final String key : changed )
+			invalidate( level, gridPosition( l, key ) );
+		return changed.size();
+	}
+
+	private void invalidate( final int level, final long[] gridPosition )
+	{
+		final Level l = levels[ level ];
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			min[ d ] = gridPosition[ d ] * l.chunkShape[ d ];
+			max[ d ] = min[ d ] + l.chunkShape[ d ] - 1;
+		}
+		final FinalInterval interval = new FinalInterval( min, max );
+		for ( final SourceToViewerSetupImgLoaderBvv loader : loaders )
+		{
+			loader.getMetrics().count( "watch.chunks.L" + level );
+			if ( l.timeDim < 0 )
+				loader.invalidate( -1, level, interval );
+			else
+			{
+				final long first = gridPosition[ l.timeDim ] * l.chunkShape[ l.timeDim ];
+				for ( long t = first; t < first + l.chunkShape[ l.timeDim ]; t++ )
+					loader.invalidate( ( int ) t, level, interval );
+			}
+		}
+	}
+
+	/** grid position (imglib2 order) of the chunk file {@code key} of {@code level}, or {@code null} if it is not a chunk */
+	@Nullable
+	static long[] gridPosition( final Level level, String key )
+	{
+		if ( level.prefixed )
+		{
+			if ( !key.startsWith( "c" + level.separator ) )
+				return null;
+			key = key.substring( 1 + level.separator.length() );
+		}
+		final String[] parts = key.split( level.separator.equals( "." ) ? "\\." : level.separator );
+		final int n = level.chunkShape.length;
+		if ( parts.length != n )
+			return null;
+		final long[] position = new long[ n ];
+		try
+		{
+			for ( int i = 0; i < n; i++ )
+			{
+				// N5 keys are in imglib2 order, Zarr keys in C order
+				final int d = level.format == Format.N5 ? i : n - 1 - i;
+				position[ d ] = Long.parseLong( parts[ i ] );
+			}
+		}
+		catch ( final NumberFormatException e )
+		{
+			return null;
+		}
+		return position;
+	}
+
+	private static void addDatasets( final Path root, final JsonObject attributes, final List< Path > paths, final List< String > axes )
+	{
+		if ( !attributes.has( "multiscales" ) )
+			return;
+		final JsonArray multiscales = attributes.getAsJsonArray( "multiscales" );
+		if ( multiscales.size() != 1 )
+			return;
+		final JsonObject multiscale = multiscales.get( 0 ).getAsJsonObject();
+		for ( final JsonElement dataset : multiscale.getAsJsonArray( "datasets" ) )
+			paths.add( root.resolve( dataset.getAsJsonObject().get( "path" ).getAsString() ) );
+		if ( multiscale.has( "axes" ) )
+			for ( final JsonElement axis : multiscale.getAsJsonArray( "axes" ) )
+				axes.add( axis.isJsonObject() ? axis.getAsJsonObject().get( "name" ).getAsString() : axis.getAsString() );
+	}
+
+	@Nullable
+	static Level readLevel( final Path dir, final List< String > axes ) throws IOException
+	{
+		final JsonObject n5 = readJson( dir.resolve( "attributes.json" ) );
+		if ( n5 != null && n5.has( "dataType" ) )
+			return new Level( dir, Format.N5, toLongs( n5.getAsJsonArray( "blockSize" ) ), "/", false, -1 );
+
+		final JsonObject zarray = readJson( dir.resolve( ".zarray" ) );
+		if ( zarray != null )
+		{
+			final long[] chunks = reverse( toLongs( zarray.getAsJsonArray( "chunks" ) ) );
+			final String separator = zarray.has( "dimension_separator" ) ? zarray.get( "dimension_separator" ).getAsString() : ".";
+			return new Level( dir, Format.ZARR2, chunks, separator, false, timeDim( axes, chunks.length ) );
+		}
+
+		final JsonObject zarr = readJson( dir.resolve( "zarr.json" ) );
+		if ( zarr == null || !zarr.has( "chunk_grid" ) )
+			return null;
+		final long[] chunks = reverse( toLongs( zarr.getAsJsonObject( "chunk_grid" ).getAsJsonObject( "configuration" ).getAsJsonArray( "chunk_shape" ) ) );
+		boolean prefixed = true;
+		String separator = "/";
+		if ( zarr.has( "chunk_key_encoding" ) )
+		{
+			final JsonObject encoding = zarr.getAsJsonObject( "chunk_key_encoding" );
+			prefixed = encoding.get( "name" ).getAsString().equals( "default" );
+			separator = prefixed ? "/" : ".";
+			if ( encoding.has( "configuration" ) && encoding.getAsJsonObject( "configuration" ).has( "separator" ) )
+				separator = encoding.getAsJsonObject( "configuration" ).get( "separator" ).getAsString();
+		}
+		List< String > names = axes;
+		if ( names.isEmpty() && zarr.has( "dimension_names" ) )
+		{
+			names = new ArrayList<>();
+			for ( final JsonElement e : zarr.getAsJsonArray( "dimension_names" ) )
+				names.add( e.isJsonNull() ? "" : e.getAsString() );
+		}
+		return new Level( dir, Format.ZARR3, chunks, separator, prefixed, timeDim( names, chunks.length ) );
+	}
+
+	/** imglib2 dimension of the "t" axis of zarr ordered {@code axes}, -1 if there is none */
+	private static int timeDim( final List< String > axes, final int n )
+	{
+		final int t = axes.size() == n ? axes.indexOf( "t" ) : -1;
+		return t < 0 ? -1 : n - 1 - t;
+	}
+
+	private static JsonObject readJson( final Path path ) throws IOException
+	{
+		if ( !Files.exists( path ) )
+			return null;
+		return JsonParser.parseString( new String( Files.readAllBytes( path ), StandardCharsets.UTF_8 ) ).getAsJsonObject();
+	}
+
+	private static long[] toLongs( final JsonArray array )
+	{
+		final long[] values = new long[ array.size() ];
+		for ( int i = 0; i < values.length; i++ )
+			values[ i ] = array.get( i ).getAsLong();
+		return values;
+	}
+
+	private static long[] reverse( final long[] values )
+	{
+		final long[] reversed = new long[ values.length ];
+		for ( int i = 0; i < values.length; i++ )
+			reversed[ i ] = values[ values.length - 1 - i ];
+		return reversed;
+	}
+
+	@Override
+	public void close()
+	{
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,538 @@
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.XzCompression;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.LongStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes local N5 or OME-Zarr pyramids with reproducible content, for
+ * comparing loader and cache changes without network access.
+ *
+ * Usage: {@code SyntheticDataset key=value...} with keys
+ * <ul>
+ * <li>{@code out} output directory (required)</li>
+ * <li>{@code format} {@code n5}, {@code zarr} (OME-Zarr 0.4) or {@code zarr3} (sharded OME-Zarr 0.5), default {@code n5}</li>
+ * <li>{@code size} x,y,z of the finest level, default {@code 512,512,256}</li>
+ * <li>{@code dtype} {@code uint8}, {@code uint16}, {@code uint32} or {@code float32}, default {@code uint16}</li>
+ * <li>{@code chunk} x,y,z chunk shape, default {@code 64,64,64}; the inner chunk shape for {@code zarr3}</li>
+ * <li>{@code shard} x,y,z shard shape for {@code zarr3}, a multiple of {@code chunk}, default four chunks per dimension</li>
+ * <li>{@code compression} {@code raw}, {@code gzip}, for N5 and Zarr also {@code bzip2}, for N5 also {@code lz4} or {@code xz}, default {@code gzip}</li>
+ * <li>{@code channels}, {@code timepoints}, default 1</li>
+ * <li>{@code levels} number of pyramid levels, default: halve until a level fits in one chunk</li>
+ * <li>{@code sparsity} fraction of finest-level chunks that are empty (and not written), default 0</li>
+ * <li>{@code seed}, default 42</li>
+ * </ul>
+ *
+ * N5 output follows the N5 Viewer layout ({@code c<c>/s<level>} with
+ * {@code downsamplingFactors}); several timepoints are written as
+ * {@code t<t>/c<c>/s<level>}. OME-Zarr output has one 5D (t,c,z,y,x) array
+ * per level. Sharded output is written without N5, little endian, with the
+ * shard index at the end of each shard.
+ */
+public class SyntheticDataset {
+
+    final String format;
+    final long[] size;
+    final DataType dataType;
+    final int[] chunk;
+    final int[] shard;
+    final Compression compression;
+    final int channels;
+    final int timepoints;
+    final int levels;
+    final double sparsity;
+    final long seed;
+
+    SyntheticDataset(Map<String, String> options) {
+        format = options.getOrDefault("format", "n5");
+        size = parseLongs(options.getOrDefault("size", "512,512,256"));
+        dataType = parseDataType(options.getOrDefault("dtype", "uint16"));
+        chunk = Arrays.stream(parseLongs(options.getOrDefault("chunk", "64,64,64"))).mapToInt(l -> (int) l).toArray();
+        shard = options.containsKey("shard")
+                ? Arrays.stream(parseLongs(options.get("shard"))).mapToInt(l -> (int) l).toArray()
+                : Arrays.stream(chunk).map(c -> 4 * c).toArray();
+        compression = parseCompression(options.getOrDefault("compression", "gzip"));
+        channels = Integer.parseInt(options.getOrDefault("channels", "1"));
+        timepoints = Integer.parseInt(options.getOrDefault("timepoints", "1"));
+        sparsity = Double.parseDouble(options.getOrDefault("sparsity", "0"));
+        seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        levels = options.containsKey("levels") ? Integer.parseInt(options.get("levels")) : defaultLevels(size, chunk);
+        if (format.equals("zarr") && (compression instanceof Lz4Compression || compression instanceof XzCompression))
+            throw new IllegalArgumentException("Zarr output supports raw, gzip and bzip2 compression");
+        if (format.equals("zarr3")) {
+            if (!(compression instanceof RawCompression || compression instanceof GzipCompression))
+                throw new IllegalArgumentException("Sharded Zarr output supports raw and gzip compression");
+            for (int d = 0; d < 3; d++)
+                if (shard[d] % chunk[d] != 0)
+                    throw new IllegalArgumentException("Shard shape must be a multiple of the chunk shape");
+        }
+    }
+
+    public void write(String path) throws IOException {
+        if (format.equals("zarr3")) {
+            writeShardedZarr(Paths.get(path));
+        } else if (format.equals("zarr")) {
+            try (N5Writer n5 = new N5ZarrWriter(path)) {
+                writeOmeZarr(n5);
+            }
+        } else {
+            try (N5Writer n5 = new N5FSWriter(path)) {
+                writeN5(n5);
+            }
+        }
+    }
+
+    private void writeN5(N5Writer n5) {
+        for (int t = 0; t < timepoints; t++) {
+            for (int c = 0; c < channels; c++) {
+                final String group = (timepoints > 1 ? "t" + t + "/" : "") + "c" + c;
+                for (int level = 0; level < levels; level++) {
+                    final String dataset = group + "/s" + level;
+                    final long[] dims = levelSize(level);
+                    final DatasetAttributes attributes = new DatasetAttributes(dims, chunk, dataType, compression);
+                    n5.createDataset(dataset, attributes);
+                    final int f = 1 << level;
+                    n5.setAttribute(dataset, "downsamplingFactors", new int[]{f, f, f});
+                    writeLevel(n5, dataset, attributes, level, c, t, 3);
+                }
+                n5.setAttribute(group, "pixelResolution", pixelResolution());
+            }
+        }
+    }
+
+    private void writeOmeZarr(N5Writer n5) {
+        final List<Map<String, Object>> datasets = new ArrayList<>();
+        for (int level = 0; level < levels; level++) {
+            final long[] dims3 = levelSize(level);
+            final long[] dims = {dims3[0], dims3[1], dims3[2], channels, timepoints};
+            final int[] chunk5 = {chunk[0], chunk[1], chunk[2], 1, 1};
+            final DatasetAttributes attributes = new DatasetAttributes(dims, chunk5, dataType, compression);
+            final String dataset = "s" + level;
+            n5.createDataset(dataset, attributes);
+            for (int t = 0; t < timepoints; t++)
+                for (int c = 0; c < channels; c++)
+                    writeLevel(n5, dataset, attributes, level, c, t, 5);
+
+            datasets.add(omeDataset(dataset, level));
+        }
+
+        final Map<String, Object> multiscale = new LinkedHashMap<>();
+        multiscale.put("version", "0.4");
+        multiscale.put("name", "synthetic");
+        multiscale.put("axes", omeAxes());
+        multiscale.put("datasets", datasets);
+        n5.setAttribute("/", "multiscales", new Object[]{multiscale});
+    }
+
+    /** multiscales entry of a level, with the half-pixel shift of averaging downsampling */
+    private static Map<String, Object> omeDataset(String path, int level) {
+        final double f = 1 << level;
+        final double shift = 0.5 * (f - 1);
+        final Map<String, Object> scale = new LinkedHashMap<>();
+        scale.put("type", "scale");
+        scale.put("scale", new double[]{1, 1, f, f, f});
+        final Map<String, Object> translation = new LinkedHashMap<>();
+        translation.put("type", "translation");
+        translation.put("translation", new double[]{0, 0, shift, shift, shift});
+        final Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("path", path);
+        entry.put("coordinateTransformations", Arrays.asList(scale, translation));
+        return entry;
+    }
+
+    private static List<Map<String, String>> omeAxes() {
+        final List<Map<String, String>> axes = new ArrayList<>();
+        axes.add(axis("t", "time", null));
+        axes.add(axis("c", "channel", null));
+        axes.add(axis("z", "space", "micrometer"));
+        axes.add(axis("y", "space", "micrometer"));
+        axes.add(axis("x", "space", "micrometer"));
+        return axes;
+    }
+
+    /**
+     * Write all non-empty chunks of one level of one channel and timepoint.
+     * Chunks are computed in parallel; each voxel value is a function of its
+     * position in finest-level coordinates, so levels are consistent.
+     */
+    private void writeLevel(N5Writer n5, String dataset, DatasetAttributes attributes,
+                            int level, int c, int t, int numDimensions) {
+        final long[] dims = levelSize(level);
+        final long[] grid = new long[3];
+        for (int d = 0; d < 3; d++)
+            grid[d] = (dims[d] + chunk[d] - 1) / chunk[d];
+        final long numChunks = grid[0] * grid[1] * grid[2];
+
+        LongStream.range(0, numChunks).parallel().forEach(i -> {
+            final long[] pos = {i % grid[0], (i / grid[0]) % grid[1], i / (grid[0] * grid[1])};
+            final int[] blockSize = new int[numDimensions];
+            final long[] gridPosition = new long[numDimensions];
+            Arrays.fill(blockSize, 1);
+            for (int d = 0; d < 3; d++) {
+                blockSize[d] = (int) Math.min(chunk[d], dims[d] - pos[d] * chunk[d]);
+                gridPosition[d] = pos[d];
+            }
+            if (numDimensions == 5) {
+                gridPosition[3] = c;
+                gridPosition[4] = t;
+            }
+
+            final DataBlock<?> block = dataType.createDataBlock(blockSize, gridPosition);
+            final long[] min = {pos[0] * chunk[0], pos[1] * chunk[1], pos[2] * chunk[2]};
+            final boolean empty = fill(block.getData(), min, blockSize, dims, level, c, t);
+            if (!empty) {
+                try {
+                    n5.writeBlock(dataset, attributes, block);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fill {@code data} (x fastest) with the block of {@code size} at
+     * {@code min} of a level with dimensions {@code dims}, 0 outside the level.
+     *
+     * @return whether the block is all 0
+     */
+    private boolean fill(Object data, long[] min, int[] size, long[] dims, int level, int c, int t) {
+        final int f = 1 << level;
+        boolean empty = true;
+        int j = 0;
+        for (int z = 0; z < size[2]; z++) {
+            for (int y = 0; y < size[1]; y++) {
+                for (int x = 0; x < size[0]; x++, j++) {
+                    final long px = min[0] + x;
+                    final long py = min[1] + y;
+                    final long pz = min[2] + z;
+                    if (px >= dims[0] || py >= dims[1] || pz >= dims[2])
+                        continue;
+                    // centre of the voxel in finest-level coordinates
+                    final double v = value(px * f + f / 2, py * f + f / 2, pz * f + f / 2, c, t);
+                    if (v != 0)
+                        empty = false;
+                    set(data, j, v);
+                }
+            }
+        }
+        return empty;
+    }
+
+    private void writeShardedZarr(Path root) throws IOException {
+        final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        final String dtype = dataType.toString().toLowerCase(Locale.ROOT);
+        final List<Map<String, Object>> datasets = new ArrayList<>();
+        for (int level = 0; level < levels; level++) {
+            final long[] dims = levelSize(level);
+            final String dataset = "s" + level;
+            final Path dir = root.resolve(dataset);
+            Files.createDirectories(dir);
+
+            final List<Map<String, Object>> innerCodecs = new ArrayList<>();
+            innerCodecs.add(codec("bytes", Collections.singletonMap("endian", "little")));
+            if (compression instanceof GzipCompression)
+                innerCodecs.add(codec("gzip", Collections.singletonMap("level", 5)));
+            final Map<String, Object> sharding = new LinkedHashMap<>();
+            sharding.put("chunk_shape", new int[]{1, 1, chunk[2], chunk[1], chunk[0]});
+            sharding.put("codecs", innerCodecs);
+            sharding.put("index_codecs", Arrays.asList(
+                    codec("bytes", Collections.singletonMap("endian", "little")),
+                    codec("crc32c", null)));
+            sharding.put("index_location", "end");
+
+            final Map<String, Object> array = new LinkedHashMap<>();
+            array.put("zarr_format", 3);
+            array.put("node_type", "array");
+            array.put("shape", new long[]{timepoints, channels, dims[2], dims[1], dims[0]});
+            array.put("data_type", dtype);
+            array.put("chunk_grid", codec("regular", Collections.singletonMap("chunk_shape",
+                    new int[]{1, 1, shard[2], shard[1], shard[0]})));
+            array.put("chunk_key_encoding", codec("default", Collections.singletonMap("separator", "/")));
+            array.put("fill_value", 0);
+            array.put("codecs", Collections.singletonList(codec("sharding_indexed", sharding)));
+            array.put("dimension_names", new String[]{"t", "c", "z", "y", "x"});
+            Files.write(dir.resolve("zarr.json"), gson.toJson(array).getBytes(StandardCharsets.UTF_8));
+
+            for (int t = 0; t < timepoints; t++)
+                for (int c = 0; c < channels; c++)
+                    writeShards(dir, level, c, t);
+
+            datasets.add(omeDataset(dataset, level));
+        }
+
+        final Map<String, Object> multiscale = new LinkedHashMap<>();
+        multiscale.put("name", "synthetic");
+        multiscale.put("axes", omeAxes());
+        multiscale.put("datasets", datasets);
+        final Map<String, Object> ome = new LinkedHashMap<>();
+        ome.put("version", "0.5");
+        ome.put("multiscales", Collections.singletonList(multiscale));
+        final Map<String, Object> group = new LinkedHashMap<>();
+        group.put("zarr_format", 3);
+        group.put("node_type", "group");
+        group.put("attributes", Collections.singletonMap("ome", ome));
+        Files.write(root.resolve("zarr.json"), gson.toJson(group).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write the shards of one level of one channel and timepoint, in
+     * parallel. Empty inner chunks are left out of their shard, empty shards
+     * are not written.
+     */
+    private void writeShards(Path dir, int level, int c, int t) {
+        final long[] dims = levelSize(level);
+        final int[] chunksPerShard = new int[3];
+        final long[] grid = new long[3];
+        int numInner = 1;
+        for (int d = 0; d < 3; d++) {
+            chunksPerShard[d] = shard[d] / chunk[d];
+            numInner *= chunksPerShard[d];
+            grid[d] = (dims[d] + shard[d] - 1) / shard[d];
+        }
+        final int numChunksPerShard = numInner;
+        final int bytesPerElement = dataType == DataType.UINT8 ? 1 : dataType == DataType.UINT16 ? 2 : 4;
+
+        LongStream.range(0, grid[0] * grid[1] * grid[2]).parallel().forEach(i -> {
+            final long[] pos = {i % grid[0], (i / grid[0]) % grid[1], i / (grid[0] * grid[1])};
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final long[] index = new long[2 * numChunksPerShard];
+            Arrays.fill(index, -1);
+            boolean empty = true;
+            // inner chunks in C order of (z,y,x), x fastest
+            for (int j = 0; j < numChunksPerShard; j++) {
+                final long[] min = {
+                        pos[0] * shard[0] + (long) (j % chunksPerShard[0]) * chunk[0],
+                        pos[1] * shard[1] + (long) ((j / chunksPerShard[0]) % chunksPerShard[1]) * chunk[1],
+                        pos[2] * shard[2] + (long) (j / (chunksPerShard[0] * chunksPerShard[1])) * chunk[2]};
+                if (min[0] >= dims[0] || min[1] >= dims[1] || min[2] >= dims[2])
+                    continue;
+                final Object data = dataType.createDataBlock(chunk, new long[3]).getData();
+                if (fill(data, min, chunk, dims, level, c, t))
+                    continue;
+                empty = false;
+                final byte[] encoded = encode(data, chunk[0] * chunk[1] * chunk[2] * bytesPerElement);
+                index[2 * j] = out.size();
+                index[2 * j + 1] = encoded.length;
+                out.write(encoded, 0, encoded.length);
+            }
+            if (empty)
+                return;
+
+            final ByteBuffer indexBytes = ByteBuffer.allocate(16 * numChunksPerShard + 4).order(ByteOrder.LITTLE_ENDIAN);
+            for (long v : index)
+                indexBytes.putLong(v);
+            indexBytes.putInt(Crc32c.compute(indexBytes.array(), 0, 16 * numChunksPerShard));
+            out.write(indexBytes.array(), 0, indexBytes.capacity());
+            try {
+                final Path file = dir.resolve(Paths.get("c", "" + t, "" + c, "" + pos[2], "" + pos[1], "" + pos[0]));
+                Files.createDirectories(file.getParent());
+                Files.write(file, out.toByteArray());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /** little endian bytes of {@code data}, gzipped if requested */
+    private byte[] encode(Object data, int numBytes) {
+        final ByteBuffer buffer = ByteBuffer.allocate(numBytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (data instanceof byte[])
+            buffer.put((byte[]) data);
+        else if (data instanceof short[])
+            buffer.asShortBuffer().put((short[]) data);
+        else if (data instanceof int[])
+            buffer.asIntBuffer().put((int[]) data);
+        else
+            buffer.asFloatBuffer().put((float[]) data);
+        if (!(compression instanceof GzipCompression))
+            return buffer.array();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(buffer.array());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, Object> codec(String name, Object configuration) {
+        final Map<String, Object> codec = new LinkedHashMap<>();
+        codec.put("name", name);
+        if (configuration != null)
+            codec.put("configuration", configuration);
+        return codec;
+    }
+
+    /** value in [0, max of dtype] at a finest-level voxel, 0 inside empty chunks */
+    double value(long x, long y, long z, int c, int t) {
+        if (sparsity > 0) {
+            final long h = hash(x / chunk[0], y / chunk[1], z / chunk[2], c, t);
+            if ((h >>> 11) * 0x1.0p-53 < sparsity)
+                return 0;
+        }
+        final double smooth = 0.5 + 0.5 * Math.sin(x * 0.05 + c) * Math.cos(y * 0.07 + 0.3 * t) * Math.sin(z * 0.03 + 1);
+        final double noise = ((hash(x, y, z, c, t) >>> 11) * 0x1.0p-53) * 0.05;
+        return Math.min(1, smooth + noise) * maxValue();
+    }
+
+    private double maxValue() {
+        switch (dataType) {
+            case UINT8:
+                return 255;
+            case UINT16:
+                return 4095; // 12 bit camera
+            case UINT32:
+                return 100000;
+            default:
+                return 1000;
+        }
+    }
+
+    private static void set(Object data, int i, double v) {
+        if (data instanceof byte[])
+            ((byte[]) data)[i] = (byte) Math.round(v);
+        else if (data instanceof short[])
+            ((short[]) data)[i] = (short) Math.round(v);
+        else if (data instanceof int[])
+            ((int[]) data)[i] = (int) Math.round(v);
+        else
+            ((float[]) data)[i] = (float) v;
+    }
+
+    private long hash(long x, long y, long z, int c, int t) {
+        long h = seed;
+        h = mix(h ^ x);
+        h = mix(h ^ y);
+        h = mix(h ^ z);
+        h = mix(h ^ c);
+        return mix(h ^ t);
+    }
+
+    /** SplitMix64 finalizer */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    long[] levelSize(int level) {
+        final long[] dims = new long[3];
+        for (int d = 0; d < 3; d++)
+            dims[d] = Math.max(1, size[d] >> level);
+        return dims;
+    }
+
+    private static int defaultLevels(long[] size, int[] chunk) {
+        int levels = 1;
+        while (size[0] >> (levels - 1) > chunk[0] || size[1] >> (levels - 1) > chunk[1] || size[2] >> (levels - 1) > chunk[2])
+            levels++;
+        return levels;
+    }
+
+    private static Map<String, Object> pixelResolution() {
+        final Map<String, Object> resolution = new HashMap<>();
+        resolution.put("dimensions", new double[]{1, 1, 1});
+        resolution.put("unit", "um");
+        return resolution;
+    }
+
+    private static Map<String, String> axis(String name, String type, String unit) {
+        final Map<String, String> axis = new LinkedHashMap<>();
+        axis.put("name", name);
+        axis.put("type", type);
+        if (unit != null)
+            axis.put("unit", unit);
+        return axis;
+    }
+
+    private static long[] parseLongs(String s) {
+        return Arrays.stream(s.split(",")).mapToLong(Long::parseLong).toArray();
+    }
+
+    private static DataType parseDataType(String s) {
+        switch (s) {
+            case "uint8":
+                return DataType.UINT8;
+            case "uint16":
+                return DataType.UINT16;
+            case "uint32":
+                return DataType.UINT32;
+            case "float32":
+                return DataType.FLOAT32;
+            default:
+                throw new IllegalArgumentException("Unsupported dtype " + s);
+        }
+    }
+
+    private static Compression parseCompression(String s) {
+        switch (s) {
+            case "raw":
+                return new RawCompression();
+            case "gzip":
+                return new GzipCompression();
+            case "bzip2":
+                return new Bzip2Compression();
+            case "lz4":
+                return new Lz4Compression();
+            case "xz":
+                return new XzCompression();
+            default:
+                throw new IllegalArgumentException("Unsupported compression " + s);
+        }
+    }
+
+    static Map<String, String> parseOptions(String... args) {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    public static void main(String... args) throws IOException {
+        final Map<String, String> options = parseOptions(args);
+        if (!options.containsKey("out")) {
+            System.err.println("Usage: SyntheticDataset out=<dir> [format=n5|zarr|zarr3] [size=x,y,z] [dtype=uint16] "
+                    + "[chunk=x,y,z] [shard=x,y,z] [compression=gzip] [channels=1] [timepoints=1] [levels=n] [sparsity=0] [seed=42]");
+            System.exit(1);
+        }
+        final SyntheticDataset dataset = new SyntheticDataset(options);
+        final long start = System.nanoTime();
+        dataset.write(options.get("out"));
+        System.out.println(String.format("Wrote %d level(s) to %s in %.1f s",
+                dataset.levels, options.get("out"), (System.nanoTime() - start) * 1e-9));
+    }
+}
@@ -0,0 +1,147 @@
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Loads the timepoints ahead of a time-series movie into the caches of its
+ * loaders while the current timepoint is rendered, and evicts timepoints
+ * that have been rendered. The blocks of evicted timepoints are recycled
+ * for the next ones, see {@link ShortArrayPool}.
+ *
+ * At most {@code depth} timepoints ({@code bvv.prefetch.timepoints}, by
+ * default that of the active {@link RenderProfile}) are prefetched at once, t+1..t+depth when timepoint t is rendered. For
+ * each, the coarsest level and the cells the last rendered timepoint needed
+ * are loaded, assuming the view does not change much from one timepoint to the
+ * next.
+ */
+public class TimepointPrefetcher {
+
+    private final List<SourceToViewerSetupImgLoaderBvv> loaders;
+    private final int numTimepoints;
+    private final int depth;
+    private final RenderMetrics metrics;
+
+    /** prefetched (or rendered, but not yet evicted) timepoints */
+    private final TreeMap<Integer, CompletableFuture<Void>> ring = new TreeMap<>();
+
+    /** timepoints before this have been evicted, prefetches still running for them stop loading */
+    private volatile int evictedBefore;
+
+    public TimepointPrefetcher(List<SourceToViewerSetupImgLoaderBvv> loaders, int numTimepoints, RenderMetrics metrics) {
+        this(loaders, numTimepoints, Integer.getInteger("bvv.prefetch.timepoints", RenderProfile.active().prefetchTimepoints), metrics);
+    }
+
+    public TimepointPrefetcher(List<SourceToViewerSetupImgLoaderBvv> loaders, int numTimepoints, int depth, RenderMetrics metrics) {
+        this.loaders = loaders;
+        this.numTimepoints = numTimepoints;
+        this.depth = Math.max(0, depth);
+        this.metrics = metrics;
+        for (SourceToViewerSetupImgLoaderBvv loader : loaders) {
+            loader.setTrackLoads(true);
+            loader.setRecycleEvicted(true);
+        }
+    }
+
+    public int getNumTimepoints() {
+        return numTimepoints;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Timepoint {@code t} is about to be rendered: evict the timepoints before
+     * it and prefetch the ones after it.
+     */
+    public synchronized void advance(int t) {
+        // the cells of the last rendered timepoint are the template for the next ones
+        final List<List<long[]>> template = new ArrayList<>(loaders.size());
+        final Map.Entry<Integer, CompletableFuture<Void>> previous = ring.lowerEntry(t);
+        for (SourceToViewerSetupImgLoaderBvv loader : loaders)
+            template.add(previous == null ? new ArrayList<>() : loader.getLoadedCells(previous.getKey()));
+
+        evictedBefore = t;
+        while (!ring.isEmpty() && ring.firstKey() < t) {
+            final Map.Entry<Integer, CompletableFuture<Void>> rendered = ring.pollFirstEntry();
+            rendered.getValue().cancel(false);
+            for (SourceToViewerSetupImgLoaderBvv loader : loaders)
+                loader.evictTimepoint(rendered.getKey());
+            metrics.count("prefetch.evicted");
+        }
+
+        ring.putIfAbsent(t, CompletableFuture.completedFuture(null));
+        for (int next = t + 1; next <= t + depth && next < numTimepoints; next++) {
+            if (ring.containsKey(next))
+                continue;
+            final int tp = next;
+            ring.put(tp, CompletableFuture.runAsync(() -> prefetch(tp, template), FetchScheduler.get().ioExecutor()));
+        }
+    }
+
+    /** wait until timepoint {@code t} is prefetched, if it is being prefetched */
+    public void await(int t) {
+        final CompletableFuture<Void> future;
+        synchronized (this) {
+            future = ring.get(t);
+        }
+        if (future != null && !future.isCancelled()) {
+            final long start = System.nanoTime();
+            future.join();
+            metrics.time("prefetch.wait", start);
+        }
+    }
+
+    /** evict everything that is still cached */
+    public synchronized void close() {
+        // timepoints still being prefetched may have blocks in use, do not recycle them
+        for (SourceToViewerSetupImgLoaderBvv loader : loaders)
+            loader.setRecycleEvicted(false);
+        for (Map.Entry<Integer, CompletableFuture<Void>> entry : ring.entrySet()) {
+            entry.getValue().cancel(false);
+            for (SourceToViewerSetupImgLoaderBvv loader : loaders)
+                loader.evictTimepoint(entry.getKey());
+        }
+        ring.clear();
+        evictedBefore = Integer.MAX_VALUE;
+        for (SourceToViewerSetupImgLoaderBvv loader : loaders)
+            loader.setTrackLoads(false);
+    }
+
+    private void prefetch(int t, List<List<long[]>> template) {
+        final long start = System.nanoTime();
+        final List<CompletableFuture<?>> cells = new ArrayList<>();
+        for (int i = 0; i < loaders.size(); i++) {
+            final SourceToViewerSetupImgLoaderBvv loader = loaders.get(i);
+            if (t >= loader.numTimepoints())
+                continue;
+            final int coarsest = loader.numMipmapLevels() - 1;
+            final long numCoarsest = loader.getCellGrid(t, coarsest).getNumCells();
+            for (long index = 0; index < numCoarsest; index++)
+                cells.add(load(loader, t, coarsest, index));
+            for (long[] cell : template.get(i)) {
+                final int level = (int) cell[0];
+                if (level == coarsest)
+                    continue;
+                final CellGrid grid = loader.getCellGrid(t, level);
+                final long[] position = {cell[1], cell[2], cell[3]};
+                cells.add(load(loader, t, level, IntervalIndexer.positionToIndex(position, grid.getGridDimensions())));
+            }
+        }
+        CompletableFuture.allOf(cells.toArray(new CompletableFuture<?>[0])).join();
+        metrics.count("prefetch.cells", cells.size());
+        metrics.time("prefetch.timepoint", start);
+    }
+
+    private CompletableFuture<Void> load(SourceToViewerSetupImgLoaderBvv loader, int t, int level, long index) {
+        return CompletableFuture.runAsync(() -> {
+            if (t >= evictedBefore)
+                loader.loadCell(t, level, index);
+        }, FetchScheduler.get().ioExecutor());
+    }
+}
@@ -0,0 +1,183 @@
+import org.janelia.saalfeldlab.n5.N5URI;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orders concurrent block fetches along a Morton curve.
+ *
+ * The cache requests blocks in whatever order the renderer touches them. A
+ * fetch calls {@link #awaitTurn} before it starts reading and {@link #done}
+ * when it has read; requests that arrive within a short window (or until
+ * {@code maxBatch} are pending) are sorted together, coarsest level first and
+ * in Z-order within a level, and then let through one at a time, at most
+ * {@code maxReading} at once ({@code bvv.fetch.orderedReads}, default 16):
+ * each fetch that finishes lets the next one in order start. Spatially close
+ * chunks are then requested back to back, which keeps connection pools and
+ * (with {@link CoalescingRangeReader}) range merging working on neighbouring
+ * data.
+ *
+ * The window adds latency to every fetch, and waiting fetches hold their
+ * {@link FetchScheduler} permit, so this is only worth it for remote stores,
+ * see {@link #forUri}.
+ */
+public class ZOrderBatcher
+{
+	private static final ScheduledExecutorService TIMER =
+			Executors.newSingleThreadScheduledExecutor( FetchScheduler.daemonThreads( "bvv-zorder" ) );
+
+	private static final ZOrderBatcher REMOTE = new ZOrderBatcher(
+			TimeUnit.MICROSECONDS.toNanos( Long.getLong( "bvv.fetch.batchWindowMicros", 2000 ) ),
+			Integer.getInteger( "bvv.fetch.maxBatch", 256 ),
+			Integer.getInteger( "bvv.fetch.orderedReads", 16 ) );
+
+	private static final Comparator< Ticket > ORDER = Comparator
+			.comparingInt( ( Ticket t ) -> -t.level )
+			.thenComparingLong( t -> t.morton );
+
+	private static class Ticket
+	{
+		final int level;
+
+		final long morton;
+
+		final CountDownLatch released = new CountDownLatch( 1 );
+
+		/** whether it counts against {@code maxReading}, guarded by the batcher */
+		boolean reading;
+
+		Ticket( final int level, final long morton )
+		{
+			this.level = level;
+			this.morton = morton;
+		}
+	}
+
+	private final long windowNanos;
+
+	private final int maxBatch;
+
+	private final int maxReading;
+
+	/** guarded by this */
+	private List< Ticket > pending = new ArrayList<>();
+
+	/** sorted batches, waiting for a reading slot, guarded by this */
+	private final ArrayDeque< Ticket > ready = new ArrayDeque<>();
+
+	/** guarded by this */
+	private int reading;
+
+	public ZOrderBatcher( final long windowNanos, final int maxBatch, final int maxReading )
+	{
+		this.windowNanos = windowNanos;
+		this.maxBatch = maxBatch;
+		this.maxReading = Math.max( 1, maxReading );
+	}
+
+	/**
+	 * The batcher shared by all loaders of remote ({@code http}, {@code https},
+	 * {@code s3}, {@code gs}) containers, or {@code null} for local ones.
+	 * Disabled with {@code -Dbvv.fetch.noZOrder}.
+	 */
+	@Nullable
+	public static ZOrderBatcher forUri( final N5URI uri )
+	{
+		if ( Boolean.getBoolean( "bvv.fetch.noZOrder" ) )
+			return null;
+		final String scheme = uri.getURI().getScheme();
+		if ( scheme == null )
+			return null;
+		switch ( scheme )
+		{
+		case "http":
+		case "https":
+		case "s3":
+		case "gs":
+			return REMOTE;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Block until it is this request's turn to read. Must be followed by
+	 * {@link #done} once the read has finished (unless this throws).
+	 *
+	 * @param position
+	 *            min corner of the block in pixel coordinates of {@code level}
+	 */
+	public void awaitTurn( final int level, final long[] position ) throws InterruptedException
+	{
+		final Ticket ticket = new Ticket( level, MortonOrder.encode( position ) );
+		final boolean full;
+		synchronized ( this )
+		{
+			pending.add( ticket );
+			if ( pending.size() == 1 )
+				TIMER.schedule( this::release, windowNanos, TimeUnit.NANOSECONDS );
+			full = pending.size() >= maxBatch;
+		}
+		if ( full )
+			release();
+		try
+		{
+			ticket.released.await();
+		}
+		catch ( final InterruptedException e )
+		{
+			synchronized ( this )
+			{
+				if ( ticket.reading )
+					done();
+				else if ( !pending.remove( ticket ) )
+					ready.remove( ticket );
+			}
+			throw e;
+		}
+	}
+
+	/** a read let through by {@link #awaitTurn} has finished: let the next one start */
+	public synchronized void done()
+	{
+		reading--;
+		dispatch();
+	}
+
+	private void release()
+	{
+		final List< Ticket > batch;
+		synchronized ( this )
+		{
+			if ( pending.isEmpty() )
+				return;
+			batch = pending;
+			pending = new ArrayList<>();
+		}
+		batch.sort( ORDER );
+		synchronized ( this )
+		{
+			ready.addAll( batch );
+			dispatch();
+		}
+	}
+
+	/** let the next tickets in order read, as far as there are slots; called with the lock held */
+	private void dispatch()
+	{
+		while ( reading < maxReading && !ready.isEmpty() )
+		{
+			final Ticket ticket = ready.poll();
+			ticket.reading = true;
+			reading++;
+			ticket.released.countDown();
+		}
+	}
+}
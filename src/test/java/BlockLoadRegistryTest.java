@@ -0,0 +1,212 @@
+import net.imglib2.util.ValuePair;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlockLoadRegistryTest
+{
+	/** the registry is process-wide, every key of a test has its own timepoint */
+	private static final AtomicInteger TIMEPOINTS = new AtomicInteger();
+
+	private static BlockLoadRegistry.BlockKey key( final int timepoint, final double max )
+	{
+		return new BlockLoadRegistry.BlockKey( null, new ValuePair<>( 0.0, max ), false, timepoint, 0, new long[] { 0, 0, 0 }, new int[] { 4, 4, 4 } );
+	}
+
+	private static long counter( final RenderMetrics metrics, final String name )
+	{
+		final Long count = metrics.getCounters().get( name );
+		return count == null ? 0 : count;
+	}
+
+	@Test
+	public void finishedBlocksAreShared()
+	{
+		final BlockLoadRegistry registry = BlockLoadRegistry.get();
+		final RenderMetrics metrics = new RenderMetrics();
+		final BlockLoadRegistry.BlockKey key = key( TIMEPOINTS.incrementAndGet(), 1000 );
+		final AtomicInteger loads = new AtomicInteger();
+
+		final short[] first = registry.load( key, metrics, () -> {
+			loads.incrementAndGet();
+			return new short[ 64 ];
+		} );
+		final short[] second = registry.load( key( key.timepoint, 1000 ), metrics, () -> {
+			loads.incrementAndGet();
+			return new short[ 64 ];
+		} );
+		assertSame( first, second );
+		assertEquals( 1, loads.get() );
+		assertEquals( 1, counter( metrics, "load.dedup.shared" ) );
+	}
+
+	@Test
+	public void conversionIsPartOfTheKey()
+	{
+		final BlockLoadRegistry registry = BlockLoadRegistry.get();
+		final RenderMetrics metrics = new RenderMetrics();
+		final int timepoint = TIMEPOINTS.incrementAndGet();
+		final short[] a = registry.load( key( timepoint, 1000 ), metrics, () -> new short[ 64 ] );
+		final short[] b = registry.load( key( timepoint, 2000 ), metrics, () -> new short[ 64 ] );
+		assertNotSame( a, b );
+		assertEquals( 0, counter( metrics, "load.dedup.shared" ) );
+	}
+
+	@Test
+	public void concurrentLoadsAttachToTheRunningOne() throws Exception
+	{
+		final BlockLoadRegistry registry = BlockLoadRegistry.get();
+		final RenderMetrics metrics = new RenderMetrics();
+		final BlockLoadRegistry.BlockKey key = key( TIMEPOINTS.incrementAndGet(), 1000 );
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch loading = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final short[] block = new short[ 64 ];
+
+		final ExecutorService executor = Executors.newFixedThreadPool( 4 );
+		try
+		{
+			final Future< short[] > first = executor.submit( () -> registry.load( key, metrics, () -> {
+				loads.incrementAndGet();
+				loading.countDown();
+				await( release );
+				return block;
+			} ) );
+			assertTrue( loading.await( 10, TimeUnit.SECONDS ) );
+
+			final Future< short[] > second = executor.submit( () -> registry.load( key, metrics, () -> {
+				loads.incrementAndGet();
+				return new short[ 64 ];
+			} ) );
+			// the second caller is waiting for the first load
+			while ( counter( metrics, "load.dedup.inflight" ) == 0 )
+				Thread.sleep( 1 );
+			release.countDown();
+
+			assertSame( block, first.get() );
+			assertSame( block, second.get() );
+			assertEquals( 1, loads.get() );
+		}
+		finally
+		{
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void failedLoadsAreNotKept()
+	{
+		final BlockLoadRegistry registry = BlockLoadRegistry.get();
+		final RenderMetrics metrics = new RenderMetrics();
+		final BlockLoadRegistry.BlockKey key = key( TIMEPOINTS.incrementAndGet(), 1000 );
+		try
+		{
+			registry.load( key, metrics, () -> {
+				throw new IllegalStateException( "read failed" );
+			} );
+			fail();
+		}
+		catch ( final IllegalStateException e )
+		{
+			assertEquals( "read failed", e.getMessage() );
+		}
+		final short[] block = new short[ 64 ];
+		assertSame( block, registry.load( key, metrics, () -> block ) );
+	}
+
+	@Test
+	public void exclusiveBlocksCanBeTakenBack()
+	{
+		final BlockLoadRegistry registry = BlockLoadRegistry.get();
+		final RenderMetrics metrics = new RenderMetrics();
+		final BlockLoadRegistry.BlockKey key = key( TIMEPOINTS.incrementAndGet(), 1000 );
+		final short[] block = registry.load( key, metrics, () -> new short[ 64 ] );
+
+		// not the block of the key
+		assertFalse( registry.removeIfExclusive( key, new short[ 64 ] ) );
+		assertTrue( registry.removeIfExclusive( key, block ) );
+
+		// gone: the next load loads again
+		final short[] reloaded = new short[ 64 ];
+		assertSame( reloaded, registry.load( key, metrics, () -> reloaded ) );
+	}
+
+	@Test
+	public void sharedBlocksAreNotTakenBack()
+	{
+		final BlockLoadRegistry registry = BlockLoadRegistry.get();
+		final RenderMetrics metrics = new RenderMetrics();
+		final BlockLoadRegistry.BlockKey key = key( TIMEPOINTS.incrementAndGet(), 1000 );
+		final short[] block = registry.load( key, metrics, () -> new short[ 64 ] );
+		assertSame( block, registry.load( key, metrics, () -> new short[ 64 ] ) );
+
+		assertFalse( registry.removeIfExclusive( key, block ) );
+		// the other holder keeps it, but it is not handed out any more
+		final short[] reloaded = new short[ 64 ];
+		assertSame( reloaded, registry.load( key, metrics, () -> reloaded ) );
+		assertTrue( registry.removeIfExclusive( key, reloaded ) );
+	}
+
+	@Test
+	public void loadsRunningDuringInvalidationAreNotKept() throws Exception
+	{
+		final BlockLoadRegistry registry = BlockLoadRegistry.get();
+		final RenderMetrics metrics = new RenderMetrics();
+		final BlockLoadRegistry.BlockKey key = key( TIMEPOINTS.incrementAndGet(), 1000 );
+		final CountDownLatch loading = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final short[] stale = new short[ 64 ];
+
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			final Future< short[] > first = executor.submit( () -> registry.load( key, metrics, () -> {
+				loading.countDown();
+				await( release );
+				return stale;
+			} ) );
+			assertTrue( loading.await( 10, TimeUnit.SECONDS ) );
+			registry.invalidate( key );
+
+			// does not wait for the stale load
+			final short[] fresh = new short[ 64 ];
+			assertSame( fresh, registry.load( key, metrics, () -> fresh ) );
+			assertTrue( registry.removeIfExclusive( key, fresh ) );
+
+			release.countDown();
+			assertSame( stale, first.get() );
+			final short[] reloaded = new short[ 64 ];
+			assertSame( reloaded, registry.load( key, metrics, () -> reloaded ) );
+		}
+		finally
+		{
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	private static void await( final CountDownLatch latch )
+	{
+		try
+		{
+			latch.await();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+import org.janelia.saalfeldlab.n5.N5URI;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BlockStatsIndexTest
+{
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private static void writeChunk( final File root, final String key, final int size, final long modified ) throws IOException
+	{
+		final Path chunk = new File( root, key ).toPath();
+		Files.createDirectories( chunk.getParent() );
+		Files.write( chunk, new byte[ size ] );
+		Files.setLastModifiedTime( chunk, FileTime.fromMillis( modified ) );
+	}
+
+	private static long dataVersion( final File root ) throws Exception
+	{
+		return BlockStatsIndex.dataVersion( new N5URI( root.toURI().toString() ) );
+	}
+
+	@Test
+	public void dataVersionOfUnchangedData() throws Exception
+	{
+		final File root = folder.newFolder();
+		writeChunk( root, "s0/0/0/0", 100, 1_000_000 );
+		writeChunk( root, "s0/0/0/1", 100, 2_000_000 );
+		final long version = dataVersion( root );
+		assertTrue( version >= 0 );
+		assertEquals( version, dataVersion( root ) );
+	}
+
+	@Test
+	public void deletedChunksChangeTheDataVersion() throws Exception
+	{
+		final File root = folder.newFolder();
+		writeChunk( root, "s0/0/0/0", 100, 2_000_000 );
+		writeChunk( root, "s0/0/0/1", 100, 1_000_000 );
+		final long version = dataVersion( root );
+
+		// the latest modification time stays the same
+		assertTrue( new File( root, "s0/0/0/1" ).delete() );
+		assertNotEquals( version, dataVersion( root ) );
+	}
+
+	@Test
+	public void rewrittenChunksChangeTheDataVersion() throws Exception
+	{
+		final File root = folder.newFolder();
+		writeChunk( root, "s0/0/0/0", 100, 1_000_000 );
+		final long version = dataVersion( root );
+
+		writeChunk( root, "s0/0/0/0", 80, 1_000_000 );
+		final long resized = dataVersion( root );
+		assertNotEquals( version, resized );
+
+		writeChunk( root, "s0/0/0/0", 80, 3_000_000 );
+		assertNotEquals( resized, dataVersion( root ) );
+	}
+
+	@Test
+	public void sidecarsOfOtherDataAreIgnored() throws IOException
+	{
+		final Path sidecar = new File( folder.newFolder(), "stats" ).toPath();
+		final long[] min = { 64, 0, 0 };
+		final BlockStatsIndex written = new BlockStatsIndex();
+		written.load( sidecar, 5 );
+		written.record( 0, 1, min, new short[] { 3, 9, 7 } );
+		written.save( sidecar );
+
+		final BlockStatsIndex same = new BlockStatsIndex();
+		same.load( sidecar, 5 );
+		assertEquals( 3, same.min( 0, 1, min ) );
+		assertEquals( 9, same.max( 0, 1, min ) );
+
+		final BlockStatsIndex changed = new BlockStatsIndex();
+		changed.load( sidecar, 6 );
+		assertEquals( -1, changed.max( 0, 1, min ) );
+	}
+
+	@Test
+	public void entriesRecordedBeforeTheSidecarIsReadAreKept() throws IOException
+	{
+		final Path sidecar = new File( folder.newFolder(), "stats" ).toPath();
+		final long[] min = { 0, 0, 0 };
+		final BlockStatsIndex old = new BlockStatsIndex();
+		old.load( sidecar, 5 );
+		old.record( 0, 0, min, new short[] { 1, 2 } );
+		old.save( sidecar );
+
+		final BlockStatsIndex index = new BlockStatsIndex();
+		index.record( 0, 0, min, new short[] { 4, 8 } );
+		index.load( sidecar, 5 );
+		assertEquals( 8, index.max( 0, 0, min ) );
+	}
+
+	@Test
+	public void nothingIsSavedBeforeTheDataVersionIsKnown() throws IOException
+	{
+		final Path sidecar = new File( folder.newFolder(), "stats" ).toPath();
+		final BlockStatsIndex index = new BlockStatsIndex();
+		index.record( 0, 0, new long[] { 0, 0, 0 }, new short[] { 1, 2 } );
+		index.save( sidecar );
+		assertFalse( Files.exists( sidecar ) );
+	}
+}
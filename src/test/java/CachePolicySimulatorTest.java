@@ -0,0 +1,165 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class CachePolicySimulatorTest
+{
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	/** setup 0, level 0: 64^3 in cells of 32^3, 64 kB each */
+	private static final long[] GRID = { 64, 64, 64, 32, 32, 32 };
+
+	private static final long CELL_BYTES = 2 * 32 * 32 * 32;
+
+	private static final long MS = 1_000_000;
+
+	/** events of a timeline: {nanos, frame, timepoint, index, latency}, setup and level 0 */
+	private final List< long[] > events = new ArrayList<>();
+
+	private void request( final int frame, final int timepoint, final long index )
+	{
+		events.add( new long[] { events.size(), frame, timepoint, index, -1 } );
+	}
+
+	private void fetched( final int frame, final int timepoint, final long index, final long latency )
+	{
+		events.add( new long[] { events.size(), frame, timepoint, index, latency } );
+	}
+
+	/** one request per frame */
+	private void requests( final long... indices )
+	{
+		for ( final long index : indices )
+			request( events.size(), 0, index );
+	}
+
+	/** the timeline as {@link AccessTrace#save} writes it */
+	private CachePolicySimulator.Timeline timeline( final int parallelism ) throws IOException
+	{
+		final File file = new File( folder.newFolder(), "test.trace" );
+		try ( OutputStream out = Files.newOutputStream( file.toPath() );
+				DataOutputStream data = new DataOutputStream( new GZIPOutputStream( out ) ) )
+		{
+			data.writeInt( 0x41545232 ); // "ATR2"
+			data.writeInt( parallelism );
+			data.writeInt( 1 );
+			data.writeInt( 0 );
+			for ( final long value : GRID )
+				data.writeLong( value );
+			data.writeInt( events.size() );
+			for ( final long[] event : events )
+			{
+				data.writeLong( event[ 0 ] );
+				data.writeInt( ( int ) event[ 1 ] );
+				data.writeShort( 0 );
+				data.writeInt( ( int ) event[ 2 ] );
+				data.writeByte( 0 );
+				data.writeLong( event[ 3 ] );
+				data.writeLong( event[ 4 ] );
+			}
+		}
+		return new CachePolicySimulator.Timeline( AccessTrace.load( file.toPath() ) );
+	}
+
+	private static CachePolicySimulator.Result simulate( final CachePolicySimulator.Timeline timeline, final long cells,
+			final CachePolicySimulator.Policy policy )
+	{
+		return CachePolicySimulator.simulate( timeline, new CachePolicySimulator.Config( cells * CELL_BYTES, policy, 0, 0 ), 1 );
+	}
+
+	@Test
+	public void lruEvictsTheLeastRecentlyUsed() throws IOException
+	{
+		// room for two cells: 0 miss, 1 miss, 0 hit, 2 miss evicting 1, 0 hit, 1 miss evicting 2
+		requests( 0, 1, 0, 2, 0, 1 );
+		final CachePolicySimulator.Result result = simulate( timeline( 1 ), 2, CachePolicySimulator.Policy.LRU );
+		assertEquals( 6, result.requests );
+		assertEquals( 2, result.hits );
+		assertEquals( 4 * CELL_BYTES, result.fetchedBytes );
+		assertEquals( 6, result.frames );
+	}
+
+	@Test
+	public void lfuKeepsTheFrequentlyUsed() throws IOException
+	{
+		// 0 is used three times, so 2 replaces 1 rather than 0
+		requests( 0, 0, 0, 1, 2, 0 );
+		final CachePolicySimulator.Timeline timeline = timeline( 1 );
+
+		final CachePolicySimulator.Result lfu = simulate( timeline, 2, CachePolicySimulator.Policy.LFU );
+		assertEquals( 6, lfu.requests );
+		assertEquals( 3, lfu.hits );
+		assertEquals( 3 * CELL_BYTES, lfu.fetchedBytes );
+
+		final CachePolicySimulator.Result lru = simulate( timeline, 2, CachePolicySimulator.Policy.LRU );
+		assertEquals( 2, lru.hits );
+		assertEquals( 4 * CELL_BYTES, lru.fetchedBytes );
+	}
+
+	@Test
+	public void everythingFits() throws IOException
+	{
+		requests( 0, 1, 2, 3, 0, 1, 2, 3 );
+		for ( final CachePolicySimulator.Policy policy : CachePolicySimulator.Policy.values() )
+		{
+			final CachePolicySimulator.Result result = simulate( timeline( 1 ), 8, policy );
+			assertEquals( 4, result.hits );
+			assertEquals( 0.5, result.hitRate(), 1e-9 );
+			assertEquals( 4 * CELL_BYTES, result.fetchedBytes );
+		}
+	}
+
+	@Test
+	public void largerCellsCoverTheRecordedOnes() throws IOException
+	{
+		// the eight recorded cells are one cell of 64^3
+		requests( 0, 1, 2, 3, 4, 5, 6, 7 );
+		final CachePolicySimulator.Result result = CachePolicySimulator.simulate( timeline( 1 ),
+				new CachePolicySimulator.Config( 64 * CELL_BYTES, CachePolicySimulator.Policy.LRU, 64, 0 ), 1 );
+		assertEquals( 8, result.requests );
+		assertEquals( 7, result.hits );
+		assertEquals( 8 * CELL_BYTES, result.fetchedBytes );
+	}
+
+	@Test
+	public void prefetchFetchesTheNextTimepoint() throws IOException
+	{
+		request( 0, 0, 5 );
+		request( 1, 1, 5 );
+		final CachePolicySimulator.Timeline timeline = timeline( 1 );
+		final CachePolicySimulator.Result result = CachePolicySimulator.simulate( timeline,
+				new CachePolicySimulator.Config( 8 * CELL_BYTES, CachePolicySimulator.Policy.LRU, 0, 1 ), 1 );
+		assertEquals( 1, result.hits );
+		assertEquals( 2 * CELL_BYTES, result.fetchedBytes );
+		assertEquals( CELL_BYTES, result.prefetchedBytes );
+	}
+
+	@Test
+	public void stallsAreTheRecordedLatencies() throws IOException
+	{
+		// a frame that misses two cells, fetched in 10 and 30 ms
+		request( 0, 0, 0 );
+		request( 0, 0, 1 );
+		fetched( 0, 0, 0, 10 * MS );
+		fetched( 0, 0, 1, 30 * MS );
+		final CachePolicySimulator.Timeline timeline = timeline( 1 );
+		final CachePolicySimulator.Config config = new CachePolicySimulator.Config( 8 * CELL_BYTES, CachePolicySimulator.Policy.LRU, 0, 0 );
+
+		// one at a time, or both at once
+		assertEquals( 40 * MS, CachePolicySimulator.simulate( timeline, config, 1 ).stallNanos );
+		assertEquals( 30 * MS, CachePolicySimulator.simulate( timeline, config, 2 ).stallNanos );
+		assertEquals( 1, CachePolicySimulator.simulate( timeline, config, 2 ).frames );
+	}
+}
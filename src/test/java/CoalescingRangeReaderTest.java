@@ -0,0 +1,207 @@
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CoalescingRangeReaderTest
+{
+	/** objects in memory, counting the reads */
+	private static class MemoryReader implements ByteRangeReader
+	{
+		final Map< String, byte[] > objects = new HashMap<>();
+
+		final AtomicInteger reads = new AtomicInteger();
+
+		final List< long[] > ranges = Collections.synchronizedList( new ArrayList<>() );
+
+		MemoryReader put( final String key, final int size )
+		{
+			final byte[] bytes = new byte[ size ];
+			for ( int i = 0; i < size; i++ )
+				bytes[ i ] = ( byte ) ( i * 31 + key.hashCode() );
+			objects.put( key, bytes );
+			return this;
+		}
+
+		@Override
+		public byte[] read( final String key, final long offset, final int length ) throws IOException
+		{
+			final byte[] bytes = objects.get( key );
+			if ( bytes == null )
+				throw new FileNotFoundException( key );
+			reads.incrementAndGet();
+			ranges.add( new long[] { offset, length } );
+			final int from = ( int ) Math.min( offset, bytes.length );
+			return Arrays.copyOfRange( bytes, from, ( int ) Math.min( bytes.length, from + ( long ) length ) );
+		}
+
+		@Override
+		public byte[] readSuffix( final String key, final int length ) throws IOException
+		{
+			final byte[] bytes = objects.get( key );
+			if ( bytes == null )
+				throw new FileNotFoundException( key );
+			reads.incrementAndGet();
+			return Arrays.copyOfRange( bytes, Math.max( 0, bytes.length - length ), bytes.length );
+		}
+
+		byte[] expected( final String key, final long offset, final int length )
+		{
+			return Arrays.copyOfRange( objects.get( key ), ( int ) offset, ( int ) offset + length );
+		}
+	}
+
+	/**
+	 * Issue all {@code ranges} ({key index, offset, length}) at the same time
+	 * and check that every caller gets its bytes.
+	 */
+	private static void readConcurrently( final MemoryReader memory, final CoalescingRangeReader reader, final String[] keys,
+			final int[][] ranges ) throws Exception
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool( ranges.length );
+		try
+		{
+			final CountDownLatch start = new CountDownLatch( 1 );
+			final List< Future< byte[] > > futures = new ArrayList<>();
+			for ( final int[] range : ranges )
+			{
+				futures.add( executor.submit( () -> {
+					start.await();
+					return reader.read( keys[ range[ 0 ] ], range[ 1 ], range[ 2 ] );
+				} ) );
+			}
+			start.countDown();
+			for ( int i = 0; i < ranges.length; i++ )
+			{
+				final int[] range = ranges[ i ];
+				assertArrayEquals( memory.expected( keys[ range[ 0 ] ], range[ 1 ], range[ 2 ] ), futures.get( i ).get() );
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/** a window long enough for the threads of a test to arrive in one batch */
+	private static final long WINDOW = TimeUnit.MILLISECONDS.toNanos( 200 );
+
+	@Test
+	public void mergesAdjacentRanges() throws Exception
+	{
+		final MemoryReader memory = new MemoryReader().put( "shard", 64 * 1024 );
+		final CoalescingRangeReader reader = new CoalescingRangeReader( memory, WINDOW, 0, 1 << 20 );
+		final int[][] ranges = new int[ 8 ][];
+		for ( int i = 0; i < ranges.length; i++ )
+			ranges[ i ] = new int[] { 0, 1000 + ( 7 - i ) * 512, 512 };
+		readConcurrently( memory, reader, new String[] { "shard" }, ranges );
+
+		assertEquals( 1, memory.reads.get() );
+		assertArrayEquals( new long[] { 1000, 8 * 512 }, memory.ranges.get( 0 ) );
+		assertEquals( 1, reader.getRequests() );
+		assertEquals( 8, reader.getParts() );
+		assertEquals( 8 * 512, reader.getBytesRead() );
+	}
+
+	@Test
+	public void mergesAcrossSmallGapsAndOverlaps() throws Exception
+	{
+		final MemoryReader memory = new MemoryReader().put( "shard", 64 * 1024 );
+		final CoalescingRangeReader reader = new CoalescingRangeReader( memory, WINDOW, 100, 1 << 20 );
+		final int[][] ranges = {
+				{ 0, 0, 100 },
+				{ 0, 150, 100 }, // 50 bytes gap
+				{ 0, 200, 100 }, // overlaps the previous one
+				{ 0, 260, 20 } }; // contained in the previous one
+		readConcurrently( memory, reader, new String[] { "shard" }, ranges );
+
+		assertEquals( 1, memory.reads.get() );
+		assertArrayEquals( new long[] { 0, 300 }, memory.ranges.get( 0 ) );
+	}
+
+	@Test
+	public void keepsDistantRangesApart() throws Exception
+	{
+		final MemoryReader memory = new MemoryReader().put( "shard", 64 * 1024 );
+		final CoalescingRangeReader reader = new CoalescingRangeReader( memory, WINDOW, 100, 1 << 20 );
+		final int[][] ranges = {
+				{ 0, 0, 100 },
+				{ 0, 201, 100 }, // 101 bytes gap
+				{ 0, 10000, 100 } };
+		readConcurrently( memory, reader, new String[] { "shard" }, ranges );
+
+		assertEquals( 3, memory.reads.get() );
+		assertEquals( 3, reader.getParts() );
+	}
+
+	@Test
+	public void keepsObjectsApart() throws Exception
+	{
+		final MemoryReader memory = new MemoryReader().put( "a", 4096 ).put( "b", 4096 );
+		final CoalescingRangeReader reader = new CoalescingRangeReader( memory, WINDOW, 4096, 1 << 20 );
+		final int[][] ranges = {
+				{ 0, 0, 100 },
+				{ 1, 100, 100 },
+				{ 0, 100, 100 },
+				{ 1, 0, 100 } };
+		readConcurrently( memory, reader, new String[] { "a", "b" }, ranges );
+
+		assertEquals( 2, memory.reads.get() );
+	}
+
+	@Test
+	public void limitsMergedReads() throws Exception
+	{
+		final MemoryReader memory = new MemoryReader().put( "shard", 64 * 1024 );
+		final CoalescingRangeReader reader = new CoalescingRangeReader( memory, WINDOW, 0, 2048 );
+		final int[][] ranges = new int[ 8 ][];
+		for ( int i = 0; i < ranges.length; i++ )
+			ranges[ i ] = new int[] { 0, i * 1024, 1024 };
+		readConcurrently( memory, reader, new String[] { "shard" }, ranges );
+
+		assertEquals( 4, memory.reads.get() );
+		for ( final long[] range : memory.ranges )
+			assertTrue( range[ 1 ] <= 2048 );
+	}
+
+	@Test
+	public void shortAtTheEndOfTheObject() throws Exception
+	{
+		final MemoryReader memory = new MemoryReader().put( "shard", 1000 );
+		final CoalescingRangeReader reader = new CoalescingRangeReader( memory, 0, 0, 1 << 20 );
+		assertArrayEquals( memory.expected( "shard", 900, 100 ), reader.read( "shard", 900, 200 ) );
+		assertEquals( 0, reader.read( "shard", 2000, 10 ).length );
+	}
+
+	@Test
+	public void reportsMissingObjects()
+	{
+		final CoalescingRangeReader reader = new CoalescingRangeReader( new MemoryReader(), 0, 0, 1 << 20 );
+		try
+		{
+			reader.read( "missing", 0, 10 );
+			fail();
+		}
+		catch ( final IOException e )
+		{
+			assertTrue( e instanceof FileNotFoundException );
+		}
+	}
+}
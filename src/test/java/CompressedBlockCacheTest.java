@@ -0,0 +1,141 @@
+import net.imglib2.util.ValuePair;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedBlockCacheTest
+{
+	private static short[] roundTrip( final short[] data, final int rowLength )
+	{
+		final byte[] compressed = CompressedBlockCache.encode( data, rowLength );
+		final short[] decoded = new short[ data.length ];
+		CompressedBlockCache.decode( compressed, decoded, rowLength );
+		assertArrayEquals( data, decoded );
+		return decoded;
+	}
+
+	@Test
+	public void allZero()
+	{
+		final short[] data = new short[ 64 * 64 * 64 ];
+		roundTrip( data, 64 );
+		// only the group headers are left
+		assertTrue( CompressedBlockCache.encode( data, 64 ).length < data.length / 16 );
+	}
+
+	@Test
+	public void random16Bit()
+	{
+		final Random random = new Random( 1 );
+		final short[] data = new short[ 32 * 32 * 32 ];
+		for ( int i = 0; i < data.length; i++ )
+			data[ i ] = ( short ) random.nextInt( 0x10000 );
+		roundTrip( data, 32 );
+	}
+
+	@Test
+	public void smooth()
+	{
+		final short[] data = new short[ 64 * 64 * 16 ];
+		for ( int z = 0, i = 0; z < 16; z++ )
+			for ( int y = 0; y < 64; y++ )
+				for ( int x = 0; x < 64; x++, i++ )
+					data[ i ] = ( short ) ( 1000 + 3 * x + 2 * y + z );
+		roundTrip( data, 64 );
+		assertTrue( CompressedBlockCache.encode( data, 64 ).length < data.length );
+	}
+
+	@Test
+	public void lengthNotMultipleOfGroup()
+	{
+		final Random random = new Random( 2 );
+		final int[][] sizes = { { 33, 7, 5 }, { 1, 1, 1 }, { 1, 1, 127 }, { 129, 1, 1 }, { 5, 3, 2 }, { 63, 63, 3 } };
+		for ( final int[] size : sizes )
+		{
+			final short[] data = new short[ size[ 0 ] * size[ 1 ] * size[ 2 ] ];
+			assertTrue( data.length % CompressedBlockCache.GROUP != 0 );
+			for ( int i = 0; i < data.length; i++ )
+				data[ i ] = ( short ) ( 500 + random.nextInt( 100 ) );
+			roundTrip( data, size[ 0 ] );
+		}
+	}
+
+	@Test
+	public void emptyBlock()
+	{
+		roundTrip( new short[ 0 ], 1 );
+	}
+
+	@Test
+	public void extremeResiduals()
+	{
+		// every residual is +-0xffff, the widest there is
+		final short[] alternating = new short[ 31 * 17 * 3 ];
+		for ( int i = 0; i < alternating.length; i++ )
+			alternating[ i ] = ( short ) ( i % 2 == 0 ? 0 : 0xffff );
+		roundTrip( alternating, 31 );
+
+		// a single jump per group, and jumps between the rows
+		final short[] steps = new short[ 40 * 40 ];
+		for ( int i = 0; i < steps.length; i++ )
+			steps[ i ] = ( short ) ( ( i / 40 ) % 2 == 0 ? 0xffff : 0 );
+		steps[ 7 ] = 0;
+		steps[ 300 ] = ( short ) 0xffff;
+		roundTrip( steps, 40 );
+	}
+
+	@Test
+	public void rowStarts()
+	{
+		// values that only change from row to row predict perfectly from the row above
+		final short[] data = new short[ 16 * 16 * 4 ];
+		for ( int i = 0; i < data.length; i++ )
+			data[ i ] = ( short ) ( ( i / 16 ) * 4099 );
+		roundTrip( data, 16 );
+		roundTrip( data, 1 );
+		roundTrip( data, data.length );
+	}
+
+	@Test
+	public void cacheKeepsCompressibleBlocks()
+	{
+		final CompressedBlockCache cache = new CompressedBlockCache( 1 << 20 );
+		final RenderMetrics metrics = new RenderMetrics();
+		final int[] dims = { 32, 16, 8 };
+		final BlockLoadRegistry.BlockKey smooth = key( new long[] { 0, 0, 0 }, dims );
+		final BlockLoadRegistry.BlockKey noise = key( new long[] { 32, 0, 0 }, dims );
+
+		final short[] data = new short[ 32 * 16 * 8 ];
+		for ( int i = 0; i < data.length; i++ )
+			data[ i ] = ( short ) ( 2000 + i % 32 );
+		cache.put( smooth, data, metrics );
+
+		final Random random = new Random( 3 );
+		final short[] random16 = new short[ data.length ];
+		for ( int i = 0; i < random16.length; i++ )
+			random16[ i ] = ( short ) random.nextInt( 0x10000 );
+		cache.put( noise, random16, metrics );
+
+		final short[] cached = cache.get( smooth, metrics );
+		assertNotNull( cached );
+		for ( int i = 0; i < data.length; i++ )
+			assertEquals( data[ i ], cached[ i ] );
+		assertNull( cache.get( noise, metrics ) );
+		assertTrue( cache.compressionRatio() > 1 );
+
+		cache.invalidate( smooth );
+		assertNull( cache.get( smooth, metrics ) );
+		assertEquals( 0, cache.compressedBytes() );
+	}
+
+	private static BlockLoadRegistry.BlockKey key( final long[] min, final int[] dims )
+	{
+		return new BlockLoadRegistry.BlockKey( null, new ValuePair<>( 0.0, 65535.0 ), false, 0, 0, min, dims );
+	}
+}
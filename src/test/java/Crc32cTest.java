@@ -0,0 +1,41 @@
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class Crc32cTest
+{
+	@Test
+	public void checkValue()
+	{
+		final byte[] bytes = "123456789".getBytes( StandardCharsets.US_ASCII );
+		assertEquals( 0xe3069283, Crc32c.compute( bytes, 0, bytes.length ) );
+	}
+
+	@Test
+	public void knownVectors()
+	{
+		// RFC 3720, B.4
+		assertEquals( 0, Crc32c.compute( new byte[ 0 ], 0, 0 ) );
+		assertEquals( 0x8a9136aa, Crc32c.compute( new byte[ 32 ], 0, 32 ) );
+		final byte[] ones = new byte[ 32 ];
+		final byte[] ascending = new byte[ 32 ];
+		for ( int i = 0; i < 32; i++ )
+		{
+			ones[ i ] = ( byte ) 0xff;
+			ascending[ i ] = ( byte ) i;
+		}
+		assertEquals( 0x62a8ab43, Crc32c.compute( ones, 0, 32 ) );
+		assertEquals( 0x46dd794e, Crc32c.compute( ascending, 0, 32 ) );
+	}
+
+	@Test
+	public void range()
+	{
+		final byte[] bytes = "xx123456789yy".getBytes( StandardCharsets.US_ASCII );
+		assertEquals( 0xe3069283, Crc32c.compute( bytes, 2, 9 ) );
+		assertNotEquals( 0xe3069283, Crc32c.compute( bytes, 1, 9 ) );
+	}
+}
@@ -0,0 +1,139 @@
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LabelDictionaryTest
+{
+	@Test
+	public void backgroundStaysZero()
+	{
+		final LabelDictionary dictionary = new LabelDictionary();
+		assertEquals( 0, dictionary.compact( 0 ) );
+		assertEquals( 0, dictionary.size() );
+		assertEquals( -1, dictionary.indexOf( 0 ) );
+	}
+
+	@Test
+	public void idsInOrderOfFirstSight()
+	{
+		final LabelDictionary dictionary = new LabelDictionary();
+		final long[] labels = { 42, 0xffffffffL, Long.MIN_VALUE, -1, 7 };
+		for ( int i = 0; i < labels.length; i++ )
+			assertEquals( i + 1, dictionary.compact( labels[ i ] ) );
+		// and the same when seen again
+		for ( int i = labels.length - 1; i >= 0; i-- )
+			assertEquals( i + 1, dictionary.compact( labels[ i ] ) );
+		assertEquals( labels.length, dictionary.size() );
+		for ( int i = 0; i < labels.length; i++ )
+		{
+			assertEquals( i, dictionary.indexOf( labels[ i ] ) );
+			assertEquals( labels[ i ], dictionary.getLabel( i ) );
+		}
+		assertEquals( -1, dictionary.indexOf( 43 ) );
+	}
+
+	@Test
+	public void growsPastTheInitialTable()
+	{
+		final LabelDictionary dictionary = new LabelDictionary();
+		final int n = 100_000;
+		for ( int i = 0; i < n; i++ )
+			dictionary.compact( label( i ) );
+		assertEquals( n, dictionary.size() );
+		for ( int i = 0; i < n; i++ )
+		{
+			assertEquals( i, dictionary.indexOf( label( i ) ) );
+			assertEquals( label( i ), dictionary.getLabel( i ) );
+		}
+	}
+
+	@Test
+	public void overflowReusesIdsAndWarns()
+	{
+		final LabelDictionary dictionary = new LabelDictionary( "segmentation" );
+		for ( int i = 0; i < 65535; i++ )
+			assertNotEquals( 0, dictionary.compact( label( i ) ) );
+		assertEquals( ( short ) 65535, dictionary.compact( label( 65534 ) ) );
+		assertFalse( dictionary.reusesIds() );
+
+		final PrintStream err = System.err;
+		final ByteArrayOutputStream warnings = new ByteArrayOutputStream();
+		System.setErr( new PrintStream( warnings, true ) );
+		try
+		{
+			// index 65535 reuses the id of index 0, never 0
+			assertEquals( 1, dictionary.compact( label( 65535 ) ) );
+			assertEquals( 2, dictionary.compact( label( 65536 ) ) );
+		}
+		finally
+		{
+			System.setErr( err );
+		}
+		assertTrue( dictionary.reusesIds() );
+		assertEquals( label( 65535 ), dictionary.getLabel( 65535 ) );
+		// once, naming the source
+		final String warning = warnings.toString();
+		assertTrue( warning.contains( "segmentation has more than 65535 labels" ) );
+		assertEquals( warning.indexOf( "WARNING" ), warning.lastIndexOf( "WARNING" ) );
+	}
+
+	@Test( expected = IndexOutOfBoundsException.class )
+	public void unknownIndex()
+	{
+		final LabelDictionary dictionary = new LabelDictionary();
+		dictionary.compact( 5 );
+		dictionary.getLabel( 1 );
+	}
+
+	@Test
+	public void concurrentLookups() throws Exception
+	{
+		final LabelDictionary dictionary = new LabelDictionary();
+		final int n = 20_000;
+		final ExecutorService executor = Executors.newFixedThreadPool( 4 );
+		try
+		{
+			final List< Future< short[] > > futures = new ArrayList<>();
+			for ( int t = 0; t < 4; t++ )
+			{
+				futures.add( executor.submit( () -> {
+					final short[] ids = new short[ n ];
+					for ( int i = 0; i < n; i++ )
+						ids[ i ] = dictionary.compact( label( i ) );
+					return ids;
+				} ) );
+			}
+			final short[] first = futures.get( 0 ).get();
+			for ( final Future< short[] > future : futures )
+			{
+				final short[] ids = future.get();
+				for ( int i = 0; i < n; i++ )
+					assertEquals( first[ i ], ids[ i ] );
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		assertEquals( n, dictionary.size() );
+		for ( int i = 0; i < n; i++ )
+			assertEquals( label( i ), dictionary.getLabel( dictionary.indexOf( label( i ) ) ) );
+	}
+
+	/** sparse 64-bit labels, as in segmentations */
+	private static long label( final int i )
+	{
+		return ( i + 1 ) * 0x9e3779b97f4a7c15L;
+	}
+}
@@ -0,0 +1,61 @@
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MortonOrderTest
+{
+	@Test
+	public void interleaves()
+	{
+		assertEquals( 0, MortonOrder.encode( 0, 0, 0 ) );
+		assertEquals( 1, MortonOrder.encode( 1, 0, 0 ) );
+		assertEquals( 2, MortonOrder.encode( 0, 1, 0 ) );
+		assertEquals( 4, MortonOrder.encode( 0, 0, 1 ) );
+		assertEquals( 7, MortonOrder.encode( 1, 1, 1 ) );
+		assertEquals( 8, MortonOrder.encode( 2, 0, 0 ) );
+		assertEquals( MortonOrder.encode( 3, 5, 6 ), MortonOrder.encode( new long[] { 3, 5, 6 } ) );
+	}
+
+	@Test
+	public void usesTheLower21Bits()
+	{
+		final long max = ( 1L << 21 ) - 1;
+		assertEquals( ( 1L << 63 ) - 1, MortonOrder.encode( max, max, max ) );
+		assertEquals( 0x1249249249249249L, MortonOrder.spread( max ) );
+		assertEquals( MortonOrder.encode( 1, 2, 3 ), MortonOrder.encode( 1 + ( 1L << 21 ), 2 + ( 5L << 21 ), 3 ) );
+	}
+
+	@Test
+	public void matchesBitByBitInterleaving()
+	{
+		for ( long v = 0; v < 5000; v += 7 )
+		{
+			long expected = 0;
+			for ( int b = 0; b < 21; b++ )
+				expected |= ( ( v >>> b ) & 1 ) << ( 3 * b );
+			assertEquals( expected, MortonOrder.spread( v ) );
+		}
+	}
+
+	@Test
+	public void octantsAreContiguous()
+	{
+		// the 512 positions of an 8^3 cube get the codes 0..511, and each
+		// 4^3 octant a contiguous run of them
+		final Set< Long > codes = new HashSet<>();
+		for ( int z = 0; z < 8; z++ )
+			for ( int y = 0; y < 8; y++ )
+				for ( int x = 0; x < 8; x++ )
+				{
+					final long code = MortonOrder.encode( x, y, z );
+					assertTrue( code < 512 );
+					assertEquals( ( x / 4 ) + 2 * ( y / 4 ) + 4 * ( z / 4 ), code / 64 );
+					codes.add( code );
+				}
+		assertEquals( 512, codes.size() );
+	}
+}
@@ -0,0 +1,191 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShardedZarrArrayTest
+{
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	/** x, y, z; one shard of 2 x 1 x 2 inner chunks */
+	private static final int[] SHAPE = { 8, 4, 4 };
+
+	private static final int[] CHUNK = { 4, 4, 2 };
+
+	private static final int NUM_CHUNKS = 4;
+
+	private static final String META = "{"
+			+ "\"zarr_format\": 3, \"node_type\": \"array\","
+			+ "\"shape\": [4, 4, 8], \"data_type\": \"uint16\", \"fill_value\": 0,"
+			+ "\"chunk_grid\": {\"name\": \"regular\", \"configuration\": {\"chunk_shape\": [4, 4, 8]}},"
+			+ "\"chunk_key_encoding\": {\"name\": \"default\"},"
+			+ "\"codecs\": [{\"name\": \"sharding_indexed\", \"configuration\": {"
+			+ "\"chunk_shape\": [2, 4, 4],"
+			+ "\"codecs\": [{\"name\": \"bytes\", \"configuration\": {\"endian\": \"little\"}}],"
+			+ "\"index_codecs\": [{\"name\": \"bytes\", \"configuration\": {\"endian\": \"little\"}}, {\"name\": \"crc32c\"}],"
+			+ "\"index_location\": \"end\"}}]}";
+
+	private static short value( final long x, final long y, final long z )
+	{
+		return ( short ) ( x + 10 * y + 100 * z + 60000 );
+	}
+
+	/** chunk positions of the shard, in index order (x fastest) */
+	private static long[] chunkMin( final int inner )
+	{
+		return new long[] { ( inner % 2 ) * CHUNK[ 0 ], 0, ( inner / 2 ) * CHUNK[ 2 ] };
+	}
+
+	/**
+	 * Write {@code zarr.json} and the shard {@code c/0/0/0}, chunks stored in
+	 * reverse order, without {@code emptyChunk}.
+	 */
+	private File writeArray( final int emptyChunk ) throws IOException
+	{
+		final File root = folder.newFolder();
+		Files.write( new File( root, "zarr.json" ).toPath(), META.getBytes( StandardCharsets.UTF_8 ) );
+
+		final int chunkBytes = 2 * CHUNK[ 0 ] * CHUNK[ 1 ] * CHUNK[ 2 ];
+		final ByteBuffer shard = ByteBuffer.allocate( NUM_CHUNKS * chunkBytes + 16 * NUM_CHUNKS + 4 ).order( ByteOrder.LITTLE_ENDIAN );
+		final long[] index = new long[ 2 * NUM_CHUNKS ];
+		for ( int inner = NUM_CHUNKS - 1; inner >= 0; inner-- )
+		{
+			if ( inner == emptyChunk )
+			{
+				index[ 2 * inner ] = -1;
+				index[ 2 * inner + 1 ] = -1;
+				continue;
+			}
+			index[ 2 * inner ] = shard.position();
+			index[ 2 * inner + 1 ] = chunkBytes;
+			final long[] min = chunkMin( inner );
+			for ( int z = 0; z < CHUNK[ 2 ]; z++ )
+				for ( int y = 0; y < CHUNK[ 1 ]; y++ )
+					for ( int x = 0; x < CHUNK[ 0 ]; x++ )
+						shard.putShort( value( min[ 0 ] + x, min[ 1 ] + y, min[ 2 ] + z ) );
+		}
+		final int indexStart = shard.position();
+		for ( final long v : index )
+			shard.putLong( v );
+		shard.putInt( Crc32c.compute( shard.array(), indexStart, 16 * NUM_CHUNKS ) );
+
+		final File dir = new File( root, "c/0/0" );
+		assertTrue( dir.mkdirs() );
+		Files.write( new File( dir, "0" ).toPath(), Arrays.copyOf( shard.array(), shard.position() ) );
+		return root;
+	}
+
+	private static ShardedZarrArray open( final File root ) throws IOException
+	{
+		final ByteRangeReader reader = new ByteRangeReader.FileReader( root.toPath() );
+		// the index cache is global, the folder keeps the arrays of the tests apart
+		return ShardedZarrArray.open( reader, new CoalescingRangeReader( reader ), root.getAbsolutePath(), "" );
+	}
+
+	@Test
+	public void readsMetadata() throws IOException
+	{
+		final ShardedZarrArray array = open( writeArray( -1 ) );
+		assertEquals( 3, array.numDimensions() );
+		assertArrayEquals( new long[] { 8, 4, 4 }, array.shape );
+		assertArrayEquals( SHAPE, array.shardShape );
+		assertArrayEquals( CHUNK, array.chunkShape );
+		assertEquals( "uint16", array.dataType );
+	}
+
+	@Test
+	public void readsChunks() throws IOException
+	{
+		final ShardedZarrArray array = open( writeArray( -1 ) );
+		for ( int inner = 0; inner < NUM_CHUNKS; inner++ )
+		{
+			final long[] min = chunkMin( inner );
+			final short[] block = new short[ CHUNK[ 0 ] * CHUNK[ 1 ] * CHUNK[ 2 ] ];
+			assertTrue( array.readBlock( min, CHUNK, block, 0 ) );
+			int i = 0;
+			for ( int z = 0; z < CHUNK[ 2 ]; z++ )
+				for ( int y = 0; y < CHUNK[ 1 ]; y++ )
+					for ( int x = 0; x < CHUNK[ 0 ]; x++ )
+						assertEquals( value( min[ 0 ] + x, min[ 1 ] + y, min[ 2 ] + z ), block[ i++ ] );
+		}
+	}
+
+	@Test
+	public void readsPartOfAChunk() throws IOException
+	{
+		final ShardedZarrArray array = open( writeArray( -1 ) );
+		final int[] size = { 3, 2, 1 };
+		final short[] block = new short[ 6 ];
+		assertTrue( array.readBlock( new long[] { 4, 0, 2 }, size, block, 0 ) );
+		int i = 0;
+		for ( int y = 0; y < 2; y++ )
+			for ( int x = 0; x < 3; x++ )
+				assertEquals( value( 4 + x, y, 2 ), block[ i++ ] );
+	}
+
+	@Test
+	public void emptyChunk() throws IOException
+	{
+		final ShardedZarrArray array = open( writeArray( 2 ) );
+		final short[] block = new short[ CHUNK[ 0 ] * CHUNK[ 1 ] * CHUNK[ 2 ] ];
+		block[ 0 ] = 17;
+		assertFalse( array.readBlock( chunkMin( 2 ), CHUNK, block, 0 ) );
+		assertEquals( 17, block[ 0 ] );
+		assertTrue( array.readBlock( chunkMin( 3 ), CHUNK, block, 0 ) );
+	}
+
+	@Test
+	public void missingShard() throws IOException
+	{
+		final File root = writeArray( -1 );
+		assertTrue( new File( root, "c/0/0/0" ).delete() );
+		final ShardedZarrArray array = open( root );
+		assertFalse( array.readBlock( new long[] { 0, 0, 0 }, CHUNK, new short[ 32 ], 0 ) );
+	}
+
+	@Test
+	public void corruptIndex() throws IOException
+	{
+		final File root = writeArray( -1 );
+		final File shard = new File( root, "c/0/0/0" );
+		final byte[] bytes = Files.readAllBytes( shard.toPath() );
+		// the nbytes of the last chunk
+		bytes[ bytes.length - 4 - 8 ] ^= 1;
+		Files.write( shard.toPath(), bytes );
+
+		final ShardedZarrArray array = open( root );
+		try
+		{
+			array.readBlock( new long[] { 0, 0, 0 }, CHUNK, new short[ 32 ], 0 );
+			fail();
+		}
+		catch ( final IOException e )
+		{
+			assertTrue( e.getMessage().contains( "checksum" ) );
+		}
+	}
+
+	@Test( expected = IOException.class )
+	public void notSharded() throws IOException
+	{
+		final File root = folder.newFolder();
+		Files.write( new File( root, "zarr.json" ).toPath(),
+				"{\"zarr_format\": 3, \"node_type\": \"array\", \"shape\": [4], \"data_type\": \"uint16\", \"codecs\": [{\"name\": \"bytes\"}]}"
+						.getBytes( StandardCharsets.UTF_8 ) );
+		open( root );
+	}
+}
@@ -0,0 +1,148 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SharedMemoryBlockCacheTest
+{
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	/** blocks of up to 4096 bytes */
+	private static final int BLOCK_BYTES = 4096;
+
+	/** the slots start at the first page after the set headers, see the layout in SharedMemoryBlockCache */
+	private static final long DATA_OFFSET = 4096;
+
+	private static final int SLOT_HEADER = 64;
+
+	/** one set of {@link SharedMemoryBlockCache#WAYS} slots: every block competes for the same slots */
+	private SharedMemoryBlockCache openOneSet( final File file ) throws IOException
+	{
+		return SharedMemoryBlockCache.open( file.toPath(), 1, BLOCK_BYTES );
+	}
+
+	private static long[] key( final int i )
+	{
+		return SharedMemoryBlockCache.key( "dataset", null, false, 0, 0, new long[] { 64L * i, 0, 0 }, new int[] { 16, 16, 8 } );
+	}
+
+	private static short[] block( final int seed )
+	{
+		final short[] data = new short[ 16 * 16 * 8 ];
+		for ( int i = 0; i < data.length; i++ )
+			data[ i ] = ( short ) ( seed * 1000 + i );
+		return data;
+	}
+
+	@Test
+	public void roundTrip() throws IOException
+	{
+		final SharedMemoryBlockCache cache = openOneSet( new File( folder.newFolder(), "shm" ) );
+		assertNull( cache.get( key( 0 ), 16 * 16 * 8 ) );
+		cache.put( key( 0 ), block( 0 ) );
+		assertArrayEquals( block( 0 ), cache.get( key( 0 ), 16 * 16 * 8 ) );
+		// a lookup with another size is a miss
+		assertNull( cache.get( key( 0 ), 16 * 16 * 4 ) );
+		assertNull( cache.get( key( 1 ), 16 * 16 * 8 ) );
+	}
+
+	@Test
+	public void sharedThroughTheFile() throws IOException
+	{
+		final File file = new File( folder.newFolder(), "shm" );
+		final SharedMemoryBlockCache writer = openOneSet( file );
+		writer.put( key( 3 ), block( 3 ) );
+		// another process maps the file, with the geometry of the first one
+		final SharedMemoryBlockCache reader = SharedMemoryBlockCache.open( file.toPath(), 1 << 30, 1 << 20 );
+		assertEquals( writer.maxBlockSize(), reader.maxBlockSize() );
+		assertArrayEquals( block( 3 ), reader.get( key( 3 ), 16 * 16 * 8 ) );
+	}
+
+	@Test
+	public void tooLargeBlocksAreNotShared() throws IOException
+	{
+		final SharedMemoryBlockCache cache = openOneSet( new File( folder.newFolder(), "shm" ) );
+		final short[] large = new short[ cache.maxBlockSize() + 1 ];
+		cache.put( key( 0 ), large );
+		assertNull( cache.get( key( 0 ), large.length ) );
+	}
+
+	@Test
+	public void tornReadsAreMisses() throws IOException
+	{
+		final File file = new File( folder.newFolder(), "shm" );
+		final SharedMemoryBlockCache cache = openOneSet( file );
+		cache.put( key( 0 ), block( 0 ) );
+		try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE ) )
+		{
+			// the first block of an empty set goes into its first slot
+			final long slot = DATA_OFFSET;
+			final ByteBuffer seq = ByteBuffer.allocate( 8 ).order( ByteOrder.nativeOrder() );
+			channel.read( seq, slot );
+			final long written = seq.getLong( 0 );
+
+			// a writer is in the middle of replacing the block
+			seq.putLong( 0, written + 1 );
+			channel.write( ( ByteBuffer ) seq.rewind(), slot );
+			assertNull( cache.get( key( 0 ), 16 * 16 * 8 ) );
+
+			// the sequence number is back, but the data is not the one checksummed
+			seq.putLong( 0, written );
+			channel.write( ( ByteBuffer ) seq.rewind(), slot );
+			assertNotNull( cache.get( key( 0 ), 16 * 16 * 8 ) );
+			final ByteBuffer voxel = ByteBuffer.allocate( 2 );
+			channel.read( voxel, slot + SLOT_HEADER + 100 );
+			voxel.put( 0, ( byte ) ( voxel.get( 0 ) ^ 1 ) );
+			channel.write( ( ByteBuffer ) voxel.rewind(), slot + SLOT_HEADER + 100 );
+			assertNull( cache.get( key( 0 ), 16 * 16 * 8 ) );
+		}
+	}
+
+	@Test
+	public void clockGivesReferencedBlocksASecondChance() throws IOException
+	{
+		final SharedMemoryBlockCache cache = openOneSet( new File( folder.newFolder(), "shm" ) );
+		final int ways = SharedMemoryBlockCache.WAYS;
+		for ( int i = 0; i < ways; i++ )
+			cache.put( key( i ), block( i ) );
+		for ( int i = 0; i < ways; i++ )
+			assertNotNull( cache.get( key( i ), 16 * 16 * 8 ) );
+
+		// all are referenced: the hand goes round once, clearing them, and replaces the first
+		cache.put( key( ways ), block( ways ) );
+		assertNull( cache.get( key( 0 ), 16 * 16 * 8 ) );
+
+		// block 1 is used again, the hand passes it and replaces block 2
+		assertNotNull( cache.get( key( 1 ), 16 * 16 * 8 ) );
+		cache.put( key( ways + 1 ), block( ways + 1 ) );
+		assertNull( cache.get( key( 2 ), 16 * 16 * 8 ) );
+		assertArrayEquals( block( 1 ), cache.get( key( 1 ), 16 * 16 * 8 ) );
+		for ( int i = 3; i < ways + 2; i++ )
+			assertArrayEquals( block( i ), cache.get( key( i ), 16 * 16 * 8 ) );
+	}
+
+	@Test
+	public void putReplacesTheBlockOfItsKey() throws IOException
+	{
+		final SharedMemoryBlockCache cache = openOneSet( new File( folder.newFolder(), "shm" ) );
+		cache.put( key( 0 ), block( 0 ) );
+		cache.put( key( 0 ), block( 5 ) );
+		assertArrayEquals( block( 5 ), cache.get( key( 0 ), 16 * 16 * 8 ) );
+		// and did not take a second slot
+		for ( int i = 1; i < SharedMemoryBlockCache.WAYS; i++ )
+			cache.put( key( i ), block( i ) );
+		assertArrayEquals( block( 5 ), cache.get( key( 0 ), 16 * 16 * 8 ) );
+	}
+}
@@ -0,0 +1,101 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StoreWatcherTest
+{
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private StoreWatcher.Level level( final String file, final String json, final List< String > axes ) throws IOException
+	{
+		final File dir = folder.newFolder();
+		Files.write( new File( dir, file ).toPath(), json.getBytes( StandardCharsets.UTF_8 ) );
+		return StoreWatcher.readLevel( dir.toPath(), axes );
+	}
+
+	@Test
+	public void n5KeysAreInImglib2Order() throws IOException
+	{
+		final StoreWatcher.Level n5 = level( "attributes.json",
+				"{\"dataType\": \"uint16\", \"dimensions\": [100, 200, 300], \"blockSize\": [64, 32, 16]}", Collections.emptyList() );
+		assertArrayEquals( new long[] { 64, 32, 16 }, n5.chunkShape );
+		assertArrayEquals( new long[] { 1, 2, 3 }, StoreWatcher.gridPosition( n5, "1/2/3" ) );
+		assertNull( StoreWatcher.gridPosition( n5, "attributes.json" ) );
+		assertNull( StoreWatcher.gridPosition( n5, "1/2" ) );
+		assertNull( StoreWatcher.gridPosition( n5, "1/x/3" ) );
+	}
+
+	@Test
+	public void zarr2KeysAreInCOrder() throws IOException
+	{
+		final StoreWatcher.Level dots = level( ".zarray",
+				"{\"zarr_format\": 2, \"shape\": [300, 200, 100], \"chunks\": [16, 32, 64], \"dtype\": \"<u2\"}", Collections.emptyList() );
+		assertArrayEquals( new long[] { 64, 32, 16 }, dots.chunkShape );
+		assertArrayEquals( new long[] { 1, 2, 3 }, StoreWatcher.gridPosition( dots, "3.2.1" ) );
+		assertNull( StoreWatcher.gridPosition( dots, ".zarray" ) );
+		assertNull( StoreWatcher.gridPosition( dots, "3/2/1" ) );
+
+		final StoreWatcher.Level slashes = level( ".zarray",
+				"{\"zarr_format\": 2, \"shape\": [300, 200, 100], \"chunks\": [16, 32, 64], \"dtype\": \"<u2\", \"dimension_separator\": \"/\"}",
+				Collections.emptyList() );
+		assertArrayEquals( new long[] { 1, 2, 3 }, StoreWatcher.gridPosition( slashes, "3/2/1" ) );
+		assertNull( StoreWatcher.gridPosition( slashes, "3.2.1" ) );
+	}
+
+	@Test
+	public void zarr3DefaultKeysArePrefixed() throws IOException
+	{
+		final StoreWatcher.Level zarr = level( "zarr.json", "{\"zarr_format\": 3, \"node_type\": \"array\", \"shape\": [300, 200, 100],"
+				+ "\"chunk_grid\": {\"name\": \"regular\", \"configuration\": {\"chunk_shape\": [16, 32, 64]}},"
+				+ "\"chunk_key_encoding\": {\"name\": \"default\"}}", Collections.emptyList() );
+		assertArrayEquals( new long[] { 64, 32, 16 }, zarr.chunkShape );
+		assertArrayEquals( new long[] { 1, 2, 3 }, StoreWatcher.gridPosition( zarr, "c/3/2/1" ) );
+		assertNull( StoreWatcher.gridPosition( zarr, "3/2/1" ) );
+		assertNull( StoreWatcher.gridPosition( zarr, "zarr.json" ) );
+		assertNull( StoreWatcher.gridPosition( zarr, "c/3/2" ) );
+	}
+
+	@Test
+	public void zarr3V2EncodingAndDotSeparator() throws IOException
+	{
+		final StoreWatcher.Level v2 = level( "zarr.json", "{\"zarr_format\": 3, \"node_type\": \"array\", \"shape\": [300, 200, 100],"
+				+ "\"chunk_grid\": {\"name\": \"regular\", \"configuration\": {\"chunk_shape\": [16, 32, 64]}},"
+				+ "\"chunk_key_encoding\": {\"name\": \"v2\"}}", Collections.emptyList() );
+		assertArrayEquals( new long[] { 1, 2, 3 }, StoreWatcher.gridPosition( v2, "3.2.1" ) );
+		assertNull( StoreWatcher.gridPosition( v2, "c.3.2.1" ) );
+
+		final StoreWatcher.Level dots = level( "zarr.json", "{\"zarr_format\": 3, \"node_type\": \"array\", \"shape\": [300, 200, 100],"
+				+ "\"chunk_grid\": {\"name\": \"regular\", \"configuration\": {\"chunk_shape\": [16, 32, 64]}},"
+				+ "\"chunk_key_encoding\": {\"name\": \"default\", \"configuration\": {\"separator\": \".\"}}}", Collections.emptyList() );
+		assertArrayEquals( new long[] { 1, 2, 3 }, StoreWatcher.gridPosition( dots, "c.3.2.1" ) );
+		assertNull( StoreWatcher.gridPosition( dots, "c/3/2/1" ) );
+	}
+
+	@Test
+	public void timeAxis() throws IOException
+	{
+		final String zarr4d = "{\"zarr_format\": 3, \"node_type\": \"array\", \"shape\": [10, 300, 200, 100],"
+				+ "\"chunk_grid\": {\"name\": \"regular\", \"configuration\": {\"chunk_shape\": [1, 16, 32, 64]}},"
+				+ "\"dimension_names\": [\"t\", \"z\", \"y\", \"x\"]}";
+		final StoreWatcher.Level named = level( "zarr.json", zarr4d, Collections.emptyList() );
+		assertEquals( 3, named.timeDim );
+		assertArrayEquals( new long[] { 1, 2, 3, 7 }, StoreWatcher.gridPosition( named, "c/7/3/2/1" ) );
+
+		// the axes of an OME-Zarr multiscale take precedence
+		final StoreWatcher.Level ome = level( "zarr.json", zarr4d, Arrays.asList( "c", "z", "y", "x" ) );
+		assertEquals( -1, ome.timeDim );
+	}
+}